@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.bench;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.wukong.iop.frame.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+Serialize the depth and order structs with OP and the body codecs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"DEPTH", "ORDER"})
+    public String payload;
+
+    private Object struct;
+    private Class<?> clz;
+    private String json;
+    private Body body;
+    private byte[] jsonBody;
+    private byte[] binaryBody;
+
+    @Setup
+    public void setup() throws IOException {
+        if ("DEPTH".equals(this.payload)) {
+            this.struct = Payloads.depth("rb2105");
+            this.clz = CThostFtdcDepthMarketDataField.class;
+            this.body = Payloads.body(MessageType.FLOW_DEPTH, this.struct);
+        } else {
+            this.struct = Payloads.order();
+            this.clz = CThostFtdcOrderField.class;
+            this.body = Payloads.body(MessageType.RSP_QRY_ORDER, this.struct);
+        }
+        this.json = OP.toJson(this.struct);
+        this.jsonBody = BodyCodec.JSON.encode(this.body);
+        this.binaryBody = BodyCodec.BINARY.encode(this.body);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return OP.toJson(this.struct);
+    }
+
+    @Benchmark
+    public Object fromJson() throws IOException {
+        return OP.fromJson(this.json, this.clz);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        return BodyCodec.JSON.encode(this.body);
+    }
+
+    @Benchmark
+    public Body decodeJson() throws IOException {
+        return BodyCodec.JSON.decode(this.jsonBody, 0, this.jsonBody.length);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return BodyCodec.BINARY.encode(this.body);
+    }
+
+    @Benchmark
+    public Body decodeBinary() throws IOException {
+        return BodyCodec.BINARY.decode(this.binaryBody, 0,
+                this.binaryBody.length);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.bench;
+
+import com.nabiki.wukong.iop.frame.*;
+import com.nabiki.wukong.iop.internal.FrameEncoder;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+Encode depth frames into buffers, with and without encoding the body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncoderBenchmark {
+    /*
+    Free the buffer at once like the I/O processor does after writing it.
+     */
+    private static class Output implements ProtocolEncoderOutput {
+        Blackhole bh;
+
+        @Override
+        public void write(Object encodedMessage) {
+            var buffer = (IoBuffer) encodedMessage;
+            this.bh.consume(buffer.remaining());
+            buffer.free();
+        }
+
+        @Override
+        public void mergeAll() {
+        }
+
+        @Override
+        public WriteFuture flush() {
+            return null;
+        }
+    }
+
+    @Param({"JSON", "BINARY"})
+    public String codec;
+
+    private BodyCodec bodyCodec;
+    private Body body;
+    private Frame frame;
+
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final DummySession session = new DummySession();
+    private final Output output = new Output();
+
+    @Setup
+    public void setup() throws IOException {
+        this.bodyCodec = "JSON".equals(this.codec)
+                ? BodyCodec.JSON : BodyCodec.BINARY;
+        this.body = Payloads.body(MessageType.FLOW_DEPTH,
+                Payloads.depth("rb2105"));
+        this.frame = Payloads.frame(FrameType.RESPONSE, this.bodyCodec,
+                this.body);
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        this.output.bh = bh;
+        this.encoder.encode(this.session, this.frame, this.output);
+    }
+
+    @Benchmark
+    public void encodeBody(Blackhole bh) throws Exception {
+        this.output.bh = bh;
+        this.encoder.encode(this.session, Payloads.frame(FrameType.RESPONSE,
+                this.bodyCodec, this.body), this.output);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.bench;
+
+import com.nabiki.wukong.iop.frame.*;
+import com.nabiki.wukong.iop.internal.FrameDecoder;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+Parse a depth frame as one read, as small reads and after garbage that needs
+the parser to sync up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameParserBenchmark {
+    private static class Output extends AbstractProtocolDecoderOutput {
+        @Override
+        public void flush(IoFilter.NextFilter nextFilter, IoSession session) {
+        }
+    }
+
+    @Param({"JSON", "BINARY"})
+    public String codec;
+
+    @Param({"64"})
+    public int fragment;
+
+    private byte[] whole;
+    private byte[][] fragments;
+    private byte[] corrupted;
+
+    private FrameParser parser;
+    private FrameDecoder decoder;
+    private DummySession session;
+    private Output output;
+
+    @Setup
+    public void setup() throws IOException {
+        var c = "JSON".equals(this.codec) ? BodyCodec.JSON : BodyCodec.BINARY;
+        this.whole = Payloads.bytes(Payloads.frame(FrameType.RESPONSE, c,
+                Payloads.body(MessageType.FLOW_DEPTH,
+                        Payloads.depth("rb2105"))));
+        // Cut the frame into reads of fragment bytes.
+        var count = (this.whole.length + this.fragment - 1) / this.fragment;
+        this.fragments = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            var from = i * this.fragment;
+            var to = Math.min(from + this.fragment, this.whole.length);
+            this.fragments[i] = new byte[to - from];
+            System.arraycopy(this.whole, from, this.fragments[i], 0, to - from);
+        }
+        // Bad header with its body, zeros to sync up, then the good frame.
+        var garbage = this.whole.clone();
+        ByteBuffer.wrap(garbage).putInt(4, -1);
+        this.corrupted = new byte[garbage.length + FrameParser.SYNC_ZERO_BYTES
+                + this.whole.length];
+        System.arraycopy(garbage, 0, this.corrupted, 0, garbage.length);
+        System.arraycopy(this.whole, 0, this.corrupted,
+                garbage.length + FrameParser.SYNC_ZERO_BYTES, this.whole.length);
+
+        this.parser = new FrameParser();
+        this.decoder = new FrameDecoder();
+        this.decoder.setTransportMetadataFragmentation(false);
+        this.session = new DummySession();
+        this.output = new Output();
+    }
+
+    @Benchmark
+    public void whole(Blackhole bh) {
+        this.parser.parse(this.whole);
+        bh.consume(this.parser.poll());
+    }
+
+    @Benchmark
+    public void fragmented(Blackhole bh) {
+        for (var bytes : this.fragments)
+            this.parser.parse(bytes);
+        bh.consume(this.parser.poll());
+    }
+
+    @Benchmark
+    public void syncRecovery(Blackhole bh) {
+        this.parser.parse(this.corrupted);
+        bh.consume(this.parser.poll());
+    }
+
+    @Benchmark
+    public void decoderWhole(Blackhole bh) throws Exception {
+        this.decoder.decode(this.session, IoBuffer.wrap(this.whole), this.output);
+        drain(bh);
+    }
+
+    @Benchmark
+    public void decoderFragmented(Blackhole bh) throws Exception {
+        for (var bytes : this.fragments)
+            this.decoder.decode(this.session, IoBuffer.wrap(bytes), this.output);
+        drain(bh);
+    }
+
+    private void drain(Blackhole bh) {
+        Object frame;
+        while ((frame = this.output.getMessageQueue().poll()) != null) {
+            bh.consume(frame);
+            FramePool.release((Frame) frame);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.bench;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.iop.*;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.internal.IOPClientImpl;
+import com.nabiki.wukong.iop.internal.IOPServerImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Publish depth market data from a server to a client over loopback. Throughput
+counts the depths received by the client, latency is the time from publishing
+one depth until the client adaptor gets it.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    public static final int BATCH = 1000;
+
+    @Param({"JSON", "BINARY"})
+    public String codec;
+
+    @Param({"false", "true"})
+    public boolean batchFrames;
+
+    private final AtomicLong received = new AtomicLong(0);
+    private final CThostFtdcDepthMarketDataField[] depths
+            = new CThostFtdcDepthMarketDataField[BATCH];
+
+    private IOPServer server;
+    private IOPClient client;
+    private long expected;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        var bodyCodec = "JSON".equals(this.codec)
+                ? BodyCodec.JSON : BodyCodec.BINARY;
+        // Different instruments so none of them is conflated.
+        for (int i = 0; i < BATCH; ++i)
+            this.depths[i] = Payloads.depth("rb" + (2000 + i));
+
+        var address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                freePort());
+        this.server = new IOPServerImpl(address);
+        this.server.setSessionAdaptor((session, event, eventObject) -> {
+            if (event == SessionEvent.OPENED) {
+                session.setBodyCodec(bodyCodec);
+                session.setBatchFrames(this.batchFrames);
+                this.server.getPublisher().subscribe(session,
+                        SubscriptionRegistry.ALL);
+            }
+        });
+
+        this.client = new IOPClientImpl(address);
+        this.client.setMessageAdaptor(new ClientMessageAdaptor() {
+            @Override
+            public void rspDepthMarketData(CThostFtdcDepthMarketDataField depth) {
+                received.incrementAndGet();
+            }
+        });
+        // Wait for the server to subscribe the client.
+        var registry = this.server.getSubscriptionRegistry();
+        while (registry.getSubscribers(this.depths[0].InstrumentID).isEmpty())
+            TimeUnit.MILLISECONDS.sleep(10);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.getSession().close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() {
+        var publisher = this.server.getPublisher();
+        for (var depth : this.depths)
+            publisher.publish(depth);
+        await(this.expected += BATCH);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+        this.server.getPublisher().publish(this.depths[0]);
+        await(++this.expected);
+    }
+
+    private void await(long count) {
+        while (this.received.get() < count)
+            LockSupport.parkNanos(1000);
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.bench;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.wukong.iop.frame.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/*
+Payloads shared by the benchmarks, filled like the data a CTP front sends.
+ */
+class Payloads {
+    static CThostFtdcDepthMarketDataField depth(String instrumentID) {
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.TradingDay = "20201218";
+        depth.ActionDay = "20201218";
+        depth.InstrumentID = instrumentID;
+        depth.ExchangeID = "SHFE";
+        depth.ExchangeInstID = instrumentID;
+        depth.LastPrice = 3652.0;
+        depth.PreSettlementPrice = 3640.0;
+        depth.PreClosePrice = 3638.0;
+        depth.PreOpenInterest = 512340.0;
+        depth.OpenPrice = 3641.0;
+        depth.HighestPrice = 3660.0;
+        depth.LowestPrice = 3630.0;
+        depth.Volume = 382911;
+        depth.Turnover = 13982736540.0;
+        depth.OpenInterest = 514022.0;
+        depth.ClosePrice = Double.MAX_VALUE;
+        depth.SettlementPrice = Double.MAX_VALUE;
+        depth.UpperLimitPrice = 3894.0;
+        depth.LowerLimitPrice = 3385.0;
+        depth.UpdateTime = "14:59:59";
+        depth.UpdateMillisec = 500;
+        depth.BidPrice1 = 3651.0;
+        depth.BidVolume1 = 120;
+        depth.AskPrice1 = 3652.0;
+        depth.AskVolume1 = 86;
+        depth.AveragePrice = 36516.8;
+        return depth;
+    }
+
+    static CThostFtdcOrderField order() {
+        var order = new CThostFtdcOrderField();
+        order.BrokerID = "9999";
+        order.InvestorID = "0010001";
+        order.InstrumentID = "rb2105";
+        order.ExchangeID = "SHFE";
+        order.OrderRef = "000000000012";
+        order.Direction = '0';
+        order.LimitPrice = 3652.0;
+        order.VolumeTotalOriginal = 10;
+        order.OrderSysID = "       1029384";
+        order.OrderStatus = '1';
+        order.VolumeTraded = 4;
+        order.VolumeTotal = 6;
+        order.InsertDate = "20201218";
+        order.InsertTime = "14:31:02";
+        order.FrontID = 1;
+        order.SessionID = 1798623;
+        order.StatusMsg = "\u90e8\u5206\u6210\u4ea4";
+        return order;
+    }
+
+    static Body body(MessageType type, Object payload) {
+        var body = new Body();
+        body.RequestID = UUID.randomUUID();
+        body.ResponseID = UUID.randomUUID();
+        body.Type = type;
+        body.Payload = payload;
+        return body;
+    }
+
+    static Frame frame(int type, BodyCodec codec, Body body)
+            throws IOException {
+        var bytes = codec.encode(body);
+        var frame = new Frame();
+        frame.Type = type | codec.getFlag();
+        frame.Length = bytes.length;
+        frame.Body = bytes;
+        return frame;
+    }
+
+    static byte[] bytes(Frame frame) {
+        var bytes = new byte[8 + frame.Length];
+        var buffer = ByteBuffer.wrap(bytes);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(frame.Type);
+        buffer.putInt(frame.Length);
+        buffer.put(frame.Body, 0, frame.Length);
+        return bytes;
+    }
+}
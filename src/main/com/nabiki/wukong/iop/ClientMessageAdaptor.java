@@ -32,6 +32,7 @@ import com.nabiki.ctp4j.jni.struct.*;
 import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcActionUuidField;
 import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
 import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcOrderUuidField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcReplayMarketDataField;
 
 import java.util.UUID;
 
@@ -83,4 +84,52 @@ public abstract class ClientMessageAdaptor {
 
     public void rspCandle(CThostFtdcCandleField candle) {
     }
+
+    /**
+     * Called for each depth replayed by the request, in the order of sequence.
+     * The replayed depth is not passed to {@link #rspDepthMarketData}.
+     *
+     * @param depth      replayed depth
+     * @param sequence   sequence of the depth in its stream
+     * @param requestID  ID of the replay request
+     * @param responseID ID of the response
+     * @param count      current count
+     * @param total      total count
+     */
+    public void rspReplayDepthMarketData(CThostFtdcDepthMarketDataField depth,
+                                         long sequence, UUID requestID,
+                                         UUID responseID, int count, int total) {
+    }
+
+    /**
+     * Called for each candle replayed by the request, in the order of sequence.
+     * The replayed candle is not passed to {@link #rspCandle}.
+     *
+     * @param candle     replayed candle
+     * @param sequence   sequence of the candle in its stream
+     * @param requestID  ID of the replay request
+     * @param responseID ID of the response
+     * @param count      current count
+     * @param total      total count
+     */
+    public void rspReplayCandle(CThostFtdcCandleField candle, long sequence,
+                                UUID requestID, UUID responseID, int count,
+                                int total) {
+    }
+
+    /**
+     * Called after the replayed market data of the request. The sequences are
+     * the ones replayed, or zeros if the server keeps none of the requested.
+     * Sequences not replayed are no longer kept by the server.
+     *
+     * @param replay    instrument, stream type and the replayed sequences
+     * @param requestID ID of the replay request
+     * @param responseID ID of the response
+     * @param count     current count
+     * @param total     total count
+     */
+    public void rspReplayMarketData(CThostFtdcReplayMarketDataField replay,
+                                    UUID requestID, UUID responseID, int count,
+                                    int total) {
+    }
 }
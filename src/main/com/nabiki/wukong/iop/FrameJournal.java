@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.BiPredicate;
+
+/**
+ * Append-only journal of the frames sent by the sessions. The frames are written
+ * with the session ID, their stamps and the time they are written to the socket
+ * into memory-mapped segment files in a directory. Frames dropped or conflated
+ * by the session, or not written before it closes, are not journaled. A new
+ * segment is started when the current one is full, and the oldest segments are
+ * deleted when there are more than the max segments.
+ *
+ * <p>The I/O thread only puts the written frame into a queue, and a writer
+ * thread copies it into the segment, so journaling doesn't block or do I/O on
+ * the threads sending frames. If the writer falls behind and the queue is full, the
+ * frames are dropped from the journal, not from the session, and counted.
+ * </p>
+ *
+ * <p>The records are in the page cache once written, so they survive the crash
+ * of the process but not of the system. The segments are forced to the disk
+ * when they are full and when the journal is closed.
+ * </p>
+ *
+ * <p>The journal can be shared by many servers and clients. Closing a server or
+ * client doesn't close its journal.
+ * </p>
+ */
+public interface FrameJournal extends Closeable {
+    /**
+     * Set the filter of the journaled frames. The filter is called on the I/O
+     * thread for every frame written, so it must be fast.
+     *
+     * @param filter filter on the session and message type, {@code null} to
+     *               journal all frames
+     */
+    void setFilter(BiPredicate<IOPSession, MessageType> filter);
+
+    /**
+     * Create a tailer reading the records from the oldest segment kept in the
+     * directory of this journal.
+     *
+     * @return {@link JournalTailer}
+     * @throws IOException if fail reading the directory
+     */
+    JournalTailer createTailer() throws IOException;
+
+    /**
+     * Get the number of records written.
+     *
+     * @return number of records
+     */
+    long getRecords();
+
+    /**
+     * Get the number of frames dropped because the writer is behind, or the frame
+     * is too large for a segment.
+     *
+     * @return number of dropped frames
+     */
+    long getDroppedRecords();
+
+    /**
+     * Write the queued frames, force the segment to the disk and stop the writer.
+     * Frames written after the journal is closed are not journaled.
+     *
+     * @throws IOException if fail closing the segment
+     */
+    @Override
+    void close() throws IOException;
+}
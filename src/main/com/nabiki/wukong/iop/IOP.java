@@ -28,11 +28,14 @@
 
 package com.nabiki.wukong.iop;
 
+import com.nabiki.wukong.iop.internal.FrameJournalImpl;
 import com.nabiki.wukong.iop.internal.IOPClientImpl;
 import com.nabiki.wukong.iop.internal.IOPServerImpl;
+import com.nabiki.wukong.iop.internal.JournalTailerImpl;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 
 public class IOP {
     /**
@@ -57,4 +60,63 @@ public class IOP {
             throws IOException {
         return new IOPClientImpl(connectAddress);
     }
+
+    /**
+     * Create a builder of server bound to the specified address, for configuring
+     * the threads of the server.
+     *
+     * @param bindAddress {@link InetSocketAddress} to bind to
+     * @return server builder
+     */
+    public static IOPServerBuilder serverBuilder(InetSocketAddress bindAddress) {
+        return new IOPServerBuilder(bindAddress);
+    }
+
+    /**
+     * Create a builder of client connected to the specified address, for
+     * configuring the threads of the client.
+     *
+     * @param connectAddress {@link InetSocketAddress} to connect to
+     * @return client builder
+     */
+    public static IOPClientBuilder clientBuilder(InetSocketAddress connectAddress) {
+        return new IOPClientBuilder(connectAddress);
+    }
+
+    /**
+     * Open a journal in the directory with 64M segments, keeping 16 segments at
+     * most. The journal is set to servers and clients by their builders.
+     *
+     * @param directory directory of the segments
+     * @return journal
+     * @throws IOException if fail creating the segment
+     */
+    public static FrameJournal openJournal(Path directory) throws IOException {
+        return new FrameJournalImpl(directory);
+    }
+
+    /**
+     * Open a journal in the directory.
+     *
+     * @param directory    directory of the segments
+     * @param segmentBytes size of a segment file, at least 4K
+     * @param maxSegments  max segments kept in the directory
+     * @return journal
+     * @throws IOException if fail creating the segment
+     */
+    public static FrameJournal openJournal(Path directory, int segmentBytes,
+                                           int maxSegments) throws IOException {
+        return new FrameJournalImpl(directory, segmentBytes, maxSegments);
+    }
+
+    /**
+     * Open a tailer of the journal in the directory, which may be written by
+     * another process.
+     *
+     * @param directory directory of the segments
+     * @return tailer reading from the oldest segment
+     */
+    public static JournalTailer openJournalTailer(Path directory) {
+        return new JournalTailerImpl(directory);
+    }
 }
@@ -28,10 +28,65 @@
 
 package com.nabiki.wukong.iop;
 
+import com.nabiki.wukong.iop.frame.Body;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
 public interface IOPClient {
     void setSessionAdaptor(SessionAdaptor adaptor);
 
     void setMessageAdaptor(ClientMessageAdaptor adaptor);
 
     IOPSession getSession();
+
+    /**
+     * Get the metrics of the session of this client.
+     *
+     * @return {@link IOPMetrics}
+     */
+    IOPMetrics getMetrics();
+
+    /**
+     * Get the tracer of the frames of the session of this client.
+     *
+     * @return {@link WireTracer}
+     */
+    WireTracer getTracer();
+
+    /**
+     * Send the request and get its response. The request is assigned a random ID
+     * if it has none, and the response with the same request ID completes the
+     * future instead of going to message adaptor. The following responses of a
+     * multi-part request are consumed.
+     *
+     * <p>The future fails with {@link java.util.concurrent.TimeoutException} if
+     * no response arrives within the timeout, or with
+     * {@link java.io.IOException} if the session is closed.
+     * </p>
+     *
+     * @param request request body
+     * @param timeout max time waiting for the response
+     * @return future of the response
+     */
+    CompletableFuture<Body> request(Body request, Duration timeout);
+
+    /**
+     * Send the request and publish all its responses to one subscriber. The
+     * publisher completes after the response whose current count reaches total
+     * count. The timeout applies to each response, and it fails the publisher
+     * like {@link IOPClient#request(Body, Duration)} does to the future. It
+     * doesn't apply while the responses wait for the subscriber's demand.
+     *
+     * <p>If the server streams the responses through {@link ResponseStream}, the
+     * client grants credits as the subscriber receives the responses, so the
+     * server sends no faster than the subscriber consumes.
+     * </p>
+     *
+     * @param request request body
+     * @param timeout max time waiting for the next response
+     * @return publisher of the responses
+     */
+    Flow.Publisher<Body> requestAll(Body request, Duration timeout);
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.internal.IOPClientImpl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Builder of {@link IOPClient}. By default the client has one I/O processor per
+ * core plus one, and the messages are decoded and handled on the I/O processors.
+ *
+ * <p>Handling a message on an I/O processor stalls all sessions sharing that
+ * processor until the adaptor returns. Set executor threads to move decoding and
+ * handling to an ordered thread pool, and set the market data or order executor to
+ * run the adaptors of that kind of messages there. The messages of a session are
+ * handled in the order they arrive in every case.
+ * </p>
+ */
+public class IOPClientBuilder {
+    private final InetSocketAddress connectAddress;
+    private int processorCount = 0;
+    private int executorThreads = 0;
+    private Executor marketDataExecutor, orderExecutor;
+    private boolean logging = false;
+    private String jmxName;
+    private FrameJournal journal;
+
+    IOPClientBuilder(InetSocketAddress connectAddress) {
+        this.connectAddress = connectAddress;
+    }
+
+    /**
+     * Set the number of I/O processors. Zero means the default.
+     *
+     * @param count number of I/O processors
+     * @return this builder
+     */
+    public IOPClientBuilder processorCount(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("negative processor count");
+        this.processorCount = count;
+        return this;
+    }
+
+    /**
+     * Set the number of threads that decode and handle the messages after the
+     * frames are read. Zero means the messages are handled on the I/O processors.
+     *
+     * @param threads number of threads
+     * @return this builder
+     */
+    public IOPClientBuilder executorThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("negative thread count");
+        this.executorThreads = threads;
+        return this;
+    }
+
+    /**
+     * Set the executor running the adaptor for market data.
+     *
+     * @param executor executor, or {@code null} to run on the handling thread
+     * @return this builder
+     */
+    public IOPClientBuilder marketDataExecutor(Executor executor) {
+        this.marketDataExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Set the executor running the adaptor for order and query responses.
+     *
+     * @param executor executor, or {@code null} to run on the handling thread
+     * @return this builder
+     */
+    public IOPClientBuilder orderExecutor(Executor executor) {
+        this.orderExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Log every frame read and written with MINA's {@code LoggingFilter}. The
+     * filter formats the bytes on the I/O processors and costs much throughput,
+     * so it is off by default. Use {@link WireTracer} to look at the frames of a
+     * busy client.
+     *
+     * @param enabled {@code true} to log the frames
+     * @return this builder
+     */
+    public IOPClientBuilder logging(boolean enabled) {
+        this.logging = enabled;
+        return this;
+    }
+
+    /**
+     * Register the metrics of the client to the platform MBean server as
+     * {@code com.nabiki.wukong.iop:type=Metrics,name="<name>"}. The MBean stays
+     * registered while the JVM runs, so the name must be unique.
+     *
+     * @param name name of the MBean, or {@code null} not to register
+     * @return this builder
+     */
+    public IOPClientBuilder jmxName(String name) {
+        this.jmxName = name;
+        return this;
+    }
+
+    /**
+     * Journal the frames sent by the sessions of the client. The journal is
+     * not closed with the client.
+     *
+     * @param journal journal opened by {@link IOP#openJournal(java.nio.file.Path)},
+     *                or {@code null} not to journal
+     * @return this builder
+     */
+    public IOPClientBuilder journal(FrameJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Create the client and connect it to the address.
+     *
+     * @return server instance
+     * @throws IOException if fail connecting the address
+     */
+    public IOPClient build() throws IOException {
+        return new IOPClientImpl(this.connectAddress, this.processorCount,
+                this.executorThreads, this.marketDataExecutor,
+                this.orderExecutor, this.logging,
+                this.jmxName, this.journal);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.MessageType;
+
+/**
+ * Counters and latency histograms of the frames and messages of a server or
+ * client, summed over all its sessions. Recording doesn't allocate or lock, so
+ * the metrics are always on. See {@link IOPSession#getMetrics()} for the counters
+ * of one session.
+ */
+public interface IOPMetrics {
+    enum Stage {
+        /**
+         * Decode a body from the frame, including decompression.
+         */
+        DECODE,
+        /**
+         * From a message decoded to its handling starts, including the wait in
+         * the executor of the adaptor.
+         */
+        DISPATCH,
+        /**
+         * Run the adaptor for a message.
+         */
+        ADAPTOR,
+        /**
+         * Encode a body into a frame. A frame shared by many sessions is encoded
+         * once.
+         */
+        ENCODE,
+        /**
+         * From frames handed to the I/O processor to written to the socket.
+         */
+        WRITE_WAIT
+    }
+
+    /**
+     * Get the number of frames read, counting the frames packed in a batch
+     * frame.
+     *
+     * @return number of frames read
+     */
+    long getFramesIn();
+
+    /**
+     * Get the number of frames written, counting the frames packed in a batch
+     * frame.
+     *
+     * @return number of frames written
+     */
+    long getFramesOut();
+
+    /**
+     * Get the bytes of the frames read, including the headers.
+     *
+     * @return bytes read
+     */
+    long getBytesIn();
+
+    /**
+     * Get the bytes of the frames written, including the headers.
+     *
+     * @return bytes written
+     */
+    long getBytesOut();
+
+    /**
+     * Get the number of broken frames that make the decoder wait for sync-up
+     * zeros.
+     *
+     * @return number of broken frames
+     */
+    long getBrokenFrames();
+
+    /**
+     * Get the number of bodies that fail decoding.
+     *
+     * @return number of decode errors
+     */
+    long getDecodeErrors();
+
+    /**
+     * Get the number of received messages of the specified type.
+     *
+     * @param type message type
+     * @return number of messages
+     */
+    long getMessagesIn(MessageType type);
+
+    /**
+     * Get the number of sent messages of the specified type. A message shared by
+     * many sessions is counted once for each session.
+     *
+     * @param type message type
+     * @return number of messages
+     */
+    long getMessagesOut(MessageType type);
+
+    /**
+     * Get the latency histogram of the specified stage.
+     *
+     * @param stage stage of the message
+     * @return snapshot of the histogram
+     */
+    LatencySnapshot getLatency(Stage stage);
+
+    /**
+     * Reset all counters and histograms to zero.
+     */
+    void reset();
+}
@@ -34,4 +34,54 @@ public interface IOPServer {
     void setMessageAdaptor(ServerMessageAdaptor adaptor);
 
     void setLoginManager(IOPLoginManager manager);
+
+    /**
+     * Set the write watermarks of the sessions accepted after this call. See
+     * {@link IOPSession#setWriteWatermarks(long, long, SlowConsumerPolicy)}.
+     * Watermarks are disabled by default, and the builder sets them by
+     * {@link IOPServerBuilder#writeWatermarks}.
+     *
+     * @param lowBytes  low watermark in bytes
+     * @param highBytes high watermark in bytes, zero to disable
+     * @param policy    {@link SlowConsumerPolicy} applied above high watermark
+     */
+    void setWriteWatermarks(long lowBytes, long highBytes,
+                            SlowConsumerPolicy policy);
+
+    /**
+     * Set the compression threshold of the sessions accepted after this call. See
+     * {@link IOPSession#setCompression(int)}.
+     *
+     * @param thresholdBytes min body bytes of a compressed frame, zero to disable
+     */
+    void setCompression(int thresholdBytes);
+
+    /**
+     * Get the publisher that distributes market data to the sessions of this
+     * server.
+     *
+     * @return {@link MarketDataPublisher}
+     */
+    MarketDataPublisher getPublisher();
+
+    /**
+     * Get the market data subscriptions of the sessions of this server.
+     *
+     * @return {@link SubscriptionRegistry}
+     */
+    SubscriptionRegistry getSubscriptionRegistry();
+
+    /**
+     * Get the metrics of the sessions of this server.
+     *
+     * @return {@link IOPMetrics}
+     */
+    IOPMetrics getMetrics();
+
+    /**
+     * Get the tracer of the frames of the sessions of this server.
+     *
+     * @return {@link WireTracer}
+     */
+    WireTracer getTracer();
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.internal.IOPServerImpl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Builder of {@link IOPServer}. By default the server has one I/O processor per
+ * core plus one, and the messages are decoded and handled on the I/O processors.
+ *
+ * <p>Handling a message on an I/O processor stalls all sessions sharing that
+ * processor until the adaptor returns. Set executor threads to move decoding and
+ * handling to an ordered thread pool, and set the market data or order executor to
+ * run the adaptors of that kind of messages there. The messages of a session are
+ * handled in the order they arrive in every case.
+ * </p>
+ */
+public class IOPServerBuilder {
+    private final InetSocketAddress bindAddress;
+    private int processorCount = 0;
+    private int executorThreads = 0;
+    private Executor marketDataExecutor, orderExecutor;
+    private int virtualThreads = 0;
+    private boolean logging = false;
+    private String jmxName;
+    private FrameJournal journal;
+    private long lowWatermark = 0, highWatermark = 0;
+    private SlowConsumerPolicy policy;
+
+    IOPServerBuilder(InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Set the number of I/O processors. Zero means the default.
+     *
+     * @param count number of I/O processors
+     * @return this builder
+     */
+    public IOPServerBuilder processorCount(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("negative processor count");
+        this.processorCount = count;
+        return this;
+    }
+
+    /**
+     * Set the number of threads that decode and handle the messages after the
+     * frames are read. Zero means the messages are handled on the I/O processors.
+     *
+     * @param threads number of threads
+     * @return this builder
+     */
+    public IOPServerBuilder executorThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("negative thread count");
+        this.executorThreads = threads;
+        return this;
+    }
+
+    /**
+     * Set the executor running the adaptor for market data subscription.
+     *
+     * @param executor executor, or {@code null} to run on the handling thread
+     * @return this builder
+     */
+    public IOPServerBuilder marketDataExecutor(Executor executor) {
+        this.marketDataExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Set the executor running the adaptor for order requests and queries.
+     *
+     * @param executor executor, or {@code null} to run on the handling thread
+     * @return this builder
+     */
+    public IOPServerBuilder orderExecutor(Executor executor) {
+        this.orderExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Run each order request and query on its own virtual thread, with at most
+     * the specified number of them running at the same time. The adaptor can block
+     * in the request without holding a thread of a pool. Order insert and action
+     * of a session are still handled in the order they arrive, while the queries
+     * of a session run concurrently.
+     *
+     * <p>JVM without virtual threads runs the requests on daemon platform threads
+     * under the same limit. It can't be used with an order executor. Zero means
+     * disabled.
+     * </p>
+     *
+     * @param maxConcurrency max number of requests running at the same time
+     * @return this builder
+     */
+    public IOPServerBuilder virtualThreads(int maxConcurrency) {
+        if (maxConcurrency < 0)
+            throw new IllegalArgumentException("negative concurrency");
+        this.virtualThreads = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Log every frame read and written with MINA's {@code LoggingFilter}. The
+     * filter formats the bytes on the I/O processors and costs much throughput,
+     * so it is off by default. Use {@link WireTracer} to look at the frames of a
+     * busy server.
+     *
+     * @param enabled {@code true} to log the frames
+     * @return this builder
+     */
+    public IOPServerBuilder logging(boolean enabled) {
+        this.logging = enabled;
+        return this;
+    }
+
+    /**
+     * Register the metrics of the server to the platform MBean server as
+     * {@code com.nabiki.wukong.iop:type=Metrics,name="<name>"}. The MBean stays
+     * registered while the JVM runs, so the name must be unique.
+     *
+     * @param name name of the MBean, or {@code null} not to register
+     * @return this builder
+     */
+    public IOPServerBuilder jmxName(String name) {
+        this.jmxName = name;
+        return this;
+    }
+
+    /**
+     * Journal the frames sent by the sessions of the server. The journal is
+     * not closed with the server.
+     *
+     * @param journal journal opened by {@link IOP#openJournal(java.nio.file.Path)},
+     *                or {@code null} not to journal
+     * @return this builder
+     */
+    public IOPServerBuilder journal(FrameJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Set the write watermarks of the sessions accepted by the server. See
+     * {@link IOPSession#setWriteWatermarks(long, long, SlowConsumerPolicy)}.
+     * Watermarks are disabled by default.
+     *
+     * @param lowBytes  low watermark in bytes
+     * @param highBytes high watermark in bytes, zero to disable
+     * @param policy    {@link SlowConsumerPolicy} applied above high watermark
+     * @return this builder
+     */
+    public IOPServerBuilder writeWatermarks(long lowBytes, long highBytes,
+                                            SlowConsumerPolicy policy) {
+        if (highBytes > 0 && (lowBytes < 0 || lowBytes >= highBytes))
+            throw new IllegalArgumentException("invalid watermarks");
+        if (highBytes > 0 && policy == null)
+            throw new NullPointerException("policy null");
+        this.lowWatermark = Math.max(lowBytes, 0);
+        this.highWatermark = Math.max(highBytes, 0);
+        this.policy = policy;
+        return this;
+    }
+
+    /**
+     * Create the server and bind it to the address.
+     *
+     * @return server instance
+     * @throws IOException if fail binding the address
+     */
+    public IOPServer build() throws IOException {
+        if (this.virtualThreads > 0 && this.orderExecutor != null)
+            throw new IllegalStateException(
+                    "both order executor and virtual threads are set");
+        return new IOPServerImpl(this.bindAddress, this.processorCount,
+                this.executorThreads, this.marketDataExecutor,
+                this.orderExecutor, this.virtualThreads, this.logging,
+                this.jmxName, this.journal, this.lowWatermark,
+                this.highWatermark, this.policy);
+    }
+}
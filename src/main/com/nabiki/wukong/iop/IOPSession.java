@@ -29,7 +29,10 @@
 package com.nabiki.wukong.iop;
 
 import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.MessageType;
 
+import java.time.Duration;
 import java.util.UUID;
 
 public interface IOPSession {
@@ -45,6 +48,183 @@ public interface IOPSession {
 
     void sendHeartbeat(UUID heartbeatID);
 
+    /**
+     * Set the codec for encoding the bodies sent through this session. The client
+     * sets the codec before login, and the server replies with the codec the
+     * client logs in with.
+     *
+     * <p>A session without codec negotiation sends JSON bodies only.
+     * </p>
+     *
+     * @param codec {@link BodyCodec}
+     * @throws UnsupportedOperationException if the codec isn't JSON and the
+     *                                       session can't change codec
+     */
+    default void setBodyCodec(BodyCodec codec) {
+        if (codec != BodyCodec.JSON)
+            throw new UnsupportedOperationException("body codec not supported");
+    }
+
+    default BodyCodec getBodyCodec() {
+        return BodyCodec.JSON;
+    }
+
+    /**
+     * Batch the frames sent through this session and write them to the socket
+     * together. The batch is written when its size reaches the specified bytes,
+     * when the specified delay passes since the first frame in the batch, after
+     * the handler returns from a received message, or on {@link IOPSession#flush()}.
+     *
+     * <p>Batching is disabled by default. Set max bytes to zero to disable it, and
+     * the frames in batch are written.
+     * </p>
+     *
+     * @param maxBytes max bytes in a batch
+     * @param maxDelay max delay of a frame in batch
+     * @throws UnsupportedOperationException if batching is enabled and the
+     *                                       session can't batch frames
+     */
+    default void setBatching(int maxBytes, Duration maxDelay) {
+        if (maxBytes > 0)
+            throw new UnsupportedOperationException("batching not supported");
+    }
+
+    /**
+     * Pack the request or response frames of the same type written together into
+     * one {@link com.nabiki.wukong.iop.frame.FrameType#BATCH} frame, which saves
+     * the header and the per-frame handling of the small frames like depth ticks
+     * and query rows. The frames are written together when they are sent while
+     * the session is writing, or when batching is enabled by
+     * {@link IOPSession#setBatching(int, Duration)}.
+     *
+     * <p>Batch frames are disabled by default, and the peer must understand batch
+     * frames before they are enabled.
+     * </p>
+     *
+     * @param enabled {@code true} to pack frames into batch frames
+     * @throws UnsupportedOperationException if enabled and the session can't
+     *                                       pack frames
+     */
+    default void setBatchFrames(boolean enabled) {
+        if (enabled)
+            throw new UnsupportedOperationException("batch frames not supported");
+    }
+
+    /**
+     * Compress the market data and query frames whose body reaches the specified
+     * bytes, and keep the frame uncompressed if compression doesn't make it
+     * smaller. Order entry, login and heartbeat frames are never compressed.
+     *
+     * <p>The session announces it accepts compressed frames on the frames it sends
+     * when compression is enabled, and it compresses frames only after the peer
+     * makes the same announcement. Compressed frames from the peer are always
+     * accepted. Compression is disabled by default. Set threshold to zero to
+     * disable it.
+     * </p>
+     *
+     * @param thresholdBytes min body bytes of a compressed frame
+     * @throws UnsupportedOperationException if compression is enabled and the
+     *                                       session can't compress frames
+     */
+    default void setCompression(int thresholdBytes) {
+        if (thresholdBytes > 0)
+            throw new UnsupportedOperationException("compression not supported");
+    }
+
+    /**
+     * Write the frames in batch to the socket now. It does nothing if the session
+     * doesn't batch frames.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Set the watermarks of the bytes waiting to be written to the socket. When
+     * the bytes reach the high watermark, the session sends
+     * {@link SessionEvent#WRITE_HIGH_WATERMARK} and applies the policy to the
+     * frames sent until the bytes fall to the low watermark and
+     * {@link SessionEvent#WRITE_LOW_WATERMARK} is sent.
+     *
+     * <p>Watermarks are disabled by default. Set high watermark to zero to disable
+     * them.
+     * </p>
+     *
+     * @param lowBytes  low watermark in bytes
+     * @param highBytes high watermark in bytes
+     * @param policy    {@link SlowConsumerPolicy} applied above high watermark
+     * @throws UnsupportedOperationException if watermarks are enabled and the
+     *                                       session doesn't support them
+     */
+    default void setWriteWatermarks(long lowBytes, long highBytes,
+                                    SlowConsumerPolicy policy) {
+        if (highBytes > 0)
+            throw new UnsupportedOperationException("watermarks not supported");
+    }
+
+    /**
+     * Open a stream sending the responses of the specified type to the request
+     * row by row, within the credits granted by the client. See
+     * {@link ResponseStream}.
+     *
+     * @param requestID ID of the request to respond
+     * @param type      type of the responses
+     * @param <T>       type of the rows
+     * @return {@link ResponseStream}
+     * @throws IllegalStateException         if a stream of the request is open
+     * @throws UnsupportedOperationException if the session can't stream
+     *                                       responses
+     */
+    default <T> ResponseStream<T> openResponseStream(UUID requestID,
+                                                     MessageType type) {
+        throw new UnsupportedOperationException("response stream not supported");
+    }
+
+    /**
+     * Stamp the frames sent by this session with a sequence number and the time
+     * they are encoded, so the session measures the latencies of its requests
+     * and heartbeats by the stamps echoed in the responses. The peer answers a
+     * stamped request with a stamped response whether or not it stamps its own
+     * frames. The latencies are in {@link SessionMetrics}.
+     *
+     * <p>The stamp adds {@link com.nabiki.wukong.iop.frame.FrameType#STAMP_LENGTH}
+     * bytes to each frame, and the responses to stamped requests are not packed
+     * into batch frames. The peer must understand the stamped frames.
+     * </p>
+     *
+     * @param enabled {@code true} to stamp frames, {@code false} otherwise
+     * @throws UnsupportedOperationException if enabled and the session can't
+     *                                       stamp frames
+     */
+    default void setLatencyStamping(boolean enabled) {
+        if (enabled)
+            throw new UnsupportedOperationException("stamping not supported");
+    }
+
+    /**
+     * Get the last sequence of the market data stream of the instrument received
+     * by this session. The client reconnecting to the server can request the
+     * market data after the last sequence of the old session for replay.
+     *
+     * @param type         {@link MessageType#FLOW_DEPTH} or
+     *                     {@link MessageType#FLOW_CANDLE}
+     * @param instrumentID instrument ID
+     * @return last sequence, or zero if none is received or the session doesn't
+     * track the sequences
+     */
+    default long getLastSequence(MessageType type, String instrumentID) {
+        return 0;
+    }
+
+    /**
+     * Get the frame counters of this session.
+     *
+     * @return {@link SessionMetrics}
+     * @throws UnsupportedOperationException if the session doesn't count frames
+     */
+    default SessionMetrics getMetrics() {
+        throw new UnsupportedOperationException("metrics not supported");
+    }
+
     void setAttribute(String key, Object attribute);
 
     void removeAttribute(String key);
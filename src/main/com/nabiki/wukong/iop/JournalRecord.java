@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.IOException;
+
+/**
+ * Frame written into the journal.
+ */
+public interface JournalRecord {
+    /**
+     * Get the time the frame is written, in nanoseconds since the epoch. The times
+     * written by the same journal are precise to each other, and the epoch is
+     * taken from the system clock when the journal is opened.
+     *
+     * @return nanoseconds since the epoch
+     */
+    long getTime();
+
+    long getSessionID();
+
+    /**
+     * Get the sequence in the stamp of the frame, see
+     * {@link com.nabiki.wukong.iop.frame.Frame#Sequence}. A frame packed in a
+     * batch frame has its own sequence.
+     *
+     * @return sequence, or zero if the frame isn't stamped
+     */
+    long getSequence();
+
+    /**
+     * Get the send time in the stamp of the frame, see
+     * {@link com.nabiki.wukong.iop.frame.Frame#SendTime}.
+     *
+     * @return send time, or zero if the frame isn't stamped
+     */
+    long getSendTime();
+
+    /**
+     * Get the type of the frame including flags, see
+     * {@link com.nabiki.wukong.iop.frame.FrameType}.
+     *
+     * @return frame type
+     */
+    int getFrameType();
+
+    /**
+     * Get the message type of the body, or {@code null} if unknown.
+     *
+     * @return {@link MessageType}
+     */
+    MessageType getMessageType();
+
+    /**
+     * Get the frame body as it is sent, encoded by the codec of the session and
+     * maybe compressed.
+     *
+     * @return frame body
+     */
+    byte[] getBody();
+
+    /**
+     * Decode the frame body.
+     *
+     * @return {@link Body}
+     * @throws IOException if the body is broken
+     */
+    Body decode() throws IOException;
+}
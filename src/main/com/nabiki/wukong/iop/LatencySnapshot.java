@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+/**
+ * Snapshot of a latency histogram in nanoseconds. The values are recorded into
+ * buckets of about 3% relative width, so a percentile is the upper bound of its
+ * bucket and is at most 3% above the recorded value.
+ */
+public interface LatencySnapshot {
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    /**
+     * Get the value below or at which the specified percentage of the values
+     * fall.
+     *
+     * @param percentile percentage in {@code [0, 100]}
+     * @return value at the percentile, or zero if nothing recorded
+     */
+    long getValueAtPercentile(double percentile);
+
+    default long getP50() {
+        return getValueAtPercentile(50);
+    }
+
+    default long getP90() {
+        return getValueAtPercentile(90);
+    }
+
+    default long getP99() {
+        return getValueAtPercentile(99);
+    }
+
+    default long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
+
+/**
+ * Server side distribution of market data to subscribed sessions. Each tick is
+ * encoded once for each body codec in use and the encoded frame is shared by all
+ * subscribers.
+ *
+ * <p>If a session is above its write watermark, see
+ * {@link IOPSession#setWriteWatermarks(long, long, SlowConsumerPolicy)}, the
+ * depth market data for that session is conflated: only the latest depth of each
+ * instrument is kept and it is sent when the session falls to the low watermark.
+ * Candles are not conflated. A session without watermarks is never conflated.
+ * </p>
+ *
+ * <p>The depths and candles of each instrument are numbered in two streams, and
+ * the sequence is carried in {@link com.nabiki.wukong.iop.frame.Body#Sequence}.
+ * The client finds the skipped sequences and reports
+ * {@link SessionEvent#MARKET_DATA_GAP}. Market data conflated or dropped for a
+ * slow session and the latest depth sent on subscription are marked by
+ * {@link com.nabiki.wukong.iop.frame.FrameType#FLAG_CONFLATED}, and the jump of
+ * their sequences is not a gap. The latest market data of each stream is kept by
+ * the publisher, and the client can request it by
+ * {@link com.nabiki.wukong.iop.frame.MessageType#REQ_REPLAY_MD} instead of
+ * subscribing again. The replayed market data is passed to
+ * {@link ClientMessageAdaptor#rspReplayDepthMarketData} and
+ * {@link ClientMessageAdaptor#rspReplayCandle}.
+ * </p>
+ */
+public interface MarketDataPublisher {
+    /**
+     * Subscribe the market data of the instruments matching the pattern for the
+     * session. The pattern is described in {@link SubscriptionRegistry}. If there
+     * is depth market data of the matching instruments, the latest ones are sent
+     * to the session immediately as ticks, unless the session already has them.
+     * The latest depth is a keyframe if the session receives deltas.
+     *
+     * @param session session to receive market data
+     * @param pattern subscription pattern
+     */
+    void subscribe(IOPSession session, String pattern);
+
+    void unsubscribe(IOPSession session, String pattern);
+
+    /**
+     * Send the depth market data to all sessions subscribing its instrument.
+     *
+     * @param depth depth market data
+     */
+    void publish(CThostFtdcDepthMarketDataField depth);
+
+    /**
+     * Send the candle to all sessions subscribing its instrument.
+     *
+     * @param candle candle
+     */
+    void publish(CThostFtdcCandleField candle);
+
+    /**
+     * Send the depth market data to the session as the delta against the latest
+     * keyframe of its instrument, and send a keyframe every specified number of
+     * depths. The client rebuilds the whole depth before passing it to
+     * {@link ClientMessageAdaptor#rspDepthMarketData}. A delta carries all fields
+     * differing from its keyframe, so a delta conflated or dropped doesn't break
+     * the others, but the depths are missed from a lost keyframe until the next
+     * keyframe.
+     *
+     * <p>Delta is disabled by default, and the client must understand
+     * {@link com.nabiki.wukong.iop.frame.MessageType#FLOW_DEPTH_DELTA} before it
+     * is enabled. Set the interval to zero to disable it.
+     * </p>
+     *
+     * @param session          session to receive deltas
+     * @param keyframeInterval number of depths of an instrument between keyframes
+     * @throws UnsupportedOperationException if the depth struct has too many fields
+     */
+    void setDepthDelta(IOPSession session, int keyframeInterval);
+
+    /**
+     * Get the latest depth market data published for the instrument.
+     *
+     * @param instrumentID instrument ID
+     * @return latest depth market data, or {@code null} if there isn't any
+     */
+    CThostFtdcDepthMarketDataField getLatestDepth(String instrumentID);
+}
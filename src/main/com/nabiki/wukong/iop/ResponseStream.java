@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop;
+
+/**
+ * Stream of the responses to one request, sent row by row as they are produced
+ * instead of being materialized before sending. The server sends the rows within
+ * the credits granted by the client, and the rows beyond the credits wait in the
+ * stream until the client grants more. Check {@link ResponseStream#isReady()}
+ * before producing a row to keep the waiting rows bounded.
+ *
+ * <p>The rows carry {@link ResponseStream#UNKNOWN_TOTAL} as their total count,
+ * except the last row whose total count equals its current count. The stream
+ * holds back the latest row until the next row or completion, so it can mark the
+ * last row. An empty stream sends one response without data whose current count
+ * and total count are zero.
+ * </p>
+ *
+ * @param <T> type of the rows
+ */
+public interface ResponseStream<T> {
+    /**
+     * Total count of the rows sent before the stream completes.
+     */
+    int UNKNOWN_TOTAL = -1;
+
+    /**
+     * Send the row, or keep it until the client grants credits.
+     *
+     * @param row data of the response
+     * @throws IllegalArgumentException if the row doesn't match the message type
+     * @throws IllegalStateException    if the stream has completed
+     */
+    void next(T row);
+
+    /**
+     * Complete the stream. The rows waiting for credits are sent when the client
+     * grants credits.
+     */
+    void complete();
+
+    /**
+     * Check if the client has granted credits for more rows than the rows waiting
+     * in the stream.
+     *
+     * @return {@code true} if the next row can be sent immediately
+     */
+    boolean isReady();
+
+    /**
+     * Set the handler called when the stream becomes ready after the client grants
+     * credits. The handler runs on the thread receiving the credits, so it should
+     * produce the rows quickly or hand the work to another thread.
+     *
+     * @param handler handler called when the stream becomes ready
+     */
+    void setOnReadyHandler(Runnable handler);
+
+    /**
+     * Check if the stream is cancelled because the session is closed. The rows
+     * sent to a cancelled stream are dropped.
+     *
+     * @return {@code true} if the stream is cancelled
+     */
+    boolean isCancelled();
+}
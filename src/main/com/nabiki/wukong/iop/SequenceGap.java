@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcReplayMarketDataField;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.util.UUID;
+
+/**
+ * Market data missed by the client, found by the sequences of the stream of an
+ * instrument. The missed sequences are from {@link #getFromSequence()} to
+ * {@link #getToSequence()}, both inclusive.
+ *
+ * <p>Market data conflated or dropped by the server for a session that is behind
+ * is not a gap, because the frame following it is marked by
+ * {@link com.nabiki.wukong.iop.frame.FrameType#FLAG_CONFLATED}. The sequences it
+ * skips can still be replayed if all market data is needed. A replay answered
+ * by {@link MessageType#RSP_REPLAY_MD} moves the last sequence of the stream to
+ * the replayed one.
+ * </p>
+ */
+public class SequenceGap {
+    private final String instrumentID;
+    private final MessageType type;
+    private final long fromSequence, toSequence;
+
+    public SequenceGap(String instrumentID, MessageType type, long fromSequence,
+                       long toSequence) {
+        this.instrumentID = instrumentID;
+        this.type = type;
+        this.fromSequence = fromSequence;
+        this.toSequence = toSequence;
+    }
+
+    public String getInstrumentID() {
+        return this.instrumentID;
+    }
+
+    /**
+     * Get the type of the stream, {@link MessageType#FLOW_DEPTH} or
+     * {@link MessageType#FLOW_CANDLE}.
+     *
+     * @return {@link MessageType}
+     */
+    public MessageType getType() {
+        return this.type;
+    }
+
+    public long getFromSequence() {
+        return this.fromSequence;
+    }
+
+    public long getToSequence() {
+        return this.toSequence;
+    }
+
+    /**
+     * Create the request to replay the missed market data. The server answers
+     * with the market data it still keeps, in order, and then
+     * {@link MessageType#RSP_REPLAY_MD} telling the replayed sequences.
+     *
+     * @return replay request with a random request ID
+     */
+    public Body toReplayRequest() {
+        var replay = new CThostFtdcReplayMarketDataField();
+        replay.InstrumentID = this.instrumentID;
+        replay.StreamType = this.type.name();
+        replay.FromSequence = this.fromSequence;
+        replay.ToSequence = this.toSequence;
+        var body = new Body();
+        body.RequestID = UUID.randomUUID();
+        body.Type = MessageType.REQ_REPLAY_MD;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Payload = replay;
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return this.type + " " + this.instrumentID + " [" + this.fromSequence
+                + ", " + this.toSequence + "]";
+    }
+}
@@ -75,4 +75,21 @@ public abstract class ServerMessageAdaptor {
     public void subDepthMarketData(CThostFtdcSubMarketDataField subscribe,
                                    UUID requestID, int count, int total) {
     }
+
+    /**
+     * Called on the subscription request of the session. When the request is
+     * handled by an {@link IOPServer}, the instruments are already added to the
+     * {@link SubscriptionRegistry} of its {@link MarketDataPublisher} when the
+     * method is called, and the adaptor can remove them from the registry if it
+     * denies the subscription. If no publisher handles the request, no registry
+     * is updated and the adaptor keeps the subscriptions itself.
+     *
+     * <p>The default implementation calls the method without session.
+     * </p>
+     */
+    public void subDepthMarketData(IOPSession session,
+                                   CThostFtdcSubMarketDataField subscribe,
+                                   UUID requestID, int count, int total) {
+        subDepthMarketData(subscribe, requestID, count, total);
+    }
 }
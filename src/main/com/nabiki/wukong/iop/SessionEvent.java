@@ -29,5 +29,20 @@
 package com.nabiki.wukong.iop;
 
 public enum SessionEvent {
-    CREATED, OPENED, CLOSED, INPUT_CLOSED, IDLE, ERROR
+    CREATED, OPENED, CLOSED, INPUT_CLOSED, IDLE, ERROR,
+    /**
+     * Bytes waiting to be written reach the high watermark of the session. The
+     * event object is the number of bytes.
+     */
+    WRITE_HIGH_WATERMARK,
+    /**
+     * Bytes waiting to be written fall to the low watermark after the session
+     * crosses the high watermark. The event object is the number of bytes.
+     */
+    WRITE_LOW_WATERMARK,
+    /**
+     * Market data received by the client skips some sequences of its stream. The
+     * event object is {@link SequenceGap}.
+     */
+    MARKET_DATA_GAP
 }
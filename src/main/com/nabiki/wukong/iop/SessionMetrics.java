@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+/**
+ * Counters of the frames of a session. See {@link IOPMetrics} for the meaning of
+ * the counters.
+ *
+ * <p>The latencies are measured from the stamped responses and heartbeats, see
+ * {@link IOPSession#setLatencyStamping(boolean)}. The times of the peer are
+ * compared only with the times of the peer, so the clocks needn't be in sync.
+ * </p>
+ */
+public interface SessionMetrics {
+    enum Latency {
+        /**
+         * From the request is encoded to its response arrives.
+         */
+        ROUND_TRIP,
+        /**
+         * From the request arrives at the peer to its response is encoded by the
+         * peer.
+         */
+        PEER,
+        /**
+         * From the request arrives at the peer to it is passed to the adaptor of
+         * the peer.
+         */
+        PEER_QUEUE,
+        /**
+         * Round trip less the time in peer, that is the time on the wire and in
+         * the I/O layers of both sides.
+         */
+        NETWORK
+    }
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * Get the latency of the specified kind. The latency is empty if the session
+     * doesn't stamp its frames.
+     *
+     * @param latency kind of latency
+     * @return {@link LatencySnapshot}
+     */
+    LatencySnapshot getLatency(Latency latency);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Index of market data subscriptions from instrument to sessions. The server
+ * registers the instruments in the subscription request of a session and removes
+ * all subscriptions of the session when it is closed. A closed session can't
+ * subscribe.
+ *
+ * <p>A subscription pattern is either an instrument ID, a product ID followed by
+ * {@code *} for all instruments of the product, or {@link SubscriptionRegistry#ALL}
+ * for all instruments. The product ID of an instrument is given by
+ * {@link com.nabiki.wukong.iop.frame.OP#getProductID(String)}.
+ * </p>
+ */
+public interface SubscriptionRegistry {
+    String ALL = "*";
+
+    void subscribe(IOPSession session, String pattern);
+
+    void unsubscribe(IOPSession session, String pattern);
+
+    void unsubscribeAll(IOPSession session);
+
+    /**
+     * Get the subscription patterns of the specified session.
+     *
+     * @param session session
+     * @return set of subscription patterns
+     */
+    Set<String> getSubscriptions(IOPSession session);
+
+    /**
+     * Get all sessions subscribing the specified instrument, either by the
+     * instrument ID, its product or all instruments.
+     *
+     * @param instrumentID instrument ID
+     * @return sessions subscribing the instrument
+     */
+    Collection<IOPSession> getSubscribers(String instrumentID);
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A frame recorded by {@link WireTracer}. The IDs and counts are known only for
+ * the frames encoded from a body by the session, and are {@code null} or zero for
+ * the frames shared by many sessions, like market data.
+ */
+public class TraceRecord {
+    public enum Direction {
+        IN, OUT
+    }
+
+    private final long sequence;
+    private final Instant time;
+    private final Direction direction;
+    private final long sessionID;
+    private final String remoteAddress;
+    private final int frameType;
+    private final int length;
+    private final MessageType messageType;
+    private final UUID requestID, responseID;
+    private final int currentCount, totalCount;
+
+    public TraceRecord(long sequence, Instant time, Direction direction,
+                       long sessionID, String remoteAddress, int frameType,
+                       int length, MessageType messageType, UUID requestID,
+                       UUID responseID, int currentCount, int totalCount) {
+        this.sequence = sequence;
+        this.time = time;
+        this.direction = direction;
+        this.sessionID = sessionID;
+        this.remoteAddress = remoteAddress;
+        this.frameType = frameType;
+        this.length = length;
+        this.messageType = messageType;
+        this.requestID = requestID;
+        this.responseID = responseID;
+        this.currentCount = currentCount;
+        this.totalCount = totalCount;
+    }
+
+    /**
+     * Get the sequence of the record in the tracer. Gaps in the sequence are the
+     * records overwritten in the ring buffer.
+     *
+     * @return sequence number
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public Instant getTime() {
+        return this.time;
+    }
+
+    public Direction getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Get the ID of the underlying I/O session, unique in the server or client.
+     *
+     * @return session ID
+     */
+    public long getSessionID() {
+        return this.sessionID;
+    }
+
+    public String getRemoteAddress() {
+        return this.remoteAddress;
+    }
+
+    /**
+     * Get the frame type with flags. See {@link FrameType}.
+     *
+     * @return frame type
+     */
+    public int getFrameType() {
+        return this.frameType;
+    }
+
+    /**
+     * Get the length of the body on wire, after compression.
+     *
+     * @return body length in bytes
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+
+    public UUID getRequestID() {
+        return this.requestID;
+    }
+
+    public UUID getResponseID() {
+        return this.responseID;
+    }
+
+    public int getCurrentCount() {
+        return this.currentCount;
+    }
+
+    public int getTotalCount() {
+        return this.totalCount;
+    }
+
+    @Override
+    public String toString() {
+        return this.sequence + " " + this.time + " " + this.direction
+                + " session=" + this.sessionID + " remote=" + this.remoteAddress
+                + " frame=0x" + Integer.toHexString(this.frameType)
+                + " length=" + this.length + " type=" + this.messageType
+                + " request=" + this.requestID + " response=" + this.responseID
+                + " count=" + this.currentCount + "/" + this.totalCount;
+    }
+}
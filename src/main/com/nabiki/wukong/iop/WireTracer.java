@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Tracer of the frames sent and received by the sessions of a server or client.
+ * It is disabled by default. Once enabled, the sampled frames are recorded into a
+ * fixed size ring buffer, overwriting the oldest records, and can be dumped at any
+ * time. Recording doesn't lock or block the I/O threads.
+ *
+ * <p>A frame is recorded if it passes the filter and is sampled. To trace all
+ * frames of some message types, set the filter and sample every frame.
+ * </p>
+ */
+public interface WireTracer {
+    /**
+     * Sample one in every {@code n} frames on average. One records all frames and
+     * zero disables the tracer.
+     *
+     * @param n sampling interval, zero to disable
+     */
+    void setSampling(int n);
+
+    /**
+     * Set the filter of the traced frames. The filter is called on the I/O thread
+     * for every frame while the tracer is enabled, so it must be fast.
+     *
+     * @param filter filter on the session and message type, {@code null} to trace
+     *               all frames
+     */
+    void setFilter(BiPredicate<IOPSession, MessageType> filter);
+
+    /**
+     * Get the records in the ring buffer, from the oldest to the newest.
+     *
+     * @return list of records
+     */
+    List<TraceRecord> dump();
+
+    /**
+     * Remove all records.
+     */
+    void clear();
+}
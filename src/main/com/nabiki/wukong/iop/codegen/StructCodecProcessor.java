@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.codegen;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Annotation processor generating reflection-free struct codecs. It is run by the
+ * build on the type annotated with
+ * {@code com.nabiki.wukong.iop.frame.GenerateStructCodecs}, and generates the
+ * class {@code GeneratedStructCodecs} in the same package with a codec for each
+ * struct in the listed packages.
+ *
+ * <p>A struct is a public top-level class with a public no-argument constructor
+ * and only public, non-final instance fields of the types the binary codec
+ * understands. Other classes are skipped and still encoded by reflection.
+ * </p>
+ *
+ * <p>It also generates the delta of the struct named by
+ * {@code com.nabiki.wukong.iop.internal.GenerateStructDelta}, which supports
+ * primitive and string fields, and not more fields than the bits of a long mask.
+ * </p>
+ */
+@SupportedAnnotationTypes({StructCodecProcessor.ANNOTATION,
+        StructCodecProcessor.DELTA_ANNOTATION})
+public class StructCodecProcessor extends AbstractProcessor {
+    static final String ANNOTATION
+            = "com.nabiki.wukong.iop.frame.GenerateStructCodecs";
+    static final String DELTA_ANNOTATION
+            = "com.nabiki.wukong.iop.internal.GenerateStructDelta";
+    static final String GENERATED = "GeneratedStructCodecs";
+
+    private enum Kind {
+        BOOLEAN, BYTE, CHAR, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, UUID, ENUM,
+        STRING_ARRAY, BYTE_ARRAY
+    }
+
+    private static class StructField {
+        String name;
+        Kind kind;
+        String type;
+    }
+
+    private static class Struct {
+        String type;
+        String codec;
+        // Declaration order for JSON, as Gson writes.
+        List<StructField> fields = new ArrayList<>();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment roundEnv) {
+        for (var annotation : annotations) {
+            var delta = annotation.getQualifiedName()
+                    .contentEquals(DELTA_ANNOTATION);
+            for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (delta) {
+                    processDelta(element, annotation);
+                    continue;
+                }
+                var packages = packagesOf(element, annotation);
+                var pkg = this.processingEnv.getElementUtils()
+                        .getPackageOf(element).getQualifiedName().toString();
+                try {
+                    generate(pkg, structsOf(packages), element);
+                } catch (IOException e) {
+                    error("generate struct codecs: " + e.getMessage(), element);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void processDelta(Element element, TypeElement annotation) {
+        var names = packagesOf(element, annotation);
+        var type = names.isEmpty() ? null
+                : this.processingEnv.getElementUtils().getTypeElement(names.get(0));
+        var struct = type == null ? null : structOf(type);
+        if (struct == null) {
+            error("not a struct: " + names, element);
+            return;
+        }
+        if (struct.fields.size() > Long.SIZE) {
+            error("struct has more fields than delta mask bits: " + struct.type,
+                    element);
+            return;
+        }
+        for (var f : struct.fields) {
+            if (!isPrimitive(f.kind) && f.kind != Kind.STRING) {
+                error("unsupported delta field: " + f.name, element);
+                return;
+            }
+        }
+        var pkg = this.processingEnv.getElementUtils().getPackageOf(element)
+                .getQualifiedName().toString();
+        var name = "Generated" + element.getSimpleName();
+        try {
+            generateDelta(pkg, name, struct, element);
+        } catch (IOException e) {
+            error("generate struct delta: " + e.getMessage(), element);
+        }
+    }
+
+    private List<String> packagesOf(Element element, TypeElement annotation) {
+        var packages = new ArrayList<String>();
+        for (var mirror : element.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation))
+                continue;
+            for (var entry : mirror.getElementValues().entrySet()) {
+                if (!entry.getKey().getSimpleName().contentEquals("value"))
+                    continue;
+                var value = entry.getValue().getValue();
+                if (value instanceof List) {
+                    for (var v : (List<?>) value)
+                        packages.add(((AnnotationValue) v).getValue().toString());
+                } else
+                    packages.add(value.toString());
+            }
+        }
+        return packages;
+    }
+
+    private List<Struct> structsOf(List<String> packages) {
+        var structs = new ArrayList<Struct>();
+        var codecNames = new HashSet<String>();
+        for (var name : packages) {
+            var pkg = this.processingEnv.getElementUtils().getPackageElement(name);
+            if (pkg == null) {
+                warn("package not found: " + name);
+                continue;
+            }
+            for (var type : ElementFilter.typesIn(pkg.getEnclosedElements())) {
+                var struct = structOf(type);
+                if (struct == null)
+                    continue;
+                var codec = type.getSimpleName() + "Codec";
+                for (int i = 1; !codecNames.add(codec); ++i)
+                    codec = type.getSimpleName() + "Codec" + i;
+                struct.codec = codec;
+                structs.add(struct);
+            }
+        }
+        return structs;
+    }
+
+    private Struct structOf(TypeElement type) {
+        var modifiers = type.getModifiers();
+        if (type.getKind() != ElementKind.CLASS
+                || !modifiers.contains(Modifier.PUBLIC)
+                || modifiers.contains(Modifier.ABSTRACT)
+                || type.getNestingKind() != NestingKind.TOP_LEVEL
+                || !type.getTypeParameters().isEmpty())
+            return null;
+        var superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED || !((TypeElement)
+                ((DeclaredType) superclass).asElement()).getQualifiedName()
+                .contentEquals("java.lang.Object"))
+            return null;
+        var constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        if (constructors.stream().noneMatch(c -> c.getParameters().isEmpty()
+                && c.getModifiers().contains(Modifier.PUBLIC)))
+            return null;
+        var struct = new Struct();
+        struct.type = type.getQualifiedName().toString();
+        for (var field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            var fieldModifiers = field.getModifiers();
+            if (fieldModifiers.contains(Modifier.STATIC)
+                    || fieldModifiers.contains(Modifier.TRANSIENT))
+                continue;
+            // Gson writes all fields, and binary codec only the public ones.
+            if (!fieldModifiers.contains(Modifier.PUBLIC)
+                    || fieldModifiers.contains(Modifier.FINAL)
+                    || !field.getAnnotationMirrors().isEmpty())
+                return null;
+            var f = new StructField();
+            f.name = field.getSimpleName().toString();
+            f.kind = kindOf(field.asType());
+            f.type = field.asType().toString();
+            if (f.kind == null)
+                return null;
+            struct.fields.add(f);
+        }
+        return struct;
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case BYTE:
+                return Kind.BYTE;
+            case CHAR:
+                return Kind.CHAR;
+            case SHORT:
+                return Kind.SHORT;
+            case INT:
+                return Kind.INT;
+            case LONG:
+                return Kind.LONG;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case ARRAY:
+                var component = ((ArrayType) type).getComponentType();
+                if (component.getKind() == TypeKind.BYTE)
+                    return Kind.BYTE_ARRAY;
+                else if (isClass(component, "java.lang.String"))
+                    return Kind.STRING_ARRAY;
+                else
+                    return null;
+            case DECLARED:
+                if (isClass(type, "java.lang.String"))
+                    return Kind.STRING;
+                else if (isClass(type, "java.util.UUID"))
+                    return Kind.UUID;
+                else if (((DeclaredType) type).asElement().getKind()
+                        == ElementKind.ENUM)
+                    return Kind.ENUM;
+                else
+                    return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isClass(TypeMirror type, String name) {
+        return type.getKind() == TypeKind.DECLARED && ((TypeElement)
+                ((DeclaredType) type).asElement()).getQualifiedName()
+                .contentEquals(name);
+    }
+
+    private void generate(String pkg, List<Struct> structs, Element origin)
+            throws IOException {
+        var file = this.processingEnv.getFiler().createSourceFile(
+                pkg + "." + GENERATED, origin);
+        try (var out = new PrintWriter(file.openWriter())) {
+            out.println("// Generated by " + getClass().getName() + ", don't edit.");
+            out.println("package " + pkg + ";");
+            out.println();
+            out.println("import com.google.gson.stream.JsonReader;");
+            out.println("import com.google.gson.stream.JsonWriter;");
+            out.println();
+            out.println("import java.io.IOException;");
+            out.println("import java.nio.ByteBuffer;");
+            out.println("import java.util.HashMap;");
+            out.println("import java.util.Map;");
+            out.println();
+            out.println("final class " + GENERATED + " {");
+            out.println("    private " + GENERATED + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    static Map<Class<?>, StructCodec<?>> codecs() {");
+            out.println("        var codecs = new HashMap<Class<?>, StructCodec<?>>();");
+            for (var struct : structs)
+                out.println("        codecs.put(" + struct.type + ".class, new "
+                        + struct.codec + "());");
+            out.println("        return codecs;");
+            out.println("    }");
+            for (var struct : structs)
+                generateCodec(out, struct);
+            out.println("}");
+        }
+    }
+
+    private void generateCodec(PrintWriter out, Struct struct) {
+        var t = struct.type;
+        // Binary codec writes fields in alphabetical order.
+        var sorted = new ArrayList<>(struct.fields);
+        sorted.sort(Comparator.comparing(f -> f.name));
+        out.println();
+        out.println("    private static final class " + struct.codec
+                + " implements StructCodec<" + t + "> {");
+        out.println("        @Override");
+        out.println("        public void write(BinaryBodyCodec.BinaryOutput out, "
+                + t + " struct) {");
+        for (var f : sorted)
+            out.println("            " + binaryWrite(f));
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println("        public " + t + " read(ByteBuffer in) {");
+        out.println("            var struct = new " + t + "();");
+        for (var f : sorted)
+            out.println("            struct." + f.name + " = " + binaryRead(f) + ";");
+        out.println("            return struct;");
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println("        public void writeJson(JsonWriter out, " + t
+                + " struct) throws IOException {");
+        out.println("            out.beginObject();");
+        for (var f : struct.fields)
+            jsonWrite(out, f);
+        out.println("            out.endObject();");
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println("        public " + t + " readJson(JsonReader in) throws IOException {");
+        out.println("            var struct = new " + t + "();");
+        out.println("            in.beginObject();");
+        out.println("            while (in.hasNext()) {");
+        out.println("                switch (in.nextName()) {");
+        for (var f : struct.fields) {
+            out.println("                    case \"" + f.name + "\":");
+            // Gson keeps the primitive unchanged, and sets null to reference.
+            if (isPrimitive(f.kind))
+                out.println("                        if (!StructCodecs.nextNull(in))");
+            else
+                out.println("                        if (StructCodecs.nextNull(in))");
+            if (isPrimitive(f.kind)) {
+                out.println("                            struct." + f.name + " = "
+                        + jsonRead(f) + ";");
+            } else {
+                out.println("                            struct." + f.name + " = null;");
+                out.println("                        else");
+                out.println("                            struct." + f.name + " = "
+                        + jsonRead(f) + ";");
+            }
+            out.println("                        break;");
+        }
+        out.println("                    default:");
+        out.println("                        in.skipValue();");
+        out.println("                        break;");
+        out.println("                }");
+        out.println("            }");
+        out.println("            in.endObject();");
+        out.println("            return struct;");
+        out.println("        }");
+        out.println("    }");
+    }
+
+    private void generateDelta(String pkg, String name, Struct struct,
+                               Element origin) throws IOException {
+        var t = struct.type;
+        var sorted = new ArrayList<>(struct.fields);
+        sorted.sort(Comparator.comparing(f -> f.name));
+        var file = this.processingEnv.getFiler().createSourceFile(
+                pkg + "." + name, origin);
+        try (var out = new PrintWriter(file.openWriter())) {
+            out.println("// Generated by " + getClass().getName() + ", don't edit.");
+            out.println("package " + pkg + ";");
+            out.println();
+            out.println("import com.nabiki.wukong.iop.frame.BinaryBodyCodec;");
+            out.println();
+            out.println("import java.nio.ByteBuffer;");
+            out.println();
+            out.println("final class " + name + " implements StructDelta<" + t + "> {");
+            out.println("    @Override");
+            out.println("    public int size() {");
+            out.println("        return " + sorted.size() + ";");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public long diff(" + t + " base, " + t
+                    + " value, BinaryBodyCodec.BinaryOutput out) {");
+            out.println("        long mask = 0;");
+            for (int i = 0; i < sorted.size(); ++i) {
+                var f = sorted.get(i);
+                out.println("        if (" + deltaDiffers(f) + ") {");
+                out.println("            mask |= 1L << " + i + ";");
+                out.println("            out." + deltaPut(f) + "(value." + f.name + ");");
+                out.println("        }");
+            }
+            out.println("        return mask;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + t + " apply(" + t
+                    + " base, long mask, ByteBuffer in) {");
+            out.println("        var struct = new " + t + "();");
+            for (int i = 0; i < sorted.size(); ++i) {
+                var f = sorted.get(i);
+                out.println("        struct." + f.name + " = (mask & 1L << " + i
+                        + ") != 0 ? " + binaryRead(f) + " : base." + f.name
+                        + ";");
+            }
+            out.println("        return struct;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private static String deltaDiffers(StructField f) {
+        var b = "base." + f.name;
+        var v = "value." + f.name;
+        switch (f.kind) {
+            case FLOAT:
+                return "Float.floatToIntBits(" + b + ") != Float.floatToIntBits("
+                        + v + ")";
+            case DOUBLE:
+                return "Double.doubleToLongBits(" + b
+                        + ") != Double.doubleToLongBits(" + v + ")";
+            case STRING:
+                return "!java.util.Objects.equals(" + b + ", " + v + ")";
+            default:
+                return b + " != " + v;
+        }
+    }
+
+    private static String deltaPut(StructField f) {
+        switch (f.kind) {
+            case BOOLEAN:
+                return "putBoolean";
+            case BYTE:
+                return "putByte";
+            case CHAR:
+                return "putChar";
+            case SHORT:
+                return "putShort";
+            case INT:
+                return "putInt";
+            case LONG:
+                return "putLong";
+            case FLOAT:
+                return "putFloat";
+            case DOUBLE:
+                return "putDouble";
+            case STRING:
+                return "putString";
+            default:
+                throw new IllegalStateException(f.kind.name());
+        }
+    }
+
+    private static boolean isPrimitive(Kind kind) {
+        return kind.ordinal() <= Kind.DOUBLE.ordinal();
+    }
+
+    private static String binaryWrite(StructField f) {
+        var v = "struct." + f.name;
+        switch (f.kind) {
+            case BOOLEAN:
+                return "out.putByte((byte) (" + v + " ? 1 : 0));";
+            case BYTE:
+                return "out.putByte(" + v + ");";
+            case CHAR:
+                return "out.putChar(" + v + ");";
+            case SHORT:
+                return "out.putShort(" + v + ");";
+            case INT:
+                return "out.putInt(" + v + ");";
+            case LONG:
+                return "out.putLong(" + v + ");";
+            case FLOAT:
+                return "out.putFloat(" + v + ");";
+            case DOUBLE:
+                return "out.putDouble(" + v + ");";
+            case STRING:
+                return "out.putString(" + v + ");";
+            case UUID:
+                return "out.putUUID(" + v + ");";
+            case ENUM:
+                return "out.putInt(" + v + " == null ? -1 : " + v + ".ordinal());";
+            case STRING_ARRAY:
+                return "StructCodecs.putStrings(out, " + v + ");";
+            case BYTE_ARRAY:
+                return "StructCodecs.putBytes(out, " + v + ");";
+            default:
+                throw new IllegalStateException(f.kind.name());
+        }
+    }
+
+    private static String binaryRead(StructField f) {
+        switch (f.kind) {
+            case BOOLEAN:
+                return "in.get() != 0";
+            case BYTE:
+                return "in.get()";
+            case CHAR:
+                return "in.getChar()";
+            case SHORT:
+                return "in.getShort()";
+            case INT:
+                return "in.getInt()";
+            case LONG:
+                return "in.getLong()";
+            case FLOAT:
+                return "in.getFloat()";
+            case DOUBLE:
+                return "in.getDouble()";
+            case STRING:
+                return "BinaryBodyCodec.getString(in)";
+            case UUID:
+                return "BinaryBodyCodec.getUUID(in)";
+            case ENUM:
+                return "BinaryBodyCodec.getEnum(in, " + f.type + ".class)";
+            case STRING_ARRAY:
+                return "StructCodecs.getStrings(in)";
+            case BYTE_ARRAY:
+                return "StructCodecs.getBytes(in)";
+            default:
+                throw new IllegalStateException(f.kind.name());
+        }
+    }
+
+    private static void jsonWrite(PrintWriter out, StructField f) {
+        var v = "struct." + f.name;
+        var name = "out.name(\"" + f.name + "\")";
+        String value;
+        switch (f.kind) {
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case DOUBLE:
+                value = name + ".value(" + v + ");";
+                break;
+            case FLOAT:
+                // Gson writes float as number, not widened to double.
+                value = name + ".value(Float.valueOf(" + v + "));";
+                break;
+            case CHAR:
+                value = name + ".value(String.valueOf(" + v + "));";
+                break;
+            case STRING:
+                value = name + ".value(" + v + ");";
+                break;
+            case UUID:
+                value = name + ".value(" + v + ".toString());";
+                break;
+            case ENUM:
+                value = name + ".value(" + v + ".name());";
+                break;
+            case STRING_ARRAY:
+            case BYTE_ARRAY:
+                value = "StructCodecs.value(" + name + ", " + v + ");";
+                break;
+            default:
+                throw new IllegalStateException(f.kind.name());
+        }
+        if (isPrimitive(f.kind))
+            out.println("            " + value);
+        else {
+            out.println("            if (" + v + " != null)");
+            out.println("                " + value);
+        }
+    }
+
+    private static String jsonRead(StructField f) {
+        switch (f.kind) {
+            case BOOLEAN:
+                return "StructCodecs.nextBoolean(in)";
+            case BYTE:
+                return "(byte) in.nextInt()";
+            case CHAR:
+                return "StructCodecs.nextChar(in)";
+            case SHORT:
+                return "(short) in.nextInt()";
+            case INT:
+                return "in.nextInt()";
+            case LONG:
+                return "in.nextLong()";
+            case FLOAT:
+                return "(float) in.nextDouble()";
+            case DOUBLE:
+                return "in.nextDouble()";
+            case STRING:
+                return "StructCodecs.nextString(in)";
+            case UUID:
+                return "java.util.UUID.fromString(in.nextString())";
+            case ENUM:
+                return "StructCodecs.nextEnum(in, " + f.type + ".class)";
+            case STRING_ARRAY:
+                return "StructCodecs.nextStrings(in)";
+            case BYTE_ARRAY:
+                return "StructCodecs.nextBytes(in)";
+            default:
+                throw new IllegalStateException(f.kind.name());
+        }
+    }
+
+    private void warn(String message) {
+        this.processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.WARNING, message);
+    }
+
+    private void error(String message, Element element) {
+        this.processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Compact binary codec of the frame body. All numbers are big-endian.
+ *
+ * <p>The body is written as a version byte, the request ID and response ID, the
+ * ordinal of the message type, the current count and total count, and then the
+ * payload. The payload is preceded by a byte telling if it is absent, a JSON
+ * string or a binary struct. If the body has a sequence, the byte has
+ * {@code SEQUENCED} bit set and the sequence follows it in a long.
+ * </p>
+ *
+ * <p>A struct is written field by field in the alphabetical order of the field
+ * names, so both sides must have the same struct definition. Primitives are
+ * written in fixed width. Strings are UTF-8 bytes prefixed by an int length, and
+ * {@code -1} length for null. A UUID is a presence byte followed by two longs. An
+ * enum is its ordinal, and {@code -1} for null.
+ * </p>
+ *
+ * <p>Structs are written by the {@link StructCodec} generated at build time, and
+ * by reflection if the struct has no generated codec.
+ * </p>
+ */
+public class BinaryBodyCodec implements BodyCodec {
+    static final byte VERSION = 1;
+    static final byte PAYLOAD_NONE = 0;
+    static final byte PAYLOAD_JSON = 1;
+    static final byte PAYLOAD_BINARY = 2;
+    static final byte SEQUENCED = 0x10;
+
+    private static final int KIND_BOOLEAN = 0;
+    private static final int KIND_BYTE = 1;
+    private static final int KIND_CHAR = 2;
+    private static final int KIND_SHORT = 3;
+    private static final int KIND_INT = 4;
+    private static final int KIND_LONG = 5;
+    private static final int KIND_FLOAT = 6;
+    private static final int KIND_DOUBLE = 7;
+    private static final int KIND_STRING = 8;
+    private static final int KIND_UUID = 9;
+    private static final int KIND_ENUM = 10;
+    private static final int KIND_STRING_ARRAY = 11;
+    private static final int KIND_BYTE_ARRAY = 12;
+
+    /*
+    Generated codec or reflection data of a struct, computed once per class.
+     */
+    private static class StructInfo {
+        StructCodec<Object> codec;
+        Constructor<?> constructor;
+        Field[] fields;
+        int[] kinds;
+        String error;
+    }
+
+    private static final ClassValue<StructInfo> structs = new ClassValue<>() {
+        @Override
+        protected StructInfo computeValue(Class<?> type) {
+            return inspect(type);
+        }
+    };
+
+    private final ThreadLocal<BinaryOutput> outputs
+            = ThreadLocal.withInitial(BinaryOutput::new);
+
+    BinaryBodyCodec() {
+    }
+
+    @Override
+    public int getFlag() {
+        return FrameType.FLAG_BINARY;
+    }
+
+    @Override
+    public byte[] encode(Body body) throws IOException {
+        var out = this.outputs.get();
+        out.reset();
+        out.putByte(VERSION);
+        out.putUUID(body.RequestID);
+        out.putUUID(body.ResponseID);
+        out.putInt(body.Type == null ? -1 : body.Type.ordinal());
+        out.putInt(body.CurrentCount);
+        out.putInt(body.TotalCount);
+        byte sequenced = body.Sequence != 0 ? SEQUENCED : 0;
+        if (body.Payload != null) {
+            putKind(out, PAYLOAD_BINARY | sequenced, body);
+            writeStruct(out, body.Payload);
+        } else if (body.Json != null) {
+            putKind(out, PAYLOAD_JSON | sequenced, body);
+            out.putString(body.Json);
+        } else
+            putKind(out, PAYLOAD_NONE | sequenced, body);
+        return out.toByteArray();
+    }
+
+    private static void putKind(BinaryOutput out, int kind, Body body) {
+        out.putByte((byte) kind);
+        if ((kind & SEQUENCED) != 0)
+            out.putLong(body.Sequence);
+    }
+
+    @Override
+    public Body decode(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            var in = ByteBuffer.wrap(bytes, offset, length);
+            if (in.get() != VERSION)
+                throw new IOException("unsupported binary body version");
+            var body = new Body();
+            body.RequestID = getUUID(in);
+            body.ResponseID = getUUID(in);
+            body.Type = getEnum(in, MessageType.class);
+            body.CurrentCount = in.getInt();
+            body.TotalCount = in.getInt();
+            var kind = in.get();
+            if ((kind & SEQUENCED) != 0) {
+                body.Sequence = in.getLong();
+                kind &= ~SEQUENCED;
+            }
+            switch (kind) {
+                case PAYLOAD_NONE:
+                    break;
+                case PAYLOAD_JSON:
+                    body.Json = getString(in);
+                    break;
+                case PAYLOAD_BINARY:
+                    if (body.Type == null || body.Type.getPayloadClass() == null)
+                        throw new IOException("no payload class for message type");
+                    body.Payload = readStruct(in, body.Type.getPayloadClass());
+                    break;
+                default:
+                    throw new IOException("unknown payload kind");
+            }
+            return body;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("malformed binary body", e);
+        }
+    }
+
+    /**
+     * Write the public fields of the specified struct to the output.
+     *
+     * @param out output
+     * @param struct struct object
+     * @throws IOException if the struct has field of unsupported type
+     */
+    static void writeStruct(BinaryOutput out, Object struct) throws IOException {
+        var info = structs.get(struct.getClass());
+        if (info.codec != null) {
+            info.codec.write(out, struct);
+            return;
+        }
+        if (info.error != null)
+            throw new IOException(info.error);
+        try {
+            for (int i = 0; i < info.fields.length; ++i)
+                writeField(out, info.fields[i], info.kinds[i], struct);
+        } catch (IllegalAccessException e) {
+            throw new IOException("access struct field", e);
+        }
+    }
+
+    /**
+     * Read a struct of the specified class from the input.
+     *
+     * @param in input
+     * @param clz {@link Class} of the struct
+     * @param <T> generic type of the struct
+     * @return struct object
+     * @throws IOException if the struct can't be constructed or has field of
+     *                     unsupported type
+     */
+    static <T> T readStruct(ByteBuffer in, Class<T> clz) throws IOException {
+        var info = structs.get(clz);
+        if (info.codec != null)
+            return clz.cast(info.codec.read(in));
+        if (info.error != null)
+            throw new IOException(info.error);
+        try {
+            var struct = clz.cast(info.constructor.newInstance());
+            for (int i = 0; i < info.fields.length; ++i)
+                readField(in, info.fields[i], info.kinds[i], struct);
+            return struct;
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("construct struct", e);
+        }
+    }
+
+    private static void writeField(BinaryOutput out, Field field, int kind,
+                                   Object struct) throws IllegalAccessException {
+        switch (kind) {
+            case KIND_BOOLEAN:
+                out.putByte((byte) (field.getBoolean(struct) ? 1 : 0));
+                break;
+            case KIND_BYTE:
+                out.putByte(field.getByte(struct));
+                break;
+            case KIND_CHAR:
+                out.putChar(field.getChar(struct));
+                break;
+            case KIND_SHORT:
+                out.putShort(field.getShort(struct));
+                break;
+            case KIND_INT:
+                out.putInt(field.getInt(struct));
+                break;
+            case KIND_LONG:
+                out.putLong(field.getLong(struct));
+                break;
+            case KIND_FLOAT:
+                out.putFloat(field.getFloat(struct));
+                break;
+            case KIND_DOUBLE:
+                out.putDouble(field.getDouble(struct));
+                break;
+            case KIND_STRING:
+                out.putString((String) field.get(struct));
+                break;
+            case KIND_UUID:
+                out.putUUID((UUID) field.get(struct));
+                break;
+            case KIND_ENUM:
+                var e = (Enum<?>) field.get(struct);
+                out.putInt(e == null ? -1 : e.ordinal());
+                break;
+            case KIND_STRING_ARRAY:
+                var strings = (String[]) field.get(struct);
+                if (strings == null)
+                    out.putInt(-1);
+                else {
+                    out.putInt(strings.length);
+                    for (var s : strings)
+                        out.putString(s);
+                }
+                break;
+            case KIND_BYTE_ARRAY:
+                var bytes = (byte[]) field.get(struct);
+                if (bytes == null)
+                    out.putInt(-1);
+                else {
+                    out.putInt(bytes.length);
+                    out.putBytes(bytes, 0, bytes.length);
+                }
+                break;
+        }
+    }
+
+    private static void readField(ByteBuffer in, Field field, int kind,
+                                  Object struct) throws IllegalAccessException {
+        switch (kind) {
+            case KIND_BOOLEAN:
+                field.setBoolean(struct, in.get() != 0);
+                break;
+            case KIND_BYTE:
+                field.setByte(struct, in.get());
+                break;
+            case KIND_CHAR:
+                field.setChar(struct, in.getChar());
+                break;
+            case KIND_SHORT:
+                field.setShort(struct, in.getShort());
+                break;
+            case KIND_INT:
+                field.setInt(struct, in.getInt());
+                break;
+            case KIND_LONG:
+                field.setLong(struct, in.getLong());
+                break;
+            case KIND_FLOAT:
+                field.setFloat(struct, in.getFloat());
+                break;
+            case KIND_DOUBLE:
+                field.setDouble(struct, in.getDouble());
+                break;
+            case KIND_STRING:
+                field.set(struct, getString(in));
+                break;
+            case KIND_UUID:
+                field.set(struct, getUUID(in));
+                break;
+            case KIND_ENUM:
+                field.set(struct, getEnum(in, field.getType()));
+                break;
+            case KIND_STRING_ARRAY:
+                field.set(struct, StructCodecs.getStrings(in));
+                break;
+            case KIND_BYTE_ARRAY:
+                field.set(struct, StructCodecs.getBytes(in));
+                break;
+        }
+    }
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        var s = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static UUID getUUID(ByteBuffer in) {
+        if (in.get() == 0)
+            return null;
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    static <T> T getEnum(ByteBuffer in, Class<T> clz) {
+        int ordinal = in.getInt();
+        if (ordinal < 0)
+            return null;
+        var constants = clz.getEnumConstants();
+        if (ordinal >= constants.length)
+            throw new IllegalArgumentException("enum ordinal out of range");
+        return constants[ordinal];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StructInfo inspect(Class<?> clz) {
+        var info = new StructInfo();
+        info.codec = (StructCodec<Object>) StructCodecs.get(clz);
+        if (info.codec != null)
+            return info;
+        try {
+            info.constructor = clz.getDeclaredConstructor();
+            info.constructor.setAccessible(true);
+        } catch (NoSuchMethodException | RuntimeException e) {
+            info.error = "no default constructor: " + clz.getName();
+            return info;
+        }
+        info.fields = Arrays.stream(clz.getFields())
+                .filter(f -> !Modifier.isStatic(f.getModifiers())
+                        && !Modifier.isTransient(f.getModifiers())
+                        && !Modifier.isFinal(f.getModifiers()))
+                .sorted(Comparator.comparing(Field::getName))
+                .toArray(Field[]::new);
+        info.kinds = new int[info.fields.length];
+        for (int i = 0; i < info.fields.length; ++i) {
+            info.kinds[i] = kindOf(info.fields[i].getType());
+            if (info.kinds[i] < 0) {
+                info.error = "unsupported field type: " + info.fields[i];
+                return info;
+            }
+        }
+        return info;
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == boolean.class)
+            return KIND_BOOLEAN;
+        else if (type == byte.class)
+            return KIND_BYTE;
+        else if (type == char.class)
+            return KIND_CHAR;
+        else if (type == short.class)
+            return KIND_SHORT;
+        else if (type == int.class)
+            return KIND_INT;
+        else if (type == long.class)
+            return KIND_LONG;
+        else if (type == float.class)
+            return KIND_FLOAT;
+        else if (type == double.class)
+            return KIND_DOUBLE;
+        else if (type == String.class)
+            return KIND_STRING;
+        else if (type == UUID.class)
+            return KIND_UUID;
+        else if (type.isEnum())
+            return KIND_ENUM;
+        else if (type == String[].class)
+            return KIND_STRING_ARRAY;
+        else if (type == byte[].class)
+            return KIND_BYTE_ARRAY;
+        else
+            return -1;
+    }
+
+    /*
+    Growable big-endian output. It is reused by the thread so that encoding only
+    allocates the returned array. Public for the depth deltas, which write the
+    values in the same format. The array grown by a large body shrinks back to
+    the default size on reset, so an idle thread doesn't keep it.
+     */
+    public static class BinaryOutput {
+        private static final int DEFAULT_SIZE = 1024;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        private byte[] bytes = new byte[DEFAULT_SIZE];
+        private int position = 0;
+
+        public void reset() {
+            this.position = 0;
+            if (this.bytes.length > MAX_RETAINED_SIZE)
+                this.bytes = new byte[DEFAULT_SIZE];
+        }
+
+        public int size() {
+            return this.position;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(this.bytes, this.position);
+        }
+
+        private void ensure(int more) {
+            if (this.bytes.length - this.position < more)
+                this.bytes = Arrays.copyOf(this.bytes,
+                        Math.max(2 * this.bytes.length, this.position + more));
+        }
+
+        public void putByte(byte b) {
+            ensure(1);
+            this.bytes[this.position++] = b;
+        }
+
+        public void putBytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, this.bytes, this.position, length);
+            this.position += length;
+        }
+
+        public void putBoolean(boolean b) {
+            putByte((byte) (b ? 1 : 0));
+        }
+
+        public void putChar(char c) {
+            putShort((short) c);
+        }
+
+        public void putShort(short s) {
+            ensure(2);
+            this.bytes[this.position++] = (byte) (s >> 8);
+            this.bytes[this.position++] = (byte) s;
+        }
+
+        public void putInt(int i) {
+            ensure(4);
+            this.bytes[this.position++] = (byte) (i >> 24);
+            this.bytes[this.position++] = (byte) (i >> 16);
+            this.bytes[this.position++] = (byte) (i >> 8);
+            this.bytes[this.position++] = (byte) i;
+        }
+
+        public void putLong(long l) {
+            putInt((int) (l >> 32));
+            putInt((int) l);
+        }
+
+        public void putFloat(float f) {
+            putInt(Float.floatToRawIntBits(f));
+        }
+
+        public void putDouble(double d) {
+            putLong(Double.doubleToRawLongBits(d));
+        }
+
+        public void putString(String s) {
+            if (s == null) {
+                putInt(-1);
+                return;
+            }
+            var b = s.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            putBytes(b, 0, b.length);
+        }
+
+        public void putUUID(UUID uuid) {
+            if (uuid == null) {
+                putByte((byte) 0);
+                return;
+            }
+            putByte((byte) 1);
+            putLong(uuid.getMostSignificantBits());
+            putLong(uuid.getLeastSignificantBits());
+        }
+    }
+}
@@ -61,10 +61,23 @@ public class Body implements java.io.Serializable {
      */
     public int TotalCount;
 
+    /**
+     * Sequence of the market data in the stream of its instrument and type,
+     * starting from 1. Zero if the message is not in a stream.
+     */
+    public long Sequence;
+
     /**
      * JSON string representation of the data in this message.
      */
     public String Json;
 
+    /**
+     * Object representation of the data in this message. If the field is set, it
+     * is encoded by the session's {@link BodyCodec} and the {@link Body#Json} can
+     * be left null. The field is not serialized into the JSON envelope.
+     */
+    public transient Object Payload;
+
     public Body() {}
 }
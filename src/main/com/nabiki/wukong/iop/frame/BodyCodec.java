@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import java.io.IOException;
+
+/**
+ * Codec of the frame body. A session encodes all its outgoing bodies with the
+ * same codec, and marks the frame with the codec's flag so that the peer can pick
+ * the right codec for decoding.
+ */
+public interface BodyCodec {
+    /**
+     * JSON codec. It is the default codec and is understood by all peers.
+     */
+    BodyCodec JSON = new JsonBodyCodec();
+
+    /**
+     * Compact binary codec.
+     */
+    BodyCodec BINARY = new BinaryBodyCodec();
+
+    /**
+     * Get the flag set in the frame type for the frame encoded by this codec.
+     *
+     * @return frame type flag of this codec
+     */
+    int getFlag();
+
+    /**
+     * Encode the specified body into bytes.
+     *
+     * @param body body to encode
+     * @return encoded bytes
+     * @throws IOException if the body or its payload can't be encoded
+     */
+    byte[] encode(Body body) throws IOException;
+
+    /**
+     * Decode a body from the specified region of the byte array.
+     *
+     * @param bytes byte array
+     * @param offset offset of the first byte
+     * @param length number of bytes to decode
+     * @return decoded body
+     * @throws IOException if the bytes are malformed
+     */
+    Body decode(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Get the codec for the frame of the specified type.
+     *
+     * @param type frame type with flags
+     * @return codec to decode the frame body
+     */
+    static BodyCodec forFrameType(int type) {
+        if (FrameType.hasFlag(type, FrameType.FLAG_BINARY))
+            return BINARY;
+        else
+            return JSON;
+    }
+}
@@ -33,5 +33,20 @@ public class Frame implements java.io.Serializable {
     public int Length;
     public byte[] Body;
 
+    /*
+    Extended header of the frame with FrameType.FLAG_STAMPED. The times are
+    System.nanoTime() of the side that takes them, so only the times of the same
+    side can be compared.
+     */
+    public long Sequence;
+    public long SendTime;
+    // Times of the request answered by the response, zero if not answering.
+    public long RequestSendTime, RequestReceiveTime, RequestDispatchTime;
+
+    /*
+    Set when the frame is taken from the pool, and cleared on release.
+     */
+    transient boolean pooled = false;
+
     public Frame() {}
 }
@@ -30,18 +30,34 @@ package com.nabiki.wukong.iop.frame;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.LinkedList;
 
 public class FrameParser extends LinkedList<Frame> {
     public static int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
     public static int SYNC_ZERO_BYTES = 32;
 
+    private final int maxFrameLength;
     private Frame decoding = new Frame();
     private int bodyPosition = 0, syncCount = 0;
     private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
     private ParsingState state = ParsingState.WAIT_HEADER_TYPE;
 
     public FrameParser() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Create a parser that accepts frames with body no longer than the specified
+     * length. The frame with longer body is treated as broken frame and skipped.
+     *
+     * @param maxFrameLength max length of frame body
+     */
+    public FrameParser(int maxFrameLength) {
+        if (maxFrameLength < 1)
+            throw new IllegalArgumentException("non-positive max frame length");
+        this.maxFrameLength = maxFrameLength;
     }
 
     /**
@@ -57,7 +73,13 @@ public class FrameParser extends LinkedList<Frame> {
      * Parse the specified bytes to frame. The bytes can neither be a whole frame
      * or a segment of a frame. If the frame is broken, the parser skips all bytes
      * until it finds continuous zeros of {@link FrameParser#SYNC_ZERO_BYTES}
-     * in length.
+     * in length. The frame with body longer than the max frame length is broken.
+     *
+     * <p>The body is filled as the bytes arrive, and its array grows with the
+     * bytes instead of being allocated in the declared length at the header. The
+     * internal buffer shrinks back to {@link FrameParser#DEFAULT_BUFFER_SIZE}
+     * after it is expanded by large input.
+     * </p>
      *
      * <p>If the parser produces a frame after parsing the specified bytes, return
      * {@code true}, else return {@code false}.
@@ -83,8 +105,9 @@ public class FrameParser extends LinkedList<Frame> {
     private void store(byte[] bytes) {
         // Ensure the buffer can hold the input bytes.
         if (this.buffer.remaining() < bytes.length) {
-            var newBuffer = ByteBuffer.allocate(
-                    2 * (this.buffer.capacity() + bytes.length));
+            var newBuffer = ByteBuffer.allocate(Math.max(
+                    2 * this.buffer.capacity(),
+                    this.buffer.position() + bytes.length));
             this.buffer.flip();
             newBuffer.put(this.buffer);
             this.buffer = newBuffer;
@@ -116,11 +139,24 @@ public class FrameParser extends LinkedList<Frame> {
                     }
                     setHeaderLength();
                     // Prepare for bytes.
-                    if (this.decoding.Length < 1) {
+                    if (this.decoding.Length < 1
+                            || this.decoding.Length > this.maxFrameLength) {
                         this.state = ParsingState.WAIT_SYNC;
                         break;
                     }
-                    this.decoding.Body = new byte[this.decoding.Length];
+                    // Don't trust the length before the bytes arrive.
+                    this.decoding.Body = new byte[Math.min(
+                            this.decoding.Length, DEFAULT_BUFFER_SIZE)];
+                    if (FrameType.hasFlag(this.decoding.Type,
+                            FrameType.FLAG_STAMPED))
+                        this.state = ParsingState.WAIT_HEADER_STAMP;
+                    else
+                        this.state = ParsingState.WAIT_BODY;
+                    break;
+                case WAIT_HEADER_STAMP:
+                    if (this.buffer.remaining() < FrameType.STAMP_LENGTH)
+                        break;
+                    setHeaderStamp();
                     this.state = ParsingState.WAIT_BODY;
                     break;
                 case WAIT_BODY:
@@ -143,10 +179,26 @@ public class FrameParser extends LinkedList<Frame> {
                         this.state = ParsingState.WAIT_HEADER_TYPE;
                     break;
             }
-        } while (this.buffer.remaining() >= 4);
+        } while (this.buffer.remaining() >= 4 && (this.state
+                != ParsingState.WAIT_HEADER_STAMP
+                || this.buffer.remaining() >= FrameType.STAMP_LENGTH));
         // Compact the buffer so that next write starts from position, which
         // is after the previous element.
         this.buffer.compact();
+        shrink();
+    }
+
+    /*
+    Shrink the buffer to default size if the left bytes can fit in.
+     */
+    private void shrink() {
+        if (this.buffer.capacity() <= DEFAULT_BUFFER_SIZE
+                || this.buffer.position() > DEFAULT_BUFFER_SIZE)
+            return;
+        var newBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        this.buffer.flip();
+        newBuffer.put(this.buffer);
+        this.buffer = newBuffer;
     }
 
     private void setHeaderType() {
@@ -163,9 +215,26 @@ public class FrameParser extends LinkedList<Frame> {
         this.buffer.order(order);
     }
 
+    private void setHeaderStamp() {
+        var order = this.buffer.order();
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+        this.decoding.Sequence = this.buffer.getLong();
+        this.decoding.SendTime = this.buffer.getLong();
+        this.decoding.RequestSendTime = this.buffer.getLong();
+        this.decoding.RequestReceiveTime = this.buffer.getLong();
+        this.decoding.RequestDispatchTime = this.buffer.getLong();
+        this.buffer.order(order);
+    }
+
     private boolean setBody() {
-        int bodyRemain = this.decoding.Body.length - bodyPosition;
+        int bodyRemain = this.decoding.Length - bodyPosition;
         int length = Math.min(bodyRemain, this.buffer.remaining());
+        // Grow the body array for the arrived bytes.
+        int required = this.bodyPosition + length;
+        if (required > this.decoding.Body.length)
+            this.decoding.Body = Arrays.copyOf(this.decoding.Body, Math.min(
+                    this.decoding.Length,
+                    Math.max(2 * this.decoding.Body.length, required)));
         this.buffer.get(this.decoding.Body, this.bodyPosition, length);
         this.bodyPosition += length;
         return this.bodyPosition == this.decoding.Length;
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pool of frames with reusable body arrays. The body arrays are in size classes
+ * of power of two, so the array can be larger than the frame and the frame
+ * {@link Frame#Length} must be used instead of the array length.
+ *
+ * <p>Each thread keeps its own cache of frames. Frames released by a thread
+ * whose cache is full go to a shared bounded pool, so the frames acquired on the
+ * I/O thread and released on another thread still come back.
+ * </p>
+ *
+ * <p>The frame must not be used after release. Releasing a frame that is not
+ * acquired from the pool, or is already released, is ignored.
+ * </p>
+ */
+public class FramePool {
+    public static final int MIN_POOLED_LENGTH = 1 << 8;
+    public static final int MAX_POOLED_LENGTH = 1 << 20;
+    public static int MAX_CACHED_FRAMES = 16;
+    public static int MAX_SHARED_FRAMES = 256;
+
+    private static final int MIN_SHIFT
+            = Integer.numberOfTrailingZeros(MIN_POOLED_LENGTH);
+    private static final int CLASS_COUNT
+            = Integer.numberOfTrailingZeros(MAX_POOLED_LENGTH) - MIN_SHIFT + 1;
+
+    private static final ThreadLocal<ArrayDeque<Frame>[]> caches
+            = ThreadLocal.withInitial(FramePool::newCache);
+    private static final ConcurrentLinkedQueue<Frame>[] shared = newShared();
+    private static final AtomicIntegerArray sharedSizes
+            = new AtomicIntegerArray(CLASS_COUNT);
+
+    private FramePool() {
+    }
+
+    /**
+     * Get a frame whose body can hold at least the specified length of bytes. The
+     * frame's {@link Frame#Length} is set to the specified length.
+     *
+     * @param length length of the frame body
+     * @return frame from pool, or a new frame if the pool is empty or the length
+     * is too large for pooling
+     */
+    public static Frame acquire(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("negative length");
+        if (length > MAX_POOLED_LENGTH) {
+            var frame = new Frame();
+            frame.Length = length;
+            frame.Body = new byte[length];
+            return frame;
+        }
+        int index = classIndex(length);
+        var frame = caches.get()[index].pollFirst();
+        if (frame == null) {
+            frame = shared[index].poll();
+            if (frame != null)
+                sharedSizes.decrementAndGet(index);
+        }
+        if (frame == null) {
+            frame = new Frame();
+            frame.Body = new byte[MIN_POOLED_LENGTH << index];
+        }
+        frame.pooled = true;
+        frame.Length = length;
+        return frame;
+    }
+
+    /**
+     * Give the frame back to the pool.
+     *
+     * @param frame frame acquired from the pool
+     */
+    public static void release(Frame frame) {
+        if (frame == null || !frame.pooled)
+            return;
+        frame.pooled = false;
+        frame.Type = 0;
+        frame.Length = 0;
+        frame.Sequence = frame.SendTime = 0;
+        frame.RequestSendTime = frame.RequestReceiveTime
+                = frame.RequestDispatchTime = 0;
+        // The body may be replaced by the user.
+        if (frame.Body == null || frame.Body.length > MAX_POOLED_LENGTH
+                || Integer.bitCount(frame.Body.length) != 1
+                || frame.Body.length < MIN_POOLED_LENGTH)
+            return;
+        int index = classIndex(frame.Body.length);
+        var cache = caches.get()[index];
+        if (cache.size() < MAX_CACHED_FRAMES)
+            cache.offerFirst(frame);
+        else if (sharedSizes.incrementAndGet(index) <= MAX_SHARED_FRAMES)
+            shared[index].offer(frame);
+        else
+            sharedSizes.decrementAndGet(index);
+    }
+
+    private static int classIndex(int length) {
+        if (length <= MIN_POOLED_LENGTH)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Frame>[] newCache() {
+        var cache = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; ++i)
+            cache[i] = new ArrayDeque<Frame>();
+        return cache;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<Frame>[] newShared() {
+        var queues = new ConcurrentLinkedQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; ++i)
+            queues[i] = new ConcurrentLinkedQueue<Frame>();
+        return queues;
+    }
+}
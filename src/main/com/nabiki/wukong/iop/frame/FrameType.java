@@ -31,10 +31,94 @@ package com.nabiki.wukong.iop.frame;
 /**
  * The first byte(left most) can't be zero because the parser uses zeros to clear
  * the wrong frame and sync-up with peer.
+ *
+ * <p>The second byte carries flags describing how the frame body is encoded. The
+ * flags must be removed by {@link FrameType#typeOf(int)} before comparing the
+ * frame type with the constants.
+ * </p>
  */
 public class FrameType {
     public static final int HEARTBEAT = 0x10000000;
     public static final int REQUEST = 0x10000001;
     public static final int RESPONSE = 0x10000002;
     public static final int LOGIN = 0x10000003;
+
+    /**
+     * Frame packing the bodies of many frames of the same type. The body starts
+     * with the type of the packed frames including flags, followed by the packed
+     * bodies each prefixed by its length in an int. The receiver handles the
+     * packed bodies in order as if they arrived in separate frames.
+     *
+     * <p>A stamped batch frame stamps each packed frame. The packed frames share
+     * the send time, and they take the sequences one after another from the
+     * sequence in the extended header, so the next frame of the sender has the
+     * sequence after the last packed one.
+     * </p>
+     */
+    public static final int BATCH = 0x10000004;
+
+    /**
+     * Mask of the flag bits in frame type.
+     */
+    public static final int FLAG_MASK = 0x00FF0000;
+
+    /**
+     * The frame body is encoded by {@link BinaryBodyCodec}. Without the flag, the
+     * body is encoded in JSON.
+     */
+    public static final int FLAG_BINARY = 0x00010000;
+
+    /**
+     * The frame body is compressed by deflate with a preset dictionary, and it is
+     * prefixed by the length of the original body in an int.
+     */
+    public static final int FLAG_DEFLATE = 0x00020000;
+
+    /**
+     * The sender of the frame accepts compressed frames. A session sends
+     * compressed frames only after the peer sets the flag.
+     */
+    public static final int FLAG_ACCEPT_DEFLATE = 0x00040000;
+
+    /**
+     * The header is followed by the extended header of {@link #STAMP_LENGTH}
+     * bytes before the body, and the length in header doesn't include it. The
+     * extended header has the longs of {@link Frame#Sequence},
+     * {@link Frame#SendTime}, {@link Frame#RequestSendTime},
+     * {@link Frame#RequestReceiveTime} and {@link Frame#RequestDispatchTime}.
+     */
+    public static final int FLAG_STAMPED = 0x00080000;
+
+    /**
+     * Market data of the stream before this frame is conflated or dropped by the
+     * sender, or the frame is the latest depth sent on subscription. The sequence
+     * of the frame may jump, and the jump is not a loss.
+     */
+    public static final int FLAG_CONFLATED = 0x00100000;
+
+    /**
+     * Length of the extended header of the stamped frame.
+     */
+    public static final int STAMP_LENGTH = 40;
+
+    /**
+     * Get the frame type without flags.
+     *
+     * @param type frame type with flags
+     * @return frame type without flags
+     */
+    public static int typeOf(int type) {
+        return type & ~FLAG_MASK;
+    }
+
+    /**
+     * Check if the specified flag is set in the frame type.
+     *
+     * @param type frame type with flags
+     * @param flag flag to check
+     * @return {@code true} if the flag is set, {@code false} otherwise
+     */
+    public static boolean hasFlag(int type, int flag) {
+        return (type & flag) == flag;
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * JSON codec of the frame body. Unlike {@link OP#toJson(Object)}, the codec
+ * doesn't pretty-print or write null fields to keep the frame small.
+ *
+ * <p>If the body has {@link Body#Payload}, the payload is written as a nested
+ * object in the field {@code Data} rather than an escaped JSON string in the field
+ * {@code Json}. The decoder reads the envelope fields with a streaming reader and
+ * parses the nested object straight into the struct of the message type, so the
+ * data is parsed only once. Bodies with the {@code Json} string are still
+ * understood.
+ * </p>
+ *
+ * <p>The payload is written and read by the {@link StructCodec} generated at build
+ * time, which produces the same JSON as Gson, and by Gson if the struct has no
+ * generated codec.
+ * </p>
+ */
+public class JsonBodyCodec implements BodyCodec {
+    private final Gson gson = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.IDENTITY)
+            .create();
+
+    private final ThreadLocal<CharArrayWriter> writers
+            = ThreadLocal.withInitial(() -> new CharArrayWriter(1024));
+
+    JsonBodyCodec() {
+    }
+
+    @Override
+    public int getFlag() {
+        return 0;
+    }
+
+    @Override
+    public byte[] encode(Body body) throws IOException {
+        // The stream encoder and decoder allocate 8K buffers each time, so
+        // strings are converted once instead.
+        var sw = this.writers.get();
+        sw.reset();
+        try (var writer = new JsonWriter(sw)) {
+            writer.beginObject();
+            if (body.RequestID != null)
+                writer.name("RequestID").value(body.RequestID.toString());
+            if (body.ResponseID != null)
+                writer.name("ResponseID").value(body.ResponseID.toString());
+            if (body.Type != null)
+                writer.name("Type").value(body.Type.name());
+            writer.name("CurrentCount").value(body.CurrentCount);
+            writer.name("TotalCount").value(body.TotalCount);
+            if (body.Sequence != 0)
+                writer.name("Sequence").value(body.Sequence);
+            if (body.Json != null)
+                writer.name("Json").value(body.Json);
+            else if (body.Payload != null) {
+                writer.name("Data");
+                writePayload(writer, body.Payload);
+            }
+            writer.endObject();
+        } catch (com.google.gson.JsonIOException e) {
+            throw new IOException("write JSON body", e);
+        }
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Body decode(byte[] bytes, int offset, int length) throws IOException {
+        var body = new Body();
+        JsonElement data = null;
+        try (var reader = new JsonReader(new StringReader(
+                new String(bytes, offset, length, StandardCharsets.UTF_8)))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                var name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "RequestID":
+                        body.RequestID = UUID.fromString(reader.nextString());
+                        break;
+                    case "ResponseID":
+                        body.ResponseID = UUID.fromString(reader.nextString());
+                        break;
+                    case "Type":
+                        body.Type = MessageType.valueOf(reader.nextString());
+                        break;
+                    case "CurrentCount":
+                        body.CurrentCount = reader.nextInt();
+                        break;
+                    case "TotalCount":
+                        body.TotalCount = reader.nextInt();
+                        break;
+                    case "Sequence":
+                        body.Sequence = reader.nextLong();
+                        break;
+                    case "Json":
+                        body.Json = reader.nextString();
+                        break;
+                    case "Data":
+                        // The writer puts type ahead of data, so the data is
+                        // parsed into struct directly.
+                        var clz = payloadClass(body);
+                        if (clz != null)
+                            body.Payload = readPayload(reader, body.Type);
+                        else
+                            data = JsonParser.parseReader(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            // Data comes before type, or body in the old format.
+            var clz = payloadClass(body);
+            if (clz != null && body.Payload == null) {
+                if (data != null)
+                    body.Payload = this.gson.fromJson(data, clz);
+                else if (body.Json != null)
+                    body.Payload = this.gson.fromJson(body.Json, clz);
+            }
+            return body;
+        } catch (IllegalArgumentException | IllegalStateException
+                | com.google.gson.JsonParseException e) {
+            throw new IOException("parse JSON body", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writePayload(JsonWriter writer, Object payload)
+            throws IOException {
+        var codec = (StructCodec<Object>) StructCodecs.get(payload.getClass());
+        if (codec != null)
+            codec.writeJson(writer, payload);
+        else
+            this.gson.toJson(payload, payload.getClass(), writer);
+    }
+
+    private Object readPayload(JsonReader reader, MessageType type)
+            throws IOException {
+        var codec = StructCodecs.forType(type);
+        if (codec == null)
+            return this.gson.fromJson(reader, type.getPayloadClass());
+        // Gson reads leniently.
+        var lenient = reader.isLenient();
+        reader.setLenient(true);
+        try {
+            return codec.readJson(reader);
+        } finally {
+            reader.setLenient(lenient);
+        }
+    }
+
+    private static Class<?> payloadClass(Body body) {
+        if (body.Type == null)
+            return null;
+        else
+            return body.Type.getPayloadClass();
+    }
+}
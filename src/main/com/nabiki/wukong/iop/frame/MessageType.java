@@ -28,28 +28,63 @@
 
 package com.nabiki.wukong.iop.frame;
 
+import com.nabiki.ctp4j.jni.struct.*;
+import com.nabiki.wukong.ctp4j.jni.struct.*;
+
 public enum MessageType implements java.io.Serializable {
-    HEARTBEAT,
-    SUB_MD,
-    RSP_SUB_MD,
-    FLOW_DEPTH,
-    FLOW_CANDLE,
-    REQ_LOGIN,
-    RSP_REQ_LOGIN,
-    REQ_ORDER_INSERT,
-    RSP_REQ_ORDER_INSERT,
-    REQ_ORDER_ACTION,
-    RSP_REQ_ORDER_ACTION,
-    QRY_ACCOUNT,
-    RSP_QRY_ACCOUNT,
-    QRY_ORDER,
-    RSP_QRY_ORDER,
-    QRY_POSITION,
-    RSP_QRY_POSITION,
-    QRY_ORDER_EXEC,
-    RSP_QRY_ORDER_EXEC,
-    QRY_ACTION_EXEC,
-    RSP_QRY_ACTION_EXEC,
-    QRY_USER_EXEC,
-    RSP_QRY_USER_EXEC
+    HEARTBEAT(null, MessagePriority.HEARTBEAT),
+    SUB_MD(CThostFtdcSubMarketDataField.class, MessagePriority.MARKET_DATA),
+    RSP_SUB_MD(CThostFtdcSpecificInstrumentField.class, MessagePriority.MARKET_DATA),
+    FLOW_DEPTH(CThostFtdcDepthMarketDataField.class, MessagePriority.MARKET_DATA),
+    FLOW_CANDLE(CThostFtdcCandleField.class, MessagePriority.MARKET_DATA),
+    REQ_LOGIN(CThostFtdcReqUserLoginField.class, MessagePriority.ORDER),
+    RSP_REQ_LOGIN(CThostFtdcRspUserLoginField.class, MessagePriority.ORDER),
+    REQ_ORDER_INSERT(CThostFtdcInputOrderField.class, MessagePriority.ORDER),
+    RSP_REQ_ORDER_INSERT(CThostFtdcOrderUuidField.class, MessagePriority.ORDER),
+    REQ_ORDER_ACTION(CThostFtdcInputOrderActionField.class, MessagePriority.ORDER),
+    RSP_REQ_ORDER_ACTION(CThostFtdcActionUuidField.class, MessagePriority.ORDER),
+    QRY_ACCOUNT(CThostFtdcQryTradingAccountField.class, MessagePriority.QUERY),
+    RSP_QRY_ACCOUNT(CThostFtdcTradingAccountField.class, MessagePriority.QUERY),
+    QRY_ORDER(CThostFtdcOrderUuidField.class, MessagePriority.QUERY),
+    RSP_QRY_ORDER(CThostFtdcOrderField.class, MessagePriority.QUERY),
+    QRY_POSITION(CThostFtdcQryInvestorPositionField.class, MessagePriority.QUERY),
+    RSP_QRY_POSITION(CThostFtdcInvestorPositionField.class, MessagePriority.QUERY),
+    QRY_ORDER_EXEC(CThostFtdcQryOrderExec.class, MessagePriority.QUERY),
+    RSP_QRY_ORDER_EXEC(CThostFtdcRspInfoField.class, MessagePriority.QUERY),
+    QRY_ACTION_EXEC(CThostFtdcQryActionExec.class, MessagePriority.QUERY),
+    RSP_QRY_ACTION_EXEC(CThostFtdcRspInfoField.class, MessagePriority.QUERY),
+    QRY_USER_EXEC(CThostFtdcQryUserExec.class, MessagePriority.QUERY),
+    RSP_QRY_USER_EXEC(CThostFtdcRspInfoField.class, MessagePriority.QUERY),
+    // Credits for the streamed responses, carried in current count.
+    FLOW_CREDIT(null, MessagePriority.ORDER),
+    FLOW_DEPTH_DELTA(CThostFtdcDepthDeltaField.class, MessagePriority.MARKET_DATA),
+    REQ_REPLAY_MD(CThostFtdcReplayMarketDataField.class, MessagePriority.MARKET_DATA),
+    RSP_REPLAY_MD(CThostFtdcReplayMarketDataField.class, MessagePriority.MARKET_DATA);
+
+    private final Class<?> payloadClass;
+    private final MessagePriority priority;
+
+    MessageType(Class<?> payloadClass, MessagePriority priority) {
+        this.payloadClass = payloadClass;
+        this.priority = priority;
+    }
+
+    /**
+     * Get the {@link Class} of the data carried by the message of this type, or
+     * {@code null} if the message carries no data.
+     *
+     * @return {@link Class} of the message data
+     */
+    public Class<?> getPayloadClass() {
+        return this.payloadClass;
+    }
+
+    /**
+     * Get the priority of the message of this type.
+     *
+     * @return {@link MessagePriority}
+     */
+    public MessagePriority getPriority() {
+        return this.priority;
+    }
 }
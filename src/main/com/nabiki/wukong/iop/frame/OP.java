@@ -241,6 +241,21 @@ public class OP {
             return LocalTime.parse(time, DateTimeFormatter.ofPattern(pattern));
     }
 
+    /**
+     * Get product ID of the specified instrument ID. The product ID is the leading
+     * letters of the instrument ID.
+     *
+     * @param instrumentID instrument ID
+     * @return product ID, or {@code null} if the instrument ID has no letters
+     */
+    public static String getProductID(String instrumentID) {
+        var m = productPattern.matcher(instrumentID);
+        if (m.find())
+            return instrumentID.substring(m.start(), m.end());
+        else
+            return null;
+    }
+
     /**
      * Get random string generated with {@link UUID}.
      *
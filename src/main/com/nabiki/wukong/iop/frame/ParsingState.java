@@ -29,5 +29,6 @@
 package com.nabiki.wukong.iop.frame;
 
 public enum ParsingState {
-    WAIT_HEADER_TYPE, WAIT_HEADER_LENGTH, WAIT_BODY, WAIT_SYNC, SYNC_UP
+    WAIT_HEADER_TYPE, WAIT_HEADER_LENGTH, WAIT_HEADER_STAMP, WAIT_BODY, WAIT_SYNC,
+    SYNC_UP
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reflection-free codec of a struct, generated at build time. The binary form is
+ * the same as {@link BinaryBodyCodec} writes by reflection and the JSON form the
+ * same as Gson writes, so peers with and without the generated codecs understand
+ * each other.
+ *
+ * @param <T> type of the struct
+ */
+interface StructCodec<T> {
+    /**
+     * Write the struct in binary form.
+     *
+     * @param out output
+     * @param struct struct to write
+     */
+    void write(BinaryBodyCodec.BinaryOutput out, T struct);
+
+    /**
+     * Read a struct in binary form.
+     *
+     * @param in input
+     * @return struct
+     * @throws java.nio.BufferUnderflowException if input is too short
+     * @throws IllegalArgumentException if an enum ordinal is out of range
+     */
+    T read(ByteBuffer in);
+
+    /**
+     * Write the struct as JSON object.
+     *
+     * @param out JSON writer
+     * @param struct struct to write
+     * @throws IOException if the writer fails
+     */
+    void writeJson(JsonWriter out, T struct) throws IOException;
+
+    /**
+     * Read a struct from JSON object.
+     *
+     * @param in JSON reader
+     * @return struct
+     * @throws IOException if the reader fails or JSON is malformed
+     */
+    T readJson(JsonReader in) throws IOException;
+}
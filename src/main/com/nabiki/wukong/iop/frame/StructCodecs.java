@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.frame;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Registry of the generated {@link StructCodec}, by struct class and by message
+ * type, and the helpers used by the generated code.
+ *
+ * <p>The codecs are generated into {@code GeneratedStructCodecs} by the build. If
+ * the class is absent, for example compiled by an IDE without the annotation
+ * processor, the registry is empty and the body codecs fall back to reflection.
+ * </p>
+ */
+@GenerateStructCodecs({
+        "com.nabiki.ctp4j.jni.struct",
+        "com.nabiki.wukong.ctp4j.jni.struct"})
+final class StructCodecs {
+    private static final String GENERATED
+            = "com.nabiki.wukong.iop.frame.GeneratedStructCodecs";
+
+    private static final Map<Class<?>, StructCodec<?>> codecs = load();
+    private static final StructCodec<?>[] types = byType();
+
+    private StructCodecs() {
+    }
+
+    /**
+     * Get the generated codec of the specified struct class.
+     *
+     * @param clz {@link Class} of the struct
+     * @param <T> generic type of the struct
+     * @return codec of the struct, or {@code null} if not generated
+     */
+    @SuppressWarnings("unchecked")
+    static <T> StructCodec<T> get(Class<T> clz) {
+        return (StructCodec<T>) codecs.get(clz);
+    }
+
+    /**
+     * Get the generated codec of the payload of the specified message type.
+     *
+     * @param type message type
+     * @return codec of the payload, or {@code null} if not generated or the type
+     * has no payload
+     */
+    static StructCodec<?> forType(MessageType type) {
+        return types[type.ordinal()];
+    }
+
+    /**
+     * Get the number of generated codecs.
+     *
+     * @return number of generated codecs
+     */
+    static int size() {
+        return codecs.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Class<?>, StructCodec<?>> load() {
+        try {
+            return (Map<Class<?>, StructCodec<?>>) Class.forName(GENERATED)
+                    .getDeclaredMethod("codecs").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Map.of();
+        }
+    }
+
+    private static StructCodec<?>[] byType() {
+        var values = MessageType.values();
+        var array = new StructCodec<?>[values.length];
+        for (var type : values)
+            if (type.getPayloadClass() != null)
+                array[type.ordinal()] = codecs.get(type.getPayloadClass());
+        return array;
+    }
+
+    static void putStrings(BinaryBodyCodec.BinaryOutput out, String[] strings) {
+        if (strings == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(strings.length);
+        for (var s : strings)
+            out.putString(s);
+    }
+
+    static void putBytes(BinaryBodyCodec.BinaryOutput out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(bytes.length);
+        out.putBytes(bytes, 0, bytes.length);
+    }
+
+    static String[] getStrings(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0)
+            return null;
+        // Each string has at least its length.
+        if (count > in.remaining() / 4)
+            throw new BufferUnderflowException();
+        var strings = new String[count];
+        for (int i = 0; i < count; ++i)
+            strings[i] = BinaryBodyCodec.getString(in);
+        return strings;
+    }
+
+    static byte[] getBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        var bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /*
+    The JSON helpers below read and write values the same way as Gson's type
+    adapters.
+     */
+
+    static boolean nextNull(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.NULL)
+            return false;
+        in.nextNull();
+        return true;
+    }
+
+    static boolean nextBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.STRING)
+            return Boolean.parseBoolean(in.nextString());
+        return in.nextBoolean();
+    }
+
+    static char nextChar(JsonReader in) throws IOException {
+        var s = in.nextString();
+        if (s.length() != 1)
+            throw new JsonSyntaxException("expect a char but was " + s);
+        return s.charAt(0);
+    }
+
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.BOOLEAN)
+            return Boolean.toString(in.nextBoolean());
+        return in.nextString();
+    }
+
+    static <T extends Enum<T>> T nextEnum(JsonReader in, Class<T> clz)
+            throws IOException {
+        var name = in.nextString();
+        for (var constant : clz.getEnumConstants())
+            if (constant.name().equals(name))
+                return constant;
+        return null;
+    }
+
+    static String[] nextStrings(JsonReader in) throws IOException {
+        var strings = new ArrayList<String>();
+        in.beginArray();
+        while (in.hasNext())
+            strings.add(nextNull(in) ? null : nextString(in));
+        in.endArray();
+        return strings.toArray(new String[0]);
+    }
+
+    static byte[] nextBytes(JsonReader in) throws IOException {
+        var bytes = new byte[16];
+        int length = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (length == bytes.length)
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            bytes[length++] = (byte) in.nextInt();
+        }
+        in.endArray();
+        return Arrays.copyOf(bytes, length);
+    }
+
+    static void value(JsonWriter out, String[] strings) throws IOException {
+        out.beginArray();
+        for (var s : strings)
+            out.value(s);
+        out.endArray();
+    }
+
+    static void value(JsonWriter out, byte[] bytes) throws IOException {
+        out.beginArray();
+        for (var b : bytes)
+            out.value(b);
+        out.endArray();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcDepthDeltaField;
+import com.nabiki.wukong.iop.frame.BinaryBodyCodec;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delta of depth market data against a keyframe of the same instrument. The mask
+ * has a bit for each field in the alphabetical order of the field names, and the
+ * data has the values of the fields whose bits are set, in the same order and in
+ * the same format as {@link BinaryBodyCodec}.
+ *
+ * <p>A keyframe is a delta against the empty struct, and its base version is
+ * zero. Other deltas carry all fields differing from the keyframe, not from the
+ * previous delta, so a delta dropped or conflated doesn't break the following
+ * ones. The receiver drops the delta whose keyframe it doesn't have, until the
+ * next keyframe comes.
+ * </p>
+ *
+ * <p>The delta is computed by the code generated into {@code GeneratedDepthDelta}
+ * by the build. If the class is absent or generated against other version of
+ * the struct, deltas are not supported.
+ * </p>
+ */
+@GenerateStructDelta("com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField")
+class DepthDelta {
+    private static final String GENERATED
+            = "com.nabiki.wukong.iop.internal.GeneratedDepthDelta";
+
+    private static final CThostFtdcDepthMarketDataField EMPTY
+            = new CThostFtdcDepthMarketDataField();
+    private static final StructDelta<CThostFtdcDepthMarketDataField> generated
+            = load();
+    private static final ThreadLocal<BinaryBodyCodec.BinaryOutput> outputs
+            = ThreadLocal.withInitial(BinaryBodyCodec.BinaryOutput::new);
+
+    @SuppressWarnings("unchecked")
+    private static StructDelta<CThostFtdcDepthMarketDataField> load() {
+        try {
+            var delta = (StructDelta<CThostFtdcDepthMarketDataField>) Class
+                    .forName(GENERATED).getDeclaredConstructor().newInstance();
+            // Generated against other version of the struct.
+            var fields = Arrays.stream(
+                    CThostFtdcDepthMarketDataField.class.getFields())
+                    .filter(f -> !Modifier.isStatic(f.getModifiers()))
+                    .count();
+            return delta.size() == fields ? delta : null;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /*
+    Delta needs the generated code.
+     */
+    static boolean isSupported() {
+        return generated != null;
+    }
+
+    private static StructDelta<CThostFtdcDepthMarketDataField> generated() {
+        if (generated == null)
+            throw new UnsupportedOperationException(
+                    "depth delta not generated");
+        return generated;
+    }
+
+    /*
+    Get the keyframe of the depth.
+     */
+    static CThostFtdcDepthDeltaField keyframe(CThostFtdcDepthMarketDataField depth,
+                                              int version) {
+        var delta = diff(EMPTY, depth);
+        delta.Version = version;
+        delta.BaseVersion = 0;
+        return delta;
+    }
+
+    /*
+    Get the delta of the depth against the keyframe of the base version.
+     */
+    static CThostFtdcDepthDeltaField delta(CThostFtdcDepthMarketDataField base,
+                                           int baseVersion,
+                                           CThostFtdcDepthMarketDataField depth,
+                                           int version) {
+        var delta = diff(base, depth);
+        delta.Version = version;
+        delta.BaseVersion = baseVersion;
+        return delta;
+    }
+
+    private static CThostFtdcDepthDeltaField diff(
+            CThostFtdcDepthMarketDataField base,
+            CThostFtdcDepthMarketDataField depth) {
+        var out = outputs.get();
+        out.reset();
+        var delta = new CThostFtdcDepthDeltaField();
+        delta.InstrumentID = depth.InstrumentID;
+        delta.Mask = generated().diff(base, depth, out);
+        delta.Data = out.toByteArray();
+        return delta;
+    }
+
+    /*
+    Get a new depth of the keyframe with the delta applied.
+     */
+    static CThostFtdcDepthMarketDataField apply(
+            CThostFtdcDepthMarketDataField base, CThostFtdcDepthDeltaField delta)
+            throws IOException {
+        var in = ByteBuffer.wrap(delta.Data == null ? new byte[0] : delta.Data);
+        try {
+            return generated().apply(base, delta.Mask, in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("broken depth delta", e);
+        }
+    }
+
+    /**
+     * Keyframes received by a session, which rebuilds the depths from the deltas.
+     */
+    static class Receiver {
+        private static class Keyframe {
+            final int version;
+            final CThostFtdcDepthMarketDataField depth;
+
+            Keyframe(int version, CThostFtdcDepthMarketDataField depth) {
+                this.version = version;
+                this.depth = depth;
+            }
+        }
+
+        private final Map<String, Keyframe> keyframes = new ConcurrentHashMap<>();
+
+        /*
+        Get the depth of the delta, or null if the delta's keyframe is missing.
+         */
+        CThostFtdcDepthMarketDataField receive(CThostFtdcDepthDeltaField delta)
+                throws IOException {
+            if (delta.InstrumentID == null)
+                throw new IOException("depth delta without instrument");
+            if (delta.BaseVersion == 0) {
+                var depth = apply(EMPTY, delta);
+                // Keep a copy, the user may change the delivered one.
+                this.keyframes.put(delta.InstrumentID,
+                        new Keyframe(delta.Version, apply(EMPTY, delta)));
+                return depth;
+            }
+            var keyframe = this.keyframes.get(delta.InstrumentID);
+            if (keyframe == null || keyframe.version != delta.BaseVersion)
+                return null;
+            return apply(keyframe.depth, delta);
+        }
+    }
+}
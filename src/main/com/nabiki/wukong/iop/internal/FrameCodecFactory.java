@@ -28,12 +28,29 @@
 
 package com.nabiki.wukong.iop.internal;
 
+import com.nabiki.wukong.iop.frame.FrameParser;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
 import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolEncoder;
 
 public class FrameCodecFactory implements ProtocolCodecFactory {
+    private final int maxFrameLength;
+    private final MetricsImpl metrics;
+
+    public FrameCodecFactory() {
+        this(FrameParser.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameCodecFactory(int maxFrameLength) {
+        this(maxFrameLength, null);
+    }
+
+    public FrameCodecFactory(int maxFrameLength, MetricsImpl metrics) {
+        this.maxFrameLength = maxFrameLength;
+        this.metrics = metrics;
+    }
+
     @Override
     public ProtocolEncoder getEncoder(IoSession session) throws Exception {
         return new FrameEncoder();
@@ -41,6 +58,6 @@ public class FrameCodecFactory implements ProtocolCodecFactory {
 
     @Override
     public ProtocolDecoder getDecoder(IoSession session) throws Exception {
-        return new FrameDecoder();
+        return new FrameDecoder(this.maxFrameLength, this.metrics);
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameParser;
+import com.nabiki.wukong.iop.frame.FrameType;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate of the frame body with a preset dictionary. The compressed body is the
+ * length of the original body in an int followed by the raw deflate data, and the
+ * frame type has {@link FrameType#FLAG_DEFLATE}.
+ *
+ * <p>The dictionary is chosen by the codec flag of the frame type, so the
+ * receiver inflates with the dictionary the sender used. JSON bodies use the
+ * JSON field names of the depth market data in the alphabetical order, and both
+ * sides must have the same struct definition like the binary codec requires.
+ * Binary bodies have no field names and are compressed without dictionary.
+ * Every body is compressed on its own, so the frames can be dropped, conflated
+ * or reordered by priority after compression.
+ * </p>
+ */
+class FrameCompressor {
+    private static final byte[] JSON_DICTIONARY = dictionary();
+
+    // Deflaters hold native memory, reuse them instead of one per thread.
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private static byte[] dictionary() {
+        var fields = CThostFtdcDepthMarketDataField.class.getDeclaredFields();
+        Arrays.sort(fields, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+        var builder = new StringBuilder("{");
+        for (var field : fields) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+            builder.append('"').append(field.getName()).append("\":");
+        }
+        builder.append("\"Type\":\"FLOW_DEPTH\",\"CurrentCount\":1,\"TotalCount\":1}");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    Get the dictionary of the body codec of the frame type, or null if the body
+    is compressed without dictionary.
+     */
+    private static byte[] dictionaryOf(int type) {
+        if (BodyCodec.forFrameType(type) == BodyCodec.JSON)
+            return JSON_DICTIONARY;
+        else
+            return null;
+    }
+
+    /*
+    Get the compressed frame, or the frame itself if compression doesn't make it
+    smaller.
+     */
+    static Frame deflate(Frame frame) {
+        var deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            var dictionary = dictionaryOf(frame.Type);
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(frame.Body, 0, frame.Length);
+            deflater.finish();
+            // Not worth it if the compressed body isn't smaller.
+            var body = new byte[frame.Length];
+            int n = 4;
+            while (!deflater.finished() && n < body.length)
+                n += deflater.deflate(body, n, body.length - n);
+            if (!deflater.finished())
+                return frame;
+            body[0] = (byte) (frame.Length >>> 24);
+            body[1] = (byte) (frame.Length >>> 16);
+            body[2] = (byte) (frame.Length >>> 8);
+            body[3] = (byte) frame.Length;
+            var compressed = new Frame();
+            compressed.Type = frame.Type | FrameType.FLAG_DEFLATE;
+            compressed.Body = Arrays.copyOf(body, n);
+            compressed.Length = n;
+            return compressed;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /*
+    Get the original body of the compressed bytes in the frame of the specified
+    type.
+     */
+    static byte[] inflate(int type, byte[] bytes, int offset, int length)
+            throws IOException {
+        if (length < 4)
+            throw new IOException("broken compressed body");
+        int size = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        if (size < 0 || size > FrameParser.DEFAULT_MAX_FRAME_LENGTH)
+            throw new IOException("invalid original body length");
+        var inflater = inflaters.poll();
+        if (inflater == null)
+            inflater = new Inflater(true);
+        try {
+            var dictionary = dictionaryOf(type);
+            if (dictionary != null)
+                inflater.setDictionary(dictionary);
+            inflater.setInput(bytes, offset + 4, length - 4);
+            var body = new byte[size];
+            int n = 0;
+            while (n < size) {
+                int r = inflater.inflate(body, n, size - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += r;
+            }
+            if (n != size)
+                throw new IOException("broken compressed body");
+            return body;
+        } catch (DataFormatException e) {
+            throw new IOException("broken compressed body", e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+}
@@ -28,33 +28,214 @@
 
 package com.nabiki.wukong.iop.internal;
 
+import com.nabiki.wukong.iop.frame.Frame;
 import com.nabiki.wukong.iop.frame.FrameParser;
+import com.nabiki.wukong.iop.frame.FramePool;
+import com.nabiki.wukong.iop.frame.FrameType;
 import com.nabiki.wukong.iop.frame.OP;
+import com.nabiki.wukong.iop.frame.ParsingState;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decode frames directly from the buffer accumulated by
+ * {@link CumulativeProtocolDecoder}. The header is read in place and the body is
+ * copied once into the frame, so no intermediate array is created for the bytes.
+ * The frames are taken from {@link FramePool} and released by the handler after
+ * the message is handled.
+ *
+ * <p>The body can't be a slice of the accumulated buffer because the buffer is
+ * compacted or reallocated before the decoded frames are passed down the chain.
+ * </p>
+ *
+ * <p>The broken frame is handled the same way as {@link FrameParser}. The decoder
+ * skips all bytes until it finds continuous zeros of
+ * {@link FrameParser#SYNC_ZERO_BYTES} in length. The frame with body longer than
+ * the max frame length is broken.
+ * </p>
+ *
+ * <p>The frame larger than {@link FrameParser#DEFAULT_BUFFER_SIZE} is filled as
+ * the bytes arrive, so neither the accumulated buffer nor the frame body is
+ * allocated in the declared length before the bytes come.
+ * </p>
+ */
 public class FrameDecoder extends CumulativeProtocolDecoder {
-    private static final String PARSER_ATTR = OP.randomString();
+    private static final String STATE_ATTR = OP.randomString();
+    private static final int HEADER_LENGTH = 8;
+
+    private final int maxFrameLength;
+    private final MetricsImpl metrics;
+
+    private static class DecodingState {
+        ParsingState state = ParsingState.WAIT_HEADER_TYPE;
+        int syncCount = 0;
+        // Large frame whose body is filled as bytes arrive.
+        Frame streaming;
+        int bodyPosition = 0;
+    }
+
+    public FrameDecoder() {
+        this(FrameParser.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Create a decoder that accepts frames with body no longer than the specified
+     * length. The frame with longer body is treated as broken frame and skipped.
+     *
+     * @param maxFrameLength max length of frame body
+     */
+    public FrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, null);
+    }
+
+    /**
+     * Create a decoder that counts the broken frames into the specified metrics.
+     *
+     * @param maxFrameLength max length of frame body
+     * @param metrics metrics, or {@code null} not to count
+     */
+    public FrameDecoder(int maxFrameLength, MetricsImpl metrics) {
+        if (maxFrameLength < 1)
+            throw new IllegalArgumentException("non-positive max frame length");
+        this.maxFrameLength = maxFrameLength;
+        this.metrics = metrics;
+    }
 
     @Override
     protected boolean doDecode(IoSession session, IoBuffer in,
                                ProtocolDecoderOutput out) throws Exception {
-        // Get frame parser for this session.
-        FrameParser parser = (FrameParser)session.getAttribute(PARSER_ATTR);
-        if (parser == null) {
-            parser = new FrameParser();
-            session.setAttribute(PARSER_ATTR, parser);
+        // Get decoding state for this session.
+        var state = (DecodingState) session.getAttribute(STATE_ATTR);
+        if (state == null) {
+            state = new DecodingState();
+            session.setAttribute(STATE_ATTR, state);
+        }
+        // Let the accumulated buffer shrink after a burst.
+        if (in.isAutoExpand() && !in.isDerived())
+            in.setAutoShrink(true);
+        // Continue filling the large frame.
+        if (state.streaming != null)
+            return stream(in, state, out);
+        // Skip the broken bytes until sync up.
+        if (state.state == ParsingState.WAIT_SYNC
+                || state.state == ParsingState.SYNC_UP) {
+            if (!sync(in, state))
+                return false;
+        }
+        // Wait for the whole header.
+        if (in.remaining() < HEADER_LENGTH)
+            return false;
+        in.order(ByteOrder.BIG_ENDIAN);
+        int position = in.position();
+        int type = in.getInt(position);
+        int length = in.getInt(position + 4);
+        if (length < 1 || length > this.maxFrameLength) {
+            in.skip(HEADER_LENGTH);
+            state.state = ParsingState.WAIT_SYNC;
+            state.syncCount = 0;
+            if (this.metrics != null)
+                this.metrics.brokenFrame();
+            return true;
+        }
+        int headerLength = HEADER_LENGTH;
+        if (FrameType.hasFlag(type, FrameType.FLAG_STAMPED))
+            headerLength += FrameType.STAMP_LENGTH;
+        if (in.remaining() < headerLength + length) {
+            state.state = ParsingState.WAIT_BODY;
+            // Wait for the whole body of small frame. The cumulative decoder
+            // keeps the bytes.
+            if (length <= FrameParser.DEFAULT_BUFFER_SIZE
+                    || in.remaining() < headerLength)
+                return false;
+            // Fill the large frame as the bytes arrive, so the accumulated
+            // buffer doesn't grow to the frame length.
+            in.skip(HEADER_LENGTH);
+            var frame = new Frame();
+            frame.Type = type;
+            frame.Length = length;
+            getStamp(in, frame);
+            frame.Body = new byte[FrameParser.DEFAULT_BUFFER_SIZE];
+            state.streaming = frame;
+            state.bodyPosition = 0;
+            return stream(in, state, out);
+        }
+        in.skip(HEADER_LENGTH);
+        var frame = FramePool.acquire(length);
+        frame.Type = type;
+        getStamp(in, frame);
+        in.get(frame.Body, 0, length);
+        state.state = ParsingState.WAIT_HEADER_TYPE;
+        out.write(frame);
+        return true;
+    }
+
+    /*
+    Read the extended header of the stamped frame.
+     */
+    private static void getStamp(IoBuffer in, Frame frame) {
+        if (!FrameType.hasFlag(frame.Type, FrameType.FLAG_STAMPED))
+            return;
+        frame.Sequence = in.getLong();
+        frame.SendTime = in.getLong();
+        frame.RequestSendTime = in.getLong();
+        frame.RequestReceiveTime = in.getLong();
+        frame.RequestDispatchTime = in.getLong();
+    }
+
+    /*
+    Copy the arrived bytes into the large frame. Return true if the frame is
+    complete.
+     */
+    private boolean stream(IoBuffer in, DecodingState state,
+                           ProtocolDecoderOutput out) {
+        var frame = state.streaming;
+        int length = Math.min(in.remaining(), frame.Length - state.bodyPosition);
+        int required = state.bodyPosition + length;
+        if (required > frame.Body.length)
+            frame.Body = Arrays.copyOf(frame.Body, Math.min(frame.Length,
+                    Math.max(2 * frame.Body.length, required)));
+        in.get(frame.Body, state.bodyPosition, length);
+        state.bodyPosition = required;
+        if (state.bodyPosition < frame.Length)
+            return false;
+        state.streaming = null;
+        state.bodyPosition = 0;
+        state.state = ParsingState.WAIT_HEADER_TYPE;
+        out.write(frame);
+        return true;
+    }
+
+    /*
+    Consume the sync-up zero bytes. Return true if the sync-up zero bytes are
+    all consumed and the buffer is positioned at the next frame.
+     */
+    private boolean sync(IoBuffer in, DecodingState state) {
+        if (state.state == ParsingState.WAIT_SYNC) {
+            while (in.hasRemaining()
+                    && state.syncCount < FrameParser.SYNC_ZERO_BYTES) {
+                if (in.get() == 0)
+                    ++state.syncCount;
+                else
+                    state.syncCount = 0;
+            }
+            if (state.syncCount < FrameParser.SYNC_ZERO_BYTES)
+                return false;
+            state.state = ParsingState.SYNC_UP;
+            state.syncCount = 0;
         }
-        // Read bytes.
-        byte[] bytes = new byte[in.remaining()];
-        in.get(bytes);
-        // Parse.
-        boolean r = parser.parse(bytes);
-        if (r) {
-            while (parser.size() > 0)
-                out.write(parser.poll());
+        // Clear the zeros more than the threshold, and don't consume the first
+        // non-zero byte.
+        while (in.hasRemaining()) {
+            if (in.get(in.position()) != 0) {
+                state.state = ParsingState.WAIT_HEADER_TYPE;
+                return true;
+            }
+            in.skip(1);
         }
         return false;
     }
@@ -29,26 +29,177 @@
 package com.nabiki.wukong.iop.internal;
 
 import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameParser;
+import com.nabiki.wukong.iop.frame.FrameType;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 
 import java.nio.ByteOrder;
+import java.util.List;
 
+/**
+ * Encode frames into buffers. If the session stamps its frames, or the frame is a
+ * response to a stamped request, the encoder sets
+ * {@link FrameType#FLAG_STAMPED} and writes the extended header with the session
+ * sequence and the time the frame is encoded.
+ */
 public class FrameEncoder extends ProtocolEncoderAdapter {
+    public static final int HEADER_LENGTH = 8;
+
+    // Type of the frames packed in a batch frame.
+    static final int BATCH_HEADER_LENGTH = 4;
+
+    // Buffers are freed by I/O processor after written.
+    private static final PooledBufferAllocator allocator
+            = new PooledBufferAllocator();
+
     @Override
     public void encode(IoSession session, Object message, ProtocolEncoderOutput out)
             throws Exception {
-        if (!(message instanceof Frame))
+        var iop = (IOPSessionImpl) session.getAttribute(
+                FrameHandler.IOP_SESSION_KEY);
+        long now = System.nanoTime();
+        IoBuffer buffer;
+        if (message instanceof Frame) {
+            var frame = (Frame) message;
+            buffer = allocator.allocate(HEADER_LENGTH + stampLength(frame, iop)
+                    + frame.Length, false);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            put(buffer, frame, iop, now);
+        } else if (message instanceof WriteBatch) {
+            var batch = (WriteBatch) message;
+            batch.sendTime = now;
+            if (batch.packed)
+                buffer = pack(batch, iop, now);
+            else {
+                int size = batch.bytes;
+                for (var frame : batch.frames)
+                    size += stampLength(frame, iop);
+                buffer = allocator.allocate(size, false);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                for (int i = 0; i < batch.frames.size(); ++i)
+                    batch.stamped(i, 1,
+                            put(buffer, batch.frames.get(i), iop, now));
+            }
+        } else
             throw new IllegalArgumentException("message is not frame");
-        var frame = (Frame)message;
-        var buffer = IoBuffer.allocate(8 + frame.Length);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.putInt(frame.Type);
-        buffer.putInt(frame.Length);
-        buffer.put(frame.Body);
         buffer.flip();
         out.write(buffer);
     }
+
+    /*
+    Put the runs of request or response frames of the same type into batch frames,
+    and the other frames as they are.
+     */
+    private static IoBuffer pack(WriteBatch batch, IOPSessionImpl iop,
+                                 long now) {
+        var frames = batch.frames;
+        int batchStamp = isStamping(iop) ? FrameType.STAMP_LENGTH : 0;
+        int size = 0;
+        for (int i = 0; i < frames.size(); ) {
+            int end = runEnd(frames, i);
+            if (end - i > 1) {
+                size += HEADER_LENGTH + batchStamp + BATCH_HEADER_LENGTH;
+                for (int k = i; k < end; ++k)
+                    size += 4 + frames.get(k).Length;
+            } else
+                size += HEADER_LENGTH + stampLength(frames.get(i), iop)
+                        + frames.get(i).Length;
+            i = end;
+        }
+        var buffer = allocator.allocate(size, false);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < frames.size(); ) {
+            int end = runEnd(frames, i);
+            if (end - i > 1) {
+                var type = frames.get(i).Type;
+                int length = BATCH_HEADER_LENGTH;
+                for (int k = i; k < end; ++k)
+                    length += 4 + frames.get(k).Length;
+                // Batch frame carries the flags of the packed frames.
+                batch.stamped(i, end - i, putHeader(buffer,
+                        FrameType.BATCH | (type & FrameType.FLAG_MASK), length,
+                        null, iop, end - i, now));
+                buffer.putInt(type);
+                for (int k = i; k < end; ++k) {
+                    var frame = frames.get(k);
+                    buffer.putInt(frame.Length);
+                    buffer.put(frame.Body, 0, frame.Length);
+                }
+            } else
+                batch.stamped(i, 1, put(buffer, frames.get(i), iop, now));
+            i = end;
+        }
+        return buffer;
+    }
+
+    /*
+    Find the end of the run of frames that can be packed with the frame at the
+    specified index. The batch frame body doesn't exceed the max frame length the
+    peer accepts. The response to a stamped request isn't packed because its
+    stamp is in the header.
+     */
+    private static int runEnd(List<Frame> frames, int start) {
+        var first = frames.get(start);
+        var type = first.Type;
+        var plain = FrameType.typeOf(type);
+        if ((plain != FrameType.REQUEST && plain != FrameType.RESPONSE)
+                || first.RequestSendTime != 0)
+            return start + 1;
+        long length = BATCH_HEADER_LENGTH + 4 + first.Length;
+        int end = start + 1;
+        while (end < frames.size() && frames.get(end).Type == type
+                && frames.get(end).RequestSendTime == 0) {
+            length += 4 + frames.get(end).Length;
+            if (length > FrameParser.DEFAULT_MAX_FRAME_LENGTH)
+                break;
+            ++end;
+        }
+        return end;
+    }
+
+    private static boolean isStamping(IOPSessionImpl iop) {
+        return iop != null && iop.isStamping();
+    }
+
+    private static int stampLength(Frame frame, IOPSessionImpl iop) {
+        return frame.RequestSendTime != 0 || isStamping(iop)
+                ? FrameType.STAMP_LENGTH : 0;
+    }
+
+    private static long put(IoBuffer buffer, Frame frame, IOPSessionImpl iop,
+                            long now) {
+        var sequence = putHeader(buffer, frame.Type, frame.Length, frame, iop, 1,
+                now);
+        buffer.put(frame.Body, 0, frame.Length);
+        return sequence;
+    }
+
+    /*
+    Put the header, and the extended header if the frame is stamped. The stamp
+    echoes the request times kept in the response frame. A batch frame takes a
+    sequence for each packed frame, and its header has the first one. Return the
+    sequence in the header, or zero if the frame isn't stamped.
+     */
+    private static long putHeader(IoBuffer buffer, int type, int length,
+                                  Frame frame, IOPSessionImpl iop, int count,
+                                  long now) {
+        var echo = frame != null && frame.RequestSendTime != 0;
+        if (!echo && !isStamping(iop)) {
+            buffer.putInt(type);
+            buffer.putInt(length);
+            return 0;
+        }
+        var sequence = iop != null ? iop.nextSequence(count) : 0;
+        buffer.putInt(type | FrameType.FLAG_STAMPED);
+        buffer.putInt(length);
+        buffer.putLong(sequence);
+        buffer.putLong(now);
+        buffer.putLong(echo ? frame.RequestSendTime : 0);
+        buffer.putLong(echo ? frame.RequestReceiveTime : 0);
+        buffer.putLong(echo ? frame.RequestDispatchTime : 0);
+        return sequence;
+    }
 }
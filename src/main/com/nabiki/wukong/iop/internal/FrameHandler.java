@@ -31,17 +31,19 @@ package com.nabiki.wukong.iop.internal;
 import com.nabiki.ctp4j.jni.struct.*;
 import com.nabiki.wukong.ctp4j.jni.struct.*;
 import com.nabiki.wukong.iop.*;
-import com.nabiki.wukong.iop.frame.Body;
-import com.nabiki.wukong.iop.frame.Frame;
-import com.nabiki.wukong.iop.frame.FrameType;
-import com.nabiki.wukong.iop.frame.OP;
+import com.nabiki.wukong.iop.frame.*;
 import org.apache.mina.core.service.IoHandler;
 import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoEventType;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.FilterEvent;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 public class FrameHandler implements IoHandler {
     /*
@@ -65,11 +67,33 @@ public class FrameHandler implements IoHandler {
 
     public static final String IOP_SESSION_KEY = "iop.session";
     public static final String IOP_ISLOGIN_KEY = "iop.islogin";
+    public static final String IOP_MD_EXECUTOR_KEY = "iop.executor.md";
+    public static final String IOP_ORDER_EXECUTOR_KEY = "iop.executor.order";
 
     private SessionAdaptor sessionAdaptor = new DefaultSessionAdaptor();
     private ClientMessageAdaptor clientAdaptor = new DefaultClientMessageAdaptor();
     private ServerMessageAdaptor serverAdaptor = new DefaultServerMessageAdaptor();
     private IOPLoginManager loginManager = new DefaultLoginManager();
+    private MarketDataPublisherImpl publisher;
+    private PendingRequests pendingRequests;
+    private Executor marketDataExecutor, orderExecutor;
+    private boolean orderedQueries = true;
+    private long lowWatermark = 0, highWatermark = 0;
+    private int compressionThreshold = 0;
+    private final WireTracerImpl tracer = new WireTracerImpl();
+    private FrameJournalImpl journal;
+    private final MetricsImpl metrics = new MetricsImpl();
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    /*
+    Server side handler checks login before requests and answers heartbeats,
+    client side handler accepts responses from the server it connects.
+     */
+    private final boolean server;
+
+    FrameHandler(boolean server) {
+        this.server = server;
+    }
 
     void setMessageAdaptor(ServerMessageAdaptor adaptor) {
         this.serverAdaptor = adaptor;
@@ -87,59 +111,142 @@ public class FrameHandler implements IoHandler {
         this.sessionAdaptor = adaptor;
     }
 
+    /*
+    Create the filter handling the events in order for each session on a pool of
+    the specified threads. Message sent stays on the I/O processor because the
+    written buffer is freed after the event returns.
+     */
+    static ExecutorFilter executorFilter(int threads) {
+        return new ExecutorFilter(new OrderedThreadPoolExecutor(threads),
+                IoEventType.EXCEPTION_CAUGHT, IoEventType.MESSAGE_RECEIVED,
+                IoEventType.SESSION_OPENED, IoEventType.SESSION_IDLE,
+                IoEventType.SESSION_CLOSED);
+    }
+
+    /*
+    Default watermarks of the sessions created after it is set.
+     */
+    void setWriteWatermarks(long lowBytes, long highBytes,
+                            SlowConsumerPolicy policy) {
+        this.lowWatermark = lowBytes;
+        this.highWatermark = highBytes;
+        this.slowConsumerPolicy = policy;
+    }
+
+    /*
+    Default compression threshold of the sessions created after it is set.
+     */
+    void setCompression(int thresholdBytes) {
+        this.compressionThreshold = thresholdBytes;
+    }
+
+    WireTracerImpl getTracer() {
+        return this.tracer;
+    }
+
+    void setJournal(FrameJournalImpl journal) {
+        this.journal = journal;
+    }
+
+    MetricsImpl getMetrics() {
+        return this.metrics;
+    }
+
+    void setPublisher(MarketDataPublisherImpl publisher) {
+        this.publisher = publisher;
+    }
+
+    /*
+    Client side handler completes the pending requests with their responses
+    before passing the responses to message adaptor.
+     */
+    void setPendingRequests(PendingRequests pending) {
+        this.pendingRequests = pending;
+    }
+
+    void setExecutors(Executor marketDataExecutor, Executor orderExecutor) {
+        this.marketDataExecutor = marketDataExecutor;
+        this.orderExecutor = orderExecutor;
+    }
+
+    /*
+    Queries of a session run concurrently on the order executor if they are not
+    ordered. Order insert and action are always run in order.
+     */
+    void setOrderedQueries(boolean ordered) {
+        this.orderedQueries = ordered;
+    }
+
+    /*
+    Get the data carried by the body. Codecs decode the payload into the struct of
+    the message type, so the JSON string is only parsed if the codec can't.
+     */
+    private static <T> T payload(Body body, Class<T> clz) throws IOException {
+        if (clz.isInstance(body.Payload))
+            return clz.cast(body.Payload);
+        else
+            return OP.fromJson(body.Json, clz);
+    }
+
     private void handleRequest(Body body, IOPSession session) throws IOException {
         switch (body.Type) {
             case QRY_POSITION:
-                var qryPosition = OP.fromJson(body.Json,
+                var qryPosition = payload(body,
                         CThostFtdcQryInvestorPositionField.class);
                 this.serverAdaptor.qryPosition(session, qryPosition,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case QRY_ORDER:
-                var qryOrder = OP.fromJson(body.Json, CThostFtdcOrderUuidField.class);
+                var qryOrder = payload(body, CThostFtdcOrderUuidField.class);
                 this.serverAdaptor.qryOrder(session, qryOrder, body.RequestID,
                         body.CurrentCount, body.TotalCount);
                 break;
             case QRY_ACCOUNT:
-                var qryAccount = OP.fromJson(body.Json,
+                var qryAccount = payload(body,
                         CThostFtdcQryTradingAccountField.class);
                 this.serverAdaptor.qryAccount(session, qryAccount,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case QRY_ORDER_EXEC:
-                var qryOrderExec = OP.fromJson(body.Json,
-                        CThostFtdcQryOrderExec.class);
+                var qryOrderExec = payload(body, CThostFtdcQryOrderExec.class);
                 this.serverAdaptor.qryOrderExec(session, qryOrderExec,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case QRY_ACTION_EXEC:
-                var qryActionExec = OP.fromJson(body.Json,
-                        CThostFtdcQryActionExec.class);
+                var qryActionExec = payload(body, CThostFtdcQryActionExec.class);
                 this.serverAdaptor.qryActionExec(session, qryActionExec,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case QRY_USER_EXEC:
-                var qryUserExec = OP.fromJson(body.Json,
-                        CThostFtdcQryUserExec.class);
+                var qryUserExec = payload(body, CThostFtdcQryUserExec.class);
                 this.serverAdaptor.qryUserExec(session, qryUserExec,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case REQ_ORDER_ACTION:
-                var reqAction = OP.fromJson(body.Json,
-                        CThostFtdcInputOrderActionField.class);
+                var reqAction = payload(body, CThostFtdcInputOrderActionField.class);
                 this.serverAdaptor.reqOrderAction(session, reqAction,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case REQ_ORDER_INSERT:
-                var reqOrder = OP.fromJson(body.Json,
-                        CThostFtdcInputOrderField.class);
+                var reqOrder = payload(body, CThostFtdcInputOrderField.class);
                 this.serverAdaptor.reqOrderInsert(session, reqOrder,
                         body.RequestID, body.CurrentCount, body.TotalCount);
                 break;
             case SUB_MD:
-                var sub = OP.fromJson(body.Json, CThostFtdcSubMarketDataField.class);
-                this.serverAdaptor.subDepthMarketData(sub, body.RequestID,
-                        body.CurrentCount, body.TotalCount);
+                var sub = payload(body, CThostFtdcSubMarketDataField.class);
+                if (this.publisher != null && sub.InstrumentID != null) {
+                    for (var instrumentID : sub.InstrumentID)
+                        if (instrumentID != null)
+                            this.publisher.subscribe(session, instrumentID);
+                }
+                this.serverAdaptor.subDepthMarketData(session, sub,
+                        body.RequestID, body.CurrentCount, body.TotalCount);
+                break;
+            case REQ_REPLAY_MD:
+                var replay = payload(body, CThostFtdcReplayMarketDataField.class);
+                if (this.publisher != null)
+                    this.publisher.replay((IOPSessionImpl) session,
+                            body.RequestID, replay);
                 break;
             default:
                 throw new IllegalStateException(
@@ -147,83 +254,152 @@ public class FrameHandler implements IoHandler {
         }
     }
 
-    private void handleResponse(Body body) throws IOException {
+    private void handleResponse(Body body, IOPSession session, boolean conflated)
+            throws IOException {
+        var pending = this.pendingRequests;
+        if (pending == null) {
+            adaptResponse(body, session, conflated);
+            return;
+        }
+        if (pending.complete(session, body))
+            return;
+        // The row is consumed after the adaptor processes it, so the credits
+        // don't run ahead of a slow adaptor.
+        try {
+            adaptResponse(body, session, conflated);
+        } finally {
+            pending.consumed(session, body);
+        }
+    }
+
+    private void adaptResponse(Body body, IOPSession session, boolean conflated)
+            throws IOException {
         switch (body.Type) {
             case RSP_REQ_LOGIN:
-                var rspLogin = OP.fromJson(body.Json,
-                        CThostFtdcRspUserLoginField.class);
+                var rspLogin = payload(body, CThostFtdcRspUserLoginField.class);
                 this.clientAdaptor.rspReqLogin(rspLogin, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_ORDER:
-                var rspOrder = OP.fromJson(body.Json, CThostFtdcOrderField.class);
+                var rspOrder = payload(body, CThostFtdcOrderField.class);
                 this.clientAdaptor.rspQryOrder(rspOrder, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_POSITION:
-                var rspPosition = OP.fromJson(body.Json,
+                var rspPosition = payload(body,
                         CThostFtdcInvestorPositionField.class);
                 this.clientAdaptor.rspQryPosition(rspPosition, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_ACCOUNT:
-                var rspAccount = OP.fromJson(body.Json,
-                        CThostFtdcTradingAccountField.class);
+                var rspAccount = payload(body, CThostFtdcTradingAccountField.class);
                 this.clientAdaptor.rspQryAccount(rspAccount, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_ORDER_EXEC:
-                var rspOrderExec = OP.fromJson(body.Json,
-                        CThostFtdcRspInfoField.class);
+                var rspOrderExec = payload(body, CThostFtdcRspInfoField.class);
                 this.clientAdaptor.rspQryOrderExec(rspOrderExec, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_ACTION_EXEC:
-                var rspActionExec = OP.fromJson(body.Json,
-                        CThostFtdcRspInfoField.class);
+                var rspActionExec = payload(body, CThostFtdcRspInfoField.class);
                 this.clientAdaptor.rspQryActionExec(rspActionExec, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_QRY_USER_EXEC:
-                var rspUserExec = OP.fromJson(body.Json,
-                        CThostFtdcRspInfoField.class);
+                var rspUserExec = payload(body, CThostFtdcRspInfoField.class);
                 this.clientAdaptor.rspQryUserExec(rspUserExec, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_REQ_ORDER_ACTION:
-                var rspAction = OP.fromJson(body.Json,
-                        CThostFtdcActionUuidField.class);
+                var rspAction = payload(body, CThostFtdcActionUuidField.class);
                 this.clientAdaptor.rspReqOrderAction(rspAction, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_REQ_ORDER_INSERT:
-                var rspInsert = OP.fromJson(body.Json, CThostFtdcOrderUuidField.class);
+                var rspInsert = payload(body, CThostFtdcOrderUuidField.class);
                 this.clientAdaptor.rspReqOrderInsert(rspInsert, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case RSP_SUB_MD:
-                var rspMd = OP.fromJson(body.Json,
-                        CThostFtdcSpecificInstrumentField.class);
+                var rspMd = payload(body, CThostFtdcSpecificInstrumentField.class);
                 this.clientAdaptor.rspSubscribeMarketData(rspMd, body.RequestID,
                         body.ResponseID, body.CurrentCount, body.TotalCount);
                 break;
             case FLOW_DEPTH:
-                var md = OP.fromJson(body.Json,
-                        CThostFtdcDepthMarketDataField.class);
+                var md = payload(body, CThostFtdcDepthMarketDataField.class);
+                if (body.RequestID != null) {
+                    this.clientAdaptor.rspReplayDepthMarketData(md, body.Sequence,
+                            body.RequestID, body.ResponseID, body.CurrentCount,
+                            body.TotalCount);
+                    break;
+                }
+                checkSequence(session, body, MessageType.FLOW_DEPTH,
+                        md.InstrumentID, conflated);
                 this.clientAdaptor.rspDepthMarketData(md);
                 break;
+            case FLOW_DEPTH_DELTA:
+                var delta = payload(body, CThostFtdcDepthDeltaField.class);
+                checkSequence(session, body, MessageType.FLOW_DEPTH,
+                        delta.InstrumentID, conflated);
+                var depth = ((IOPSessionImpl) session).getDepthReceiver()
+                        .receive(delta);
+                // The delta whose keyframe is missing is dropped.
+                if (depth != null)
+                    this.clientAdaptor.rspDepthMarketData(depth);
+                break;
             case FLOW_CANDLE:
-                var cnd = OP.fromJson(body.Json, CThostFtdcCandleField.class);
+                var cnd = payload(body, CThostFtdcCandleField.class);
+                if (body.RequestID != null) {
+                    this.clientAdaptor.rspReplayCandle(cnd, body.Sequence,
+                            body.RequestID, body.ResponseID, body.CurrentCount,
+                            body.TotalCount);
+                    break;
+                }
+                checkSequence(session, body, MessageType.FLOW_CANDLE,
+                        cnd.InstrumentID, conflated);
                 this.clientAdaptor.rspCandle(cnd);
                 break;
+            case RSP_REPLAY_MD:
+                var rspReplay = payload(body,
+                        CThostFtdcReplayMarketDataField.class);
+                // The replayed market data fills the gap.
+                if (rspReplay.InstrumentID != null)
+                    ((IOPSessionImpl) session).getSequenceTracker().replayed(
+                            MessageType.FLOW_CANDLE.name().equals(
+                                    rspReplay.StreamType)
+                                    ? MessageType.FLOW_CANDLE
+                                    : MessageType.FLOW_DEPTH,
+                            rspReplay.InstrumentID, rspReplay.ToSequence);
+                this.clientAdaptor.rspReplayMarketData(rspReplay, body.RequestID,
+                        body.ResponseID, body.CurrentCount, body.TotalCount);
+                break;
             default:
                 throw new IllegalStateException(
                         "unmatched message type, need response");
         }
     }
 
-    private void handleLogin(Body body, IOPSession session) throws IOException {
-        var reqLogin = OP.fromJson(body.Json, CThostFtdcReqUserLoginField.class);
+    /*
+    Check the sequence of the market data from the live stream before it is passed
+    to the adaptor. The replayed market data answers a request and isn't checked.
+    The conflated market data jumps without a gap.
+     */
+    private void checkSequence(IOPSession session, Body body, MessageType type,
+                               String instrumentID, boolean conflated) {
+        if (body.Sequence == 0 || body.RequestID != null || instrumentID == null)
+            return;
+        var gap = ((IOPSessionImpl) session).getSequenceTracker().receive(type,
+                instrumentID, body.Sequence, conflated);
+        if (gap != null)
+            this.sessionAdaptor.event(session, SessionEvent.MARKET_DATA_GAP, gap);
+    }
+
+    private void handleLogin(Body body, BodyCodec codec, IOPSession session)
+            throws IOException {
+        // Reply with the codec the peer logs in with.
+        session.setBodyCodec(codec);
+        var reqLogin = payload(body, CThostFtdcReqUserLoginField.class);
         session.setAttribute(IOP_ISLOGIN_KEY,
                 this.loginManager.doLogin(session, reqLogin));
     }
@@ -232,16 +408,44 @@ public class FrameHandler implements IoHandler {
         session.sendHeartbeat(body.RequestID);
     }
 
-    private IOPSession createOrGetIOPSession(IoSession session) {
+    /*
+    Run the callback of the I/O layer. Threads calling handler write the
+    session, they can't wait for it.
+     */
+    private static void callback(Handling handling) throws Exception {
+        var previous = IOPSessionImpl.setNonBlocking(true);
+        try {
+            handling.handle();
+        } finally {
+            IOPSessionImpl.setNonBlocking(previous);
+        }
+    }
+
+    /*
+    Get the IOP session wrapping the I/O session, create one if it doesn't exist.
+     */
+    IOPSession getIOPSession(IoSession session) {
         var iop = session.getAttribute(IOP_SESSION_KEY);
         if (iop == null) {
-            iop = new IOPSessionImpl().wrap(session);
-            session.setAttribute(IOP_SESSION_KEY, iop);
+            var impl = new IOPSessionImpl().wrap(session);
+            impl.setListener((event, eventObject)
+                    -> this.sessionAdaptor.event(impl, event, eventObject));
+            if (this.highWatermark > 0)
+                impl.setWriteWatermarks(this.lowWatermark, this.highWatermark,
+                        this.slowConsumerPolicy);
+            if (this.compressionThreshold > 0)
+                impl.setCompression(this.compressionThreshold);
+            impl.setTracer(this.tracer);
+            impl.setJournal(this.journal);
+            impl.setMetrics(this.metrics);
+            iop = session.setAttributeIfAbsent(IOP_SESSION_KEY, impl);
+            if (iop == null)
+                iop = impl;
         }
         return (IOPSession) iop;
     }
 
-    private boolean isLogin(IoSession session) {
+    private boolean isLogin(IOPSession session) {
         var isLogin = session.getAttribute(IOP_ISLOGIN_KEY);
         if (isLogin == null)
             return false;
@@ -251,72 +455,317 @@ public class FrameHandler implements IoHandler {
 
     @Override
     public void sessionCreated(IoSession session) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.CREATED, null);
+        callback(() -> this.sessionAdaptor.event(getIOPSession(session),
+                SessionEvent.CREATED, null));
     }
 
     @Override
     public void sessionOpened(IoSession session) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.OPENED, null);
+        callback(() -> this.sessionAdaptor.event(getIOPSession(session),
+                SessionEvent.OPENED, null));
     }
 
     @Override
     public void sessionClosed(IoSession session) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.CLOSED, null);
+        callback(() -> closed(session));
+    }
+
+    private void closed(IoSession session) {
+        var iop = getIOPSession(session);
+        if (this.publisher != null)
+            this.publisher.remove((IOPSessionImpl) iop);
+        ((IOPSessionImpl) iop).cancelStreams();
+        if (this.pendingRequests != null)
+            this.pendingRequests.failAll();
+        this.sessionAdaptor.event(iop, SessionEvent.CLOSED, null);
     }
 
     @Override
     public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.IDLE, status);
+        callback(() -> this.sessionAdaptor.event(getIOPSession(session),
+                SessionEvent.IDLE, status));
     }
 
     @Override
     public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.ERROR, cause);
+        callback(() -> this.sessionAdaptor.event(getIOPSession(session),
+                SessionEvent.ERROR, cause));
     }
 
     @Override
     public void messageReceived(IoSession session, Object message) throws Exception {
+        callback(() -> received(session, message));
+    }
+
+    private void received(IoSession session, Object message) throws Exception {
         if (!(message instanceof Frame))
             throw new IllegalStateException("message is not frame");
         var frame = (Frame) message;
-        var body = OP.fromJson(new String(frame.Body, StandardCharsets.UTF_8),
-                Body.class);
-        switch (frame.Type) {
+        var impl = (IOPSessionImpl) getIOPSession(session);
+        long arrived = System.nanoTime();
+        long sent = 0;
+        int bytes = FrameEncoder.HEADER_LENGTH + frame.Length;
+        if (FrameType.hasFlag(frame.Type, FrameType.FLAG_STAMPED)) {
+            bytes += FrameType.STAMP_LENGTH;
+            sent = frame.SendTime;
+            // Response or heartbeat echoing the stamp of this side.
+            if (frame.RequestSendTime != 0)
+                impl.getSessionMetrics().stamped(arrived, frame);
+        }
+        if (FrameType.hasFlag(frame.Type, FrameType.FLAG_ACCEPT_DEFLATE))
+            impl.setPeerAcceptsCompression();
+        if (FrameType.typeOf(frame.Type) == FrameType.BATCH) {
+            receiveBatch(session, impl, frame, bytes, sent, arrived);
+            return;
+        }
+        this.metrics.received(1, bytes);
+        impl.getSessionMetrics().received(1, bytes);
+        var type = frame.Type;
+        BodyCodec codec;
+        Body body;
+        try {
+            codec = BodyCodec.forFrameType(frame.Type);
+            body = decode(frame.Type, codec, frame.Body, 0, frame.Length);
+        } finally {
+            // The frame is recycled once the body is decoded.
+            FramePool.release(frame);
+        }
+        receive(session, type, codec, body, frame.Length, sent, arrived);
+    }
+
+    /*
+    Decode the bodies packed in the batch frame, and handle them in order as if
+    they arrived in separate frames. The stamp of the batch frame is the stamp of
+    each packed frame.
+     */
+    private void receiveBatch(IoSession session, IOPSessionImpl impl, Frame frame,
+                              int bytes, long sent, long arrived)
+            throws Exception {
+        int packedType;
+        BodyCodec codec;
+        var bodies = new ArrayList<Body>();
+        var lengths = new ArrayList<Integer>();
+        try {
+            var buffer = ByteBuffer.wrap(frame.Body, 0, frame.Length);
+            if (buffer.remaining() < FrameEncoder.BATCH_HEADER_LENGTH)
+                throw new IOException("broken batch frame");
+            packedType = buffer.getInt();
+            if (FrameType.typeOf(packedType) == FrameType.BATCH)
+                throw new IOException("nested batch frame");
+            codec = BodyCodec.forFrameType(packedType);
+            while (buffer.hasRemaining()) {
+                if (buffer.remaining() < 4)
+                    throw new IOException("broken batch frame");
+                var length = buffer.getInt();
+                var offset = buffer.position();
+                if (length < 0 || length > buffer.remaining())
+                    throw new IOException("broken batch frame");
+                bodies.add(decode(packedType, codec, frame.Body, offset, length));
+                lengths.add(length);
+                buffer.position(offset + length);
+            }
+        } finally {
+            FramePool.release(frame);
+        }
+        this.metrics.received(bodies.size(), bytes);
+        impl.getSessionMetrics().received(bodies.size(), bytes);
+        for (int i = 0; i < bodies.size(); ++i)
+            receive(session, packedType, codec, bodies.get(i), lengths.get(i),
+                    sent, arrived);
+    }
+
+    private Body decode(int type, BodyCodec codec, byte[] bytes, int offset,
+                        int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (FrameType.hasFlag(type, FrameType.FLAG_DEFLATE)) {
+                var inflated = FrameCompressor.inflate(type, bytes, offset,
+                        length);
+                return codec.decode(inflated, 0, inflated.length);
+            } else
+                return codec.decode(bytes, offset, length);
+        } catch (IOException e) {
+            this.metrics.decodeError();
+            throw e;
+        } finally {
+            this.metrics.record(IOPMetrics.Stage.DECODE,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /*
+    Handle the decoded body of the frame of the specified type with flags. If the
+    frame is stamped by the peer, the stamp and the time the frame arrives are
+    kept for the response to echo.
+     */
+    private void receive(IoSession session, int frameType, BodyCodec codec,
+                         Body body, int length, long sent, long arrived)
+            throws Exception {
+        var iop = getIOPSession(session);
+        var type = FrameType.typeOf(frameType);
+        long received = System.nanoTime();
+        this.metrics.messageIn(body.Type);
+        if (this.tracer.isEnabled())
+            this.tracer.trace((IOPSessionImpl) iop, TraceRecord.Direction.IN,
+                    type | codec.getFlag(), length, body.Type, body);
+        switch (type) {
             case FrameType.REQUEST:
-                if (isLogin(session))
-                    handleRequest(body, createOrGetIOPSession(session));
+                if (!isLogin(iop))
+                    break;
+                // Credits don't wait behind the requests producing the streams.
+                if (body.Type == MessageType.FLOW_CREDIT)
+                    ((IOPSessionImpl) iop).credit(body.RequestID,
+                            body.CurrentCount);
+                else if (sent != 0 && body.RequestID != null)
+                    dispatch(session, iop, body, received, () -> {
+                        ((IOPSessionImpl) iop).stampRequest(body.RequestID,
+                                sent, arrived, System.nanoTime());
+                        handleRequest(body, iop);
+                    });
+                else
+                    dispatch(session, iop, body, received,
+                            () -> handleRequest(body, iop));
                 break;
             case FrameType.RESPONSE:
-                if (isLogin(session))
-                    handleResponse(body);
+                if (!this.server) {
+                    var conflated = FrameType.hasFlag(frameType,
+                            FrameType.FLAG_CONFLATED);
+                    dispatch(session, iop, body, received,
+                            () -> handleResponse(body, iop, conflated));
+                }
                 break;
             case FrameType.HEARTBEAT:
                 // If it is server, send back heartbeat.
-                if (this.serverAdaptor != null)
-                    sendHeartbeat(body, createOrGetIOPSession(session));
+                if (this.server)
+                    handle(iop, received, () -> {
+                        if (sent != 0 && body.RequestID != null)
+                            ((IOPSessionImpl) iop).stampRequest(body.RequestID,
+                                    sent, arrived, System.nanoTime());
+                        sendHeartbeat(body, iop);
+                    });
                 break;
             case FrameType.LOGIN:
-                handleLogin(body, createOrGetIOPSession(session));
+                handle(iop, received, () -> handleLogin(body, codec, iop));
                 break;
             default:
                 throw new IllegalStateException("unknown frame type");
         }
     }
 
+    @FunctionalInterface
+    private interface Handling {
+        void handle() throws Exception;
+    }
+
+    /*
+    Run the handling on the executor of its kind of message. Each session has its
+    own serial executor over the shared executor to keep the messages in order.
+     */
+    private void dispatch(IoSession session, IOPSession iop, Body body,
+                          long received, Handling handling) throws Exception {
+        var marketData = isMarketData(body.Type);
+        var executor = marketData ? this.marketDataExecutor : this.orderExecutor;
+        if (executor == null) {
+            handle(iop, received, handling);
+            return;
+        }
+        if (!marketData && !this.orderedQueries && isQuery(body.Type)) {
+            executor.execute(() -> handleAsync(iop, received, handling));
+            return;
+        }
+        var key = marketData ? IOP_MD_EXECUTOR_KEY : IOP_ORDER_EXECUTOR_KEY;
+        var serial = (SerialExecutor) session.getAttribute(key);
+        if (serial == null) {
+            var created = new SerialExecutor(executor);
+            serial = (SerialExecutor) session.setAttributeIfAbsent(key, created);
+            if (serial == null)
+                serial = created;
+        }
+        serial.execute(() -> handleAsync(iop, received, handling),
+                body.Type.getPriority());
+    }
+
+    private void handleAsync(IOPSession iop, long received, Handling handling) {
+        try {
+            handle(iop, received, handling);
+        } catch (Throwable th) {
+            this.sessionAdaptor.event(iop, SessionEvent.ERROR, th);
+        }
+    }
+
+    /*
+    Run the handling, recording the time it waits since the message is decoded
+    and the time it runs.
+     */
+    private void handle(IOPSession iop, long received, Handling handling)
+            throws Exception {
+        long start = System.nanoTime();
+        this.metrics.record(IOPMetrics.Stage.DISPATCH, start - received);
+        try {
+            handling.handle();
+        } finally {
+            this.metrics.record(IOPMetrics.Stage.ADAPTOR,
+                    System.nanoTime() - start);
+            // Write the responses batched in this turn.
+            iop.flush();
+        }
+    }
+
+    private static boolean isQuery(MessageType type) {
+        switch (type) {
+            case QRY_ACCOUNT:
+            case QRY_ORDER:
+            case QRY_POSITION:
+            case QRY_ORDER_EXEC:
+            case QRY_ACTION_EXEC:
+            case QRY_USER_EXEC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMarketData(MessageType type) {
+        switch (type) {
+            case SUB_MD:
+            case RSP_SUB_MD:
+            case FLOW_DEPTH:
+            case FLOW_DEPTH_DELTA:
+            case FLOW_CANDLE:
+            case REQ_REPLAY_MD:
+            case RSP_REPLAY_MD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public void messageSent(IoSession session, Object message) throws Exception {
-        // nothing.
+        callback(() -> sent(session, message));
+    }
+
+    private void sent(IoSession session, Object message) {
+        var iop = (IOPSessionImpl) getIOPSession(session);
+        if (message instanceof WriteBatch) {
+            var batch = (WriteBatch) message;
+            this.metrics.sent(batch.frames.size(), batch.bytes);
+            this.metrics.record(IOPMetrics.Stage.WRITE_WAIT,
+                    System.nanoTime() - batch.createdNanos);
+            iop.getSessionMetrics().sent(batch.frames.size(), batch.bytes);
+            iop.written(batch);
+        }
+        // Write the held frames if the session falls to low watermark.
+        iop.sent();
+        // Send the conflated market data if the session catches up.
+        if (this.publisher != null)
+            this.publisher.sent(iop);
     }
 
     @Override
     public void inputClosed(IoSession session) throws Exception {
-        this.sessionAdaptor.event(createOrGetIOPSession(session),
-                SessionEvent.INPUT_CLOSED, null);
+        callback(() -> this.sessionAdaptor.event(getIOPSession(session),
+                SessionEvent.INPUT_CLOSED, null));
     }
 
     @Override
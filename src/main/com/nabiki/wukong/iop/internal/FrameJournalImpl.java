@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.FrameJournal;
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.JournalTailer;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Journal writing frames into memory-mapped segments. A segment starts with a
+ * magic int and a version int, followed by the records. A record is an int of
+ * its length after the int, the time in epoch nanoseconds, the session ID, the
+ * stamp sequence, the stamp send time, the frame type, the ordinal of the message
+ * type, the body length and the body. All numbers are big-endian.
+ *
+ * <p>The length of a record is written after its content, so a record is read
+ * only after it is complete. Zero length means no record yet, and {@code -1}
+ * ends the segment before the writer starts the next one.
+ * </p>
+ *
+ * <p>The writer spins a while for more frames when the queue is empty, and then
+ * parks until a frame is appended. A full segment is unmapped before the oldest
+ * segments are deleted.
+ * </p>
+ */
+public class FrameJournalImpl implements FrameJournal {
+    public static int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static int DEFAULT_MAX_SEGMENTS = 16;
+
+    /**
+     * Max frames waiting for the writer. More frames are dropped.
+     */
+    public static int MAX_PENDING_RECORDS = 64 * 1024;
+
+    static final String SEGMENT_SUFFIX = ".iopj";
+    static final int MAGIC = 0x494F504A;
+    static final int VERSION = 2;
+    static final int SEGMENT_HEADER_LENGTH = 8;
+    // Time, session ID, sequence, send time, frame type, message type and body
+    // length.
+    static final int RECORD_HEADER_LENGTH = 44;
+    static final int END_OF_SEGMENT = -1;
+
+    private static final int IDLE_SPINS = 1000;
+    private static final MethodHandle invokeCleaner = findCleaner();
+
+    private static class Entry {
+        final long nanos, sessionID, sequence, sendTime;
+        final Frame frame;
+        final MessageType type;
+
+        Entry(long nanos, long sessionID, long sequence, long sendTime,
+              Frame frame, MessageType type) {
+            this.nanos = nanos;
+            this.sessionID = sessionID;
+            this.sequence = sequence;
+            this.sendTime = sendTime;
+            this.frame = frame;
+            this.type = type;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes, maxSegments;
+    private final long epochNanos = System.currentTimeMillis() * 1_000_000L;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final LongAdder records = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Writer is parked or about to park, and an append wakes it up.
+    private volatile boolean idle = false;
+    private volatile BiPredicate<IOPSession, MessageType> filter;
+
+    // Current segment, used by the writer thread only.
+    private long segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    public FrameJournalImpl(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Open the journal in the directory. The journal starts a new segment after
+     * the segments already in the directory.
+     *
+     * @param directory    directory of the segments, created if it doesn't exist
+     * @param segmentBytes size of a segment file
+     * @param maxSegments  max segments kept in the directory
+     * @throws IOException if fail creating the segment
+     */
+    public FrameJournalImpl(Path directory, int segmentBytes, int maxSegments)
+            throws IOException {
+        if (segmentBytes < 4096)
+            throw new IllegalArgumentException("segment smaller than 4K");
+        if (maxSegments < 1)
+            throw new IllegalArgumentException("non-positive max segments");
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        var segments = listSegments(directory);
+        this.segmentIndex = segments.isEmpty()
+                ? 0 : segments.get(segments.size() - 1) + 1;
+        openSegment();
+        this.writer = new Thread(this::write, "iop-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static FrameJournalImpl cast(FrameJournal journal) {
+        if (journal == null)
+            return null;
+        if (!(journal instanceof FrameJournalImpl))
+            throw new IllegalArgumentException("journal not created by IOP");
+        return (FrameJournalImpl) journal;
+    }
+
+    /*
+    Queue the frame written by the session for the writer. The sequence and send
+    time are the stamp of the frame, zeros if it isn't stamped.
+     */
+    void append(IOPSessionImpl session, Frame frame, MessageType type,
+                long sequence, long sendTime) {
+        if (!this.running)
+            return;
+        var filter = this.filter;
+        if (filter != null && !filter.test(session, type))
+            return;
+        if (this.pending.incrementAndGet() > MAX_PENDING_RECORDS) {
+            this.pending.decrementAndGet();
+            this.dropped.increment();
+            return;
+        }
+        var ioSession = session.getIoSession();
+        this.queue.offer(new Entry(System.nanoTime(),
+                ioSession != null ? ioSession.getId() : 0, sequence, sendTime,
+                frame, type));
+        if (this.idle)
+            LockSupport.unpark(this.writer);
+    }
+
+    @Override
+    public void setFilter(BiPredicate<IOPSession, MessageType> filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public JournalTailer createTailer() {
+        return new JournalTailerImpl(this.directory);
+    }
+
+    @Override
+    public long getRecords() {
+        return this.records.sum();
+    }
+
+    @Override
+    public long getDroppedRecords() {
+        return this.dropped.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.running)
+            return;
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted closing journal", e);
+        }
+    }
+
+    /*
+    Write the queued frames until the journal is closed and the queue is empty.
+     */
+    private void write() {
+        try {
+            int spins = 0;
+            while (true) {
+                var entry = this.queue.poll();
+                if (entry == null) {
+                    if (!this.running)
+                        break;
+                    if (++spins < IDLE_SPINS) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    // The append after the flag is set unparks, and the permit
+                    // is kept if it comes before park.
+                    this.idle = true;
+                    if (this.queue.isEmpty() && this.running)
+                        LockSupport.park(this);
+                    this.idle = false;
+                    continue;
+                }
+                spins = 0;
+                this.pending.decrementAndGet();
+                try {
+                    write(entry);
+                } catch (IOException e) {
+                    this.dropped.increment();
+                }
+            }
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        var frame = entry.frame;
+        int length = RECORD_HEADER_LENGTH + frame.Length;
+        // Leave room for the end of segment.
+        if (SEGMENT_HEADER_LENGTH + length + 8 > this.segmentBytes) {
+            this.dropped.increment();
+            return;
+        }
+        if (this.segment == null || this.segment.remaining() < length + 8)
+            roll();
+        var segment = this.segment;
+        int position = segment.position();
+        segment.position(position + 4);
+        segment.putLong(this.epochNanos + entry.nanos - this.startNanos);
+        segment.putLong(entry.sessionID);
+        segment.putLong(entry.sequence);
+        segment.putLong(entry.sendTime);
+        segment.putInt(entry.sequence != 0
+                ? frame.Type | FrameType.FLAG_STAMPED : frame.Type);
+        segment.putInt(entry.type != null ? entry.type.ordinal() : -1);
+        segment.putInt(frame.Length);
+        segment.put(frame.Body, 0, frame.Length);
+        // Content is visible before the length.
+        VarHandle.releaseFence();
+        segment.putInt(position, length);
+        this.records.increment();
+    }
+
+    /*
+    End the current segment, start the next one and delete the oldest segments.
+    The ended segment is unmapped by closing, so no deleted file stays mapped.
+     */
+    private void roll() throws IOException {
+        if (this.segment != null) {
+            this.segment.putInt(this.segment.position(), END_OF_SEGMENT);
+            closeSegment();
+        }
+        ++this.segmentIndex;
+        openSegment();
+        var segments = listSegments(this.directory);
+        for (int i = 0; i < segments.size() - this.maxSegments; ++i) {
+            try {
+                Files.deleteIfExists(segmentPath(this.directory, segments.get(i)));
+            } catch (IOException ignored) {
+                // The segment may be open by a reader on some systems.
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        this.channel = FileChannel.open(
+                segmentPath(this.directory, this.segmentIndex),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.segment = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                this.segmentBytes);
+        this.segment.putInt(MAGIC);
+        this.segment.putInt(VERSION);
+    }
+
+    private void closeSegment() {
+        if (this.segment == null)
+            return;
+        try {
+            this.segment.force();
+            this.channel.close();
+        } catch (IOException ignored) {
+        } finally {
+            unmap(this.segment);
+            this.segment = null;
+            this.channel = null;
+        }
+    }
+
+    /*
+    Release the mapping at once instead of waiting for the buffer to be
+    collected. The buffer must not be used after it. The mapping is left to the
+    collector if the runtime doesn't allow it.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (invokeCleaner == null || buffer == null)
+            return;
+        try {
+            invokeCleaner.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    private static MethodHandle findCleaner() {
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass,
+                    "invokeCleaner", MethodType.methodType(void.class,
+                            ByteBuffer.class)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%020d", index) + SEGMENT_SUFFIX);
+    }
+
+    /*
+    Get the indexes of the segments in the directory in ascending order.
+     */
+    static List<Long> listSegments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return new ArrayList<>();
+        try (var files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX)
+                            && name.length() == 20 + SEGMENT_SUFFIX.length())
+                    .map(name -> name.substring(0, 20))
+                    .filter(index -> index.chars().allMatch(Character::isDigit))
+                    .map(Long::parseLong)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -29,9 +29,14 @@
 package com.nabiki.wukong.iop.internal;
 
 import com.nabiki.wukong.iop.ClientMessageAdaptor;
+import com.nabiki.wukong.iop.FrameJournal;
 import com.nabiki.wukong.iop.IOPClient;
+import com.nabiki.wukong.iop.IOPMetrics;
 import com.nabiki.wukong.iop.IOPSession;
 import com.nabiki.wukong.iop.SessionAdaptor;
+import com.nabiki.wukong.iop.WireTracer;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.FrameParser;
 import com.nabiki.wukong.iop.frame.OP;
 import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
@@ -40,30 +45,63 @@ import org.apache.mina.transport.socket.nio.NioSocketConnector;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
 
 public class IOPClientImpl implements IOPClient {
     public static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
 
-    private final NioSocketConnector connector = new NioSocketConnector();
-    private final FrameHandler frameHnd = new FrameHandler();
-    private final IOPSessionImpl session = new IOPSessionImpl();
+    private final NioSocketConnector connector;
+    private final FrameHandler frameHnd = new FrameHandler(false);
+    private final PendingRequests pending = new PendingRequests();
+    private IOPSession session;
 
     public IOPClientImpl(InetSocketAddress connectAddress) throws IOException {
+        this(connectAddress, 0, 0, null, null, false, null, null);
+    }
+
+    public IOPClientImpl(InetSocketAddress connectAddress, int processorCount,
+                         int executorThreads, Executor marketDataExecutor,
+                         Executor orderExecutor, boolean logging,
+                         String jmxName, FrameJournal journal)
+            throws IOException {
+        if (processorCount > 0)
+            this.connector = new NioSocketConnector(processorCount);
+        else
+            this.connector = new NioSocketConnector();
         this.connector.setConnectTimeoutMillis(DEFAULT_CONNECT_TIMEOUT_MILLIS);
         // Set filters.
+        // Write order responses before queued market data.
+        this.connector.setSessionDataStructureFactory(
+                new PrioritySessionDataStructureFactory());
         var chain = this.connector.getFilterChain();
-        chain.addLast(OP.randomString(), new LoggingFilter());
+        if (logging)
+            chain.addLast(OP.randomString(), new LoggingFilter());
         chain.addLast(OP.randomString(), new ProtocolCodecFilter(
-                new FrameCodecFactory()));
+                new FrameCodecFactory(FrameParser.DEFAULT_MAX_FRAME_LENGTH,
+                        this.frameHnd.getMetrics())));
+        // Handle messages off the I/O processors, in order for each session.
+        if (executorThreads > 0)
+            chain.addLast(OP.randomString(),
+                    FrameHandler.executorFilter(executorThreads));
         // Set handler.
+        this.frameHnd.setExecutors(marketDataExecutor, orderExecutor);
+        this.frameHnd.setPendingRequests(this.pending);
+        this.frameHnd.setJournal(FrameJournalImpl.cast(journal));
         this.connector.setHandler(this.frameHnd);
+        if (jmxName != null)
+            this.frameHnd.getMetrics().register(jmxName);
         // Connect and construct session.
         ConnectFuture future = connector.connect(connectAddress);
         try {
             if (future.await(DEFAULT_CONNECT_TIMEOUT_MILLIS,
                     TimeUnit.MILLISECONDS))
-                this.session.wrap(future.getSession());
+                this.session = this.frameHnd.getIOPSession(future.getSession());
             else
                 throw new IOException("connect timeout");
         } catch (InterruptedException e) {
@@ -85,4 +123,52 @@ public class IOPClientImpl implements IOPClient {
     public IOPSession getSession() {
         return this.session;
     }
+
+    @Override
+    public IOPMetrics getMetrics() {
+        return this.frameHnd.getMetrics();
+    }
+
+    @Override
+    public WireTracer getTracer() {
+        return this.frameHnd.getTracer();
+    }
+
+    @Override
+    public CompletableFuture<Body> request(Body request, Duration timeout) {
+        var requestID = prepare(request, timeout);
+        var future = this.pending.single(requestID, timeout);
+        send(request);
+        return future;
+    }
+
+    @Override
+    public Flow.Publisher<Body> requestAll(Body request, Duration timeout) {
+        var requestID = prepare(request, timeout);
+        var publisher = this.pending.many(requestID, timeout);
+        send(request);
+        return publisher;
+    }
+
+    private UUID prepare(Body request, Duration timeout) {
+        Objects.requireNonNull(request, "request null");
+        if (timeout == null || timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException("timeout must be positive");
+        if (request.RequestID == null)
+            request.RequestID = UUID.randomUUID();
+        return request.RequestID;
+    }
+
+    private void send(Body request) {
+        if (this.session.isClosed()) {
+            this.pending.fail(request.RequestID,
+                    new IOException("session closed"));
+            return;
+        }
+        try {
+            this.session.sendRequest(request);
+        } catch (RuntimeException e) {
+            this.pending.fail(request.RequestID, e);
+        }
+    }
 }
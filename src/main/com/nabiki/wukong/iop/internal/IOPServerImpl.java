@@ -28,10 +28,16 @@
 
 package com.nabiki.wukong.iop.internal;
 
+import com.nabiki.wukong.iop.FrameJournal;
 import com.nabiki.wukong.iop.IOPLoginManager;
+import com.nabiki.wukong.iop.IOPMetrics;
 import com.nabiki.wukong.iop.IOPServer;
+import com.nabiki.wukong.iop.MarketDataPublisher;
 import com.nabiki.wukong.iop.ServerMessageAdaptor;
 import com.nabiki.wukong.iop.SessionAdaptor;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.SubscriptionRegistry;
+import com.nabiki.wukong.iop.WireTracer;
 import com.nabiki.wukong.iop.frame.FrameParser;
 import com.nabiki.wukong.iop.frame.OP;
 import org.apache.mina.core.service.IoAcceptor;
@@ -42,26 +48,66 @@ import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 
 public class IOPServerImpl implements IOPServer {
     public static int DEFAULT_IDLE_SEC = 60 * 30;
 
-    private final IoAcceptor acceptor = new NioSocketAcceptor();
-    private final FrameHandler frameHnd = new FrameHandler();
+    private final IoAcceptor acceptor;
+    private final FrameHandler frameHnd = new FrameHandler(true);
+    private final SubscriptionRegistryImpl registry
+            = new SubscriptionRegistryImpl();
+    private final MarketDataPublisherImpl publisher
+            = new MarketDataPublisherImpl(this.registry);
 
     public IOPServerImpl(InetSocketAddress bindAddress) throws IOException {
+        this(bindAddress, 0, 0, null, null, 0, false, null, null, 0, 0, null);
+    }
+
+    public IOPServerImpl(InetSocketAddress bindAddress, int processorCount,
+                         int executorThreads, Executor marketDataExecutor,
+                         Executor orderExecutor, int virtualThreads,
+                         boolean logging, String jmxName, FrameJournal journal,
+                         long lowWatermark, long highWatermark,
+                         SlowConsumerPolicy policy) throws IOException {
+        if (processorCount > 0)
+            this.acceptor = new NioSocketAcceptor(processorCount);
+        else
+            this.acceptor = new NioSocketAcceptor();
+        // Write order responses before queued market data.
+        this.acceptor.setSessionDataStructureFactory(
+                new PrioritySessionDataStructureFactory());
         var chain = this.acceptor.getFilterChain();
-        chain.addLast(OP.randomString(), new LoggingFilter());
+        if (logging)
+            chain.addLast(OP.randomString(), new LoggingFilter());
+        var metrics = this.frameHnd.getMetrics();
         chain.addLast(OP.randomString(), new ProtocolCodecFilter(
-                new FrameCodecFactory()));
+                new FrameCodecFactory(FrameParser.DEFAULT_MAX_FRAME_LENGTH,
+                        metrics)));
+        // Handle messages off the I/O processors, in order for each session.
+        if (executorThreads > 0)
+            chain.addLast(OP.randomString(),
+                    FrameHandler.executorFilter(executorThreads));
         // Frame handler.
+        this.publisher.setMetrics(metrics);
+        this.frameHnd.setPublisher(this.publisher);
+        this.frameHnd.setWriteWatermarks(lowWatermark, highWatermark, policy);
+        this.frameHnd.setJournal(FrameJournalImpl.cast(journal));
+        if (virtualThreads > 0) {
+            // Order requests in order, queries concurrently.
+            orderExecutor = new ThreadPerTaskExecutor(virtualThreads);
+            this.frameHnd.setOrderedQueries(false);
+        }
+        this.frameHnd.setExecutors(marketDataExecutor, orderExecutor);
         this.acceptor.setHandler(frameHnd);
         // Configure the session.
         var config = this.acceptor.getSessionConfig();
         config.setReadBufferSize(FrameParser.DEFAULT_BUFFER_SIZE * 2);
         config.setIdleTime(IdleStatus.BOTH_IDLE, DEFAULT_IDLE_SEC);
+        if (jmxName != null)
+            metrics.register(jmxName);
         // Bind address.
-        this.acceptor.bind(new InetSocketAddress(11));
+        this.acceptor.bind(bindAddress);
     }
 
     @Override
@@ -76,6 +122,43 @@ public class IOPServerImpl implements IOPServer {
 
     @Override
     public void setLoginManager(IOPLoginManager manager) {
+        this.frameHnd.setLoginManager(manager);
+    }
+
+    @Override
+    public void setWriteWatermarks(long lowBytes, long highBytes,
+                                   SlowConsumerPolicy policy) {
+        if (highBytes > 0 && (lowBytes < 0 || lowBytes >= highBytes))
+            throw new IllegalArgumentException("invalid watermarks");
+        if (highBytes > 0 && policy == null)
+            throw new NullPointerException("policy null");
+        this.frameHnd.setWriteWatermarks(lowBytes, highBytes, policy);
+    }
 
+    @Override
+    public void setCompression(int thresholdBytes) {
+        if (thresholdBytes < 0)
+            throw new IllegalArgumentException("negative threshold");
+        this.frameHnd.setCompression(thresholdBytes);
+    }
+
+    @Override
+    public MarketDataPublisher getPublisher() {
+        return this.publisher;
+    }
+
+    @Override
+    public SubscriptionRegistry getSubscriptionRegistry() {
+        return this.registry;
+    }
+
+    @Override
+    public IOPMetrics getMetrics() {
+        return this.frameHnd.getMetrics();
+    }
+
+    @Override
+    public WireTracer getTracer() {
+        return this.frameHnd.getTracer();
     }
 }
@@ -28,36 +28,222 @@
 
 package com.nabiki.wukong.iop.internal;
 
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.iop.IOPMetrics;
 import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.ResponseStream;
+import com.nabiki.wukong.iop.SessionEvent;
+import com.nabiki.wukong.iop.SessionMetrics;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.TraceRecord;
 import com.nabiki.wukong.iop.frame.*;
 import org.apache.mina.core.session.IoSession;
 
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
+/**
+ * Sending through the session doesn't take any lock. The body is encoded on the
+ * calling thread, and the frame is handed to a lock-free queue. The thread that
+ * finds the queue idle drains it and writes the frames to the I/O layer, while
+ * other producers only add to the queue and return. Frames queued during a drain
+ * are written together.
+ *
+ * <p>Each {@link MessagePriority} has its own queue, and the queues are drained
+ * from the highest priority. A write carries the frames of one priority so the
+ * write request queue of the I/O layer can order them too.
+ * </p>
+ *
+ * <p>When the bytes waiting in the I/O layer reach the high watermark, the session
+ * is backlogged until they fall to the low watermark. Market data is held in the
+ * session during that time if the policy drops or conflates it, and the held
+ * frames are written after the session catches up. The market data publisher
+ * conflates by the same state. Keyframes of depth deltas are never dropped or
+ * conflated, because the deltas after them can't be rebuilt without them. The
+ * frame of a stream following the dropped or conflated ones is sent with
+ * {@link FrameType#FLAG_CONFLATED}, so the receiver doesn't take the jump of
+ * sequence as a loss.
+ * </p>
+ */
 public class IOPSessionImpl implements IOPSession {
-    private IoSession session;
+    /**
+     * Max bytes in one write when batching is disabled.
+     */
+    public static int DEFAULT_MAX_COALESCE_BYTES = 64 * 1024;
+
+    /**
+     * Max stamped requests waiting for response. The eldest stamp is dropped when
+     * more requests arrive and its response is not stamped.
+     */
+    public static int MAX_STAMPED_REQUESTS = 4096;
+
+    // Flush the batches that reach max delay.
+    private static final ScheduledExecutorService flusher
+            = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "iop-batch-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private volatile IoSession session;
+    private volatile BodyCodec codec = BodyCodec.JSON;
+
+    // Write queue and batching.
+    private volatile int maxBatchBytes = 0;
+    private volatile long maxBatchDelayNanos = 0;
+    private volatile boolean batchFrames = false;
+
+    // Compression, used after the peer accepts it.
+    private volatile int compressionThreshold = 0;
+    private volatile boolean peerAcceptsCompression = false;
+    private final Queue<Outgoing>[] queues = createQueues();
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    private final AtomicInteger drainWip = new AtomicInteger(0);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Watermarks and slow consumer policy.
+    private static final ThreadLocal<Boolean> nonBlocking
+            = ThreadLocal.withInitial(() -> false);
+    private volatile long lowWatermark = 0, highWatermark = 0;
+    private volatile SlowConsumerPolicy policy = SlowConsumerPolicy.DROP_OLDEST;
+    private final AtomicBoolean backlogged = new AtomicBoolean(false);
+    // Bytes of market data in queue.
+    private final AtomicLong marketBytes = new AtomicLong(0);
+    private final Map<String, Outgoing> conflated = new LinkedHashMap<>();
+    // Latest queued depth and candle of each instrument.
+    private final Map<String, Outgoing> latestDepths
+            = new ConcurrentHashMap<>();
+    private final Map<String, Outgoing> latestCandles
+            = new ConcurrentHashMap<>();
+    // Streams whose next frame follows the dropped ones.
+    private final Set<String> skipped = ConcurrentHashMap.newKeySet();
+    private final Object unblock = new Object();
+    private volatile BiConsumer<SessionEvent, Object> listener;
+
+    private final DepthDelta.Receiver depthReceiver = new DepthDelta.Receiver();
+    private final SequenceTracker sequences = new SequenceTracker();
+    private volatile WireTracerImpl tracer;
+    private volatile FrameJournalImpl journal;
+    private volatile MetricsImpl metrics = new MetricsImpl();
+    private final SessionMetricsImpl sessionMetrics = new SessionMetricsImpl();
 
+    // Latency stamping, and the stamps of the requests to echo in responses.
+    private volatile boolean stamping = false;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final Map<UUID, long[]> requestStamps = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, long[]> eldest) {
+            // Requests without response don't pile up.
+            return size() > MAX_STAMPED_REQUESTS;
+        }
+    };
+    private final Map<UUID, ResponseStreamImpl<?>> streams
+            = new ConcurrentHashMap<>();
     private final Map<String, Object> attributes = new HashMap<>();
 
+    /*
+    Frame in the write queue and its message type. Market data has the instrument
+    of its stream, and a keyframe is neither dropped nor conflated. The frame
+    following dropped or conflated market data of its stream is skipped, and it
+    is written with the flag. The queued market data is linked to the next
+    frame of its stream while watermarks are enabled.
+     */
+    private static final class Outgoing {
+        final Frame frame;
+        final MessageType type;
+        final String instrumentID;
+        final boolean keyframe;
+        volatile boolean skipped;
+        volatile Outgoing next;
+
+        Outgoing(Frame frame, MessageType type, String instrumentID,
+                 boolean keyframe, boolean skipped) {
+            this.frame = frame;
+            this.type = type;
+            this.instrumentID = instrumentID;
+            this.keyframe = keyframe;
+            this.skipped = skipped;
+        }
+
+        int size() {
+            return FrameEncoder.HEADER_LENGTH + this.frame.Length;
+        }
+
+        // Depth and its deltas are one stream.
+        String stream() {
+            if (this.instrumentID == null)
+                return null;
+            return this.type == MessageType.FLOW_CANDLE
+                    ? "C:" + this.instrumentID : "D:" + this.instrumentID;
+        }
+
+        Frame toFrame() {
+            if (!this.skipped)
+                return this.frame;
+            // The frame may be shared by sessions.
+            var frame = new Frame();
+            frame.Type = this.frame.Type | FrameType.FLAG_CONFLATED;
+            frame.Length = this.frame.Length;
+            frame.Body = this.frame.Body;
+            return frame;
+        }
+
+        boolean isConflatable() {
+            return !this.keyframe && this.instrumentID != null
+                    && (this.type == MessageType.FLOW_DEPTH
+                    || this.type == MessageType.FLOW_DEPTH_DELTA);
+        }
+    }
+
     IOPSessionImpl() {}
 
+    @SuppressWarnings("unchecked")
+    private static Queue<Outgoing>[] createQueues() {
+        var queues = new Queue[MessagePriority.values().length];
+        for (int i = 0; i < queues.length; ++i)
+            queues[i] = new ConcurrentLinkedQueue<Outgoing>();
+        return (Queue<Outgoing>[]) queues;
+    }
+
     IOPSessionImpl wrap(IoSession ioSession) {
-        synchronized (this) {
-            this.session = ioSession;
-        }
+        this.session = ioSession;
         return this;
     }
 
+    /*
+    Receive watermark events of this session.
+     */
+    void setListener(BiConsumer<SessionEvent, Object> listener) {
+        this.listener = listener;
+    }
+
+    /*
+    Mark the current thread as a thread of the I/O layer or handler, which must not
+    block on a backlogged session, or clear the mark. It returns the previous
+    mark for the caller to restore when it leaves.
+     */
+    static boolean setNonBlocking(boolean enabled) {
+        var previous = nonBlocking.get();
+        nonBlocking.set(enabled);
+        return previous;
+    }
+
     @Override
     public void close() {
-        synchronized (this) {
-            if (this.session != null && this.session.isConnected()) {
-                var future = this.session.closeNow();
-                future.awaitUninterruptibly();
-            }
+        var session = this.session;
+        if (session != null && session.isConnected()) {
+            var future = session.closeNow();
+            future.awaitUninterruptibly();
         }
     }
 
@@ -79,19 +265,441 @@ public class IOPSessionImpl implements IOPSession {
     private void send(Body message, int type) {
         if (message == null)
             throw new NullPointerException("message null");
-        synchronized (this) {
-            if (this.session == null)
-                throw new IllegalStateException("session null");
-            // Get body bytes.
-            var bytes = OP.toJson(message).getBytes(StandardCharsets.UTF_8);
-            // Construct frame.
-            var req = new Frame();
-            req.Type = type;
-            req.Length = bytes.length;
-            req.Body = bytes;
-            // Send frame.
-            this.session.write(req);
+        if (this.session == null)
+            throw new IllegalStateException("session null");
+        // Get body bytes.
+        var codec = this.codec;
+        var metrics = this.metrics;
+        long start = System.nanoTime();
+        byte[] bytes;
+        try {
+            bytes = codec.encode(message);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("encode body", e);
+        }
+        // Construct frame.
+        var req = new Frame();
+        req.Type = type | codec.getFlag();
+        req.Length = bytes.length;
+        req.Body = bytes;
+        var priority = message.Type != null
+                ? message.Type.getPriority() : MessagePriority.QUERY;
+        if (this.compressionThreshold > 0) {
+            req.Type |= FrameType.FLAG_ACCEPT_DEFLATE;
+            if (shouldCompress(req, priority))
+                req = FrameCompressor.deflate(req);
+        }
+        if (type != FrameType.REQUEST && message.RequestID != null)
+            echo(req, message);
+        metrics.record(IOPMetrics.Stage.ENCODE, System.nanoTime() - start);
+        metrics.messageOut(message.Type);
+        // Send frame.
+        var tracer = this.tracer;
+        if (tracer != null && tracer.isEnabled())
+            tracer.trace(this, TraceRecord.Direction.OUT, req.Type, req.Length,
+                    message.Type, message);
+        String instrumentID = null;
+        if (message.Type == MessageType.FLOW_DEPTH
+                && message.Payload instanceof CThostFtdcDepthMarketDataField)
+            instrumentID = ((CThostFtdcDepthMarketDataField) message.Payload)
+                    .InstrumentID;
+        enqueue(new Outgoing(req, message.Type, instrumentID, false, false),
+                priority);
+    }
+
+    /*
+    Add the frame to the write queue. Drain the queue if batching is disabled or
+    the batch is full, else make sure the batch is flushed after the max delay.
+     */
+    private void enqueue(Outgoing outgoing, MessagePriority priority) {
+        if (this.backlogged.get()) {
+            if (priority == MessagePriority.MARKET_DATA && isHolding()
+                    && hold(outgoing))
+                return;
+            if (this.policy == SlowConsumerPolicy.BLOCK && !nonBlocking.get())
+                awaitUnblock();
+        }
+        int size = outgoing.size();
+        if (priority == MessagePriority.MARKET_DATA) {
+            offerMarketData(outgoing);
+            this.marketBytes.addAndGet(size);
+        } else
+            this.queues[priority.ordinal()].offer(outgoing);
+        int bytes = this.queuedBytes.addAndGet(size);
+        int maxBytes = this.maxBatchBytes;
+        if (maxBytes <= 0 || bytes >= maxBytes)
+            drain();
+        else if (this.flushScheduled.compareAndSet(false, true))
+            flusher.schedule(() -> {
+                this.flushScheduled.set(false);
+                drain();
+            }, this.maxBatchDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+    Write all queued frames. Only one thread drains at a time, and the others
+    return at once. The draining thread loops until no frame is added while it
+    drains, so no frame is left in queue.
+     */
+    private void drain() {
+        if (this.drainWip.getAndIncrement() != 0)
+            return;
+        int missed = 1;
+        do {
+            writeQueued();
+            missed = this.drainWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void writeQueued() {
+        int limit = this.maxBatchBytes;
+        if (limit <= 0)
+            limit = DEFAULT_MAX_COALESCE_BYTES;
+        for (var priority : MessagePriority.values()) {
+            // Market data waits while the session is backlogged.
+            if (priority == MessagePriority.MARKET_DATA && this.backlogged.get()
+                    && isHolding())
+                continue;
+            var queue = this.queues[priority.ordinal()];
+            var journaled = this.journal != null;
+            List<Frame> frames = new ArrayList<>();
+            List<MessageType> types = journaled ? new ArrayList<>() : null;
+            int bytes = 0, drained = 0;
+            Outgoing outgoing;
+            while ((outgoing = queue.poll()) != null) {
+                int size = outgoing.size();
+                drained += size;
+                if (outgoing.instrumentID != null)
+                    unlink(outgoing);
+                if (bytes > 0 && bytes + size > limit) {
+                    write(frames, types, bytes, priority);
+                    frames = new ArrayList<>();
+                    types = journaled ? new ArrayList<>() : null;
+                    bytes = 0;
+                }
+                frames.add(outgoing.toFrame());
+                if (types != null)
+                    types.add(outgoing.type);
+                bytes += size;
+            }
+            if (priority == MessagePriority.MARKET_DATA)
+                this.marketBytes.addAndGet(-drained);
+            write(frames, types, bytes, priority);
+        }
+        checkHighWatermark();
+    }
+
+    private void write(List<Frame> frames, List<MessageType> types, int bytes,
+                       MessagePriority priority) {
+        if (frames.isEmpty())
+            return;
+        this.queuedBytes.addAndGet(-bytes);
+        this.session.write(new WriteBatch(frames, types, bytes, priority,
+                this.batchFrames));
+    }
+
+    /*
+    Journal the frames after they are written, with the stamps the encoder puts
+    in their headers. Frames dropped, conflated or not written before the
+    session closes are not journaled.
+     */
+    void written(WriteBatch batch) {
+        var journal = this.journal;
+        if (journal == null || batch.types == null)
+            return;
+        for (int i = 0; i < batch.frames.size(); ++i) {
+            var sequence = batch.getSequence(i);
+            journal.append(this, batch.frames.get(i), batch.types.get(i),
+                    sequence, sequence != 0 ? batch.sendTime : 0);
+        }
+    }
+
+    private boolean isHolding() {
+        var policy = this.policy;
+        return policy == SlowConsumerPolicy.DROP_OLDEST
+                || policy == SlowConsumerPolicy.CONFLATE;
+    }
+
+    /*
+    Hold the market data until the session catches up. Depth is conflated by its
+    instrument, and the oldest held frames are dropped if they exceed the high
+    watermark. Keyframes are kept, and a keyframe replaces the conflated depth of
+    its instrument. The frame replacing a conflated one, or the next frame of the
+    stream of a dropped one, is marked skipped. It returns false without holding
+    the frame if the session has left backlogged state.
+     */
+    private boolean hold(Outgoing outgoing) {
+        synchronized (this.conflated) {
+            // Released after the held frames are queued.
+            if (!this.backlogged.get())
+                return false;
+            if (this.policy == SlowConsumerPolicy.CONFLATE
+                    && outgoing.isConflatable()) {
+                // The latest is written after the keyframes held before it.
+                if (this.conflated.remove(outgoing.instrumentID) != null)
+                    outgoing.skipped = true;
+                this.conflated.put(outgoing.instrumentID, outgoing);
+            } else {
+                // Keyframe replaces the depth held before it.
+                if (this.policy == SlowConsumerPolicy.CONFLATE && outgoing.keyframe
+                        && this.conflated.remove(outgoing.instrumentID) != null)
+                    outgoing.skipped = true;
+                holdOrDrop(outgoing);
+            }
+        }
+        // Catch up while holding the frame, and no sent event comes.
+        if (!isBacklogged())
+            release();
+        return true;
+    }
+
+    private void holdOrDrop(Outgoing outgoing) {
+        var queue = this.queues[MessagePriority.MARKET_DATA.ordinal()];
+        int size = outgoing.size();
+        offerMarketData(outgoing);
+        this.queuedBytes.addAndGet(size);
+        long held = this.marketBytes.addAndGet(size);
+        var iterator = queue.iterator();
+        while (held > this.highWatermark && iterator.hasNext()) {
+            var oldest = iterator.next();
+            if (oldest.keyframe)
+                continue;
+            // Removed by the draining thread if false.
+            if (!queue.remove(oldest))
+                continue;
+            this.queuedBytes.addAndGet(-oldest.size());
+            held = this.marketBytes.addAndGet(-oldest.size());
+            if (oldest.instrumentID != null)
+                dropped(oldest);
+        }
+    }
+
+    private Map<String, Outgoing> latest(Outgoing outgoing) {
+        return outgoing.type == MessageType.FLOW_CANDLE
+                ? this.latestCandles : this.latestDepths;
+    }
+
+    /*
+    Add the market data to its queue. While watermarks are enabled, the frame is
+    linked after the latest queued frame of its stream, or it is marked skipped
+    if it is the next frame of the stream of a dropped one.
+     */
+    private void offerMarketData(Outgoing outgoing) {
+        if (outgoing.instrumentID != null && this.highWatermark > 0)
+            latest(outgoing).compute(outgoing.instrumentID, (key, tail) -> {
+                if (tail != null)
+                    tail.next = outgoing;
+                else if (!this.skipped.isEmpty()
+                        && this.skipped.remove(outgoing.stream()))
+                    outgoing.skipped = true;
+                return outgoing;
+            });
+        this.queues[MessagePriority.MARKET_DATA.ordinal()].offer(outgoing);
+    }
+
+    /*
+    Remove the market data taken from queue if it is the latest of its stream.
+     */
+    private void unlink(Outgoing outgoing) {
+        var latest = latest(outgoing);
+        if (!latest.isEmpty())
+            latest.remove(outgoing.instrumentID, outgoing);
+    }
+
+    /*
+    Mark the frame following the dropped one in its stream, or the next frame of
+    the stream to come.
+     */
+    private void dropped(Outgoing outgoing) {
+        latest(outgoing).compute(outgoing.instrumentID, (key, tail) -> {
+            var next = outgoing.next;
+            if (next != null) {
+                next.skipped = true;
+                return tail;
+            }
+            this.skipped.add(outgoing.stream());
+            return tail == outgoing ? null : tail;
+        });
+    }
+
+    private void awaitUnblock() {
+        synchronized (this.unblock) {
+            while (this.backlogged.get() && !this.session.isClosing()) {
+                try {
+                    this.unblock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isBacklogged() {
+        return this.session.getScheduledWriteBytes() > this.lowWatermark;
+    }
+
+    /*
+    Check if the session is above its high watermark and not yet fallen to the
+    low watermark. The market data publisher conflates the depths by it.
+     */
+    boolean isWriteBacklogged() {
+        return this.backlogged.get();
+    }
+
+    private void checkHighWatermark() {
+        long high = this.highWatermark;
+        if (high <= 0 || this.backlogged.get())
+            return;
+        long bytes = this.session.getScheduledWriteBytes();
+        if (bytes < high || !this.backlogged.compareAndSet(false, true))
+            return;
+        fire(SessionEvent.WRITE_HIGH_WATERMARK, bytes);
+        if (this.policy == SlowConsumerPolicy.DISCONNECT)
+            this.session.closeNow();
+    }
+
+    /*
+    Called when the session has sent a message and the waiting bytes decrease.
+     */
+    void sent() {
+        if (this.backlogged.get() && !isBacklogged())
+            release();
+    }
+
+    /*
+    Leave backlogged state and write the held frames. The conflated frames are
+    queued under the lock of holding before the state is left, so the market
+    data sent after it can't be written before them.
+     */
+    private void release() {
+        synchronized (this.conflated) {
+            if (!this.backlogged.get())
+                return;
+            for (var outgoing : this.conflated.values()) {
+                int size = outgoing.size();
+                offerMarketData(outgoing);
+                this.queuedBytes.addAndGet(size);
+                this.marketBytes.addAndGet(size);
+            }
+            this.conflated.clear();
+            this.backlogged.set(false);
         }
+        fire(SessionEvent.WRITE_LOW_WATERMARK,
+                this.session.getScheduledWriteBytes());
+        synchronized (this.unblock) {
+            this.unblock.notifyAll();
+        }
+        drain();
+    }
+
+    private void fire(SessionEvent event, Object eventObject) {
+        var listener = this.listener;
+        if (listener != null)
+            listener.accept(event, eventObject);
+    }
+
+    private boolean isQueueEmpty() {
+        for (var queue : this.queues)
+            if (!queue.isEmpty())
+                return false;
+        return true;
+    }
+
+    /*
+    Send the frame that is already encoded, e.g. the frame shared by many
+    sessions. The frame must be encoded by the codec of this session. Market data
+    has the instrument of its stream, and the keyframe of depth deltas is neither
+    dropped nor conflated. The frame is skipped if the caller doesn't send the
+    market data of the stream before it.
+     */
+    void sendFrame(Frame frame, MessageType type, String instrumentID,
+                   boolean keyframe, boolean skipped) {
+        if (this.session == null)
+            throw new IllegalStateException("session null");
+        var tracer = this.tracer;
+        if (tracer != null && tracer.isEnabled())
+            tracer.trace(this, TraceRecord.Direction.OUT, frame.Type,
+                    frame.Length, type, null);
+        this.metrics.messageOut(type);
+        enqueue(new Outgoing(frame, type, instrumentID, keyframe, skipped),
+                type.getPriority());
+    }
+
+    void setTracer(WireTracerImpl tracer) {
+        this.tracer = tracer;
+    }
+
+    void setJournal(FrameJournalImpl journal) {
+        this.journal = journal;
+    }
+
+    /*
+    Set the metrics of the server or client, which the session adds to.
+     */
+    void setMetrics(MetricsImpl metrics) {
+        this.metrics = metrics;
+    }
+
+    SessionMetricsImpl getSessionMetrics() {
+        return this.sessionMetrics;
+    }
+
+    @Override
+    public void setLatencyStamping(boolean enabled) {
+        this.stamping = enabled;
+    }
+
+    boolean isStamping() {
+        return this.stamping;
+    }
+
+    /*
+    Take the specified number of sequences and return the first.
+     */
+    long nextSequence(int count) {
+        return this.sequence.addAndGet(count) - count + 1;
+    }
+
+    /*
+    Keep the stamp of the request received, and its response echoes the stamp.
+     */
+    void stampRequest(UUID requestID, long sent, long received,
+                      long dispatched) {
+        synchronized (this.requestStamps) {
+            this.requestStamps.put(requestID,
+                    new long[]{sent, received, dispatched});
+        }
+    }
+
+    /*
+    Copy the stamp of the request into its response frame. The stamp is removed
+    by the last response.
+     */
+    private void echo(Frame frame, Body message) {
+        long[] stamp;
+        synchronized (this.requestStamps) {
+            if (this.requestStamps.isEmpty())
+                return;
+            if (message.CurrentCount < message.TotalCount)
+                stamp = this.requestStamps.get(message.RequestID);
+            else
+                stamp = this.requestStamps.remove(message.RequestID);
+        }
+        if (stamp == null)
+            return;
+        frame.RequestSendTime = stamp[0];
+        frame.RequestReceiveTime = stamp[1];
+        frame.RequestDispatchTime = stamp[2];
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return this.sessionMetrics;
+    }
+
+    IoSession getIoSession() {
+        return this.session;
     }
 
     @Override
@@ -112,6 +720,132 @@ public class IOPSessionImpl implements IOPSession {
         send(body, FrameType.HEARTBEAT);
     }
 
+    @Override
+    public void setBodyCodec(BodyCodec codec) {
+        if (codec == null)
+            throw new NullPointerException("codec null");
+        this.codec = codec;
+    }
+
+    @Override
+    public BodyCodec getBodyCodec() {
+        return this.codec;
+    }
+
+    @Override
+    public void setBatching(int maxBytes, Duration maxDelay) {
+        if (maxBytes > 0 && (maxDelay == null || maxDelay.isNegative()))
+            throw new IllegalArgumentException("invalid max delay");
+        this.maxBatchDelayNanos = maxBytes > 0 ? maxDelay.toNanos() : 0;
+        this.maxBatchBytes = Math.max(maxBytes, 0);
+        if (this.maxBatchBytes == 0)
+            flush();
+    }
+
+    @Override
+    public void setCompression(int thresholdBytes) {
+        if (thresholdBytes < 0)
+            throw new IllegalArgumentException("negative threshold");
+        this.compressionThreshold = thresholdBytes;
+    }
+
+    /*
+    Peer sets accept flag on its frames.
+     */
+    void setPeerAcceptsCompression() {
+        this.peerAcceptsCompression = true;
+    }
+
+    /*
+    Check if the request or response frame of the priority should be compressed
+    before sent to the peer.
+     */
+    boolean shouldCompress(Frame frame, MessagePriority priority) {
+        var threshold = this.compressionThreshold;
+        if (threshold <= 0 || !this.peerAcceptsCompression
+                || frame.Length < threshold)
+            return false;
+        if (priority != MessagePriority.MARKET_DATA
+                && priority != MessagePriority.QUERY)
+            return false;
+        var type = FrameType.typeOf(frame.Type);
+        return type == FrameType.REQUEST || type == FrameType.RESPONSE;
+    }
+
+    @Override
+    public void setBatchFrames(boolean enabled) {
+        this.batchFrames = enabled;
+    }
+
+    @Override
+    public void flush() {
+        if (this.session != null && !isQueueEmpty())
+            drain();
+    }
+
+    @Override
+    public void setWriteWatermarks(long lowBytes, long highBytes,
+                                   SlowConsumerPolicy policy) {
+        if (highBytes > 0 && (lowBytes < 0 || lowBytes >= highBytes))
+            throw new IllegalArgumentException("invalid watermarks");
+        if (highBytes > 0 && policy == null)
+            throw new NullPointerException("policy null");
+        this.lowWatermark = Math.max(lowBytes, 0);
+        this.highWatermark = Math.max(highBytes, 0);
+        if (policy != null)
+            this.policy = policy;
+        if (this.highWatermark == 0 && this.session != null)
+            release();
+    }
+
+    @Override
+    public <T> ResponseStream<T> openResponseStream(UUID requestID,
+                                                    MessageType type) {
+        Objects.requireNonNull(requestID, "request ID null");
+        Objects.requireNonNull(type, "message type null");
+        var stream = new ResponseStreamImpl<T>(this, requestID, type);
+        if (this.streams.putIfAbsent(requestID, stream) != null)
+            throw new IllegalStateException("stream already open");
+        return stream;
+    }
+
+    DepthDelta.Receiver getDepthReceiver() {
+        return this.depthReceiver;
+    }
+
+    SequenceTracker getSequenceTracker() {
+        return this.sequences;
+    }
+
+    @Override
+    public long getLastSequence(MessageType type, String instrumentID) {
+        return this.sequences.getLast(type, instrumentID);
+    }
+
+    void removeStream(ResponseStreamImpl<?> stream) {
+        this.streams.remove(stream.getRequestID(), stream);
+    }
+
+    /*
+    Grant credits from the client to the stream of the request.
+     */
+    void credit(UUID requestID, int credits) {
+        if (requestID == null || credits <= 0)
+            return;
+        var stream = this.streams.get(requestID);
+        if (stream != null)
+            stream.credit(credits);
+    }
+
+    /*
+    Cancel the streams when the session is closed.
+     */
+    void cancelStreams() {
+        for (var stream : this.streams.values())
+            stream.cancel();
+        this.streams.clear();
+    }
+
     @Override
     public void setAttribute(String key, Object attribute) {
         synchronized (this.attributes) {
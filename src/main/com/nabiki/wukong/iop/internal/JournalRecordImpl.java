@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.JournalRecord;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.IOException;
+
+class JournalRecordImpl implements JournalRecord {
+    private final long time, sessionID, sequence, sendTime;
+    private final int frameType;
+    private final MessageType messageType;
+    private final byte[] body;
+
+    JournalRecordImpl(long time, long sessionID, long sequence, long sendTime,
+                      int frameType, MessageType messageType, byte[] body) {
+        this.time = time;
+        this.sessionID = sessionID;
+        this.sequence = sequence;
+        this.sendTime = sendTime;
+        this.frameType = frameType;
+        this.messageType = messageType;
+        this.body = body;
+    }
+
+    @Override
+    public long getTime() {
+        return this.time;
+    }
+
+    @Override
+    public long getSessionID() {
+        return this.sessionID;
+    }
+
+    @Override
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public long getSendTime() {
+        return this.sendTime;
+    }
+
+    @Override
+    public int getFrameType() {
+        return this.frameType;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return this.body;
+    }
+
+    @Override
+    public Body decode() throws IOException {
+        var codec = BodyCodec.forFrameType(this.frameType);
+        if (FrameType.hasFlag(this.frameType, FrameType.FLAG_DEFLATE)) {
+            var inflated = FrameCompressor.inflate(this.frameType, this.body, 0,
+                    this.body.length);
+            return codec.decode(inflated, 0, inflated.length);
+        }
+        return codec.decode(this.body, 0, this.body.length);
+    }
+
+    @Override
+    public String toString() {
+        return this.time + " " + this.sessionID + " " + this.sequence + " "
+                + Integer.toHexString(this.frameType) + " " + this.messageType
+                + " " + this.body.length;
+    }
+}
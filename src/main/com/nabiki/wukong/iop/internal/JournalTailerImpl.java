@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.JournalRecord;
+import com.nabiki.wukong.iop.JournalTailer;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tailer reading the segments of {@link FrameJournalImpl} from the files. The
+ * tailer moves to the next segment at the end of segment mark, or when a newer
+ * segment exists but the current one has no more records because its writer
+ * crashed.
+ */
+public class JournalTailerImpl implements JournalTailer {
+    private static final MessageType[] types = MessageType.values();
+
+    private final Path directory;
+    private long segmentIndex = -1;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    public JournalTailerImpl(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public JournalRecord next() throws IOException {
+        while (true) {
+            if (this.segment == null && !openNext())
+                return null;
+            var segment = this.segment;
+            int position = segment.position();
+            int length = segment.remaining() >= 4 ? segment.getInt(position) : 0;
+            VarHandle.acquireFence();
+            if (length > 0)
+                return read(segment, position, length);
+            if (length != FrameJournalImpl.END_OF_SEGMENT) {
+                if (length != 0)
+                    throw new IOException("broken journal record");
+                // No record yet if the writer still writes this segment.
+                if (nextSegment() < 0)
+                    return null;
+                VarHandle.acquireFence();
+                if (segment.getInt(position) != 0)
+                    continue;
+            }
+            closeSegment();
+            if (!openNext())
+                return null;
+        }
+    }
+
+    private JournalRecord read(MappedByteBuffer segment, int position,
+                               int length) throws IOException {
+        if (length < FrameJournalImpl.RECORD_HEADER_LENGTH
+                || position + 4 + length > segment.limit())
+            throw new IOException("broken journal record");
+        segment.position(position + 4);
+        var time = segment.getLong();
+        var sessionID = segment.getLong();
+        var sequence = segment.getLong();
+        var sendTime = segment.getLong();
+        var frameType = segment.getInt();
+        var ordinal = segment.getInt();
+        var bodyLength = segment.getInt();
+        if (bodyLength != length - FrameJournalImpl.RECORD_HEADER_LENGTH)
+            throw new IOException("broken journal record");
+        var body = new byte[bodyLength];
+        segment.get(body);
+        var type = ordinal >= 0 && ordinal < types.length ? types[ordinal] : null;
+        return new JournalRecordImpl(time, sessionID, sequence, sendTime,
+                frameType, type, body);
+    }
+
+    /*
+    Open the segment after the current one. Return false if there is no such
+    segment or it is not initialized yet, and the same segment is tried next time.
+     */
+    private boolean openNext() throws IOException {
+        while (true) {
+            var index = nextSegment();
+            if (index < 0)
+                return false;
+            var path = FrameJournalImpl.segmentPath(this.directory, index);
+            try {
+                this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // Deleted by retention.
+                this.segmentIndex = index;
+                continue;
+            }
+            var size = this.channel.size();
+            if (size < FrameJournalImpl.SEGMENT_HEADER_LENGTH) {
+                closeSegment();
+                return false;
+            }
+            var segment = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            var magic = segment.getInt();
+            if (magic == 0) {
+                FrameJournalImpl.unmap(segment);
+                closeSegment();
+                return false;
+            }
+            if (magic != FrameJournalImpl.MAGIC
+                    || segment.getInt() != FrameJournalImpl.VERSION) {
+                FrameJournalImpl.unmap(segment);
+                closeSegment();
+                throw new IOException("not a journal segment: " + path);
+            }
+            this.segment = segment;
+            this.segmentIndex = index;
+            return true;
+        }
+    }
+
+    private long nextSegment() throws IOException {
+        for (var index : FrameJournalImpl.listSegments(this.directory))
+            if (index > this.segmentIndex)
+                return index;
+        return -1;
+    }
+
+    private void closeSegment() {
+        FrameJournalImpl.unmap(this.segment);
+        this.segment = null;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+            }
+            this.channel = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeSegment();
+    }
+}
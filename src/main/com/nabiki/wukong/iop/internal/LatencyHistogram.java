@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.LatencySnapshot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Log-linear histogram like HdrHistogram. Values below 32 have their own buckets,
+and each power of two above is split into 32 buckets, so the bucket width is
+within 1/32 of its values. Values from 2^41 ns (about 36 minutes) are put into the
+last bucket. Recording is an increment of the bucket and doesn't allocate.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+    static final int LENGTH = SUB + (MAX_EXP - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    static int index(long value) {
+        if (value < SUB)
+            return value < 0 ? 0 : (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp > MAX_EXP)
+            return LENGTH - 1;
+        int shift = exp - SUB_BITS;
+        return SUB + shift * SUB + (int) ((value >>> shift) & (SUB - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB)
+            return index;
+        int shift = (index - SUB) / SUB;
+        int sub = (index - SUB) % SUB;
+        return ((long) (SUB + sub + 1) << shift) - 1;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        this.counts.incrementAndGet(index(nanos));
+        this.sum.add(nanos);
+        long m;
+        while (nanos > (m = this.max.get()))
+            if (this.max.compareAndSet(m, nanos))
+                break;
+    }
+
+    void reset() {
+        for (int i = 0; i < LENGTH; ++i)
+            this.counts.set(i, 0);
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    LatencySnapshot snapshot() {
+        var copy = new long[LENGTH];
+        long count = 0;
+        for (int i = 0; i < LENGTH; ++i) {
+            copy[i] = this.counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, this.sum.sum(), this.max.get());
+    }
+
+    private static class Snapshot implements LatencySnapshot {
+        private final long[] counts;
+        private final long count, sum, max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        @Override
+        public long getCount() {
+            return this.count;
+        }
+
+        @Override
+        public double getMean() {
+            return this.count == 0 ? 0 : (double) this.sum / this.count;
+        }
+
+        @Override
+        public long getMax() {
+            return this.max;
+        }
+
+        @Override
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("percentile out of range");
+            if (this.count == 0)
+                return 0;
+            long target = Math.max(1, (long) Math.ceil(
+                    percentile / 100 * this.count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; ++i) {
+                seen += this.counts[i];
+                if (seen >= target)
+                    return Math.min(upperBound(i), this.max);
+            }
+            return this.max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + this.count + " mean=" + (long) getMean()
+                    + " p50=" + getP50() + " p99=" + getP99()
+                    + " p999=" + getP999() + " max=" + this.max;
+        }
+    }
+}
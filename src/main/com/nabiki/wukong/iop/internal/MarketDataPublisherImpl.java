@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcDepthDeltaField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcReplayMarketDataField;
+import com.nabiki.wukong.iop.IOPMetrics;
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.MarketDataPublisher;
+import com.nabiki.wukong.iop.frame.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class MarketDataPublisherImpl implements MarketDataPublisher {
+    /**
+     * Number of the latest market data of each instrument and type kept for
+     * replay.
+     */
+    public static int DEFAULT_REPLAY_LENGTH = 256;
+
+    /*
+    Conflated depth frames waiting for the session to catch up, and the depth of
+    the instruments sent to the session.
+     */
+    private static class SessionState {
+        final Map<String, PendingFrame> pending = new ConcurrentHashMap<>();
+        final Map<String, DepthState> depths = new ConcurrentHashMap<>();
+        volatile int keyframeInterval = 0;
+    }
+
+    /*
+    Pending frame is skipped if it replaces another, so the session marks it.
+     */
+    private static class PendingFrame {
+        final Frame frame;
+        final MessageType type;
+        final boolean skipped;
+
+        PendingFrame(Frame frame, MessageType type, boolean skipped) {
+            this.frame = frame;
+            this.type = type;
+            this.skipped = skipped;
+        }
+    }
+
+    /*
+    Sequence of the market data of an instrument and type, and the latest ones
+    kept for replay. The market data is kept in the ring at its sequence modulo
+    the ring length.
+     */
+    private static class Stream {
+        final Object[] ring;
+        Object latest;
+        long sequence = 0;
+
+        Stream(int length) {
+            this.ring = new Object[length];
+        }
+
+        synchronized long add(Object data) {
+            this.latest = data;
+            ++this.sequence;
+            if (this.ring.length > 0)
+                this.ring[(int) (this.sequence % this.ring.length)] = data;
+            return this.sequence;
+        }
+
+        // First sequence kept in the ring, called with the lock held.
+        long first() {
+            return Math.max(1, this.sequence - this.ring.length + 1);
+        }
+
+        Object get(long sequence) {
+            return this.ring[(int) (sequence % this.ring.length)];
+        }
+    }
+
+    /*
+    Sequence of the last depth of an instrument sent to a session, and its
+    keyframe if the session receives deltas. A depth not newer than the last one
+    is not sent, so the snapshot sent on subscription doesn't repeat or go back
+    behind a live tick.
+     */
+    private static class DepthState {
+        long sequence = 0;
+        CThostFtdcDepthMarketDataField keyframe;
+        int version, count;
+        Frame frame;
+    }
+
+    private final int replayLength;
+    private final SubscriptionRegistryImpl registry;
+    private final Map<String, Stream> depths = new ConcurrentHashMap<>();
+    private final Map<String, Stream> candles = new ConcurrentHashMap<>();
+    private final Map<IOPSessionImpl, SessionState> states
+            = new ConcurrentHashMap<>();
+    private volatile MetricsImpl metrics = new MetricsImpl();
+    // Version of depth, zero is the base version of keyframes.
+    private final AtomicInteger version = new AtomicInteger(0);
+
+    public MarketDataPublisherImpl(SubscriptionRegistryImpl registry) {
+        this(registry, DEFAULT_REPLAY_LENGTH);
+    }
+
+    public MarketDataPublisherImpl(SubscriptionRegistryImpl registry,
+                                   int replayLength) {
+        if (replayLength < 0)
+            throw new IllegalArgumentException("negative replay length");
+        this.registry = registry;
+        this.replayLength = replayLength;
+    }
+
+    @Override
+    public void subscribe(IOPSession session, String pattern) {
+        var impl = cast(session);
+        this.registry.subscribe(impl, pattern);
+        // Send the latest depth of the subscribed instruments as a tick, a
+        // keyframe if the session receives deltas.
+        for (var entry : this.depths.entrySet()) {
+            if (!SubscriptionRegistryImpl.matches(pattern, entry.getKey()))
+                continue;
+            var stream = entry.getValue();
+            Object depth;
+            long sequence;
+            synchronized (stream) {
+                depth = stream.latest;
+                sequence = stream.sequence;
+            }
+            // The stream is created before its first depth is added.
+            if (depth == null)
+                continue;
+            new FanOut(entry.getKey(), depth, MessageType.FLOW_DEPTH, true,
+                    nextVersion(), sequence, true).accept(impl);
+        }
+        // The state of the session closed during the snapshot isn't kept.
+        if (impl.isClosed())
+            remove(impl);
+    }
+
+    @Override
+    public void unsubscribe(IOPSession session, String pattern) {
+        this.registry.unsubscribe(session, pattern);
+        var state = this.states.get(cast(session));
+        if (state == null)
+            return;
+        // Pending depth is never sent, so the session has neither it nor the
+        // keyframe it may be.
+        for (var entry : state.depths.entrySet()) {
+            if (!SubscriptionRegistryImpl.matches(pattern, entry.getKey()))
+                continue;
+            var depth = entry.getValue();
+            synchronized (depth) {
+                if (state.pending.remove(entry.getKey()) != null) {
+                    depth.sequence = 0;
+                    depth.keyframe = null;
+                    depth.frame = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void publish(CThostFtdcDepthMarketDataField depth) {
+        var sequence = stream(this.depths, depth.InstrumentID).add(depth);
+        this.registry.forEachSubscriber(depth.InstrumentID,
+                new FanOut(depth.InstrumentID, depth, MessageType.FLOW_DEPTH,
+                        true, nextVersion(), sequence, false));
+    }
+
+    private int nextVersion() {
+        int v;
+        do {
+            v = this.version.incrementAndGet();
+        } while (v == 0);
+        return v;
+    }
+
+    @Override
+    public void publish(CThostFtdcCandleField candle) {
+        var sequence = stream(this.candles, candle.InstrumentID).add(candle);
+        this.registry.forEachSubscriber(candle.InstrumentID,
+                new FanOut(candle.InstrumentID, candle, MessageType.FLOW_CANDLE,
+                        false, 0, sequence, false));
+    }
+
+    @Override
+    public void setDepthDelta(IOPSession session, int keyframeInterval) {
+        if (keyframeInterval < 0)
+            throw new IllegalArgumentException("negative keyframe interval");
+        if (keyframeInterval > 0 && !DepthDelta.isSupported())
+            throw new UnsupportedOperationException("depth delta not supported");
+        var state = this.states.computeIfAbsent(cast(session),
+                s -> new SessionState());
+        state.keyframeInterval = keyframeInterval;
+        if (keyframeInterval == 0) {
+            for (var depth : state.depths.values()) {
+                synchronized (depth) {
+                    depth.keyframe = null;
+                    depth.frame = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public CThostFtdcDepthMarketDataField getLatestDepth(String instrumentID) {
+        var stream = this.depths.get(instrumentID);
+        if (stream == null)
+            return null;
+        synchronized (stream) {
+            return (CThostFtdcDepthMarketDataField) stream.latest;
+        }
+    }
+
+    /*
+    Send the market data kept in the stream from the requested sequence to the
+    requested one, or to the latest if the requested is zero. The replayed
+    sequences are sent last, zeros if none is replayed.
+     */
+    void replay(IOPSessionImpl session, UUID requestID,
+                CThostFtdcReplayMarketDataField replay) {
+        var type = MessageType.FLOW_CANDLE.name().equals(replay.StreamType)
+                ? MessageType.FLOW_CANDLE : MessageType.FLOW_DEPTH;
+        var streams = type == MessageType.FLOW_CANDLE ? this.candles : this.depths;
+        var stream = replay.InstrumentID != null
+                ? streams.get(replay.InstrumentID) : null;
+        var replayed = new ArrayList<>();
+        long from = 0, to = 0;
+        if (stream != null) {
+            synchronized (stream) {
+                from = Math.max(replay.FromSequence, stream.first());
+                to = replay.ToSequence > 0
+                        ? Math.min(replay.ToSequence, stream.sequence)
+                        : stream.sequence;
+                for (long sequence = from; sequence <= to; ++sequence)
+                    replayed.add(stream.get(sequence));
+            }
+        }
+        if (replayed.isEmpty())
+            from = to = 0;
+        int total = replayed.size() + 1;
+        for (int i = 0; i < replayed.size(); ++i) {
+            var body = new Body();
+            body.RequestID = requestID;
+            body.Type = type;
+            body.CurrentCount = i + 1;
+            body.TotalCount = total;
+            body.Sequence = from + i;
+            body.Payload = replayed.get(i);
+            session.sendResponse(body);
+        }
+        var rsp = new CThostFtdcReplayMarketDataField();
+        rsp.InstrumentID = replay.InstrumentID;
+        rsp.StreamType = type.name();
+        rsp.FromSequence = from;
+        rsp.ToSequence = to;
+        var body = new Body();
+        body.RequestID = requestID;
+        body.Type = MessageType.RSP_REPLAY_MD;
+        body.CurrentCount = total;
+        body.TotalCount = total;
+        body.Payload = rsp;
+        session.sendResponse(body);
+    }
+
+    private Stream stream(Map<String, Stream> streams, String instrumentID) {
+        return streams.computeIfAbsent(instrumentID,
+                key -> new Stream(this.replayLength));
+    }
+
+    /*
+    Called when the session has sent a message and its write queue shrinks.
+     */
+    void sent(IOPSessionImpl session) {
+        var state = this.states.get(session);
+        if (state == null || state.pending.isEmpty() || isBehind(session))
+            return;
+        flushPending(session, state);
+    }
+
+    /*
+    Remove the session from all subscriptions.
+     */
+    void remove(IOPSessionImpl session) {
+        this.states.remove(session);
+        this.registry.unsubscribeAll(session);
+    }
+
+    /*
+    Send one tick to the subscribers. The tick is encoded once for each codec in
+    use, and compressed once for each codec if any session compresses it. Deltas
+    are encoded once for each keyframe they are against. The snapshot sent on
+    subscription goes the same way to one session, and it is a keyframe if the
+    session receives deltas.
+     */
+    private class FanOut implements Consumer<IOPSession> {
+        private final String instrumentID;
+        private final Object data;
+        private final MessageType type;
+        private final boolean conflate;
+        private final int version;
+        private final long sequence;
+        private final boolean snapshot;
+        // JSON, binary, and their compressed frames.
+        private final Frame[] frames = new Frame[4];
+        private Map<Long, Frame> deltas;
+
+        FanOut(String instrumentID, Object data, MessageType type,
+               boolean conflate, int version, long sequence, boolean snapshot) {
+            this.instrumentID = instrumentID;
+            this.data = data;
+            this.type = type;
+            this.conflate = conflate;
+            this.version = version;
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void accept(IOPSession iop) {
+            var session = (IOPSessionImpl) iop;
+            if (session.isClosed()) {
+                remove(session);
+                return;
+            }
+            if (this.type != MessageType.FLOW_DEPTH) {
+                send(session, states.get(session), frame(session), this.type);
+                return;
+            }
+            var state = states.computeIfAbsent(session, s -> new SessionState());
+            var depth = state.depths.computeIfAbsent(this.instrumentID,
+                    key -> new DepthState());
+            // Sequence, keyframe and the pending frame are decided together.
+            synchronized (depth) {
+                if (this.sequence <= depth.sequence)
+                    return;
+                depth.sequence = this.sequence;
+                if (state.keyframeInterval > 0)
+                    send(session, state, deltaFrame(session, state, depth),
+                            MessageType.FLOW_DEPTH_DELTA);
+                else
+                    send(session, state, frame(session), this.type);
+            }
+        }
+
+        private Frame frame(IOPSessionImpl session) {
+            var codec = session.getBodyCodec();
+            int index = codec == BodyCodec.BINARY ? 1 : 0;
+            if (this.frames[index] == null)
+                this.frames[index] = encode(this.data, this.type, codec,
+                        this.sequence);
+            var frame = this.frames[index];
+            if (session.shouldCompress(frame, MessagePriority.MARKET_DATA)) {
+                if (this.frames[index + 2] == null)
+                    this.frames[index + 2] = FrameCompressor.deflate(frame);
+                frame = this.frames[index + 2];
+            }
+            return frame;
+        }
+
+        /*
+        Send a keyframe if the session has no keyframe of the instrument, the
+        interval is reached, or the pending keyframe is to be replaced.
+         */
+        private Frame deltaFrame(IOPSessionImpl session, SessionState state,
+                                 DepthState delta) {
+            var depth = (CThostFtdcDepthMarketDataField) this.data;
+            var pending = state.pending.get(this.instrumentID);
+            var keyframe = this.snapshot || delta.keyframe == null
+                    || delta.count + 1 >= state.keyframeInterval
+                    || (pending != null && pending.frame == delta.frame);
+            var codec = session.getBodyCodec();
+            int baseVersion = keyframe ? 0 : delta.version;
+            var compress = false;
+            long cacheKey = ((long) baseVersion << 2)
+                    | (codec == BodyCodec.BINARY ? 2 : 0);
+            if (this.deltas == null)
+                this.deltas = new HashMap<>();
+            var frame = this.deltas.get(cacheKey);
+            if (frame == null) {
+                CThostFtdcDepthDeltaField field;
+                if (keyframe)
+                    field = DepthDelta.keyframe(depth, this.version);
+                else
+                    field = DepthDelta.delta(delta.keyframe, delta.version,
+                            depth, this.version);
+                frame = encode(field, MessageType.FLOW_DEPTH_DELTA, codec,
+                        this.sequence);
+                this.deltas.put(cacheKey, frame);
+            }
+            if (session.shouldCompress(frame, MessagePriority.MARKET_DATA)) {
+                var compressed = this.deltas.get(cacheKey | 1);
+                if (compressed == null) {
+                    compressed = FrameCompressor.deflate(frame);
+                    this.deltas.put(cacheKey | 1, compressed);
+                }
+                frame = compressed;
+            }
+            if (keyframe) {
+                delta.keyframe = depth;
+                delta.version = this.version;
+                delta.count = 0;
+                delta.frame = frame;
+            } else
+                ++delta.count;
+            return frame;
+        }
+
+        /*
+        The snapshot and the depth replacing a pending one are skipped, because
+        the session doesn't have the depth before them.
+         */
+        private void send(IOPSessionImpl session, SessionState state,
+                          Frame frame, MessageType type) {
+            var skipped = this.snapshot;
+            if (this.conflate) {
+                if (isBehind(session)) {
+                    // Last value wins.
+                    state.pending.compute(this.instrumentID, (key, previous)
+                            -> new PendingFrame(frame, type,
+                            this.snapshot || previous != null));
+                    // The session may catch up before the frame is put, and
+                    // no more sent event comes to flush it.
+                    if (!isBehind(session))
+                        flushPending(session, state);
+                    return;
+                }
+                // The pending frame of the instrument is older.
+                if (state.pending.remove(this.instrumentID) != null)
+                    skipped = true;
+                if (!state.pending.isEmpty())
+                    flushPending(session, state);
+            }
+            session.sendFrame(frame, type, this.instrumentID,
+                    isKeyframe(state, this.instrumentID, frame), skipped);
+        }
+    }
+
+    /*
+    Keyframes are not dropped or conflated by the session, or the deltas after it
+    can't be rebuilt.
+     */
+    private static boolean isKeyframe(SessionState state, String instrumentID,
+                                      Frame frame) {
+        if (state == null)
+            return false;
+        var depth = state.depths.get(instrumentID);
+        return depth != null && depth.frame == frame;
+    }
+
+    private void flushPending(IOPSessionImpl session, SessionState state) {
+        for (var instrumentID : state.pending.keySet()) {
+            var pending = state.pending.remove(instrumentID);
+            if (pending != null)
+                session.sendFrame(pending.frame, pending.type, instrumentID,
+                        isKeyframe(state, instrumentID, pending.frame),
+                        pending.skipped);
+        }
+    }
+
+    /*
+    The session is behind while it is above its write watermark, so the publisher
+    and the session agree on a slow consumer.
+     */
+    private static boolean isBehind(IOPSessionImpl session) {
+        return session.isWriteBacklogged();
+    }
+
+    void setMetrics(MetricsImpl metrics) {
+        this.metrics = metrics;
+    }
+
+    private Frame encode(Object data, MessageType type, BodyCodec codec,
+                         long sequence) {
+        long start = System.nanoTime();
+        var body = new Body();
+        body.Type = type;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Sequence = sequence;
+        body.Payload = data;
+        byte[] bytes;
+        try {
+            bytes = codec.encode(body);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("encode market data", e);
+        }
+        var frame = new Frame();
+        frame.Type = FrameType.RESPONSE | codec.getFlag();
+        frame.Length = bytes.length;
+        frame.Body = bytes;
+        this.metrics.record(IOPMetrics.Stage.ENCODE, System.nanoTime() - start);
+        return frame;
+    }
+
+    private static IOPSessionImpl cast(IOPSession session) {
+        if (!(session instanceof IOPSessionImpl))
+            throw new IllegalArgumentException("session not created by IOP");
+        return (IOPSessionImpl) session;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.IOPMetrics;
+import com.nabiki.wukong.iop.LatencySnapshot;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsImpl implements IOPMetrics, MetricsMXBean {
+    public static final String JMX_DOMAIN = "com.nabiki.wukong.iop";
+
+    private static final MessageType[] types = MessageType.values();
+    private static final Stage[] stages = Stage.values();
+
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder brokenFrames = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final AtomicLongArray messagesIn = new AtomicLongArray(types.length);
+    private final AtomicLongArray messagesOut = new AtomicLongArray(types.length);
+    private final LatencyHistogram[] latencies = new LatencyHistogram[stages.length];
+
+    public MetricsImpl() {
+        for (int i = 0; i < this.latencies.length; ++i)
+            this.latencies[i] = new LatencyHistogram();
+    }
+
+    /*
+    Register the metrics to the platform MBean server under the specified name.
+     */
+    void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, MetricsMXBean.class, true),
+                    new ObjectName(JMX_DOMAIN + ":type=Metrics,name="
+                            + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("register metrics MBean", e);
+        }
+    }
+
+    void received(int frames, int bytes) {
+        this.framesIn.add(frames);
+        this.bytesIn.add(bytes);
+    }
+
+    void sent(int frames, int bytes) {
+        this.framesOut.add(frames);
+        this.bytesOut.add(bytes);
+    }
+
+    void brokenFrame() {
+        this.brokenFrames.increment();
+    }
+
+    void decodeError() {
+        this.decodeErrors.increment();
+    }
+
+    void messageIn(MessageType type) {
+        if (type != null)
+            this.messagesIn.incrementAndGet(type.ordinal());
+    }
+
+    void messageOut(MessageType type) {
+        if (type != null)
+            this.messagesOut.incrementAndGet(type.ordinal());
+    }
+
+    void record(Stage stage, long nanos) {
+        this.latencies[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public long getFramesIn() {
+        return this.framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return this.framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    @Override
+    public long getBrokenFrames() {
+        return this.brokenFrames.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return this.decodeErrors.sum();
+    }
+
+    @Override
+    public long getMessagesIn(MessageType type) {
+        return this.messagesIn.get(type.ordinal());
+    }
+
+    @Override
+    public long getMessagesOut(MessageType type) {
+        return this.messagesOut.get(type.ordinal());
+    }
+
+    @Override
+    public LatencySnapshot getLatency(Stage stage) {
+        return this.latencies[stage.ordinal()].snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesInByType() {
+        return byType(this.messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOutByType() {
+        return byType(this.messagesOut);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        var map = new LinkedHashMap<String, LatencySnapshot>();
+        for (var stage : stages)
+            map.put(stage.name(), getLatency(stage));
+        return map;
+    }
+
+    @Override
+    public void reset() {
+        this.framesIn.reset();
+        this.framesOut.reset();
+        this.bytesIn.reset();
+        this.bytesOut.reset();
+        this.brokenFrames.reset();
+        this.decodeErrors.reset();
+        for (int i = 0; i < types.length; ++i) {
+            this.messagesIn.set(i, 0);
+            this.messagesOut.set(i, 0);
+        }
+        for (var latency : this.latencies)
+            latency.reset();
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray counts) {
+        var map = new LinkedHashMap<String, Long>();
+        for (var type : types)
+            map.put(type.name(), counts.get(type.ordinal()));
+        return map;
+    }
+}
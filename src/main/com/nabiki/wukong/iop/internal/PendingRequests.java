@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.ResponseStream;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table of the requests waiting for responses, keyed by request ID. A request is
+ * removed when its last response arrives, when no response arrives within the
+ * timeout after the request or the previous response, or when the session is
+ * closed.
+ *
+ * <p>The table also grants credits to the streamed responses as they are
+ * consumed, in batches of half the window the server starts with. A response is
+ * consumed when the message adaptor returns from it or it completes a future,
+ * or when the subscriber of a publisher receives it.
+ * </p>
+ */
+class PendingRequests {
+    static final int CREDIT_BATCH = ResponseStreamImpl.WINDOW / 2;
+
+    // Time out the requests.
+    private static final ScheduledExecutorService timer
+            = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "iop-request-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private abstract class Pending {
+        final UUID requestID;
+        final long timeoutNanos;
+        private ScheduledFuture<?> timeout;
+
+        Pending(UUID requestID, Duration timeout) {
+            this.requestID = requestID;
+            this.timeoutNanos = timeout.toNanos();
+        }
+
+        synchronized void schedule() {
+            if (this.timeout != null)
+                this.timeout.cancel(false);
+            this.timeout = timer.schedule(() -> {
+                // Waiting for the subscriber, not for the server.
+                if (!isWaiting()) {
+                    schedule();
+                    return;
+                }
+                if (pending.remove(this.requestID, this)) {
+                    consumed.remove(this.requestID);
+                    fail(new TimeoutException("request timeout"));
+                }
+            }, this.timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        synchronized void cancelTimeout() {
+            if (this.timeout != null)
+                this.timeout.cancel(false);
+        }
+
+        boolean isWaiting() {
+            return true;
+        }
+
+        abstract void next(IOPSession session, Body body);
+
+        abstract void complete();
+
+        abstract void fail(Throwable cause);
+    }
+
+    /*
+    The future completes with the first response, and the following responses of
+    the same request are consumed.
+     */
+    private class SinglePending extends Pending {
+        final CompletableFuture<Body> future = new CompletableFuture<>();
+
+        SinglePending(UUID requestID, Duration timeout) {
+            super(requestID, timeout);
+        }
+
+        @Override
+        void next(IOPSession session, Body body) {
+            this.future.complete(body);
+            consumed(session, body);
+        }
+
+        @Override
+        void complete() {
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            this.future.completeExceptionally(cause);
+        }
+    }
+
+    private class ManyPending extends Pending {
+        final ResponsePublisher publisher;
+        volatile IOPSession session;
+
+        ManyPending(UUID requestID, Duration timeout) {
+            super(requestID, timeout);
+            this.publisher = new ResponsePublisher(() -> remove(this),
+                    body -> consumed(this.session, body));
+        }
+
+        @Override
+        boolean isWaiting() {
+            return !this.publisher.hasBuffered();
+        }
+
+        @Override
+        void next(IOPSession session, Body body) {
+            this.session = session;
+            // Empty stream has no row to publish.
+            if (body.CurrentCount != 0 || body.TotalCount != 0)
+                this.publisher.next(body);
+        }
+
+        @Override
+        void complete() {
+            this.publisher.complete();
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            this.publisher.fail(cause);
+        }
+    }
+
+    private final Map<UUID, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<UUID, AtomicInteger> consumed = new ConcurrentHashMap<>();
+
+    CompletableFuture<Body> single(UUID requestID, Duration timeout) {
+        var p = new SinglePending(requestID, timeout);
+        add(p);
+        // Forget the request if the future is cancelled.
+        p.future.whenComplete((body, cause) -> {
+            if (p.future.isCancelled())
+                remove(p);
+        });
+        return p.future;
+    }
+
+    ResponsePublisher many(UUID requestID, Duration timeout) {
+        var p = new ManyPending(requestID, timeout);
+        add(p);
+        return p.publisher;
+    }
+
+    private void add(Pending p) {
+        if (this.pending.putIfAbsent(p.requestID, p) != null)
+            throw new IllegalArgumentException("duplicate request ID");
+        p.schedule();
+    }
+
+    private void remove(Pending p) {
+        if (this.pending.remove(p.requestID, p))
+            p.cancelTimeout();
+        this.consumed.remove(p.requestID);
+    }
+
+    /*
+    Fail the request that can't be sent.
+     */
+    void fail(UUID requestID, Throwable cause) {
+        var p = this.pending.remove(requestID);
+        this.consumed.remove(requestID);
+        if (p != null) {
+            p.cancelTimeout();
+            p.fail(cause);
+        }
+    }
+
+    /**
+     * Deliver the response to its request.
+     *
+     * @param session session receiving the response
+     * @param body    response
+     * @return {@code true} if the response belongs to a pending request
+     */
+    boolean complete(IOPSession session, Body body) {
+        if (body.RequestID == null)
+            return false;
+        var p = this.pending.get(body.RequestID);
+        if (p == null)
+            return false;
+        p.next(session, body);
+        if (body.TotalCount != ResponseStream.UNKNOWN_TOTAL
+                && body.CurrentCount >= body.TotalCount) {
+            remove(p);
+            p.complete();
+        } else
+            p.schedule();
+        return true;
+    }
+
+    /*
+    Count the consumed response, and grant the credits if the response is streamed
+    and the count reaches a batch.
+     */
+    void consumed(IOPSession session, Body body) {
+        if (body.RequestID == null)
+            return;
+        if (body.TotalCount != ResponseStream.UNKNOWN_TOTAL) {
+            this.consumed.remove(body.RequestID);
+            return;
+        }
+        var count = this.consumed.computeIfAbsent(body.RequestID,
+                key -> new AtomicInteger(0));
+        if (count.incrementAndGet() < CREDIT_BATCH)
+            return;
+        var credits = count.getAndSet(0);
+        if (credits > 0 && session != null && !session.isClosed()) {
+            var credit = new Body();
+            credit.RequestID = body.RequestID;
+            credit.Type = MessageType.FLOW_CREDIT;
+            credit.CurrentCount = credits;
+            session.sendRequest(credit);
+        }
+    }
+
+    /*
+    Fail all requests when the session is closed.
+     */
+    void failAll() {
+        this.consumed.clear();
+        for (var requestID : this.pending.keySet())
+            fail(requestID, new IOException("session closed"));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@link IoBufferAllocator} that recycles the buffers in size classes of power of
+ * two. The buffer goes back to the pool when it is freed.
+ *
+ * <p>Unlike MINA's {@link org.apache.mina.core.buffer.CachedBufferAllocator},
+ * the freed buffer is pooled whichever thread frees it. The encoder allocates the
+ * buffer on the writing thread, and the I/O processor frees it after the buffer
+ * is written to the socket.
+ * </p>
+ */
+public class PooledBufferAllocator implements IoBufferAllocator {
+    public static int DEFAULT_MAX_POOL_SIZE = 64;
+    public static int DEFAULT_MAX_POOLED_CAPACITY = 1 << 20;
+
+    private final int maxPoolSize, maxPooledCapacity;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] heapPools, directPools;
+    private final AtomicIntegerArray heapSizes, directSizes;
+
+    public PooledBufferAllocator() {
+        this(DEFAULT_MAX_POOL_SIZE, DEFAULT_MAX_POOLED_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PooledBufferAllocator(int maxPoolSize, int maxPooledCapacity) {
+        if (maxPoolSize < 0)
+            throw new IllegalArgumentException("negative pool size");
+        if (maxPooledCapacity < 1)
+            throw new IllegalArgumentException("non-positive pooled capacity");
+        this.maxPoolSize = maxPoolSize;
+        this.maxPooledCapacity = normalize(maxPooledCapacity);
+        int count = indexOf(this.maxPooledCapacity) + 1;
+        this.heapPools = new ConcurrentLinkedQueue[count];
+        this.directPools = new ConcurrentLinkedQueue[count];
+        for (int i = 0; i < count; ++i) {
+            this.heapPools[i] = new ConcurrentLinkedQueue<>();
+            this.directPools[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.heapSizes = new AtomicIntegerArray(count);
+        this.directSizes = new AtomicIntegerArray(count);
+    }
+
+    @Override
+    public IoBuffer allocate(int capacity, boolean direct) {
+        return wrap(allocateNioBuffer(capacity, direct));
+    }
+
+    @Override
+    public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+        int actual = normalize(capacity);
+        ByteBuffer buf = null;
+        if (actual <= this.maxPooledCapacity) {
+            int index = indexOf(actual);
+            buf = (direct ? this.directPools : this.heapPools)[index].poll();
+            if (buf != null)
+                (direct ? this.directSizes : this.heapSizes)
+                        .decrementAndGet(index);
+        }
+        if (buf == null) {
+            if (direct)
+                buf = ByteBuffer.allocateDirect(actual);
+            else
+                buf = ByteBuffer.allocate(actual);
+        }
+        buf.clear();
+        buf.limit(capacity);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return buf;
+    }
+
+    @Override
+    public IoBuffer wrap(ByteBuffer nioBuffer) {
+        return new PooledBuffer(nioBuffer);
+    }
+
+    @Override
+    public void dispose() {
+        for (int i = 0; i < this.heapPools.length; ++i) {
+            this.heapPools[i].clear();
+            this.directPools[i].clear();
+        }
+    }
+
+    /*
+    Round up the capacity to power of two.
+     */
+    private static int normalize(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("negative capacity");
+        if (capacity <= 1)
+            return 1;
+        if (capacity > (1 << 30))
+            return Integer.MAX_VALUE;
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private static int indexOf(int normalizedCapacity) {
+        return Integer.numberOfTrailingZeros(normalizedCapacity);
+    }
+
+    private void recycle(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (buf.isReadOnly() || capacity > this.maxPooledCapacity
+                || Integer.bitCount(capacity) != 1)
+            return;
+        int index = indexOf(capacity);
+        var sizes = buf.isDirect() ? this.directSizes : this.heapSizes;
+        if (sizes.incrementAndGet(index) <= this.maxPoolSize)
+            (buf.isDirect() ? this.directPools : this.heapPools)[index].offer(buf);
+        else
+            sizes.decrementAndGet(index);
+    }
+
+    private class PooledBuffer extends AbstractIoBuffer {
+        private ByteBuffer buf;
+
+        PooledBuffer(ByteBuffer buf) {
+            super(PooledBufferAllocator.this, buf.capacity());
+            this.buf = buf;
+        }
+
+        PooledBuffer(PooledBuffer parent, ByteBuffer buf) {
+            super(parent);
+            this.buf = buf;
+        }
+
+        @Override
+        public ByteBuffer buf() {
+            if (this.buf == null)
+                throw new IllegalStateException("buffer has been freed");
+            return this.buf;
+        }
+
+        @Override
+        protected void buf(ByteBuffer buf) {
+            var old = this.buf;
+            this.buf = buf;
+            free(old);
+        }
+
+        @Override
+        protected IoBuffer duplicate0() {
+            return new PooledBuffer(this, buf().duplicate());
+        }
+
+        @Override
+        protected IoBuffer slice0() {
+            return new PooledBuffer(this, buf().slice());
+        }
+
+        @Override
+        protected IoBuffer asReadOnlyBuffer0() {
+            return new PooledBuffer(this, buf().asReadOnlyBuffer());
+        }
+
+        @Override
+        public byte[] array() {
+            return buf().array();
+        }
+
+        @Override
+        public int arrayOffset() {
+            return buf().arrayOffset();
+        }
+
+        @Override
+        public boolean hasArray() {
+            return buf().hasArray();
+        }
+
+        @Override
+        public void free() {
+            var old = this.buf;
+            this.buf = null;
+            free(old);
+        }
+
+        private void free(ByteBuffer old) {
+            // Derived buffer shares memory with its parent.
+            if (old != null && !isDerived())
+                recycle(old);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.MessagePriority;
+import org.apache.mina.core.session.AbstractIoSession;
+import org.apache.mina.core.session.DefaultIoSessionDataStructureFactory;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteRequestQueue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Session data structures with a write request queue ordered by
+ * {@link MessagePriority}. The I/O processor takes the write of the highest
+ * priority first, so an order response doesn't wait behind the market data
+ * already queued in the session. Writes of the same priority keep their order.
+ */
+class PrioritySessionDataStructureFactory
+        extends DefaultIoSessionDataStructureFactory {
+    @Override
+    public WriteRequestQueue getWriteRequestQueue(IoSession session) {
+        return new PriorityWriteRequestQueue();
+    }
+
+    static class PriorityWriteRequestQueue implements WriteRequestQueue {
+        // Writes that are not frames and the close request go last.
+        private static final int LOWEST = MessagePriority.values().length - 1;
+
+        private final Queue<WriteRequest>[] queues = createQueues();
+
+        @SuppressWarnings("unchecked")
+        private static Queue<WriteRequest>[] createQueues() {
+            var queues = new Queue[MessagePriority.values().length];
+            for (int i = 0; i < queues.length; ++i)
+                queues[i] = new ConcurrentLinkedQueue<WriteRequest>();
+            return (Queue<WriteRequest>[]) queues;
+        }
+
+        @Override
+        public WriteRequest poll(IoSession session) {
+            for (var queue : this.queues) {
+                var request = queue.poll();
+                if (request == null)
+                    continue;
+                if (request == AbstractIoSession.CLOSE_REQUEST) {
+                    session.closeNow();
+                    dispose(session);
+                    return null;
+                }
+                return request;
+            }
+            return null;
+        }
+
+        @Override
+        public void offer(IoSession session, WriteRequest writeRequest) {
+            this.queues[lane(writeRequest)].offer(writeRequest);
+        }
+
+        private static int lane(WriteRequest writeRequest) {
+            var message = writeRequest.getOriginalMessage();
+            if (message instanceof WriteBatch)
+                return ((WriteBatch) message).priority.ordinal();
+            else
+                return LOWEST;
+        }
+
+        @Override
+        public boolean isEmpty(IoSession session) {
+            for (var queue : this.queues)
+                if (!queue.isEmpty())
+                    return false;
+            return true;
+        }
+
+        @Override
+        public void clear(IoSession session) {
+            for (var queue : this.queues)
+                queue.clear();
+        }
+
+        @Override
+        public void dispose(IoSession session) {
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (var queue : this.queues)
+                size += queue.size();
+            return size;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.Body;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Publisher of the responses to one request. It accepts one subscriber, and the
+ * responses arrived before the subscriber or its demand are buffered. An error
+ * is signalled at once, while completion waits for the buffered responses.
+ */
+class ResponsePublisher implements Flow.Publisher<Body> {
+    private final Queue<Body> items = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong(0);
+    private final AtomicInteger wip = new AtomicInteger(0);
+    private final AtomicReference<Flow.Subscriber<? super Body>> subscriber
+            = new AtomicReference<>();
+    private final Runnable onCancel;
+    private final Consumer<Body> onDelivered;
+    private volatile boolean done = false, cancelled = false, terminated = false;
+    private volatile Throwable error;
+
+    ResponsePublisher(Runnable onCancel, Consumer<Body> onDelivered) {
+        this.onCancel = onCancel;
+        this.onDelivered = onDelivered;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Body> s) {
+        if (!this.subscriber.compareAndSet(null, s)) {
+            s.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("publisher already subscribed"));
+            return;
+        }
+        s.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("non-positive request"));
+                    return;
+                }
+                demand.getAndAccumulate(n, (a, b) -> {
+                    long r = a + b;
+                    return r < 0 ? Long.MAX_VALUE : r;
+                });
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                if (!cancelled) {
+                    cancelled = true;
+                    items.clear();
+                    onCancel.run();
+                }
+            }
+        });
+        drain();
+    }
+
+    void next(Body body) {
+        if (this.done || this.cancelled)
+            return;
+        this.items.offer(body);
+        drain();
+    }
+
+    boolean hasBuffered() {
+        return !this.items.isEmpty();
+    }
+
+    void complete() {
+        this.done = true;
+        drain();
+    }
+
+    void fail(Throwable cause) {
+        if (this.done)
+            return;
+        this.error = cause;
+        this.done = true;
+        drain();
+    }
+
+    /*
+    Only one thread signals the subscriber at a time.
+     */
+    private void drain() {
+        if (this.wip.getAndIncrement() != 0)
+            return;
+        int missed = 1;
+        do {
+            var s = this.subscriber.get();
+            if (s != null && !this.terminated)
+                emit(s);
+            missed = this.wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit(Flow.Subscriber<? super Body> s) {
+        while (!this.cancelled) {
+            if (this.error != null) {
+                terminate();
+                s.onError(this.error);
+                return;
+            }
+            var isDone = this.done;
+            if (this.demand.get() > 0) {
+                var body = this.items.poll();
+                if (body != null) {
+                    this.demand.decrementAndGet();
+                    s.onNext(body);
+                    this.onDelivered.accept(body);
+                    continue;
+                }
+            }
+            if (isDone && this.items.isEmpty()) {
+                terminate();
+                s.onComplete();
+            }
+            return;
+        }
+    }
+
+    private void terminate() {
+        this.terminated = true;
+        this.items.clear();
+    }
+}
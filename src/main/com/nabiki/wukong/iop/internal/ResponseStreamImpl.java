@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.ResponseStream;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.UUID;
+
+class ResponseStreamImpl<T> implements ResponseStream<T> {
+    /*
+    Credits the client has before it grants any, so the client not granting
+    credits still gets the responses that fit in the window.
+     */
+    static final int WINDOW = 64;
+
+    private final IOPSessionImpl session;
+    private final UUID requestID;
+    private final MessageType type;
+    private final Queue<Object> waiting = new LinkedList<>();
+    // Responses to send, written outside the lock by one thread at a time.
+    private final Queue<Body> outbox = new LinkedList<>();
+    private Object held;
+    private int credits = WINDOW, count = 0;
+    private boolean completed = false, finished = false, sending = false;
+    private volatile boolean cancelled = false;
+    private volatile Runnable onReady;
+
+    ResponseStreamImpl(IOPSessionImpl session, UUID requestID, MessageType type) {
+        if (type.getPayloadClass() == null)
+            throw new IllegalArgumentException("message type carries no data");
+        this.session = session;
+        this.requestID = requestID;
+        this.type = type;
+    }
+
+    UUID getRequestID() {
+        return this.requestID;
+    }
+
+    @Override
+    public void next(T row) {
+        if (!this.type.getPayloadClass().isInstance(row))
+            throw new IllegalArgumentException("row doesn't match message type");
+        boolean send;
+        synchronized (this) {
+            if (this.completed)
+                throw new IllegalStateException("stream completed");
+            if (this.cancelled)
+                return;
+            if (this.held != null)
+                this.waiting.add(this.held);
+            this.held = row;
+            send = pump();
+        }
+        if (send)
+            sendOutbox();
+    }
+
+    @Override
+    public void complete() {
+        boolean send;
+        synchronized (this) {
+            if (this.completed)
+                return;
+            this.completed = true;
+            send = pump();
+        }
+        if (send)
+            sendOutbox();
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return !this.cancelled && !this.completed
+                && this.credits > this.waiting.size();
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable handler) {
+        this.onReady = handler;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /*
+    Add the credits granted by the client, and call ready handler if the stream
+    turns ready.
+     */
+    void credit(int n) {
+        boolean ready, send;
+        synchronized (this) {
+            if (this.finished || this.cancelled)
+                return;
+            var wasReady = isReady();
+            this.credits = (int) Math.min((long) this.credits + n,
+                    Integer.MAX_VALUE);
+            send = pump();
+            ready = !wasReady && isReady();
+        }
+        if (send)
+            sendOutbox();
+        var handler = this.onReady;
+        if (ready && handler != null)
+            handler.run();
+    }
+
+    void cancel() {
+        synchronized (this) {
+            this.cancelled = true;
+            this.waiting.clear();
+            this.outbox.clear();
+            this.held = null;
+        }
+    }
+
+    /*
+    Move the rows within credits to outbox. The held row is sent as the last row
+    after the stream completes. Return true if the caller should send outbox.
+     */
+    private boolean pump() {
+        while (this.credits > 0 && !this.waiting.isEmpty())
+            post(this.waiting.poll(), UNKNOWN_TOTAL);
+        if (this.completed && this.waiting.isEmpty() && !this.finished) {
+            if (this.held == null)
+                post(null, 0);
+            else if (this.credits > 0) {
+                var last = this.held;
+                this.held = null;
+                post(last, this.count + 1);
+            }
+            if (this.held == null) {
+                this.finished = true;
+                this.session.removeStream(this);
+            }
+        }
+        if (this.sending || this.outbox.isEmpty())
+            return false;
+        this.sending = true;
+        return true;
+    }
+
+    /*
+    Sending may block on a backlogged session, so it doesn't hold the lock and the
+    thread granting credits doesn't wait for it.
+     */
+    private void sendOutbox() {
+        while (true) {
+            Body body;
+            synchronized (this) {
+                body = this.outbox.poll();
+                if (body == null) {
+                    this.sending = false;
+                    return;
+                }
+            }
+            this.session.sendResponse(body);
+        }
+    }
+
+    private void post(Object row, int total) {
+        var body = new Body();
+        body.RequestID = this.requestID;
+        body.ResponseID = UUID.randomUUID();
+        body.Type = this.type;
+        body.Payload = row;
+        if (row != null) {
+            --this.credits;
+            body.CurrentCount = ++this.count;
+        }
+        body.TotalCount = total;
+        this.outbox.add(body);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.SequenceGap;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last sequences of the market data streams received by a session. A sequence
+ * not following the last one of its stream is a gap, and a sequence not greater
+ * than the last one resets the stream because the server restarts. The frame
+ * marked with {@link com.nabiki.wukong.iop.frame.FrameType#FLAG_CONFLATED}
+ * follows the market data the server doesn't send, and its sequence jumps
+ * without a gap.
+ */
+class SequenceTracker {
+    private final Map<String, Long> depths = new ConcurrentHashMap<>();
+    private final Map<String, Long> candles = new ConcurrentHashMap<>();
+
+    /*
+    Record the sequence and return the gap before it, or null if no gap.
+     */
+    SequenceGap receive(MessageType type, String instrumentID, long sequence,
+                        boolean conflated) {
+        var last = streams(type).put(instrumentID, sequence);
+        if (conflated || last == null || sequence <= last + 1)
+            return null;
+        return new SequenceGap(instrumentID, type, last + 1, sequence - 1);
+    }
+
+    /*
+    Move the last sequence of the stream to the replayed one if it is behind.
+     */
+    void replayed(MessageType type, String instrumentID, long sequence) {
+        if (sequence > 0)
+            streams(type).merge(instrumentID, sequence, Math::max);
+    }
+
+    long getLast(MessageType type, String instrumentID) {
+        var last = streams(type).get(instrumentID);
+        return last != null ? last : 0;
+    }
+
+    private Map<String, Long> streams(MessageType type) {
+        switch (type) {
+            case FLOW_DEPTH:
+                return this.depths;
+            case FLOW_CANDLE:
+                return this.candles;
+            default:
+                throw new IllegalArgumentException("not a market data stream");
+        }
+    }
+}
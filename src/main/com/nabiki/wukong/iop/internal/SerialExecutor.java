@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.MessagePriority;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running its tasks one after another on the delegate executor. Each
+ * session has its own serial executor so the messages of a session are handled in
+ * order, while different sessions run in parallel on the shared delegate.
+ *
+ * <p>Waiting tasks of higher {@link MessagePriority} run first, and the tasks of
+ * the same priority run in order.
+ * </p>
+ */
+class SerialExecutor implements Executor {
+    /*
+    Give the thread back to the delegate after so many tasks, so a busy session
+    doesn't starve others sharing the delegate.
+     */
+    static final int MAX_TASKS_PER_RUN = 16;
+
+    private final Executor delegate;
+    private final Queue<Runnable>[] tasks = createQueues();
+    private final AtomicInteger wip = new AtomicInteger(0);
+
+    SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Runnable>[] createQueues() {
+        var queues = new Queue[MessagePriority.values().length];
+        for (int i = 0; i < queues.length; ++i)
+            queues[i] = new ConcurrentLinkedQueue<Runnable>();
+        return (Queue<Runnable>[]) queues;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(task, MessagePriority.HEARTBEAT);
+    }
+
+    void execute(Runnable task, MessagePriority priority) {
+        this.tasks[priority.ordinal()].offer(task);
+        if (this.wip.getAndIncrement() == 0)
+            submit();
+    }
+
+    private void submit() {
+        try {
+            this.delegate.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            // Drop the tasks so the executor can start again.
+            for (var queue : this.tasks)
+                queue.clear();
+            this.wip.set(0);
+            throw e;
+        }
+    }
+
+    private void run() {
+        for (int n = 0; n < MAX_TASKS_PER_RUN; ++n) {
+            poll().run();
+            if (this.wip.decrementAndGet() == 0)
+                return;
+        }
+        // More tasks are left, reschedule behind other sessions.
+        submit();
+    }
+
+    /*
+    A task is counted after it is queued, so a counted task is always found.
+     */
+    private Runnable poll() {
+        while (true) {
+            for (var queue : this.tasks) {
+                var task = queue.poll();
+                if (task != null)
+                    return task;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.LatencySnapshot;
+import com.nabiki.wukong.iop.SessionMetrics;
+import com.nabiki.wukong.iop.frame.Frame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class SessionMetricsImpl implements SessionMetrics {
+    private final AtomicLong framesIn = new AtomicLong(0);
+    private final AtomicLong framesOut = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    // Created on the first stamped response, most sessions don't stamp.
+    private volatile LatencyHistogram[] latencies;
+
+    void received(int frames, int bytes) {
+        this.framesIn.addAndGet(frames);
+        this.bytesIn.addAndGet(bytes);
+    }
+
+    void sent(int frames, int bytes) {
+        this.framesOut.addAndGet(frames);
+        this.bytesOut.addAndGet(bytes);
+    }
+
+    /*
+    Record the latencies of the request answered by the stamped frame.
+     */
+    void stamped(long received, Frame frame) {
+        var latencies = this.latencies;
+        if (latencies == null) {
+            synchronized (this) {
+                latencies = this.latencies;
+                if (latencies == null) {
+                    latencies = new LatencyHistogram[Latency.values().length];
+                    for (int i = 0; i < latencies.length; ++i)
+                        latencies[i] = new LatencyHistogram();
+                    this.latencies = latencies;
+                }
+            }
+        }
+        long roundTrip = received - frame.RequestSendTime;
+        long peer = frame.SendTime - frame.RequestReceiveTime;
+        latencies[Latency.ROUND_TRIP.ordinal()].record(roundTrip);
+        latencies[Latency.PEER.ordinal()].record(peer);
+        latencies[Latency.PEER_QUEUE.ordinal()].record(
+                frame.RequestDispatchTime - frame.RequestReceiveTime);
+        latencies[Latency.NETWORK.ordinal()].record(roundTrip - peer);
+    }
+
+    @Override
+    public LatencySnapshot getLatency(Latency latency) {
+        var latencies = this.latencies;
+        if (latencies == null)
+            return new LatencyHistogram().snapshot();
+        return latencies[latency.ordinal()].snapshot();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return this.framesIn.get();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return this.framesOut.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.get();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.BinaryBodyCodec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reflection-free delta of a struct, generated at build time. The fields are in
+ * the alphabetical order of their names, each has a bit in the mask, and the
+ * values are written in the same format as {@link BinaryBodyCodec}.
+ *
+ * @param <T> type of the struct
+ */
+interface StructDelta<T> {
+    /**
+     * Get the number of fields, which is not more than the bits of the mask.
+     *
+     * @return number of fields
+     */
+    int size();
+
+    /**
+     * Write the fields of the value differing from the base, and get the mask of
+     * the fields written.
+     *
+     * @param base base struct
+     * @param value struct to write
+     * @param out output
+     * @return mask of the fields written
+     */
+    long diff(T base, T value, BinaryBodyCodec.BinaryOutput out);
+
+    /**
+     * Get a new struct with the fields in the mask read from the input, and the
+     * other fields copied from the base.
+     *
+     * @param base base struct
+     * @param mask mask of the fields in input
+     * @param in input
+     * @return new struct
+     * @throws BufferUnderflowException if input is too short
+     */
+    T apply(T base, long mask, ByteBuffer in);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.SubscriptionRegistry;
+import com.nabiki.wukong.iop.frame.OP;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The lookup of subscribers for an instrument takes three hash lookups, for the
+ * instrument, its product and all instruments, whatever the total number of
+ * subscriptions.
+ */
+public class SubscriptionRegistryImpl implements SubscriptionRegistry {
+    private final Map<String, Set<IOPSession>> instruments
+            = new ConcurrentHashMap<>();
+    private final Map<String, Set<IOPSession>> products
+            = new ConcurrentHashMap<>();
+    private final Set<IOPSession> all = ConcurrentHashMap.newKeySet();
+    private final Map<IOPSession, Set<String>> patterns
+            = new ConcurrentHashMap<>();
+    // Cache product IDs so that the lookup doesn't match regex per tick.
+    private final Map<String, String> productIDs = new ConcurrentHashMap<>();
+
+    public SubscriptionRegistryImpl() {
+    }
+
+    @Override
+    public void subscribe(IOPSession session, String pattern) {
+        Objects.requireNonNull(session, "session null");
+        Objects.requireNonNull(pattern, "pattern null");
+        this.patterns.computeIfAbsent(session,
+                s -> ConcurrentHashMap.newKeySet()).add(pattern);
+        if (pattern.equals(ALL))
+            this.all.add(session);
+        else if (pattern.endsWith("*"))
+            add(this.products, productOf(pattern), session);
+        else
+            add(this.instruments, pattern, session);
+        // The session closing in the meantime is already removed, so the
+        // subscription is undone.
+        if (session.isClosed())
+            unsubscribeAll(session);
+    }
+
+    @Override
+    public void unsubscribe(IOPSession session, String pattern) {
+        var set = this.patterns.get(session);
+        if (set != null)
+            set.remove(pattern);
+        if (pattern.equals(ALL))
+            this.all.remove(session);
+        else if (pattern.endsWith("*"))
+            remove(this.products, productOf(pattern), session);
+        else
+            remove(this.instruments, pattern, session);
+    }
+
+    @Override
+    public void unsubscribeAll(IOPSession session) {
+        var set = this.patterns.remove(session);
+        if (set == null)
+            return;
+        for (var pattern : set) {
+            if (pattern.equals(ALL))
+                this.all.remove(session);
+            else if (pattern.endsWith("*"))
+                remove(this.products, productOf(pattern), session);
+            else
+                remove(this.instruments, pattern, session);
+        }
+    }
+
+    @Override
+    public Set<String> getSubscriptions(IOPSession session) {
+        var set = this.patterns.get(session);
+        if (set == null)
+            return Collections.emptySet();
+        else
+            return new HashSet<>(set);
+    }
+
+    @Override
+    public Collection<IOPSession> getSubscribers(String instrumentID) {
+        var r = new HashSet<IOPSession>();
+        forEachSubscriber(instrumentID, r::add);
+        return r;
+    }
+
+    /*
+    Visit each session subscribing the instrument once.
+     */
+    void forEachSubscriber(String instrumentID, Consumer<IOPSession> consumer) {
+        var byInstrument = this.instruments.get(instrumentID);
+        if (byInstrument != null)
+            byInstrument.forEach(consumer);
+        Set<IOPSession> byProduct = null;
+        if (!this.products.isEmpty())
+            byProduct = this.products.get(this.productIDs.computeIfAbsent(
+                    instrumentID,
+                    k -> Objects.requireNonNullElse(OP.getProductID(k), "")));
+        if (byProduct != null) {
+            for (var session : byProduct)
+                if (byInstrument == null || !byInstrument.contains(session))
+                    consumer.accept(session);
+        }
+        for (var session : this.all) {
+            if ((byInstrument == null || !byInstrument.contains(session))
+                    && (byProduct == null || !byProduct.contains(session)))
+                consumer.accept(session);
+        }
+    }
+
+    /*
+    Check if the instrument matches the pattern.
+     */
+    static boolean matches(String pattern, String instrumentID) {
+        if (pattern.equals(ALL))
+            return true;
+        else if (pattern.endsWith("*"))
+            return productOf(pattern).equals(OP.getProductID(instrumentID));
+        else
+            return pattern.equals(instrumentID);
+    }
+
+    private static String productOf(String pattern) {
+        return pattern.substring(0, pattern.length() - 1);
+    }
+
+    /*
+    Add and remove in compute so that a set emptied and removed by one thread is
+    not added to by another.
+     */
+    private static void add(Map<String, Set<IOPSession>> index, String key,
+                            IOPSession session) {
+        index.compute(key, (k, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(session);
+            return set;
+        });
+    }
+
+    private static void remove(Map<String, Set<IOPSession>> index, String key,
+                               IOPSession session) {
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(session);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
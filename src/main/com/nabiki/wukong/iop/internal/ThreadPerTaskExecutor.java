@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.wukong.iop.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executor starting a new thread for the tasks, with at most the specified number
+ * of tasks running at the same time. The threads are virtual threads if the JVM
+ * has them, otherwise daemon platform threads. A thread keeps running the waiting
+ * tasks before it exits, so platform threads are not created for every task.
+ */
+class ThreadPerTaskExecutor implements Executor {
+    private static final ThreadFactory VIRTUAL_FACTORY = virtualFactory();
+
+    private final ThreadFactory factory;
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    ThreadPerTaskExecutor(int maxConcurrency) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("non-positive concurrency");
+        this.permits = new Semaphore(maxConcurrency);
+        if (VIRTUAL_FACTORY != null)
+            this.factory = VIRTUAL_FACTORY;
+        else
+            this.factory = runnable -> {
+                var thread = new Thread(runnable, "iop-request");
+                thread.setDaemon(true);
+                return thread;
+            };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        this.waiting.offer(task);
+        tryStart();
+    }
+
+    private void tryStart() {
+        while (!this.waiting.isEmpty() && this.permits.tryAcquire()) {
+            var task = this.waiting.poll();
+            if (task == null) {
+                // Taken by a running thread.
+                this.permits.release();
+                break;
+            }
+            this.factory.newThread(() -> work(task)).start();
+        }
+    }
+
+    private void work(Runnable task) {
+        try {
+            while (task != null) {
+                task.run();
+                task = this.waiting.poll();
+            }
+        } finally {
+            this.permits.release();
+            // Tasks may come after the last poll while holding the permit.
+            tryStart();
+        }
+    }
+
+    /*
+    Virtual threads are in JDK 21 and later, find them by reflection so the
+    library still runs on older JDK.
+     */
+    private static ThreadFactory virtualFactory() {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            var named = Class.forName("java.lang.Thread$Builder")
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, "iop-request-", 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(named);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
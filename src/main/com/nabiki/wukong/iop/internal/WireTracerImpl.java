@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.TraceRecord;
+import com.nabiki.wukong.iop.WireTracer;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiPredicate;
+
+/*
+Writers claim a slot by incrementing the sequence and overwrite the slot, so
+recording never waits. Reader sorts the records by sequence.
+ */
+public class WireTracerImpl implements WireTracer {
+    public static int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicReferenceArray<TraceRecord> ring;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private volatile int sampling = 0;
+    private volatile BiPredicate<IOPSession, MessageType> filter;
+
+    public WireTracerImpl() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WireTracerImpl(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity not power of two");
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    @Override
+    public void setSampling(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative sampling");
+        this.sampling = n;
+    }
+
+    @Override
+    public void setFilter(BiPredicate<IOPSession, MessageType> filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public List<TraceRecord> dump() {
+        var records = new ArrayList<TraceRecord>(this.ring.length());
+        for (int i = 0; i < this.ring.length(); ++i) {
+            var record = this.ring.get(i);
+            if (record != null)
+                records.add(record);
+        }
+        records.sort(Comparator.comparingLong(TraceRecord::getSequence));
+        return records;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < this.ring.length(); ++i)
+            this.ring.set(i, null);
+    }
+
+    boolean isEnabled() {
+        return this.sampling > 0;
+    }
+
+    /*
+    Record the frame if it is sampled. Call it only when the tracer is enabled.
+     */
+    void trace(IOPSessionImpl session, TraceRecord.Direction direction,
+               int frameType, int length, MessageType type, Body body) {
+        int n = this.sampling;
+        if (n <= 0 || (n > 1 && ThreadLocalRandom.current().nextInt(n) != 0))
+            return;
+        var f = this.filter;
+        if (f != null && !f.test(session, type))
+            return;
+        var ioSession = session.getIoSession();
+        long seq = this.sequence.getAndIncrement();
+        this.ring.set((int) (seq & this.mask), new TraceRecord(seq, Instant.now(),
+                direction, ioSession.getId(),
+                String.valueOf(ioSession.getRemoteAddress()), frameType, length,
+                type, body == null ? null : body.RequestID,
+                body == null ? null : body.ResponseID,
+                body == null ? 0 : body.CurrentCount,
+                body == null ? 0 : body.TotalCount));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.MessagePriority;
+import com.nabiki.wukong.iop.frame.MessageType;
+
+import java.util.List;
+
+/**
+ * Frames written to the session in one write. The encoder puts all frames into
+ * one buffer, back to back as they are written one by one. The frames in a batch
+ * have the same priority.
+ *
+ * <p>If the batch is packed, the consecutive request or response frames of the
+ * same type are packed into one {@link com.nabiki.wukong.iop.frame.FrameType#BATCH}
+ * frame.
+ * </p>
+ *
+ * <p>The encoder keeps the stamps it writes in the batch, so the frames are
+ * journaled with their stamps after they are written.
+ * </p>
+ */
+class WriteBatch {
+    final List<Frame> frames;
+    // Message types of the frames if the session journals them, else null.
+    final List<MessageType> types;
+    final int bytes;
+    final MessagePriority priority;
+    final boolean packed;
+    final long createdNanos = System.nanoTime();
+
+    // Set by the encoder, sequences are null if no frame is stamped.
+    private long[] sequences;
+    long sendTime;
+
+    WriteBatch(List<Frame> frames, int bytes, MessagePriority priority,
+               boolean packed) {
+        this(frames, null, bytes, priority, packed);
+    }
+
+    WriteBatch(List<Frame> frames, List<MessageType> types, int bytes,
+               MessagePriority priority, boolean packed) {
+        this.frames = frames;
+        this.types = types;
+        this.bytes = bytes;
+        this.priority = priority;
+        this.packed = packed;
+    }
+
+    /*
+    Keep the sequences of the frames from the specified index, stamped by one
+    header from the specified sequence.
+     */
+    void stamped(int index, int count, long sequence) {
+        if (sequence == 0)
+            return;
+        if (this.sequences == null)
+            this.sequences = new long[this.frames.size()];
+        for (int i = 0; i < count; ++i)
+            this.sequences[index + i] = sequence + i;
+    }
+
+    long getSequence(int index) {
+        return this.sequences != null ? this.sequences[index] : 0;
+    }
+}
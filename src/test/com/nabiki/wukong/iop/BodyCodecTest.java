@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcDepthDeltaField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcOrderUuidField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcSubMarketDataField;
+import com.nabiki.wukong.iop.frame.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BodyCodecTest {
+    static Body candleBody() {
+        var candle = new CThostFtdcCandleField();
+        candle.InstrumentID = "c2101";
+        candle.OpenPrice = 2500;
+        candle.HighestPrice = 2510;
+        candle.LowestPrice = 2495;
+        candle.ClosePrice = 2505;
+        candle.Volume = 1234;
+        candle.TradingDay = "20201118";
+        candle.UpdateTime = "10:15:00";
+
+        var body = new Body();
+        body.RequestID = UUID.randomUUID();
+        body.Type = MessageType.FLOW_CANDLE;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Payload = candle;
+        return body;
+    }
+
+    static void checkCandle(CThostFtdcCandleField expected,
+                            CThostFtdcCandleField actual) {
+        assertEquals(expected.InstrumentID, actual.InstrumentID);
+        assertEquals(expected.OpenPrice, actual.OpenPrice, 0.0);
+        assertEquals(expected.HighestPrice, actual.HighestPrice, 0.0);
+        assertEquals(expected.LowestPrice, actual.LowestPrice, 0.0);
+        assertEquals(expected.ClosePrice, actual.ClosePrice, 0.0);
+        assertEquals(expected.Volume, actual.Volume);
+        assertEquals(expected.TradingDay, actual.TradingDay);
+        assertEquals(expected.UpdateTime, actual.UpdateTime);
+        assertNull(actual.ActionDay);
+    }
+
+    @Test
+    public void binary() throws IOException {
+        var body = candleBody();
+        var bytes = BodyCodec.BINARY.encode(body);
+        var body1 = BodyCodec.BINARY.decode(bytes, 0, bytes.length);
+
+        assertEquals(body.RequestID, body1.RequestID);
+        assertNull(body1.ResponseID);
+        assertEquals(body.Type, body1.Type);
+        assertEquals(body.CurrentCount, body1.CurrentCount);
+        assertEquals(body.TotalCount, body1.TotalCount);
+        assertTrue(body1.Payload instanceof CThostFtdcCandleField);
+        checkCandle((CThostFtdcCandleField) body.Payload,
+                (CThostFtdcCandleField) body1.Payload);
+    }
+
+    @Test
+    public void binaryLarge() throws IOException {
+        // The output grown by the large body shrinks for the next one.
+        var large = new Body();
+        large.Type = MessageType.RSP_QRY_ORDER;
+        large.Json = "x".repeat(1024 * 1024);
+        var bytes = BodyCodec.BINARY.encode(large);
+        assertEquals(large.Json,
+                BodyCodec.BINARY.decode(bytes, 0, bytes.length).Json);
+
+        var body = candleBody();
+        bytes = BodyCodec.BINARY.encode(body);
+        checkCandle((CThostFtdcCandleField) body.Payload,
+                (CThostFtdcCandleField) BodyCodec.BINARY.decode(
+                        bytes, 0, bytes.length).Payload);
+    }
+
+    @Test
+    public void binaryTypes() throws IOException {
+        var order = new CThostFtdcOrderUuidField();
+        order.OrderID = UUID.randomUUID();
+        order.UserID = "0001";
+
+        var body = new Body();
+        body.Type = MessageType.RSP_REQ_ORDER_INSERT;
+        body.Payload = order;
+        var bytes = BodyCodec.BINARY.encode(body);
+        var order1 = (CThostFtdcOrderUuidField) BodyCodec.BINARY.decode(
+                bytes, 0, bytes.length).Payload;
+        assertEquals(order.OrderID, order1.OrderID);
+        assertEquals(order.UserID, order1.UserID);
+        assertNull(order1.BrokerID);
+
+        var sub = new CThostFtdcSubMarketDataField();
+        sub.InstrumentID = new String[]{"c2101", "\u4e2d\u6587", null};
+        body.Type = MessageType.SUB_MD;
+        body.Payload = sub;
+        bytes = BodyCodec.BINARY.encode(body);
+        var sub1 = (CThostFtdcSubMarketDataField) BodyCodec.BINARY.decode(
+                bytes, 0, bytes.length).Payload;
+        assertArrayEquals(sub.InstrumentID, sub1.InstrumentID);
+    }
+
+    @Test
+    public void sequence() throws IOException {
+        for (var codec : new BodyCodec[]{BodyCodec.JSON, BodyCodec.BINARY}) {
+            var body = candleBody();
+            body.Sequence = 1L << 40;
+            var bytes = codec.encode(body);
+            var body1 = codec.decode(bytes, 0, bytes.length);
+            assertEquals(body.Sequence, body1.Sequence);
+            checkCandle((CThostFtdcCandleField) body.Payload,
+                    (CThostFtdcCandleField) body1.Payload);
+
+            // Body without sequence is encoded as before.
+            body.Sequence = 0;
+            var unsequenced = codec.encode(body);
+            assertEquals(0, codec.decode(unsequenced, 0,
+                    unsequenced.length).Sequence);
+            assertTrue(unsequenced.length < bytes.length);
+        }
+    }
+
+    @Test
+    public void binaryJson() throws IOException {
+        var body = new Body();
+        body.Type = MessageType.QRY_POSITION;
+        body.Json = "{\"InstrumentID\":\"c2101\"}";
+        var bytes = BodyCodec.BINARY.encode(body);
+        var body1 = BodyCodec.BINARY.decode(bytes, 0, bytes.length);
+        assertEquals(body.Json, body1.Json);
+        assertNull(body1.Payload);
+    }
+
+    @Test
+    public void json() throws IOException {
+        var body = candleBody();
+        var bytes = BodyCodec.JSON.encode(body);
+        var body1 = BodyCodec.JSON.decode(bytes, 0, bytes.length);
+
+        assertNull("Should not modify the encoded body", body.Json);
+        assertNull("Should not escape data into string", body1.Json);
+        assertEquals(body.RequestID, body1.RequestID);
+        assertEquals(body.Type, body1.Type);
+        assertTrue(body1.Payload instanceof CThostFtdcCandleField);
+        checkCandle((CThostFtdcCandleField) body.Payload,
+                (CThostFtdcCandleField) body1.Payload);
+    }
+
+    @Test
+    public void jsonCompatible() throws IOException {
+        var body = candleBody();
+        var candle = (CThostFtdcCandleField) body.Payload;
+        body.Payload = null;
+        body.Json = OP.toJson(candle);
+
+        // Old format with escaped JSON string.
+        var bytes = new Gson().toJson(body).getBytes(StandardCharsets.UTF_8);
+        var body1 = BodyCodec.JSON.decode(bytes, 0, bytes.length);
+        assertEquals(body.RequestID, body1.RequestID);
+        assertEquals(body.Json, body1.Json);
+        checkCandle(candle, (CThostFtdcCandleField) body1.Payload);
+
+        // Data ahead of type.
+        var json = "{\"Data\":" + new Gson().toJson(candle)
+                + ",\"Type\":\"FLOW_CANDLE\",\"Unknown\":[1,2]}";
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+        body1 = BodyCodec.JSON.decode(bytes, 0, bytes.length);
+        assertEquals(MessageType.FLOW_CANDLE, body1.Type);
+        checkCandle(candle, (CThostFtdcCandleField) body1.Payload);
+    }
+
+    @Test
+    public void jsonSameAsGson() throws IOException {
+        var order = new CThostFtdcInputOrderField();
+        order.InstrumentID = "c2101";
+        order.Direction = '0';
+        order.LimitPrice = 2500.5;
+        order.VolumeTotalOriginal = 3;
+        var delta = new CThostFtdcDepthDeltaField();
+        delta.InstrumentID = "c2101";
+        delta.Mask = -1L;
+        delta.Data = new byte[]{1, -2, 127};
+        var sub = new CThostFtdcSubMarketDataField();
+        sub.InstrumentID = new String[]{"c2101", null};
+
+        var payloads = new Object[]{order, delta, sub, candleBody().Payload};
+        var types = new MessageType[]{MessageType.REQ_ORDER_INSERT,
+                MessageType.FLOW_DEPTH_DELTA, MessageType.SUB_MD,
+                MessageType.FLOW_CANDLE};
+        var gson = new Gson();
+        for (int i = 0; i < payloads.length; ++i) {
+            var body = new Body();
+            body.Type = types[i];
+            body.Payload = payloads[i];
+            var bytes = BodyCodec.JSON.encode(body);
+            var data = JsonParser.parseString(
+                    new String(bytes, StandardCharsets.UTF_8))
+                    .getAsJsonObject().get("Data");
+            assertEquals(gson.toJsonTree(payloads[i]), data);
+
+            var payload = BodyCodec.JSON.decode(bytes, 0, bytes.length).Payload;
+            assertEquals(gson.toJson(payloads[i]), gson.toJson(payload));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void malformed() throws IOException {
+        var bytes = BodyCodec.BINARY.encode(candleBody());
+        BodyCodec.BINARY.decode(bytes, 0, bytes.length - 4);
+    }
+
+    @Test
+    public void oversized() throws IOException {
+        var sub = new CThostFtdcSubMarketDataField();
+        sub.InstrumentID = new String[]{"c2101"};
+        var body = new Body();
+        body.Type = MessageType.SUB_MD;
+        body.Payload = sub;
+        var bytes = BodyCodec.BINARY.encode(body);
+        // Find the array count followed by the string length.
+        int pos = -1;
+        for (int i = 0; i + 8 <= bytes.length && pos < 0; ++i)
+            if (bytes[i + 3] == 1 && bytes[i + 7] == 5 && bytes[i] == 0
+                    && bytes[i + 1] == 0 && bytes[i + 2] == 0 && bytes[i + 4] == 0
+                    && bytes[i + 5] == 0 && bytes[i + 6] == 0)
+                pos = i;
+        assertTrue(pos >= 0);
+        bytes[pos] = 0x7F;
+        try {
+            BodyCodec.BINARY.decode(bytes, 0, bytes.length);
+            fail("oversized array count");
+        } catch (IOException ignored) {
+        }
+        // Truncated body.
+        bytes[pos] = 0;
+        try {
+            BodyCodec.BINARY.decode(bytes, 0, bytes.length - 3);
+            fail("truncated body");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void frameType() {
+        int type = FrameType.RESPONSE | BodyCodec.BINARY.getFlag();
+        assertEquals(FrameType.RESPONSE, FrameType.typeOf(type));
+        assertSame(BodyCodec.BINARY, BodyCodec.forFrameType(type));
+        assertSame(BodyCodec.JSON, BodyCodec.forFrameType(FrameType.RESPONSE));
+    }
+}
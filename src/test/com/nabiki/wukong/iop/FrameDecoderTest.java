@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameParser;
+import com.nabiki.wukong.iop.frame.FramePool;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.internal.FrameDecoder;
+import com.nabiki.wukong.iop.internal.FrameEncoder;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.apache.mina.filter.codec.AbstractProtocolEncoderOutput;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    static class Output extends AbstractProtocolDecoderOutput {
+        @Override
+        public void flush(org.apache.mina.core.filterchain.IoFilter.NextFilter
+                                  nextFilter, IoSession session) {
+        }
+    }
+
+    static FrameDecoder decoder() {
+        var decoder = new FrameDecoder();
+        // Dummy session has no fragmentation, force accumulation.
+        decoder.setTransportMetadataFragmentation(false);
+        return decoder;
+    }
+
+    static void decode(FrameDecoder decoder, IoSession session, Output out,
+                       byte[] bytes) throws Exception {
+        decoder.decode(session, IoBuffer.wrap(bytes), out);
+    }
+
+    static void checkFrame(Frame frame1) {
+        var frame = FrameParserTest.frame;
+        assertNotNull("Should decode the frame", frame1);
+        assertEquals(frame.Type, frame1.Type);
+        assertEquals(frame.Length, frame1.Length);
+        assertArrayEquals(frame.Body, Arrays.copyOf(frame1.Body, frame1.Length));
+    }
+
+    @Test
+    public void whole() throws Exception {
+        var decoder = decoder();
+        var session = new DummySession();
+        var out = new Output();
+
+        var bytes = FrameParserTest.frameBytes;
+        var twice = Arrays.copyOf(bytes, 2 * bytes.length);
+        System.arraycopy(bytes, 0, twice, bytes.length, bytes.length);
+
+        decode(decoder, session, out, twice);
+        assertEquals(2, out.getMessageQueue().size());
+        checkFrame((Frame) out.getMessageQueue().poll());
+        checkFrame((Frame) out.getMessageQueue().poll());
+    }
+
+    @Test
+    public void pooled() throws Exception {
+        var decoder = decoder();
+        var session = new DummySession();
+        var out = new Output();
+
+        decode(decoder, session, out, FrameParserTest.frameBytes);
+        var frame1 = (Frame) out.getMessageQueue().poll();
+        checkFrame(frame1);
+        FramePool.release(frame1);
+        // Double release is ignored.
+        FramePool.release(frame1);
+
+        decode(decoder, session, out, FrameParserTest.frameBytes);
+        var frame2 = (Frame) out.getMessageQueue().poll();
+        assertSame("Should reuse the released frame", frame1, frame2);
+        checkFrame(frame2);
+        assertNotSame(frame2, FramePool.acquire(frame2.Length));
+    }
+
+    @Test
+    public void partial() throws Exception {
+        var bytes = FrameParserTest.frameBytes;
+        for (int len = 1; len < bytes.length; ++len) {
+            var decoder = decoder();
+            var session = new DummySession();
+            var out = new Output();
+
+            decode(decoder, session, out, Arrays.copyOfRange(bytes, 0, len));
+            assertTrue("Partial frame, no output", out.getMessageQueue().isEmpty());
+            decode(decoder, session, out,
+                    Arrays.copyOfRange(bytes, len, bytes.length));
+            assertEquals(1, out.getMessageQueue().size());
+            checkFrame((Frame) out.getMessageQueue().poll());
+        }
+    }
+
+    @Test
+    public void sync() throws Exception {
+        var decoder = decoder();
+        var session = new DummySession();
+        var out = new Output();
+
+        decode(decoder, session, out, FrameParserTest.wrongBytes);
+        assertTrue(out.getMessageQueue().isEmpty());
+
+        decode(decoder, session, out, new byte[16]);
+        decode(decoder, session, out, FrameParserTest.frameBytes);
+        assertTrue("Not sync up", out.getMessageQueue().isEmpty());
+
+        decode(decoder, session, out, new byte[40]);
+        decode(decoder, session, out, FrameParserTest.frameBytes);
+        assertEquals(1, out.getMessageQueue().size());
+        checkFrame((Frame) out.getMessageQueue().poll());
+    }
+
+    @Test
+    public void large() throws Exception {
+        var decoder = decoder();
+        var session = new DummySession();
+        var out = new Output();
+        var bytes = FrameParserTest.largeFrameBytes(
+                3 * FrameParser.DEFAULT_BUFFER_SIZE + 7);
+
+        for (int i = 0; i < bytes.length; i += 1000) {
+            decode(decoder, session, out, Arrays.copyOfRange(bytes, i,
+                    Math.min(bytes.length, i + 1000)));
+            assertEquals(i + 1000 >= bytes.length ? 1 : 0,
+                    out.getMessageQueue().size());
+        }
+        var frame1 = (Frame) out.getMessageQueue().poll();
+        assertEquals(bytes.length - 8, frame1.Length);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 8, bytes.length),
+                Arrays.copyOf(frame1.Body, frame1.Length));
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        var decoder = new FrameDecoder(FrameParserTest.frame.Length - 1);
+        decoder.setTransportMetadataFragmentation(false);
+        var session = new DummySession();
+        var out = new Output();
+
+        decode(decoder, session, out, FrameParserTest.frameBytes);
+        decode(decoder, session, out, new byte[FrameParser.SYNC_ZERO_BYTES]);
+        assertTrue("Frame too large", out.getMessageQueue().isEmpty());
+    }
+
+    @Test
+    public void stamped() throws Exception {
+        // Response echoing the stamp is stamped by the encoder.
+        var frame = new Frame();
+        frame.Type = FrameType.RESPONSE;
+        frame.Length = FrameParserTest.frame.Length;
+        frame.Body = FrameParserTest.frame.Body;
+        frame.RequestSendTime = 11;
+        frame.RequestReceiveTime = 22;
+        frame.RequestDispatchTime = 33;
+        var encoded = new AbstractProtocolEncoderOutput() {
+            @Override
+            public WriteFuture flush() {
+                return null;
+            }
+        };
+        new FrameEncoder().encode(new DummySession(), frame, encoded);
+        var buffer = (IoBuffer) encoded.getMessageQueue().poll();
+        var bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals(8 + FrameType.STAMP_LENGTH + frame.Length, bytes.length);
+
+        for (int len = 1; len < bytes.length; ++len) {
+            var decoder = decoder();
+            var session = new DummySession();
+            var out = new Output();
+
+            decode(decoder, session, out, Arrays.copyOfRange(bytes, 0, len));
+            assertTrue("Partial frame, no output", out.getMessageQueue().isEmpty());
+            decode(decoder, session, out,
+                    Arrays.copyOfRange(bytes, len, bytes.length));
+            checkStamped(frame, (Frame) out.getMessageQueue().poll());
+
+            var parser = new FrameParser();
+            assertFalse(parser.parse(Arrays.copyOfRange(bytes, 0, len)));
+            assertTrue(parser.parse(Arrays.copyOfRange(bytes, len, bytes.length)));
+            checkStamped(frame, parser.poll());
+        }
+    }
+
+    static void checkStamped(Frame frame, Frame frame1) {
+        assertNotNull("Should decode the frame", frame1);
+        assertEquals(frame.Type | FrameType.FLAG_STAMPED, frame1.Type);
+        assertEquals(FrameType.RESPONSE, FrameType.typeOf(frame1.Type));
+        assertTrue(frame1.SendTime != 0);
+        assertEquals(11, frame1.RequestSendTime);
+        assertEquals(22, frame1.RequestReceiveTime);
+        assertEquals(33, frame1.RequestDispatchTime);
+        assertArrayEquals(frame.Body, Arrays.copyOf(frame1.Body, frame1.Length));
+    }
+}
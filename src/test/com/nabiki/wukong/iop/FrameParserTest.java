@@ -38,6 +38,7 @@ import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.Arrays;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
@@ -230,4 +231,47 @@ public class FrameParserTest {
         assertNotNull("Should retrieve the first frame", frame);
         checkFrame(frame1);
     }
-}
\ No newline at end of file
+
+    static byte[] largeFrameBytes(int length) {
+        var bytes = new byte[8 + length];
+        var buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(FrameType.REQUEST);
+        buffer.putInt(length);
+        for (int i = 0; i < length; ++i)
+            buffer.put((byte) (i % 127 + 1));
+        return bytes;
+    }
+
+    @Test
+    public void large() {
+        var parser = new FrameParser();
+        var bytes = largeFrameBytes(3 * FrameParser.DEFAULT_BUFFER_SIZE + 7);
+
+        // Feed in small segments.
+        for (int i = 0; i < bytes.length; i += 1000) {
+            var r = parser.parse(Arrays.copyOfRange(bytes, i,
+                    Math.min(bytes.length, i + 1000)));
+            assertEquals(i + 1000 >= bytes.length, r);
+        }
+        var frame1 = parser.poll();
+        assertEquals(bytes.length - 8, frame1.Length);
+        assertEquals(frame1.Length, frame1.Body.length);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 8, bytes.length), frame1.Body);
+
+        // Feed at once.
+        assertTrue(parser.parse(bytes));
+        assertArrayEquals(frame1.Body, parser.poll().Body);
+    }
+
+    @Test
+    public void tooLarge() {
+        var parser = new FrameParser(frame.Length - 1);
+        var r = parser.parse(frameBytes);
+        assertFalse("Frame too large, should be false", r);
+        assertEquals(ParsingState.WAIT_SYNC, parser.getState());
+
+        r = parser.parse(new byte[FrameParser.SYNC_ZERO_BYTES]);
+        assertFalse(r);
+        assertEquals(ParsingState.SYNC_UP, parser.getState());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInvestorPositionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcQryInvestorPositionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcQryTradingAccountField;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+import com.nabiki.wukong.iop.internal.FrameHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class LoopbackTest {
+    static final int ROWS = 200;
+
+    private final AtomicInteger offered = new AtomicInteger(0);
+    private IOPClient client;
+
+    static Body request(MessageType type, Object payload) {
+        var body = new Body();
+        body.RequestID = UUID.randomUUID();
+        body.Type = type;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Payload = payload;
+        return body;
+    }
+
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("wait timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        var address = new InetSocketAddress("127.0.0.1", port);
+        var server = IOP.createServer(address);
+        // Client has no login frame to send.
+        server.setSessionAdaptor((session, event, eventObject) -> {
+            if (event == SessionEvent.OPENED)
+                session.setAttribute(FrameHandler.IOP_ISLOGIN_KEY, true);
+        });
+        server.setMessageAdaptor(new ServerMessageAdaptor() {
+            @Override
+            public void qryPosition(IOPSession session,
+                                    CThostFtdcQryInvestorPositionField qry,
+                                    UUID requestID, int count, int total) {
+                // Send rows while the client has credits for them.
+                ResponseStream<CThostFtdcInvestorPositionField> stream
+                        = session.openResponseStream(requestID,
+                        MessageType.RSP_QRY_POSITION);
+                Runnable send = () -> {
+                    synchronized (stream) {
+                        while (stream.isReady() && offered.get() < ROWS) {
+                            var row = new CThostFtdcInvestorPositionField();
+                            row.InstrumentID = "c" + offered.incrementAndGet();
+                            stream.next(row);
+                        }
+                        if (offered.get() == ROWS)
+                            stream.complete();
+                    }
+                };
+                stream.setOnReadyHandler(send);
+                send.run();
+            }
+
+            @Override
+            public void qryAccount(IOPSession session,
+                                   CThostFtdcQryTradingAccountField qry,
+                                   UUID requestID, int count, int total) {
+                // Never answers.
+            }
+        });
+        this.client = IOP.createClient(address);
+    }
+
+    @Test
+    public void creditFlow() throws Exception {
+        var rows = new CopyOnWriteArrayList<Body>();
+        var done = new CountDownLatch(1);
+        var subscription = new Flow.Subscription[1];
+        this.client.requestAll(request(MessageType.QRY_POSITION,
+                new CThostFtdcQryInvestorPositionField()), Duration.ofSeconds(10))
+                .subscribe(new Flow.Subscriber<>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription s) {
+                        subscription[0] = s;
+                    }
+
+                    @Override
+                    public void onNext(Body item) {
+                        rows.add(item);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        done.countDown();
+                    }
+                });
+        var window = 64;
+        // The server stops at the window while nothing is consumed. The last row
+        // offered is kept by the stream until the next one.
+        await(() -> this.offered.get() > window);
+        Thread.sleep(100);
+        assertEquals(window + 1, this.offered.get());
+
+        // Consuming half the window grants the credits for more.
+        subscription[0].request(window / 2);
+        await(() -> this.offered.get() > window + window / 2);
+        Thread.sleep(100);
+        assertEquals(window + window / 2 + 1, this.offered.get());
+
+        subscription[0].request(Long.MAX_VALUE);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; ++i)
+            assertEquals(i + 1, rows.get(i).CurrentCount);
+        assertEquals(ROWS, rows.get(ROWS - 1).TotalCount);
+        assertEquals("c" + ROWS, ((CThostFtdcInvestorPositionField)
+                rows.get(ROWS - 1).Payload).InstrumentID);
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        var future = this.client.request(request(MessageType.QRY_ACCOUNT,
+                new CThostFtdcQryTradingAccountField()), Duration.ofMillis(200));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
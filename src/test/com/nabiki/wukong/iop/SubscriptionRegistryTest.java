@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop;
+
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.internal.SubscriptionRegistryImpl;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+    static class TestSession implements IOPSession {
+        volatile boolean closed = false;
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        @Override
+        public void fix() {
+        }
+
+        @Override
+        public void sendRequest(Body message) {
+        }
+
+        @Override
+        public void sendResponse(Body message) {
+        }
+
+        @Override
+        public void sendHeartbeat(UUID heartbeatID) {
+        }
+
+        @Override
+        public void setAttribute(String key, Object attribute) {
+        }
+
+        @Override
+        public void removeAttribute(String key) {
+        }
+
+        @Override
+        public Object getAttribute(String key) {
+            return null;
+        }
+    }
+
+    @Test
+    public void basic() {
+        var registry = new SubscriptionRegistryImpl();
+        var s1 = new TestSession();
+        var s2 = new TestSession();
+        var s3 = new TestSession();
+
+        registry.subscribe(s1, "c2101");
+        registry.subscribe(s1, "c*");
+        registry.subscribe(s2, "c*");
+        registry.subscribe(s3, SubscriptionRegistry.ALL);
+
+        assertEquals(Set.of(s1, s2, s3), registry.getSubscribers("c2101"));
+        assertEquals(Set.of(s1, s2, s3), registry.getSubscribers("c2105"));
+        assertEquals(Set.of(s3), registry.getSubscribers("cs2101"));
+        assertEquals(Set.of("c2101", "c*"), registry.getSubscriptions(s1));
+
+        registry.unsubscribe(s1, "c*");
+        assertEquals(Set.of(s2, s3), registry.getSubscribers("c2105"));
+        assertEquals(Set.of(s1, s2, s3), registry.getSubscribers("c2101"));
+
+        registry.unsubscribeAll(s1);
+        registry.unsubscribeAll(s3);
+        assertEquals(Set.of(s2), registry.getSubscribers("c2101"));
+        assertTrue(registry.getSubscriptions(s1).isEmpty());
+        assertTrue(registry.getSubscribers("cs2101").isEmpty());
+    }
+
+    @Test
+    public void closed() {
+        var registry = new SubscriptionRegistryImpl();
+        var session = new TestSession();
+        registry.subscribe(session, "c2101");
+        session.close();
+        registry.unsubscribeAll(session);
+
+        // Subscription racing with the close isn't left behind.
+        registry.subscribe(session, "c*");
+        assertTrue(registry.getSubscribers("c2101").isEmpty());
+        assertTrue(registry.getSubscriptions(session).isEmpty());
+    }
+}
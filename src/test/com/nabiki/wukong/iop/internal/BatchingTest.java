@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcQryTradingAccountField;
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.ServerMessageAdaptor;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BatchingTest {
+    static void send(CapturedSession session, int id) {
+        session.iop.sendFrame(CapturedSession.frame(id), MessageType.RSP_QRY_ACCOUNT,
+                null, false, false);
+    }
+
+    @Test
+    public void unbatched() {
+        var session = new CapturedSession();
+        for (int i = 0; i < 3; ++i)
+            send(session, i);
+        // Each frame is written at once.
+        assertEquals(3, session.batches.size());
+        assertEquals(List.of(0, 1, 2), CapturedSession.ids(session.frames()));
+    }
+
+    @Test
+    public void maxBytes() {
+        var session = new CapturedSession();
+        session.iop.setBatching(1000, Duration.ofHours(1));
+        // 108 bytes a frame.
+        for (int i = 0; i < 9; ++i)
+            send(session, i);
+        assertTrue(session.batches.isEmpty());
+
+        // Written when batch reaches max bytes, and no write is over it.
+        send(session, 9);
+        assertEquals(2, session.batches.size());
+        assertEquals(9, session.batches.get(0).frames.size());
+        assertEquals(972, session.batches.get(0).bytes);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9),
+                CapturedSession.ids(session.frames()));
+    }
+
+    @Test
+    public void flush() {
+        var session = new CapturedSession();
+        session.iop.setBatching(1000, Duration.ofHours(1));
+        send(session, 0);
+        send(session, 1);
+        assertTrue(session.batches.isEmpty());
+        session.iop.flush();
+        assertEquals(1, session.batches.size());
+        assertEquals(List.of(0, 1), CapturedSession.ids(session.frames()));
+
+        // Nothing to flush.
+        session.iop.flush();
+        assertEquals(1, session.batches.size());
+
+        // Disabling batching writes the batch.
+        send(session, 2);
+        session.iop.setBatching(0, null);
+        assertEquals(List.of(0, 1, 2), CapturedSession.ids(session.frames()));
+        send(session, 3);
+        assertEquals(3, session.batches.size());
+    }
+
+    @Test
+    public void maxDelay() throws InterruptedException {
+        var session = new CapturedSession();
+        session.iop.setBatching(1000, Duration.ofMillis(10));
+        send(session, 0);
+        send(session, 1);
+        var deadline = System.currentTimeMillis() + 5000;
+        while (session.frames().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        // Flushed once for the frames in the same batch.
+        assertEquals(1, session.batches.size());
+        assertEquals(List.of(0, 1), CapturedSession.ids(session.frames()));
+    }
+
+    @Test
+    public void flushAfterHandler() throws Exception {
+        var server = new CapturedSession();
+        server.iop.setAttribute(FrameHandler.IOP_ISLOGIN_KEY, true);
+        server.iop.setBatching(64 * 1024, Duration.ofHours(1));
+        var handler = new FrameHandler(true);
+        handler.setMessageAdaptor(new ServerMessageAdaptor() {
+            @Override
+            public void qryAccount(IOPSession session,
+                                   CThostFtdcQryTradingAccountField qry,
+                                   UUID requestID, int count, int total) {
+                for (int i = 1; i <= 3; ++i) {
+                    var body = new Body();
+                    body.RequestID = requestID;
+                    body.Type = MessageType.RSP_QRY_ACCOUNT;
+                    body.CurrentCount = i;
+                    body.TotalCount = 3;
+                    session.sendResponse(body);
+                }
+            }
+        });
+        handler.messageReceived(server.io,
+                CapturedSession.request(MessageType.QRY_ACCOUNT));
+        // Responses of the request are written together.
+        assertEquals(1, server.batches.size());
+        assertEquals(3, server.frames().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDelay() {
+        new CapturedSession().iop.setBatching(1000, Duration.ofMillis(-1));
+    }
+}
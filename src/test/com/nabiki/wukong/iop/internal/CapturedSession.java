@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcQryTradingAccountField;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Session over a dummy I/O session, keeping the batches written instead of
+ * sending them. The scheduled write bytes of the I/O session are set by the test
+ * to make the session backlogged.
+ */
+class CapturedSession {
+    final DummySession io = new DummySession();
+    final IOPSessionImpl iop = new IOPSessionImpl().wrap(this.io);
+    final List<WriteBatch> batches = new ArrayList<>();
+
+    CapturedSession() {
+        this.io.setAttribute(FrameHandler.IOP_SESSION_KEY, this.iop);
+        this.io.getFilterChain().addLast("capture", new IoFilterAdapter() {
+            @Override
+            public void filterWrite(NextFilter nextFilter, IoSession session,
+                                    WriteRequest writeRequest) {
+                synchronized (CapturedSession.this.batches) {
+                    CapturedSession.this.batches.add(
+                            (WriteBatch) writeRequest.getMessage());
+                }
+            }
+        });
+    }
+
+    List<Frame> frames() {
+        var frames = new ArrayList<Frame>();
+        synchronized (this.batches) {
+            for (var batch : this.batches)
+                frames.addAll(batch.frames);
+        }
+        return frames;
+    }
+
+    List<Body> bodies() throws IOException {
+        var bodies = new ArrayList<Body>();
+        for (var frame : frames())
+            bodies.add(decode(frame));
+        return bodies;
+    }
+
+    void clear() {
+        synchronized (this.batches) {
+            this.batches.clear();
+        }
+    }
+
+    /*
+    Set the bytes waiting in I/O layer, and tell the session if they decrease.
+     */
+    void setScheduledBytes(int bytes) {
+        this.io.setScheduledWriteBytes(bytes);
+        this.iop.sent();
+    }
+
+    static Body decode(Frame frame) throws IOException {
+        var bytes = frame.Body;
+        int length = frame.Length;
+        if (FrameType.hasFlag(frame.Type, FrameType.FLAG_DEFLATE)) {
+            bytes = FrameCompressor.inflate(frame.Type, bytes, 0, length);
+            length = bytes.length;
+        }
+        return BodyCodec.forFrameType(frame.Type).decode(bytes, 0, length);
+    }
+
+    // Response frame of 100 bytes body, with the ID in its first byte.
+    static Frame frame(int id) {
+        var frame = new Frame();
+        frame.Type = FrameType.RESPONSE;
+        frame.Length = 100;
+        frame.Body = new byte[100];
+        frame.Body[0] = (byte) id;
+        return frame;
+    }
+
+    static List<Integer> ids(List<Frame> frames) {
+        var ids = new ArrayList<Integer>();
+        for (var frame : frames)
+            ids.add((int) frame.Body[0]);
+        return ids;
+    }
+
+    static Body order() {
+        var body = new Body();
+        body.Type = MessageType.RSP_REQ_ORDER_INSERT;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        return body;
+    }
+
+    // Request frame as received from the peer.
+    static Frame request(MessageType type) throws IOException {
+        var body = new Body();
+        body.RequestID = UUID.randomUUID();
+        body.Type = type;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Payload = new CThostFtdcQryTradingAccountField();
+        var bytes = BodyCodec.JSON.encode(body);
+        var frame = new Frame();
+        frame.Type = type == MessageType.HEARTBEAT
+                ? FrameType.HEARTBEAT : FrameType.REQUEST;
+        frame.Length = bytes.length;
+        frame.Body = bytes;
+        return frame;
+    }
+}
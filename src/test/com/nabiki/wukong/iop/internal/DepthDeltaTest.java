@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.google.gson.Gson;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcDepthDeltaField;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DepthDeltaTest {
+    private static final Gson gson = new Gson();
+
+    static CThostFtdcDepthMarketDataField depth(String instrumentID, int tick) {
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.InstrumentID = instrumentID;
+        depth.TradingDay = "20201118";
+        depth.UpdateTime = "10:15:" + (10 + tick % 50);
+        depth.UpdateMillisec = tick % 2 * 500;
+        depth.LastPrice = 2500 + tick;
+        depth.Volume = 1000 + tick * 3;
+        depth.BidPrice1 = 2499 + tick;
+        depth.AskPrice1 = 2501 + tick;
+        depth.BidVolume1 = 10;
+        depth.AskVolume1 = 12 + tick % 3;
+        return depth;
+    }
+
+    @Test
+    public void keyframe() throws IOException {
+        // The build generates the delta code.
+        assertTrue(DepthDelta.isSupported());
+        var depth = depth("c2101", 1);
+        var keyframe = DepthDelta.keyframe(depth, 7);
+        assertEquals(7, keyframe.Version);
+        assertEquals(0, keyframe.BaseVersion);
+        assertEquals("c2101", keyframe.InstrumentID);
+        // Only the fields set are carried.
+        assertEquals(10, Long.bitCount(keyframe.Mask));
+        var empty = new CThostFtdcDepthMarketDataField();
+        assertEquals(gson.toJson(depth),
+                gson.toJson(DepthDelta.apply(empty, keyframe)));
+    }
+
+    @Test
+    public void delta() throws IOException {
+        var base = depth("c2101", 1);
+        var depth = depth("c2101", 2);
+        depth.ActionDay = "20201118";
+        depth.UpdateTime = null;
+        var delta = DepthDelta.delta(base, 7, depth, 8);
+        assertEquals(7, delta.BaseVersion);
+        assertEquals(8, delta.Version);
+        var applied = DepthDelta.apply(base, delta);
+        assertEquals(gson.toJson(depth), gson.toJson(applied));
+        assertNull(applied.UpdateTime);
+        // Base is not changed.
+        assertEquals(gson.toJson(depth("c2101", 1)), gson.toJson(base));
+
+        var same = DepthDelta.delta(base, 7, depth("c2101", 1), 9);
+        assertEquals(0, same.Mask);
+        assertEquals(0, same.Data.length);
+        assertEquals(gson.toJson(base), gson.toJson(DepthDelta.apply(base, same)));
+    }
+
+    @Test(expected = IOException.class)
+    public void broken() throws IOException {
+        var base = depth("c2101", 1);
+        var delta = DepthDelta.delta(base, 7, depth("c2101", 2), 8);
+        delta.Data = Arrays.copyOf(delta.Data, delta.Data.length - 1);
+        DepthDelta.apply(base, delta);
+    }
+
+    @Test
+    public void receiver() throws IOException {
+        var receiver = new DepthDelta.Receiver();
+        var k1 = DepthDelta.keyframe(depth("c2101", 1), 1);
+        var d2 = DepthDelta.delta(depth("c2101", 1), 1, depth("c2101", 2), 2);
+        var k3 = DepthDelta.keyframe(depth("c2101", 3), 3);
+        var d4 = DepthDelta.delta(depth("c2101", 3), 3, depth("c2101", 4), 4);
+
+        // Keyframe is lost, and the delta against it is dropped.
+        assertNull(receiver.receive(d2));
+        // Recover on the next keyframe.
+        assertEquals(gson.toJson(depth("c2101", 3)),
+                gson.toJson(receiver.receive(k3)));
+        assertEquals(gson.toJson(depth("c2101", 4)),
+                gson.toJson(receiver.receive(d4)));
+        // Delta against the replaced keyframe is dropped too.
+        assertNull(receiver.receive(d2));
+
+        // The delivered depth can be changed without breaking the keyframe.
+        var other = new DepthDelta.Receiver();
+        other.receive(k1).LastPrice = 0;
+        assertEquals(gson.toJson(depth("c2101", 2)),
+                gson.toJson(other.receive(d2)));
+    }
+
+    @Test
+    public void keyframeInterval() throws IOException {
+        var registry = new SubscriptionRegistryImpl();
+        var publisher = new MarketDataPublisherImpl(registry);
+        var session = new CapturedSession();
+        publisher.subscribe(session.iop, "c2101");
+        publisher.setDepthDelta(session.iop, 3);
+        var published = new ArrayList<CThostFtdcDepthMarketDataField>();
+        for (int i = 1; i <= 7; ++i) {
+            published.add(depth("c2101", i));
+            publisher.publish(published.get(i - 1));
+        }
+        var bodies = session.bodies();
+        assertEquals(7, bodies.size());
+        var receiver = new DepthDelta.Receiver();
+        for (int i = 0; i < bodies.size(); ++i) {
+            var body = bodies.get(i);
+            assertEquals(MessageType.FLOW_DEPTH_DELTA, body.Type);
+            var delta = (CThostFtdcDepthDeltaField) body.Payload;
+            // Keyframe every 3 frames.
+            assertEquals(i % 3 == 0, delta.BaseVersion == 0);
+            assertEquals(gson.toJson(published.get(i)),
+                    gson.toJson(receiver.receive(delta)));
+        }
+
+        // Receiver missing a keyframe recovers on the next one.
+        var late = new DepthDelta.Receiver();
+        for (int i = 1; i < bodies.size(); ++i) {
+            var depth = late.receive(
+                    (CThostFtdcDepthDeltaField) bodies.get(i).Payload);
+            assertEquals(i < 3, depth == null);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DrainTest {
+    static Frame frame(int thread, int index) {
+        var frame = CapturedSession.frame(thread);
+        frame.Body[1] = (byte) (index >> 8);
+        frame.Body[2] = (byte) index;
+        return frame;
+    }
+
+    static void send(CapturedSession session, Frame frame) {
+        session.iop.sendFrame(frame, MessageType.RSP_QRY_ACCOUNT, null, false,
+                false);
+    }
+
+    @Test
+    public void sentWhileDraining() throws Exception {
+        var session = new CapturedSession();
+        var first = new AtomicInteger(0);
+        var returned = new CountDownLatch(1);
+        // Another thread sends while the first frame is being written.
+        session.io.getFilterChain().addLast("send", new IoFilterAdapter() {
+            @Override
+            public void filterWrite(NextFilter nextFilter, IoSession ioSession,
+                                    WriteRequest writeRequest) throws Exception {
+                if (first.getAndIncrement() == 0) {
+                    var thread = new Thread(() -> {
+                        send(session, CapturedSession.frame(1));
+                        returned.countDown();
+                    });
+                    thread.start();
+                    assertTrue(returned.await(5, TimeUnit.SECONDS));
+                    // The other thread doesn't write.
+                    assertTrue(session.batches.isEmpty());
+                }
+                nextFilter.filterWrite(ioSession, writeRequest);
+            }
+        });
+        send(session, CapturedSession.frame(0));
+        // The draining thread writes the frame before it returns.
+        assertEquals(List.of(0, 1), CapturedSession.ids(session.frames()));
+        assertEquals(2, session.batches.size());
+    }
+
+    @Test
+    public void concurrentSenders() throws Exception {
+        var session = new CapturedSession();
+        var writing = new AtomicInteger(0);
+        var overlapped = new AtomicInteger(0);
+        session.io.getFilterChain().addLast("check", new IoFilterAdapter() {
+            @Override
+            public void filterWrite(NextFilter nextFilter, IoSession ioSession,
+                                    WriteRequest writeRequest) throws Exception {
+                if (writing.incrementAndGet() > 1)
+                    overlapped.incrementAndGet();
+                Thread.yield();
+                nextFilter.filterWrite(ioSession, writeRequest);
+                writing.decrementAndGet();
+            }
+        });
+        int threads = 4, count = 2000;
+        var start = new CountDownLatch(1);
+        var workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < count; ++i)
+                    send(session, frame(id, i));
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (var worker : workers)
+            worker.join();
+
+        // One writer at a time, every frame written once and in the order
+        // each thread sends.
+        assertEquals(0, overlapped.get());
+        var frames = session.frames();
+        assertEquals(threads * count, frames.size());
+        var next = new int[threads];
+        for (var frame : frames) {
+            int index = (frame.Body[1] & 0xFF) << 8 | (frame.Body[2] & 0xFF);
+            assertEquals(next[frame.Body[0]]++, index);
+        }
+        for (int t = 0; t < threads; ++t)
+            assertEquals(count, next[t]);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameParser;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+    static Body depth() {
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.InstrumentID = "c2101";
+        depth.TradingDay = "20201118";
+        depth.UpdateTime = "10:15:00";
+        depth.LastPrice = 2505;
+        depth.BidPrice1 = 2504;
+        depth.AskPrice1 = 2506;
+        depth.BidVolume1 = 120;
+        depth.AskVolume1 = 80;
+        depth.Volume = 123456;
+        var body = new Body();
+        body.Type = MessageType.FLOW_DEPTH;
+        body.CurrentCount = 1;
+        body.TotalCount = 1;
+        body.Payload = depth;
+        return body;
+    }
+
+    static Frame frame(byte[] bytes) {
+        var frame = new Frame();
+        frame.Type = FrameType.RESPONSE;
+        frame.Length = bytes.length;
+        frame.Body = bytes;
+        return frame;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        var bytes = BodyCodec.JSON.encode(depth());
+        var frame = frame(bytes);
+        var compressed = FrameCompressor.deflate(frame);
+        assertEquals(FrameType.RESPONSE | FrameType.FLAG_DEFLATE, compressed.Type);
+        assertTrue(compressed.Length < frame.Length);
+        assertArrayEquals(bytes, FrameCompressor.inflate(compressed.Type,
+                compressed.Body, 0, compressed.Length));
+
+        // Body within a larger array.
+        var shifted = new byte[compressed.Length + 10];
+        System.arraycopy(compressed.Body, 0, shifted, 7, compressed.Length);
+        assertArrayEquals(bytes, FrameCompressor.inflate(compressed.Type,
+                shifted, 7, compressed.Length));
+    }
+
+    @Test
+    public void dictionary() throws IOException {
+        var bytes = BodyCodec.JSON.encode(depth());
+        var deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(bytes);
+        deflater.finish();
+        var plain = new byte[bytes.length * 2];
+        int plainLength = deflater.deflate(plain);
+        deflater.end();
+        // Field names are in the dictionary.
+        var compressed = FrameCompressor.deflate(frame(bytes));
+        assertTrue(compressed.Length - 4 < plainLength * 3 / 4);
+    }
+
+    static Frame compressed(BodyCodec codec) throws IOException {
+        var frame = frame(codec.encode(depth()));
+        frame.Type |= codec.getFlag();
+        return FrameCompressor.deflate(frame);
+    }
+
+    @Test
+    public void ratio() throws IOException {
+        // Depth tick of 576 bytes in JSON is deflated to 173 bytes with the
+        // dictionary, and 229 bytes in binary to 82 bytes without dictionary.
+        var json = compressed(BodyCodec.JSON);
+        var binary = compressed(BodyCodec.BINARY);
+        assertTrue(json.Length * 100 / BodyCodec.JSON.encode(depth()).length
+                <= 35);
+        assertTrue(binary.Length * 100 / BodyCodec.BINARY.encode(depth()).length
+                <= 45);
+        assertTrue(binary.Length < json.Length);
+
+        // Each is inflated with the dictionary of its codec.
+        for (var frame : new Frame[]{json, binary}) {
+            var codec = BodyCodec.forFrameType(frame.Type);
+            var bytes = FrameCompressor.inflate(frame.Type, frame.Body, 0,
+                    frame.Length);
+            assertEquals(MessageType.FLOW_DEPTH,
+                    codec.decode(bytes, 0, bytes.length).Type);
+        }
+    }
+
+    @Test
+    public void incompressible() {
+        var bytes = new byte[256];
+        new Random(1).nextBytes(bytes);
+        var frame = frame(bytes);
+        assertSame(frame, FrameCompressor.deflate(frame));
+        var tiny = frame(new byte[]{'{', '}'});
+        assertSame(tiny, FrameCompressor.deflate(tiny));
+    }
+
+    @Test
+    public void broken() throws IOException {
+        var compressed = FrameCompressor.deflate(
+                frame(BodyCodec.JSON.encode(depth())));
+        var body = compressed.Body;
+        var broken = new byte[][]{
+                // No length.
+                Arrays.copyOf(body, 3),
+                // Truncated data.
+                Arrays.copyOf(body, body.length / 2),
+                // Length over the max frame length.
+                lengthOf(body, FrameParser.DEFAULT_MAX_FRAME_LENGTH + 1),
+                lengthOf(body, -1),
+                // Length more than the data.
+                lengthOf(body, 1 << 16),
+                // Not deflate data.
+                garbage(body)};
+        for (var bytes : broken) {
+            try {
+                FrameCompressor.inflate(compressed.Type, bytes, 0,
+                        bytes.length);
+                fail("broken compressed body");
+            } catch (IOException ignored) {
+            }
+        }
+        // Inflater is reset after failure.
+        assertEquals(compressed.Length, FrameCompressor.deflate(
+                frame(BodyCodec.JSON.encode(depth()))).Length);
+        FrameCompressor.inflate(compressed.Type, body, 0, body.length);
+    }
+
+    private static byte[] lengthOf(byte[] body, int length) {
+        var bytes = body.clone();
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        return bytes;
+    }
+
+    private static byte[] garbage(byte[] body) {
+        var bytes = body.clone();
+        Arrays.fill(bytes, 4, bytes.length, (byte) 0xFF);
+        return bytes;
+    }
+
+    @Test
+    public void negotiated() throws IOException {
+        var session = new CapturedSession();
+        session.iop.setCompression(64);
+        session.iop.sendResponse(depth());
+        // Announces it accepts, and doesn't compress before the peer does.
+        var frame = session.frames().get(0);
+        assertTrue(FrameType.hasFlag(frame.Type, FrameType.FLAG_ACCEPT_DEFLATE));
+        assertFalse(FrameType.hasFlag(frame.Type, FrameType.FLAG_DEFLATE));
+
+        session.iop.setPeerAcceptsCompression();
+        session.clear();
+        session.iop.sendResponse(depth());
+        var order = CapturedSession.order();
+        order.Json = "x".repeat(100);
+        session.iop.sendResponse(order);
+        var frames = session.frames();
+        assertTrue(FrameType.hasFlag(frames.get(0).Type, FrameType.FLAG_DEFLATE));
+        assertEquals(MessageType.FLOW_DEPTH,
+                CapturedSession.decode(frames.get(0)).Type);
+        // Order entry is never compressed.
+        assertFalse(FrameType.hasFlag(frames.get(1).Type, FrameType.FLAG_DEFLATE));
+
+        // Under the threshold.
+        session.iop.setCompression(64 * 1024);
+        assertFalse(session.iop.shouldCompress(
+                frame(BodyCodec.JSON.encode(depth())),
+                MessageType.FLOW_DEPTH.getPriority()));
+    }
+}
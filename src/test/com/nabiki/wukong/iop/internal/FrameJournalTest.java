@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.JournalRecord;
+import com.nabiki.wukong.iop.JournalTailer;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.filter.codec.AbstractProtocolEncoderOutput;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Encode the batches written by the session and tell the handler they are
+    // sent, as the I/O processor does.
+    static void write(CapturedSession session, FrameHandler handler)
+            throws Exception {
+        var out = new AbstractProtocolEncoderOutput() {
+            @Override
+            public WriteFuture flush() {
+                return null;
+            }
+        };
+        List<WriteBatch> batches;
+        synchronized (session.batches) {
+            batches = new ArrayList<>(session.batches);
+            session.batches.clear();
+        }
+        for (var batch : batches) {
+            new FrameEncoder().encode(session.io, batch, out);
+            handler.messageSent(session.io, batch);
+        }
+    }
+
+    // Read the records until there are the given number of them.
+    static List<JournalRecord> read(JournalTailer tailer, int count)
+            throws IOException, InterruptedException {
+        var records = new ArrayList<JournalRecord>();
+        var deadline = System.currentTimeMillis() + 5000;
+        while (records.size() < count && System.currentTimeMillis() < deadline) {
+            var record = tailer.next();
+            if (record != null)
+                records.add(record);
+            else
+                Thread.sleep(1);
+        }
+        return records;
+    }
+
+    static int id(JournalRecord record) {
+        return (record.getBody()[0] & 0xFF) << 8 | (record.getBody()[1] & 0xFF);
+    }
+
+    static void send(CapturedSession session, int id) {
+        var frame = CapturedSession.frame(0);
+        frame.Body[0] = (byte) (id >> 8);
+        frame.Body[1] = (byte) id;
+        session.iop.sendFrame(frame, MessageType.FLOW_DEPTH_DELTA, "c2101",
+                false, false);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        var journal = new FrameJournalImpl(this.folder.getRoot().toPath());
+        var session = new CapturedSession();
+        session.iop.setLatencyStamping(true);
+        session.iop.setJournal(journal);
+        var handler = new FrameHandler(false);
+        for (int i = 0; i < 3; ++i)
+            session.iop.sendResponse(CapturedSession.order());
+        var frames = session.frames();
+        write(session, handler);
+
+        try (var tailer = journal.createTailer()) {
+            var records = read(tailer, 3);
+            assertEquals(3, records.size());
+            for (int i = 0; i < 3; ++i) {
+                var record = records.get(i);
+                var frame = frames.get(i);
+                assertEquals(session.io.getId(), record.getSessionID());
+                assertEquals(MessageType.RSP_REQ_ORDER_INSERT,
+                        record.getMessageType());
+                assertEquals(FrameType.RESPONSE,
+                        FrameType.typeOf(record.getFrameType()));
+                assertTrue(FrameType.hasFlag(record.getFrameType(),
+                        FrameType.FLAG_STAMPED));
+                // Stamp written on wire.
+                assertEquals(i + 1, record.getSequence());
+                assertTrue(record.getSendTime() != 0);
+                assertArrayEquals(Arrays.copyOf(frame.Body, frame.Length),
+                        record.getBody());
+            }
+            assertNull(tailer.next());
+        }
+        journal.close();
+        assertEquals(3, journal.getRecords());
+    }
+
+    @Test
+    public void notWritten() throws Exception {
+        var journal = new FrameJournalImpl(this.folder.getRoot().toPath());
+        var session = new CapturedSession();
+        session.iop.setJournal(journal);
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        var handler = new FrameHandler(false);
+        // Queued but not written yet.
+        WatermarkTest.backlog(session);
+        for (int i = 0; i < 20; ++i)
+            send(session, i);
+        session.setScheduledBytes(0);
+        // The oldest held frames are dropped.
+        var frames = session.frames();
+        assertTrue(frames.size() < 20);
+        write(session, handler);
+        journal.close();
+
+        try (var tailer = journal.createTailer()) {
+            var records = read(tailer, frames.size());
+            assertEquals(frames.size(), records.size());
+            assertEquals(20 - frames.size(), id(records.get(0)));
+            assertEquals(19, id(records.get(records.size() - 1)));
+            for (var record : records) {
+                assertEquals(MessageType.FLOW_DEPTH_DELTA, record.getMessageType());
+                assertEquals(0, record.getSequence());
+                assertEquals(0, record.getSendTime());
+            }
+            assertNull(tailer.next());
+        }
+        assertEquals(frames.size(), journal.getRecords());
+    }
+
+    @Test
+    public void rollAndRetention() throws Exception {
+        var directory = this.folder.getRoot().toPath();
+        var journal = new FrameJournalImpl(directory, 4096, 2);
+        var session = new CapturedSession();
+        session.iop.setJournal(journal);
+        var handler = new FrameHandler(false);
+        // About 27 records in a segment.
+        for (int i = 0; i < 100; ++i)
+            send(session, i);
+        write(session, handler);
+        journal.close();
+
+        var segments = FrameJournalImpl.listSegments(directory);
+        assertEquals(2, segments.size());
+        assertEquals(1, segments.get(1) - segments.get(0));
+        try (var tailer = journal.createTailer()) {
+            // Journal is closed, so all records are in the segments.
+            var records = new ArrayList<JournalRecord>();
+            JournalRecord record;
+            while ((record = tailer.next()) != null)
+                records.add(record);
+            assertTrue(records.size() > 0 && records.size() < 100);
+            // The newest records are kept, in order.
+            for (int i = 0; i < records.size(); ++i)
+                assertEquals(100 - records.size() + i, id(records.get(i)));
+        }
+        assertEquals(100, journal.getRecords());
+        assertEquals(0, journal.getDroppedRecords());
+    }
+
+    @Test
+    public void tailWhileWriting() throws Exception {
+        var journal = new FrameJournalImpl(this.folder.getRoot().toPath(), 4096,
+                16);
+        var session = new CapturedSession();
+        session.iop.setJournal(journal);
+        var handler = new FrameHandler(false);
+        var error = new AtomicReference<Throwable>();
+        var tailer = journal.createTailer();
+        var thread = new Thread(() -> {
+            try {
+                for (int i = 0; i < 300; ++i) {
+                    send(session, i);
+                    write(session, handler);
+                    if (i % 50 == 0)
+                        Thread.sleep(5);
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        thread.start();
+        // Records over several segments are read as they are written.
+        var records = read(tailer, 300);
+        thread.join();
+        assertNull(error.get());
+        assertEquals(300, records.size());
+        for (int i = 0; i < records.size(); ++i)
+            assertEquals(i, id(records.get(i)));
+        assertNull(tailer.next());
+        assertTrue(FrameJournalImpl.listSegments(
+                this.folder.getRoot().toPath()).size() > 1);
+        tailer.close();
+        journal.close();
+    }
+}
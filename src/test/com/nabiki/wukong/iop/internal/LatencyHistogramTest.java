@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void index() {
+        // Values below 32 have their own buckets.
+        for (int i = 0; i < 32; ++i) {
+            assertEquals(i, LatencyHistogram.index(i));
+            assertEquals(i, LatencyHistogram.upperBound(i));
+        }
+        assertEquals(0, LatencyHistogram.index(-5));
+        assertEquals(32, LatencyHistogram.index(32));
+        assertEquals(63, LatencyHistogram.index(63));
+        // Buckets of width 2 from 64.
+        assertEquals(64, LatencyHistogram.index(64));
+        assertEquals(64, LatencyHistogram.index(65));
+        assertEquals(65, LatencyHistogram.index(66));
+        assertEquals(65, LatencyHistogram.upperBound(64));
+        assertEquals(67, LatencyHistogram.upperBound(65));
+        // Beyond 2^41 into the last bucket.
+        int last = LatencyHistogram.LENGTH - 1;
+        assertEquals(last, LatencyHistogram.index((1L << 41) - 1));
+        assertEquals(last, LatencyHistogram.index(1L << 41));
+        assertEquals(last, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals((1L << 41) - 1, LatencyHistogram.upperBound(last));
+    }
+
+    @Test
+    public void bounds() {
+        // Every bucket holds the values from the bound of the previous bucket
+        // exclusive to its own bound inclusive, within 1/32 of the value.
+        long lower = -1;
+        for (int i = 0; i < LatencyHistogram.LENGTH; ++i) {
+            long upper = LatencyHistogram.upperBound(i);
+            assertTrue(upper > lower);
+            assertEquals(i, LatencyHistogram.index(lower + 1));
+            assertEquals(i, LatencyHistogram.index(upper));
+            assertTrue((upper - lower - 1) * 32 <= Math.max(lower + 1, 32));
+            lower = upper;
+        }
+    }
+
+    @Test
+    public void snapshot() {
+        var histogram = new LatencyHistogram();
+        var empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMean(), 0.0);
+        assertEquals(0, empty.getP99());
+
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i * 1000L);
+        histogram.record(-1);
+        var snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(1000L * 1001 * 1000 / 2 / 1001.0, snapshot.getMean(), 1e-6);
+        assertEquals(1000_000, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(1000_000, snapshot.getValueAtPercentile(100));
+        // Percentiles are the upper bounds of the buckets, within 1/32.
+        for (var p : new long[][]{{50, snapshot.getP50(), 500_000},
+                {90, snapshot.getP90(), 900_000},
+                {99, snapshot.getP99(), 990_000}}) {
+            assertTrue(p[0] + ": " + p[1], p[1] >= p[2]);
+            assertTrue(p[0] + ": " + p[1], p[1] <= p[2] + p[2] / 32);
+        }
+        try {
+            snapshot.getValueAtPercentile(101);
+            fail("percentile out of range");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // Snapshot is a copy.
+        histogram.reset();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+}
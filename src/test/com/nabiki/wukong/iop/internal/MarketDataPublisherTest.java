@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.google.gson.Gson;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcDepthDeltaField;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.BodyCodec;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MarketDataPublisherTest {
+    private final Gson gson = new Gson();
+
+    static CThostFtdcCandleField candle(String instrumentID, int minute) {
+        var candle = new CThostFtdcCandleField();
+        candle.InstrumentID = instrumentID;
+        candle.ClosePrice = 2500 + minute;
+        candle.UpdateTime = "10:" + (10 + minute) + ":00";
+        return candle;
+    }
+
+    static List<String> instruments(List<Body> bodies) {
+        var instruments = new ArrayList<String>();
+        for (var body : bodies) {
+            if (body.Payload instanceof CThostFtdcDepthMarketDataField)
+                instruments.add(((CThostFtdcDepthMarketDataField) body.Payload)
+                        .InstrumentID);
+            else if (body.Payload instanceof CThostFtdcCandleField)
+                instruments.add("candle:" + ((CThostFtdcCandleField) body.Payload)
+                        .InstrumentID);
+        }
+        return instruments;
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        for (int i = 1; i <= 3; ++i) {
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+            publisher.publish(DepthDeltaTest.depth("m2101", i));
+        }
+        var session = new CapturedSession();
+        publisher.subscribe(session.iop, "x*");
+        assertTrue(session.frames().isEmpty());
+
+        // Latest depth of the subscribed instrument, with its sequence.
+        publisher.subscribe(session.iop, "c*");
+        var bodies = session.bodies();
+        assertEquals(1, bodies.size());
+        assertEquals(MessageType.FLOW_DEPTH, bodies.get(0).Type);
+        assertEquals(3, bodies.get(0).Sequence);
+        assertEquals(gson.toJson(DepthDeltaTest.depth("c2101", 3)),
+                gson.toJson(bodies.get(0).Payload));
+
+        // Depth already sent is not sent again.
+        session.clear();
+        publisher.subscribe(session.iop, "c2101");
+        publisher.unsubscribe(session.iop, "c2101");
+        publisher.subscribe(session.iop, "c*");
+        assertTrue(session.frames().isEmpty());
+
+        // Live ticks follow the snapshot.
+        publisher.publish(DepthDeltaTest.depth("c2101", 4));
+        bodies = session.bodies();
+        assertEquals(1, bodies.size());
+        assertEquals(4, bodies.get(0).Sequence);
+
+        // New depth after unsubscription is sent on subscription.
+        publisher.unsubscribe(session.iop, "c*");
+        publisher.publish(DepthDeltaTest.depth("c2101", 5));
+        session.clear();
+        publisher.subscribe(session.iop, "c2101");
+        bodies = session.bodies();
+        assertEquals(1, bodies.size());
+        assertEquals(5, bodies.get(0).Sequence);
+    }
+
+    @Test
+    public void snapshotKeyframe() throws IOException {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        publisher.publish(DepthDeltaTest.depth("c2101", 1));
+        var session = new CapturedSession();
+        publisher.setDepthDelta(session.iop, 10);
+        publisher.subscribe(session.iop, "c2101");
+        publisher.publish(DepthDeltaTest.depth("c2101", 2));
+        publisher.publish(DepthDeltaTest.depth("c2101", 3));
+
+        // Snapshot is the keyframe the later deltas are against.
+        var bodies = session.bodies();
+        assertEquals(3, bodies.size());
+        var receiver = new DepthDelta.Receiver();
+        for (int i = 0; i < bodies.size(); ++i) {
+            var body = bodies.get(i);
+            assertEquals(MessageType.FLOW_DEPTH_DELTA, body.Type);
+            assertEquals(i + 1, body.Sequence);
+            var delta = (CThostFtdcDepthDeltaField) body.Payload;
+            assertEquals(i == 0, delta.BaseVersion == 0);
+            assertEquals(gson.toJson(DepthDeltaTest.depth("c2101", i + 1)),
+                    gson.toJson(receiver.receive(delta)));
+        }
+    }
+
+    @Test
+    public void fanOut() throws IOException {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var json0 = new CapturedSession();
+        var json1 = new CapturedSession();
+        var binary = new CapturedSession();
+        binary.iop.setBodyCodec(BodyCodec.BINARY);
+        var other = new CapturedSession();
+        publisher.subscribe(json0.iop, "c*");
+        publisher.subscribe(json1.iop, "c2101");
+        publisher.subscribe(binary.iop, "c2101");
+        publisher.subscribe(other.iop, "m*");
+        publisher.publish(DepthDeltaTest.depth("c2101", 1));
+        publisher.publish(candle("c2101", 1));
+
+        // Encoded once for each codec.
+        assertEquals(2, json0.frames().size());
+        for (int i = 0; i < 2; ++i)
+            assertSame(json0.frames().get(i), json1.frames().get(i));
+        assertNotSame(json0.frames().get(0), binary.frames().get(0));
+        assertEquals(gson.toJson(json0.bodies().get(0).Payload),
+                gson.toJson(binary.bodies().get(0).Payload));
+        assertEquals(List.of("c2101", "candle:c2101"),
+                instruments(binary.bodies()));
+        assertTrue(other.frames().isEmpty());
+    }
+
+    @Test
+    public void conflation() throws IOException {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var session = new CapturedSession();
+        var fast = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.CONFLATE);
+        publisher.subscribe(session.iop, "*");
+        publisher.subscribe(fast.iop, "*");
+
+        WatermarkTest.backlog(session);
+        for (int i = 1; i <= 3; ++i) {
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+            publisher.publish(DepthDeltaTest.depth("m2101", i));
+            publisher.publish(candle("c2101", i));
+        }
+        publisher.publish(DepthDeltaTest.depth("c2102", 1));
+        // Session behind has candles held, and the other session has all.
+        assertTrue(session.frames().isEmpty());
+        assertEquals(10, fast.frames().size());
+
+        // Latest depth of each instrument, and all candles.
+        session.setScheduledBytes(0);
+        publisher.sent(session.iop);
+        var bodies = session.bodies();
+        var instruments = instruments(bodies);
+        assertEquals(6, bodies.size());
+        assertEquals(3, instruments.stream()
+                .filter(id -> id.startsWith("candle:")).count());
+        for (var body : bodies) {
+            if (!(body.Payload instanceof CThostFtdcDepthMarketDataField))
+                continue;
+            var depth = (CThostFtdcDepthMarketDataField) body.Payload;
+            var tick = depth.InstrumentID.equals("c2102") ? 1 : 3;
+            assertEquals(gson.toJson(DepthDeltaTest.depth(depth.InstrumentID,
+                    tick)), gson.toJson(depth));
+        }
+
+        // Pending depth of an unsubscribed instrument is dropped.
+        session.clear();
+        WatermarkTest.backlog(session);
+        publisher.publish(DepthDeltaTest.depth("c2101", 4));
+        publisher.publish(DepthDeltaTest.depth("m2101", 4));
+        publisher.unsubscribe(session.iop, "*");
+        publisher.subscribe(session.iop, "m*");
+        session.setScheduledBytes(0);
+        publisher.sent(session.iop);
+        assertEquals(List.of("m2101"), instruments(session.bodies()));
+    }
+}
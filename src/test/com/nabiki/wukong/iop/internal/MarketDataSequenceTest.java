@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcCandleField;
+import com.nabiki.wukong.ctp4j.jni.struct.CThostFtdcReplayMarketDataField;
+import com.nabiki.wukong.iop.ClientMessageAdaptor;
+import com.nabiki.wukong.iop.SequenceGap;
+import com.nabiki.wukong.iop.SessionEvent;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.apache.mina.core.session.DummySession;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Market data written by the server session is received by a client handler, and
+ * the client checks the sequences.
+ */
+public class MarketDataSequenceTest {
+    private final FrameHandler client = new FrameHandler(false);
+    private final DummySession clientIo = new DummySession();
+    private final List<SequenceGap> gaps = new ArrayList<>();
+    private final List<Long> live = new ArrayList<>(), replayed = new ArrayList<>();
+    private final List<CThostFtdcReplayMarketDataField> replays
+            = new ArrayList<>();
+
+    public MarketDataSequenceTest() {
+        this.client.setSessionAdaptor((session, event, eventObject) -> {
+            if (event == SessionEvent.MARKET_DATA_GAP)
+                this.gaps.add((SequenceGap) eventObject);
+        });
+        this.client.setMessageAdaptor(new ClientMessageAdaptor() {
+            @Override
+            public void rspDepthMarketData(CThostFtdcDepthMarketDataField depth) {
+                live.add((long) depth.LastPrice - 2500);
+            }
+
+            @Override
+            public void rspReplayDepthMarketData(
+                    CThostFtdcDepthMarketDataField depth, long sequence,
+                    UUID requestID, UUID responseID, int count, int total) {
+                assertEquals(sequence, (long) depth.LastPrice - 2500);
+                replayed.add(sequence);
+            }
+
+            @Override
+            public void rspReplayCandle(CThostFtdcCandleField candle,
+                                        long sequence, UUID requestID,
+                                        UUID responseID, int count, int total) {
+                replayed.add(-sequence);
+            }
+
+            @Override
+            public void rspReplayMarketData(CThostFtdcReplayMarketDataField replay,
+                                            UUID requestID, UUID responseID,
+                                            int count, int total) {
+                replays.add(replay);
+            }
+        });
+    }
+
+    private void receive(List<Frame> frames) throws Exception {
+        for (var frame : frames)
+            this.client.messageReceived(this.clientIo, frame);
+    }
+
+    private long last(MessageType type, String instrumentID) {
+        return this.client.getIOPSession(this.clientIo)
+                .getLastSequence(type, instrumentID);
+    }
+
+    private static CThostFtdcReplayMarketDataField request(
+            String instrumentID, MessageType type, long from, long to) {
+        var replay = new CThostFtdcReplayMarketDataField();
+        replay.InstrumentID = instrumentID;
+        replay.StreamType = type.name();
+        replay.FromSequence = from;
+        replay.ToSequence = to;
+        return replay;
+    }
+
+    @Test
+    public void gap() throws Exception {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var server = new CapturedSession();
+        publisher.subscribe(server.iop, "c2101");
+        for (int i = 1; i <= 5; ++i)
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+        var frames = server.frames();
+        frames.remove(3);
+        frames.remove(2);
+        receive(frames);
+        assertEquals(List.of(1L, 2L, 5L), this.live);
+        assertEquals(1, this.gaps.size());
+        assertEquals(3, this.gaps.get(0).getFromSequence());
+        assertEquals(4, this.gaps.get(0).getToSequence());
+        assertEquals(5, last(MessageType.FLOW_DEPTH, "c2101"));
+    }
+
+    @Test
+    public void conflated() throws Exception {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var server = new CapturedSession();
+        server.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.CONFLATE);
+        publisher.subscribe(server.iop, "c2101");
+        publisher.publish(DepthDeltaTest.depth("c2101", 1));
+        receive(server.frames());
+
+        // Conflated by publisher.
+        WatermarkTest.backlog(server);
+        for (int i = 2; i <= 5; ++i)
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+        server.setScheduledBytes(0);
+        publisher.sent(server.iop);
+        receive(server.frames());
+        assertEquals(List.of(1L, 5L), this.live);
+        assertEquals(5, last(MessageType.FLOW_DEPTH, "c2101"));
+
+        // Snapshot after the ticks missed while unsubscribed.
+        server.clear();
+        publisher.unsubscribe(server.iop, "c2101");
+        publisher.publish(DepthDeltaTest.depth("c2101", 6));
+        publisher.publish(DepthDeltaTest.depth("c2101", 7));
+        publisher.subscribe(server.iop, "c2101");
+        publisher.publish(DepthDeltaTest.depth("c2101", 8));
+        receive(server.frames());
+        assertEquals(8, last(MessageType.FLOW_DEPTH, "c2101"));
+
+        // Conflated by session.
+        var other = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var source = new CapturedSession();
+        other.subscribe(source.iop, "c2101");
+        for (int i = 1; i <= 12; ++i)
+            other.publish(DepthDeltaTest.depth("c2101", i));
+        WatermarkTest.backlog(server);
+        for (var frame : source.frames().subList(8, 12))
+            server.iop.sendFrame(frame, MessageType.FLOW_DEPTH, "c2101", false,
+                    false);
+        server.setScheduledBytes(0);
+        receive(server.frames());
+
+        assertTrue(this.gaps.isEmpty());
+        assertEquals(List.of(1L, 5L, 7L, 8L, 12L), this.live);
+        assertEquals(12, last(MessageType.FLOW_DEPTH, "c2101"));
+    }
+
+    @Test
+    public void replay() throws Exception {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl(),
+                4);
+        var server = new CapturedSession();
+        publisher.subscribe(server.iop, "c2101");
+        for (int i = 1; i <= 10; ++i)
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+        var frames = server.frames();
+        receive(frames.subList(0, 2));
+        receive(frames.subList(9, 10));
+        assertEquals(1, this.gaps.size());
+        assertEquals(10, last(MessageType.FLOW_DEPTH, "c2101"));
+        server.clear();
+
+        // Only the latest 4 are kept in the ring.
+        var requestID = UUID.randomUUID();
+        publisher.replay(server.iop, requestID, request("c2101",
+                MessageType.FLOW_DEPTH, 3, 9));
+        receive(server.frames());
+        assertEquals(List.of(7L, 8L, 9L), this.replayed);
+        assertEquals(List.of(1L, 2L, 10L), this.live);
+        assertEquals(1, this.replays.size());
+        assertEquals(7, this.replays.get(0).FromSequence);
+        assertEquals(9, this.replays.get(0).ToSequence);
+        // Replay doesn't move the live stream back.
+        assertEquals(10, last(MessageType.FLOW_DEPTH, "c2101"));
+
+        // To the latest.
+        server.clear();
+        this.replayed.clear();
+        publisher.replay(server.iop, requestID, request("c2101",
+                MessageType.FLOW_DEPTH, 9, 0));
+        receive(server.frames());
+        assertEquals(List.of(9L, 10L), this.replayed);
+        assertEquals(10, this.replays.get(1).ToSequence);
+    }
+
+    @Test
+    public void replayAdvances() throws Exception {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var server = new CapturedSession();
+        publisher.subscribe(server.iop, "c2101");
+        for (int i = 1; i <= 3; ++i) {
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+            publisher.publish(MarketDataPublisherTest.candle("c2101", i));
+        }
+        receive(server.frames().subList(0, 1));
+        server.clear();
+
+        // Replayed candles move the candle stream.
+        publisher.replay(server.iop, UUID.randomUUID(), request("c2101",
+                MessageType.FLOW_CANDLE, 1, 0));
+        publisher.replay(server.iop, UUID.randomUUID(), request("c2101",
+                MessageType.FLOW_DEPTH, 2, 0));
+        receive(server.frames());
+        assertEquals(List.of(-1L, -2L, -3L, 2L, 3L), this.replayed);
+        assertEquals(3, last(MessageType.FLOW_CANDLE, "c2101"));
+        assertEquals(3, last(MessageType.FLOW_DEPTH, "c2101"));
+
+        // Nothing kept.
+        server.clear();
+        publisher.replay(server.iop, UUID.randomUUID(), request("m2101",
+                MessageType.FLOW_DEPTH, 1, 0));
+        receive(server.frames());
+        var replay = this.replays.get(2);
+        assertEquals(0, replay.FromSequence);
+        assertEquals(0, replay.ToSequence);
+        assertTrue(this.gaps.isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.IOPMetrics;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class MetricsImplTest {
+    @Test
+    public void counters() {
+        var metrics = new MetricsImpl();
+        metrics.received(2, 300);
+        metrics.received(1, 100);
+        metrics.sent(3, 500);
+        metrics.brokenFrame();
+        metrics.decodeError();
+        metrics.decodeError();
+        metrics.messageIn(MessageType.FLOW_DEPTH);
+        metrics.messageIn(MessageType.FLOW_DEPTH);
+        metrics.messageIn(null);
+        metrics.messageOut(MessageType.HEARTBEAT);
+        metrics.record(IOPMetrics.Stage.DECODE, 1000);
+
+        assertEquals(3, metrics.getFramesIn());
+        assertEquals(400, metrics.getBytesIn());
+        assertEquals(3, metrics.getFramesOut());
+        assertEquals(500, metrics.getBytesOut());
+        assertEquals(1, metrics.getBrokenFrames());
+        assertEquals(2, metrics.getDecodeErrors());
+        assertEquals(2, metrics.getMessagesIn(MessageType.FLOW_DEPTH));
+        assertEquals(0, metrics.getMessagesOut(MessageType.FLOW_DEPTH));
+        assertEquals(1, metrics.getMessagesOut(MessageType.HEARTBEAT));
+        assertEquals(1, metrics.getLatency(IOPMetrics.Stage.DECODE).getCount());
+        assertEquals(0, metrics.getLatency(IOPMetrics.Stage.ENCODE).getCount());
+
+        // Maps have all types and stages in order.
+        var in = metrics.getMessagesInByType();
+        assertEquals(MessageType.values().length, in.size());
+        assertEquals(MessageType.values()[0].name(), in.keySet().iterator().next());
+        assertEquals(2L, (long) in.get(MessageType.FLOW_DEPTH.name()));
+        assertEquals(1L, (long) metrics.getMessagesOutByType()
+                .get(MessageType.HEARTBEAT.name()));
+        var latencies = metrics.getLatencies();
+        assertArrayEquals(new String[]{"DECODE", "DISPATCH", "ADAPTOR", "ENCODE",
+                "WRITE_WAIT"}, latencies.keySet().toArray(new String[0]));
+        assertEquals(1000, latencies.get("DECODE").getMax());
+
+        metrics.reset();
+        assertEquals(0, metrics.getFramesIn());
+        assertEquals(0, metrics.getBytesOut());
+        assertEquals(0, metrics.getDecodeErrors());
+        assertEquals(0, metrics.getMessagesIn(MessageType.FLOW_DEPTH));
+        assertEquals(0, metrics.getLatency(IOPMetrics.Stage.DECODE).getCount());
+    }
+
+    @Test
+    public void register() throws Exception {
+        var metrics = new MetricsImpl();
+        metrics.sent(4, 64);
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName(MetricsImpl.JMX_DOMAIN
+                + ":type=Metrics,name=" + ObjectName.quote("metrics-test"));
+        metrics.register("metrics-test");
+        try {
+            assertEquals(4L, server.getAttribute(name, "FramesOut"));
+            assertNotNull(server.getAttribute(name, "Latencies"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0, metrics.getFramesOut());
+            try {
+                metrics.register("metrics-test");
+                fail("registered twice");
+            } catch (IllegalArgumentException ignored) {
+            }
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcQryTradingAccountField;
+import com.nabiki.wukong.iop.IOPSession;
+import com.nabiki.wukong.iop.ServerMessageAdaptor;
+import com.nabiki.wukong.iop.frame.*;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.filter.codec.AbstractProtocolEncoderOutput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PackedBatchTest {
+    static WriteBatch batch(List<Frame> frames) {
+        int bytes = 0;
+        for (var frame : frames)
+            bytes += FrameEncoder.HEADER_LENGTH + frame.Length;
+        return new WriteBatch(frames, bytes, MessagePriority.QUERY, true);
+    }
+
+    // Encode the batch written by the session and parse the frames on wire.
+    static List<Frame> wire(CapturedSession session, WriteBatch batch)
+            throws Exception {
+        var out = new AbstractProtocolEncoderOutput() {
+            @Override
+            public WriteFuture flush() {
+                return null;
+            }
+        };
+        new FrameEncoder().encode(session.io, batch, out);
+        var buffer = (IoBuffer) out.getMessageQueue().poll();
+        var bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        var parser = new FrameParser();
+        assertTrue(parser.parse(bytes));
+        var frames = new ArrayList<Frame>();
+        Frame frame;
+        while ((frame = parser.poll()) != null)
+            frames.add(frame);
+        return frames;
+    }
+
+    @Test
+    public void stamped() throws Exception {
+        var client = new CapturedSession();
+        client.iop.setLatencyStamping(true);
+        var frames = new ArrayList<Frame>();
+        for (int i = 0; i < 3; ++i)
+            frames.add(CapturedSession.request(MessageType.QRY_ACCOUNT));
+        frames.add(CapturedSession.request(MessageType.HEARTBEAT));
+        var wire = wire(client, batch(frames));
+
+        // Batch takes a sequence for each packed frame.
+        assertEquals(2, wire.size());
+        var packed = wire.get(0);
+        assertEquals(FrameType.BATCH, FrameType.typeOf(packed.Type));
+        assertTrue(FrameType.hasFlag(packed.Type, FrameType.FLAG_STAMPED));
+        assertEquals(1, packed.Sequence);
+        assertTrue(packed.SendTime != 0);
+        assertEquals(4, wire.get(1).Sequence);
+
+        // Each packed request has the stamp of the batch.
+        var server = new CapturedSession();
+        server.iop.setAttribute(FrameHandler.IOP_ISLOGIN_KEY, true);
+        var handler = new FrameHandler(true);
+        handler.setMessageAdaptor(new ServerMessageAdaptor() {
+            @Override
+            public void qryAccount(IOPSession session,
+                                   CThostFtdcQryTradingAccountField qry,
+                                   UUID requestID, int count, int total) {
+                var body = new Body();
+                body.RequestID = requestID;
+                body.Type = MessageType.RSP_QRY_ACCOUNT;
+                body.CurrentCount = 1;
+                body.TotalCount = 1;
+                session.sendResponse(body);
+            }
+        });
+        for (var frame : wire)
+            handler.messageReceived(server.io, frame);
+        var responses = server.frames();
+        assertEquals(4, responses.size());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(packed.SendTime, responses.get(i).RequestSendTime);
+        assertEquals(wire.get(1).SendTime, responses.get(3).RequestSendTime);
+        assertEquals(4, server.iop.getMetrics().getFramesIn());
+        assertEquals(4, handler.getMetrics().getFramesIn());
+    }
+
+    // Server handler recording the request IDs of the queries in order.
+    static FrameHandler recording(List<UUID> requestIDs) {
+        var handler = new FrameHandler(true);
+        handler.setMessageAdaptor(new ServerMessageAdaptor() {
+            @Override
+            public void qryAccount(IOPSession session,
+                                   CThostFtdcQryTradingAccountField qry,
+                                   UUID requestID, int count, int total) {
+                requestIDs.add(requestID);
+            }
+        });
+        return handler;
+    }
+
+    static Frame batchFrame(int packedType, byte[]... bodies) {
+        int length = FrameEncoder.BATCH_HEADER_LENGTH;
+        for (var body : bodies)
+            length += 4 + body.length;
+        var buffer = ByteBuffer.allocate(length);
+        buffer.putInt(packedType);
+        for (var body : bodies) {
+            buffer.putInt(body.length);
+            buffer.put(body);
+        }
+        var frame = new Frame();
+        frame.Type = FrameType.BATCH;
+        frame.Length = length;
+        frame.Body = buffer.array();
+        return frame;
+    }
+
+    @Test
+    public void runs() throws Exception {
+        var frames = new ArrayList<Frame>();
+        frames.add(CapturedSession.request(MessageType.QRY_ACCOUNT));
+        frames.add(CapturedSession.request(MessageType.QRY_ACCOUNT));
+        frames.add(CapturedSession.request(MessageType.HEARTBEAT));
+        frames.add(CapturedSession.request(MessageType.QRY_ACCOUNT));
+        var binary = CapturedSession.request(MessageType.QRY_ACCOUNT);
+        binary.Type |= FrameType.FLAG_BINARY;
+        frames.add(binary);
+        var wire = wire(new CapturedSession(), batch(frames));
+
+        // Runs of the same frame type are packed, and others are as they are.
+        assertEquals(4, wire.size());
+        assertEquals(FrameType.BATCH, wire.get(0).Type);
+        assertEquals(FrameType.REQUEST,
+                ByteBuffer.wrap(wire.get(0).Body).getInt());
+        assertEquals(FrameType.HEARTBEAT, wire.get(1).Type);
+        assertEquals(FrameType.REQUEST, wire.get(2).Type);
+        assertEquals(FrameType.REQUEST | FrameType.FLAG_BINARY, wire.get(3).Type);
+
+        // Written as they are if the batch isn't packed.
+        var unpacked = new WriteBatch(frames, batch(frames).bytes,
+                MessagePriority.QUERY, false);
+        assertEquals(5, wire(new CapturedSession(), unpacked).size());
+    }
+
+    @Test
+    public void unpacked() throws Exception {
+        var frames = new ArrayList<Frame>();
+        var requestIDs = new ArrayList<UUID>();
+        for (int i = 0; i < 5; ++i) {
+            var frame = CapturedSession.request(MessageType.QRY_ACCOUNT);
+            frames.add(frame);
+            requestIDs.add(CapturedSession.decode(frame).RequestID);
+        }
+        var wire = wire(new CapturedSession(), batch(frames));
+        assertEquals(1, wire.size());
+
+        // Handled in order as separate frames.
+        var server = new CapturedSession();
+        server.iop.setAttribute(FrameHandler.IOP_ISLOGIN_KEY, true);
+        var received = new ArrayList<UUID>();
+        var handler = recording(received);
+        handler.messageReceived(server.io, wire.get(0));
+        assertEquals(requestIDs, received);
+        assertEquals(5, server.iop.getMetrics().getFramesIn());
+        assertEquals(5, handler.getMetrics().getMessagesIn(
+                MessageType.QRY_ACCOUNT));
+    }
+
+    @Test
+    public void maxLength() throws Exception {
+        var frames = new ArrayList<Frame>();
+        for (int i = 0; i < 6; ++i)
+            frames.add(CapturedSession.request(MessageType.QRY_ACCOUNT));
+        int length = frames.get(0).Length;
+        int max = FrameParser.DEFAULT_MAX_FRAME_LENGTH;
+        // Three frames in a batch frame at most.
+        FrameParser.DEFAULT_MAX_FRAME_LENGTH = FrameEncoder.BATCH_HEADER_LENGTH
+                + 3 * (4 + length);
+        try {
+            var wire = wire(new CapturedSession(), batch(frames));
+            assertEquals(2, wire.size());
+            for (var frame : wire)
+                assertTrue(frame.Length <= FrameParser.DEFAULT_MAX_FRAME_LENGTH);
+        } finally {
+            FrameParser.DEFAULT_MAX_FRAME_LENGTH = max;
+        }
+    }
+
+    @Test
+    public void stampedResponse() throws Exception {
+        var frames = new ArrayList<Frame>();
+        for (int i = 0; i < 3; ++i) {
+            var frame = CapturedSession.request(MessageType.QRY_ACCOUNT);
+            frame.Type = FrameType.RESPONSE;
+            frames.add(frame);
+        }
+        // Response echoing the stamp of its request.
+        frames.get(1).RequestSendTime = 1;
+        var wire = wire(new CapturedSession(), batch(frames));
+        assertEquals(3, wire.size());
+        assertEquals(FrameType.RESPONSE, wire.get(0).Type);
+        assertEquals(1, wire.get(1).RequestSendTime);
+    }
+
+    @Test
+    public void broken() throws Exception {
+        var server = new CapturedSession();
+        server.iop.setAttribute(FrameHandler.IOP_ISLOGIN_KEY, true);
+        var handler = recording(new ArrayList<>());
+        var body = CapturedSession.request(MessageType.QRY_ACCOUNT).Body;
+        // Nested batch, empty body, and length over the frame.
+        var broken = List.of(batchFrame(FrameType.BATCH, body),
+                batchFrame(FrameType.REQUEST, body, new byte[0]),
+                batchFrame(FrameType.REQUEST, body));
+        ByteBuffer.wrap(broken.get(2).Body).putInt(4, body.length + 1);
+        for (var frame : broken) {
+            try {
+                handler.messageReceived(server.io, frame);
+                fail("broken batch frame");
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class PendingRequestsTest {
+    static Body response(UUID requestID, int count, int total) {
+        var body = new Body();
+        body.RequestID = requestID;
+        body.Type = MessageType.RSP_QRY_POSITION;
+        body.CurrentCount = count;
+        body.TotalCount = total;
+        return body;
+    }
+
+    static class Recorder implements Flow.Subscriber<Body> {
+        final List<Body> bodies = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long initialDemand;
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        Recorder(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (this.initialDemand > 0)
+                subscription.request(this.initialDemand);
+        }
+
+        @Override
+        public void onNext(Body item) {
+            this.bodies.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+            this.done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+            this.done.countDown();
+        }
+    }
+
+    @Test
+    public void single() throws Exception {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var future = pending.single(requestID, Duration.ofSeconds(10));
+        assertFalse(pending.complete(null, response(UUID.randomUUID(), 1, 1)));
+        assertFalse(future.isDone());
+
+        // Completes with the first response, and the request is removed after
+        // the last one.
+        var first = response(requestID, 1, 2);
+        assertTrue(pending.complete(null, first));
+        assertSame(first, future.get());
+        assertTrue(pending.complete(null, response(requestID, 2, 2)));
+        assertFalse(pending.complete(null, response(requestID, 2, 2)));
+    }
+
+    @Test
+    public void singleTimeout() throws Exception {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var future = pending.single(requestID, Duration.ofMillis(20));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // The request is forgotten.
+        assertFalse(pending.complete(null, response(requestID, 1, 1)));
+        pending.single(requestID, Duration.ofSeconds(10));
+    }
+
+    @Test
+    public void responseRestartsTimeout() throws Exception {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var recorder = new Recorder(Long.MAX_VALUE);
+        pending.many(requestID, Duration.ofMillis(300)).subscribe(recorder);
+        // Longer than the timeout in total, but each response within it.
+        for (int i = 1; i <= 5; ++i) {
+            Thread.sleep(100);
+            assertTrue(pending.complete(null, response(requestID, i, 5)));
+        }
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.completed);
+        assertNull(recorder.error);
+        assertEquals(5, recorder.bodies.size());
+    }
+
+    @Test
+    public void noTimeoutWhileBuffered() throws Exception {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var recorder = new Recorder(0);
+        pending.many(requestID, Duration.ofMillis(30)).subscribe(recorder);
+        assertTrue(pending.complete(null, response(requestID, 1, 3)));
+        // Waiting for the subscriber, not for the server.
+        Thread.sleep(150);
+        assertNull(recorder.error);
+
+        recorder.subscription.request(1);
+        assertEquals(1, recorder.bodies.size());
+        // Then it waits for the server again.
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.error instanceof TimeoutException);
+        assertFalse(pending.complete(null, response(requestID, 2, 3)));
+    }
+
+    @Test
+    public void cancelled() {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var future = pending.single(requestID, Duration.ofSeconds(10));
+        future.cancel(false);
+        assertFalse(pending.complete(null, response(requestID, 1, 1)));
+
+        var recorder = new Recorder(1);
+        pending.many(requestID, Duration.ofSeconds(10)).subscribe(recorder);
+        recorder.subscription.cancel();
+        assertFalse(pending.complete(null, response(requestID, 1, 1)));
+    }
+
+    @Test
+    public void failAll() throws Exception {
+        var pending = new PendingRequests();
+        var future = pending.single(UUID.randomUUID(), Duration.ofSeconds(10));
+        var recorder = new Recorder(1);
+        pending.many(UUID.randomUUID(), Duration.ofSeconds(10))
+                .subscribe(recorder);
+        pending.failAll();
+        try {
+            future.get();
+            fail("not failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(recorder.error instanceof IOException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicate() {
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        pending.single(requestID, Duration.ofSeconds(10));
+        pending.single(requestID, Duration.ofSeconds(10));
+    }
+}
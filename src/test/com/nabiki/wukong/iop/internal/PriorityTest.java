@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.MessagePriority;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.apache.mina.core.session.AbstractIoSession;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PriorityTest {
+    static WriteRequest request(MessagePriority priority) {
+        return new DefaultWriteRequest(new WriteBatch(
+                List.of(CapturedSession.frame(priority.ordinal())), 108, priority,
+                false));
+    }
+
+    @Test
+    public void writeRequestQueue() {
+        var session = new DummySession();
+        var queue = new PrioritySessionDataStructureFactory()
+                .getWriteRequestQueue(session);
+        var heartbeat = request(MessagePriority.HEARTBEAT);
+        var market = request(MessagePriority.MARKET_DATA);
+        var query = request(MessagePriority.QUERY);
+        var order = request(MessagePriority.ORDER);
+        var order1 = request(MessagePriority.ORDER);
+        var other = new DefaultWriteRequest("not a frame");
+        for (var request : List.of(heartbeat, other, market, query, order,
+                order1))
+            queue.offer(session, request);
+        assertEquals(6, queue.size());
+
+        // Highest priority first, and the same priority in order. Other writes
+        // go with heartbeats.
+        for (var request : List.of(order, order1, query, market, heartbeat,
+                other))
+            assertSame(request, queue.poll(session));
+        assertNull(queue.poll(session));
+        assertTrue(queue.isEmpty(session));
+
+        queue.offer(session, market);
+        queue.offer(session, query);
+        queue.clear(session);
+        assertTrue(queue.isEmpty(session));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void closeRequest() {
+        var session = new DummySession();
+        var queue = new PrioritySessionDataStructureFactory()
+                .getWriteRequestQueue(session);
+        var market = request(MessagePriority.MARKET_DATA);
+        queue.offer(session, market);
+        queue.offer(session, AbstractIoSession.CLOSE_REQUEST);
+        // Writes before the close request are written first.
+        assertSame(market, queue.poll(session));
+        assertNull(queue.poll(session));
+        assertTrue(session.isClosing());
+    }
+
+    @Test
+    public void sessionLanes() {
+        var session = new CapturedSession();
+        session.iop.setBatching(64 * 1024, Duration.ofHours(1));
+        var types = List.of(MessageType.HEARTBEAT, MessageType.FLOW_CANDLE,
+                MessageType.RSP_QRY_ACCOUNT, MessageType.RSP_REQ_ORDER_INSERT,
+                MessageType.FLOW_CANDLE, MessageType.RSP_QRY_ACCOUNT,
+                MessageType.RSP_REQ_ORDER_INSERT);
+        for (int i = 0; i < types.size(); ++i)
+            session.iop.sendFrame(CapturedSession.frame(i), types.get(i),
+                    types.get(i) == MessageType.FLOW_CANDLE ? "c2101" : null,
+                    false, false);
+        session.iop.flush();
+
+        // A batch for each priority, from the highest.
+        var priorities = new ArrayList<MessagePriority>();
+        for (var batch : session.batches)
+            priorities.add(batch.priority);
+        assertEquals(List.of(MessagePriority.ORDER, MessagePriority.QUERY,
+                MessagePriority.MARKET_DATA, MessagePriority.HEARTBEAT),
+                priorities);
+        assertEquals(List.of(3, 6, 2, 5, 1, 4, 0),
+                CapturedSession.ids(session.frames()));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInvestorPositionField;
+import com.nabiki.wukong.iop.ClientMessageAdaptor;
+import com.nabiki.wukong.iop.ResponseStream;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ResponseStreamTest {
+    static CThostFtdcInvestorPositionField row(int index) {
+        var row = new CThostFtdcInvestorPositionField();
+        row.InstrumentID = "c" + index;
+        return row;
+    }
+
+    static List<Integer> counts(CapturedSession session) throws IOException {
+        var counts = new ArrayList<Integer>();
+        for (var body : session.bodies())
+            counts.add(body.CurrentCount);
+        return counts;
+    }
+
+    @Test
+    public void window() throws IOException {
+        var session = new CapturedSession();
+        var requestID = UUID.randomUUID();
+        ResponseStream<CThostFtdcInvestorPositionField> stream = session.iop
+                .openResponseStream(requestID, MessageType.RSP_QRY_POSITION);
+        for (int i = 1; i <= 100; ++i)
+            stream.next(row(i));
+        // Rows within the window, and the last row is held for the total.
+        var bodies = session.bodies();
+        assertEquals(ResponseStreamImpl.WINDOW, bodies.size());
+        for (int i = 0; i < bodies.size(); ++i) {
+            assertEquals(i + 1, bodies.get(i).CurrentCount);
+            assertEquals(ResponseStream.UNKNOWN_TOTAL, bodies.get(i).TotalCount);
+        }
+        assertFalse(stream.isReady());
+
+        // Credits granted in batches by the client.
+        session.iop.credit(requestID, PendingRequests.CREDIT_BATCH);
+        assertEquals(ResponseStreamImpl.WINDOW + PendingRequests.CREDIT_BATCH,
+                session.frames().size());
+
+        // The last rows wait for credits after completion.
+        stream.complete();
+        assertEquals(96, session.frames().size());
+        session.iop.credit(requestID, PendingRequests.CREDIT_BATCH);
+        bodies = session.bodies();
+        assertEquals(100, bodies.size());
+        assertEquals(100, bodies.get(99).CurrentCount);
+        assertEquals(100, bodies.get(99).TotalCount);
+        assertEquals("c100", ((CThostFtdcInvestorPositionField)
+                bodies.get(99).Payload).InstrumentID);
+        assertEquals(ResponseStream.UNKNOWN_TOTAL, bodies.get(98).TotalCount);
+
+        // The stream is closed, and the request ID can be used again.
+        session.iop.openResponseStream(requestID, MessageType.RSP_QRY_POSITION);
+    }
+
+    @Test
+    public void onReady() throws IOException {
+        var session = new CapturedSession();
+        var requestID = UUID.randomUUID();
+        ResponseStream<CThostFtdcInvestorPositionField> stream = session.iop
+                .openResponseStream(requestID, MessageType.RSP_QRY_POSITION);
+        var ready = new AtomicInteger(0);
+        stream.setOnReadyHandler(ready::incrementAndGet);
+        int sent = 0;
+        while (stream.isReady())
+            stream.next(row(++sent));
+        assertEquals(ResponseStreamImpl.WINDOW + 1, sent);
+        assertEquals(0, ready.get());
+
+        // Ready again with a credit for the next row.
+        session.iop.credit(requestID, 1);
+        assertTrue(stream.isReady());
+        assertEquals(1, ready.get());
+        stream.next(row(++sent));
+        assertFalse(stream.isReady());
+        session.iop.credit(requestID, PendingRequests.CREDIT_BATCH);
+        assertTrue(stream.isReady());
+        assertEquals(2, ready.get());
+        // Not called if the stream is ready already.
+        session.iop.credit(requestID, 1);
+        assertEquals(2, ready.get());
+
+        stream.complete();
+        var counts = counts(session);
+        assertEquals(sent, counts.size());
+        assertEquals(sent, (int) counts.get(sent - 1));
+        assertFalse(stream.isReady());
+    }
+
+    @Test
+    public void empty() throws IOException {
+        var session = new CapturedSession();
+        var stream = session.iop.openResponseStream(UUID.randomUUID(),
+                MessageType.RSP_QRY_POSITION);
+        stream.complete();
+        var bodies = session.bodies();
+        assertEquals(1, bodies.size());
+        assertEquals(0, bodies.get(0).CurrentCount);
+        assertEquals(0, bodies.get(0).TotalCount);
+        assertNull(bodies.get(0).Payload);
+    }
+
+    @Test
+    public void invalid() {
+        var session = new CapturedSession();
+        var requestID = UUID.randomUUID();
+        var stream = session.iop.<Object>openResponseStream(requestID,
+                MessageType.RSP_QRY_POSITION);
+        try {
+            session.iop.openResponseStream(requestID,
+                    MessageType.RSP_QRY_POSITION);
+            fail("duplicate stream");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            stream.next("not a position");
+            fail("wrong row type");
+        } catch (IllegalArgumentException ignored) {
+        }
+        stream.complete();
+        try {
+            stream.next(row(1));
+            fail("completed");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void clientCredits() throws IOException {
+        var client = new CapturedSession();
+        var pending = new PendingRequests();
+        var requestID = UUID.randomUUID();
+        var recorder = new PendingRequestsTest.Recorder(Long.MAX_VALUE);
+        pending.many(requestID, Duration.ofSeconds(10)).subscribe(recorder);
+        for (int i = 1; i <= ResponseStreamImpl.WINDOW; ++i) {
+            var body = PendingRequestsTest.response(requestID, i,
+                    ResponseStream.UNKNOWN_TOTAL);
+            assertTrue(pending.complete(client.iop, body));
+        }
+        // A credit for each batch of consumed rows.
+        var credits = client.bodies();
+        assertEquals(ResponseStreamImpl.WINDOW / PendingRequests.CREDIT_BATCH,
+                credits.size());
+        for (Body credit : credits) {
+            assertEquals(MessageType.FLOW_CREDIT, credit.Type);
+            assertEquals(requestID, credit.RequestID);
+            assertEquals(PendingRequests.CREDIT_BATCH, credit.CurrentCount);
+        }
+    }
+
+    @Test
+    public void creditAfterAdaptor() throws Exception {
+        var server = new CapturedSession();
+        var requestID = UUID.randomUUID();
+        ResponseStream<CThostFtdcInvestorPositionField> stream = server.iop
+                .openResponseStream(requestID, MessageType.RSP_QRY_POSITION);
+        for (int i = 1; i <= PendingRequests.CREDIT_BATCH + 1; ++i)
+            stream.next(row(i));
+        var client = new CapturedSession();
+        var handler = new FrameHandler(false);
+        handler.setPendingRequests(new PendingRequests());
+        var sent = new ArrayList<Integer>();
+        handler.setMessageAdaptor(new ClientMessageAdaptor() {
+            @Override
+            public void rspQryPosition(CThostFtdcInvestorPositionField position,
+                                       UUID requestID, UUID responseID,
+                                       int count, int total) {
+                sent.add(client.frames().size());
+            }
+        });
+        for (var frame : server.frames())
+            handler.messageReceived(client.io, frame);
+        // The credit is granted after the adaptor returns from the last row.
+        assertEquals(Collections.nCopies(PendingRequests.CREDIT_BATCH, 0),
+                sent);
+        assertEquals(1, client.frames().size());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SequenceTrackerTest {
+    @Test
+    public void gap() {
+        var tracker = new SequenceTracker();
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 5, false));
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 6, false));
+        var gap = tracker.receive(MessageType.FLOW_DEPTH, "c2101", 9, false);
+        assertEquals("c2101", gap.getInstrumentID());
+        assertEquals(MessageType.FLOW_DEPTH, gap.getType());
+        assertEquals(7, gap.getFromSequence());
+        assertEquals(8, gap.getToSequence());
+        assertEquals(9, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+
+        // Streams are apart by instrument and type.
+        assertNull(tracker.receive(MessageType.FLOW_CANDLE, "c2101", 1, false));
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2102", 3, false));
+        assertEquals(1, tracker.getLast(MessageType.FLOW_CANDLE, "c2101"));
+
+        // Server restarts.
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 1, false));
+        assertEquals(1, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+    }
+
+    @Test
+    public void conflated() {
+        var tracker = new SequenceTracker();
+        tracker.receive(MessageType.FLOW_DEPTH, "c2101", 1, false);
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 10, true));
+        assertEquals(10, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+        assertNotNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 12, false));
+    }
+
+    @Test
+    public void replayed() {
+        var tracker = new SequenceTracker();
+        tracker.replayed(MessageType.FLOW_DEPTH, "c2101", 0);
+        assertEquals(0, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+        tracker.replayed(MessageType.FLOW_DEPTH, "c2101", 8);
+        assertEquals(8, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+        assertNull(tracker.receive(MessageType.FLOW_DEPTH, "c2101", 9, false));
+
+        // Live stream ahead of the replayed is kept.
+        tracker.receive(MessageType.FLOW_DEPTH, "c2101", 20, false);
+        tracker.replayed(MessageType.FLOW_DEPTH, "c2101", 15);
+        assertEquals(20, tracker.getLast(MessageType.FLOW_DEPTH, "c2101"));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.frame.MessagePriority;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SerialExecutorTest {
+    // Delegate running the submitted runs when the test says.
+    static class ManualExecutor implements Executor {
+        final Queue<Runnable> runs = new ArrayDeque<>();
+        boolean rejecting = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if (this.rejecting)
+                throw new RejectedExecutionException("rejected by test");
+            this.runs.add(command);
+        }
+
+        void runAll() {
+            Runnable run;
+            while ((run = this.runs.poll()) != null)
+                run.run();
+        }
+    }
+
+    @Test
+    public void priorityOrder() {
+        var delegate = new ManualExecutor();
+        var serial = new SerialExecutor(delegate);
+        var order = new ArrayList<String>();
+        serial.execute(() -> order.add("heartbeat"));
+        serial.execute(() -> order.add("md1"), MessagePriority.MARKET_DATA);
+        serial.execute(() -> order.add("query"), MessagePriority.QUERY);
+        serial.execute(() -> order.add("md2"), MessagePriority.MARKET_DATA);
+        serial.execute(() -> order.add("order"), MessagePriority.ORDER);
+        // Submitted once for the waiting tasks.
+        assertEquals(1, delegate.runs.size());
+        delegate.runAll();
+        assertEquals(List.of("order", "query", "md1", "md2", "heartbeat"), order);
+    }
+
+    @Test
+    public void maxTasksPerRun() {
+        var delegate = new ManualExecutor();
+        var serial = new SerialExecutor(delegate);
+        var count = new AtomicInteger(0);
+        int tasks = SerialExecutor.MAX_TASKS_PER_RUN + 4;
+        for (int i = 0; i < tasks; ++i)
+            serial.execute(count::incrementAndGet, MessagePriority.QUERY);
+        delegate.runs.poll().run();
+        // The rest run behind other tasks of the delegate.
+        assertEquals(SerialExecutor.MAX_TASKS_PER_RUN, count.get());
+        assertEquals(1, delegate.runs.size());
+        delegate.runAll();
+        assertEquals(tasks, count.get());
+        assertTrue(delegate.runs.isEmpty());
+    }
+
+    @Test
+    public void rejected() {
+        var delegate = new ManualExecutor();
+        var serial = new SerialExecutor(delegate);
+        delegate.rejecting = true;
+        try {
+            serial.execute(() -> fail("dropped task runs"));
+            fail("not rejected");
+        } catch (RejectedExecutionException ignored) {
+        }
+        // Starts again when the delegate accepts.
+        delegate.rejecting = false;
+        var ran = new AtomicBoolean(false);
+        serial.execute(() -> ran.set(true));
+        delegate.runAll();
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void serial() throws InterruptedException {
+        var pool = Executors.newFixedThreadPool(4);
+        try {
+            var serial = new SerialExecutor(pool);
+            var running = new AtomicInteger(0);
+            var overlapped = new AtomicInteger(0);
+            var order = Collections.synchronizedList(new ArrayList<Integer>());
+            var done = new CountDownLatch(4000);
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; ++t) {
+                int id = t;
+                var thread = new Thread(() -> {
+                    for (int i = 0; i < 1000; ++i) {
+                        int value = id * 1000 + i;
+                        serial.execute(() -> {
+                            if (running.incrementAndGet() > 1)
+                                overlapped.incrementAndGet();
+                            order.add(value);
+                            running.decrementAndGet();
+                            done.countDown();
+                        }, MessagePriority.QUERY);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            // One at a time, and the tasks of a thread in order.
+            assertEquals(0, overlapped.get());
+            var last = new int[]{-1, -1, -1, -1};
+            for (var value : order) {
+                assertTrue(value % 1000 > last[value / 1000]);
+                last[value / 1000] = value % 1000;
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ThreadPerTaskExecutorTest {
+    @Test
+    public void maxConcurrency() throws InterruptedException {
+        var executor = new ThreadPerTaskExecutor(4);
+        var running = new AtomicInteger(0);
+        var started = new CountDownLatch(4);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(10);
+        for (int i = 0; i < 10; ++i)
+            executor.execute(() -> {
+                running.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The others wait for a running task.
+        Thread.sleep(50);
+        assertEquals(4, running.get());
+        assertEquals(10, done.getCount());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void allRun() throws InterruptedException {
+        var executor = new ThreadPerTaskExecutor(3);
+        var running = new AtomicInteger(0);
+        var max = new AtomicInteger(0);
+        var done = new CountDownLatch(10000);
+        // Tasks sent from many threads at once.
+        for (int t = 0; t < 4; ++t)
+            new Thread(() -> {
+                for (int i = 0; i < 2500; ++i)
+                    executor.execute(() -> {
+                        max.accumulateAndGet(running.incrementAndGet(),
+                                Math::max);
+                        running.decrementAndGet();
+                        done.countDown();
+                    });
+            }).start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(max.get() <= 3);
+    }
+
+    @Test
+    public void failedTask() throws InterruptedException {
+        var executor = new ThreadPerTaskExecutor(1);
+        var done = new CountDownLatch(1);
+        var caught = new AtomicReference<Throwable>();
+        var thrown = new CountDownLatch(1);
+        // Catch the failure instead of printing it in the test output.
+        var handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+            caught.set(e);
+            thrown.countDown();
+        });
+        try {
+            executor.execute(() -> {
+                throw new IllegalStateException("expected by test");
+            });
+            assertTrue(thrown.await(5, TimeUnit.SECONDS));
+            assertTrue(caught.get() instanceof IllegalStateException);
+            assertEquals("expected by test", caught.get().getMessage());
+            // The permit is given back.
+            executor.execute(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositive() {
+        new ThreadPerTaskExecutor(0);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.wukong.iop.SessionEvent;
+import com.nabiki.wukong.iop.SlowConsumerPolicy;
+import com.nabiki.wukong.iop.frame.Body;
+import com.nabiki.wukong.iop.frame.Frame;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.nabiki.wukong.iop.internal.CapturedSession.frame;
+import static com.nabiki.wukong.iop.internal.CapturedSession.ids;
+import static com.nabiki.wukong.iop.internal.CapturedSession.order;
+import static org.junit.Assert.*;
+
+public class WatermarkTest {
+    // Write a frame so the session finds it is above high watermark.
+    static void backlog(CapturedSession session) {
+        session.io.setScheduledWriteBytes(2000);
+        session.iop.sendResponse(order());
+        assertTrue(session.iop.isWriteBacklogged());
+        session.clear();
+    }
+
+    @Test
+    public void events() {
+        var session = new CapturedSession();
+        var events = new ArrayList<Object>();
+        session.iop.setListener((event, object) -> {
+            events.add(event);
+            events.add(object);
+        });
+        session.iop.setWriteWatermarks(100, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        session.io.setScheduledWriteBytes(500);
+        session.iop.sendResponse(order());
+        assertFalse(session.iop.isWriteBacklogged());
+        assertTrue(events.isEmpty());
+
+        session.io.setScheduledWriteBytes(2000);
+        session.iop.sendResponse(order());
+        assertEquals(List.of(SessionEvent.WRITE_HIGH_WATERMARK, 2000L), events);
+        assertEquals(2, session.frames().size());
+
+        // Market data is held, and others are written.
+        session.iop.sendFrame(frame(1), MessageType.FLOW_CANDLE, "c2101", false,
+                false);
+        session.iop.sendResponse(order());
+        assertEquals(3, session.frames().size());
+
+        // Above low watermark.
+        session.setScheduledBytes(200);
+        assertTrue(session.iop.isWriteBacklogged());
+        assertEquals(2, events.size());
+
+        session.setScheduledBytes(100);
+        assertFalse(session.iop.isWriteBacklogged());
+        assertEquals(List.of(SessionEvent.WRITE_HIGH_WATERMARK, 2000L,
+                SessionEvent.WRITE_LOW_WATERMARK, 100L), events);
+        assertEquals(4, session.frames().size());
+        assertEquals(1, session.frames().get(3).Body[0]);
+    }
+
+    @Test
+    public void dropOldest() {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        backlog(session);
+        session.iop.sendFrame(frame(0), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                true, false);
+        for (int i = 1; i <= 20; ++i)
+            session.iop.sendFrame(frame(i), MessageType.FLOW_DEPTH_DELTA,
+                    "c2101", false, false);
+        assertTrue(session.frames().isEmpty());
+        session.setScheduledBytes(0);
+        // Keyframe is kept, and the oldest deltas are dropped under 1000 bytes.
+        assertEquals(List.of(0, 13, 14, 15, 16, 17, 18, 19, 20),
+                ids(session.frames()));
+        // The frame after the dropped ones is marked.
+        assertEquals(List.of(13), conflatedIds(session.frames()));
+
+        // The next frame of the stream is marked if all are dropped.
+        session.clear();
+        backlog(session);
+        for (int i = 1; i <= 10; ++i)
+            session.iop.sendFrame(frame(i), MessageType.FLOW_CANDLE,
+                    i == 1 ? "c2101" : "c2102", false, false);
+        session.setScheduledBytes(0);
+        assertEquals(List.of(2, 3, 4, 5, 6, 7, 8, 9, 10), ids(session.frames()));
+        assertTrue(conflatedIds(session.frames()).isEmpty());
+        // Depth of the instrument is another stream.
+        session.iop.sendFrame(frame(11), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                false, false);
+        session.iop.sendFrame(frame(12), MessageType.FLOW_CANDLE, "c2101",
+                false, false);
+        session.iop.sendFrame(frame(13), MessageType.FLOW_CANDLE, "c2101",
+                false, false);
+        assertEquals(List.of(12), conflatedIds(session.frames()));
+    }
+
+    @Test
+    public void heldBytes() {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        // Market data over max bytes is written in two batches.
+        session.iop.setBatching(1000, Duration.ofHours(1));
+        for (int i = 0; i < 10; ++i)
+            session.iop.sendFrame(frame(i), MessageType.FLOW_CANDLE, "c2101",
+                    false, false);
+        assertEquals(2, session.batches.size());
+        assertEquals(10, session.frames().size());
+        session.iop.setBatching(0, null);
+
+        // The written bytes are not taken as held.
+        backlog(session);
+        session.iop.sendFrame(frame(1), MessageType.FLOW_CANDLE, "c2101", false,
+                false);
+        session.setScheduledBytes(0);
+        assertEquals(List.of(1), ids(session.frames()));
+    }
+
+    static List<Integer> conflatedIds(List<Frame> frames) {
+        var ids = new ArrayList<Integer>();
+        for (var frame : frames)
+            if (FrameType.hasFlag(frame.Type, FrameType.FLAG_CONFLATED))
+                ids.add((int) frame.Body[0]);
+        return ids;
+    }
+
+    @Test
+    public void conflate() {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.CONFLATE);
+        backlog(session);
+        session.iop.sendFrame(frame(1), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                false, false);
+        session.iop.sendFrame(frame(2), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                true, false);
+        session.iop.sendFrame(frame(3), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                false, false);
+        session.iop.sendFrame(frame(4), MessageType.FLOW_DEPTH_DELTA, "c2102",
+                false, false);
+        session.iop.sendFrame(frame(5), MessageType.FLOW_DEPTH_DELTA, "c2101",
+                false, false);
+        session.iop.sendFrame(frame(6), MessageType.FLOW_CANDLE, "c2101", false,
+                false);
+        assertTrue(session.frames().isEmpty());
+        session.setScheduledBytes(0);
+        // The latest delta follows the keyframe held before it, and the
+        // keyframe replaces the delta before it.
+        assertEquals(List.of(2, 6, 4, 5), ids(session.frames()));
+        assertEquals(List.of(2, 5), conflatedIds(session.frames()));
+    }
+
+    @Test
+    public void releaseInOrder() throws InterruptedException {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.CONFLATE);
+        var done = new AtomicBoolean(false);
+        // Enter and leave backlogged state while the deltas are sent.
+        var flipper = new Thread(() -> {
+            while (!done.get()) {
+                session.io.setScheduledWriteBytes(2000);
+                Thread.yield();
+                session.setScheduledBytes(0);
+            }
+        });
+        flipper.start();
+        for (int i = 0; i < 100000; ++i) {
+            var frame = frame(0);
+            ByteBuffer.wrap(frame.Body).putInt(0, i);
+            session.iop.sendFrame(frame, MessageType.FLOW_DEPTH_DELTA, "c2101",
+                    false, false);
+        }
+        done.set(true);
+        flipper.join();
+        session.setScheduledBytes(0);
+
+        // The conflated delta is never written after a newer one.
+        int last = -1;
+        for (var frame : session.frames()) {
+            int id = ByteBuffer.wrap(frame.Body).getInt(0);
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals(99999, last);
+    }
+
+    @Test
+    public void disconnect() {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.DISCONNECT);
+        session.io.setScheduledWriteBytes(2000);
+        session.iop.sendResponse(order());
+        assertTrue(session.io.isClosing());
+    }
+
+    @Test
+    public void block() throws InterruptedException {
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.BLOCK);
+        backlog(session);
+        var sender = new Thread(() -> session.iop.sendResponse(order()));
+        sender.start();
+        sender.join(300);
+        assertTrue(sender.isAlive());
+        assertTrue(session.frames().isEmpty());
+
+        // Handler threads are not blocked.
+        var handler = new Thread(() -> {
+            IOPSessionImpl.setNonBlocking(true);
+            session.iop.sendResponse(order());
+        });
+        handler.start();
+        handler.join(1000);
+        assertFalse(handler.isAlive());
+        assertEquals(1, session.frames().size());
+
+        session.setScheduledBytes(0);
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertEquals(2, session.frames().size());
+    }
+
+    @Test
+    public void nonBlockingCallback() throws Exception {
+        var session = new CapturedSession();
+        new FrameHandler(true).messageSent(session.io, new Object());
+        // The mark is cleared when the callback returns.
+        assertFalse(IOPSessionImpl.setNonBlocking(false));
+    }
+
+    @Test
+    public void publisher() throws IOException {
+        var publisher = new MarketDataPublisherImpl(new SubscriptionRegistryImpl());
+        var session = new CapturedSession();
+        session.iop.setWriteWatermarks(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        publisher.subscribe(session.iop, "c*");
+        publisher.publish(DepthDeltaTest.depth("c2101", 1));
+        assertEquals(1, session.frames().size());
+
+        // Publisher conflates while the session is above its watermark.
+        backlog(session);
+        for (int i = 2; i <= 5; ++i) {
+            publisher.publish(DepthDeltaTest.depth("c2101", i));
+            publisher.publish(DepthDeltaTest.depth("c2102", i));
+        }
+        assertTrue(session.frames().isEmpty());
+        session.setScheduledBytes(0);
+        publisher.sent(session.iop);
+        var bodies = session.bodies();
+        assertEquals(2, bodies.size());
+        for (var body : bodies)
+            assertEquals(2505, ((CThostFtdcDepthMarketDataField) body.Payload)
+                    .LastPrice, 0.0);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.wukong.iop.internal;
+
+import com.nabiki.wukong.iop.TraceRecord;
+import com.nabiki.wukong.iop.frame.FrameType;
+import com.nabiki.wukong.iop.frame.MessageType;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class WireTracerImplTest {
+    static void trace(WireTracerImpl tracer, CapturedSession session, int count,
+                      MessageType type) {
+        for (int i = 0; i < count; ++i)
+            tracer.trace(session.iop, TraceRecord.Direction.IN,
+                    FrameType.RESPONSE, i, type, null);
+    }
+
+    @Test
+    public void capacity() {
+        for (int capacity : new int[]{0, -4, 3, 100}) {
+            try {
+                new WireTracerImpl(capacity);
+                fail("capacity " + capacity);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        try {
+            new WireTracerImpl(4).setSampling(-1);
+            fail("negative sampling");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void record() {
+        var session = new CapturedSession();
+        var tracer = new WireTracerImpl(16);
+        assertFalse(tracer.isEnabled());
+        tracer.setSampling(1);
+        assertTrue(tracer.isEnabled());
+
+        var body = CapturedSession.order();
+        body.RequestID = UUID.randomUUID();
+        body.ResponseID = UUID.randomUUID();
+        body.CurrentCount = 2;
+        body.TotalCount = 3;
+        tracer.trace(session.iop, TraceRecord.Direction.OUT, FrameType.RESPONSE,
+                100, body.Type, body);
+        tracer.trace(session.iop, TraceRecord.Direction.IN, FrameType.HEARTBEAT,
+                8, MessageType.HEARTBEAT, null);
+
+        var records = tracer.dump();
+        assertEquals(2, records.size());
+        var record = records.get(0);
+        assertEquals(0, record.getSequence());
+        assertEquals(TraceRecord.Direction.OUT, record.getDirection());
+        assertEquals(session.io.getId(), record.getSessionID());
+        assertEquals(String.valueOf(session.io.getRemoteAddress()),
+                record.getRemoteAddress());
+        assertEquals(FrameType.RESPONSE, record.getFrameType());
+        assertEquals(100, record.getLength());
+        assertEquals(MessageType.RSP_REQ_ORDER_INSERT, record.getMessageType());
+        assertEquals(body.RequestID, record.getRequestID());
+        assertEquals(body.ResponseID, record.getResponseID());
+        assertEquals(2, record.getCurrentCount());
+        assertEquals(3, record.getTotalCount());
+
+        // Shared frames are recorded without the body.
+        record = records.get(1);
+        assertEquals(1, record.getSequence());
+        assertEquals(TraceRecord.Direction.IN, record.getDirection());
+        assertNull(record.getRequestID());
+        assertEquals(0, record.getTotalCount());
+
+        tracer.clear();
+        assertTrue(tracer.dump().isEmpty());
+        tracer.setSampling(0);
+        trace(tracer, session, 4, MessageType.HEARTBEAT);
+        assertTrue(tracer.dump().isEmpty());
+    }
+
+    @Test
+    public void ring() {
+        var session = new CapturedSession();
+        var tracer = new WireTracerImpl(4);
+        tracer.setSampling(1);
+        trace(tracer, session, 10, MessageType.FLOW_DEPTH);
+
+        // Only the latest records are kept, in order.
+        var records = tracer.dump();
+        assertEquals(4, records.size());
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(6 + i, records.get(i).getSequence());
+            assertEquals(6 + i, records.get(i).getLength());
+        }
+    }
+
+    @Test
+    public void sampling() {
+        var session = new CapturedSession();
+        var tracer = new WireTracerImpl(8192);
+        tracer.setSampling(4);
+        trace(tracer, session, 8000, MessageType.FLOW_DEPTH);
+
+        // About one in four, and the sequence counts only the sampled ones.
+        var records = tracer.dump();
+        assertTrue(records.size() > 1600 && records.size() < 2400);
+        assertEquals(records.size() - 1,
+                records.get(records.size() - 1).getSequence());
+    }
+
+    @Test
+    public void filter() {
+        var session = new CapturedSession();
+        var other = new CapturedSession();
+        var tracer = new WireTracerImpl(64);
+        tracer.setSampling(1);
+        tracer.setFilter((iop, type) -> iop == session.iop
+                && type != MessageType.HEARTBEAT);
+        trace(tracer, session, 3, MessageType.HEARTBEAT);
+        trace(tracer, other, 3, MessageType.FLOW_DEPTH);
+        trace(tracer, session, 3, MessageType.FLOW_DEPTH);
+
+        var records = tracer.dump();
+        assertEquals(3, records.size());
+        for (var record : records) {
+            assertEquals(session.io.getId(), record.getSessionID());
+            assertEquals(MessageType.FLOW_DEPTH, record.getMessageType());
+        }
+
+        tracer.setFilter(null);
+        trace(tracer, other, 2, MessageType.HEARTBEAT);
+        assertEquals(5, tracer.dump().size());
+    }
+
+    @Test
+    public void session() {
+        var session = new CapturedSession();
+        var tracer = new WireTracerImpl(16);
+        session.iop.setTracer(tracer);
+        session.iop.sendResponse(CapturedSession.order());
+        assertTrue(tracer.dump().isEmpty());
+
+        tracer.setSampling(1);
+        var body = CapturedSession.order();
+        body.RequestID = UUID.randomUUID();
+        session.iop.sendResponse(body);
+        session.iop.sendFrame(CapturedSession.frame(1), MessageType.FLOW_DEPTH,
+                "c2101", false, false);
+
+        var records = tracer.dump();
+        assertEquals(2, records.size());
+        var frame = session.frames().get(1);
+        assertEquals(frame.Type, records.get(0).getFrameType());
+        assertEquals(frame.Length, records.get(0).getLength());
+        assertEquals(body.RequestID, records.get(0).getRequestID());
+        assertEquals(MessageType.FLOW_DEPTH, records.get(1).getMessageType());
+        assertEquals(100, records.get(1).getLength());
+        assertNull(records.get(1).getRequestID());
+    }
+}